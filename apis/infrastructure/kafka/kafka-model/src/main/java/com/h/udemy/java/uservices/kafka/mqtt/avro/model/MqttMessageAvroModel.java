@@ -0,0 +1,734 @@
+/**
+ * Autogenerated by Avro
+ *
+ * DO NOT EDIT DIRECTLY
+ */
+package com.h.udemy.java.uservices.kafka.mqtt.avro.model;
+
+import org.apache.avro.generic.GenericArray;
+import org.apache.avro.specific.SpecificData;
+import org.apache.avro.util.Utf8;
+import org.apache.avro.message.BinaryMessageEncoder;
+import org.apache.avro.message.BinaryMessageDecoder;
+import org.apache.avro.message.SchemaStore;
+
+@org.apache.avro.specific.AvroGenerated
+public class MqttMessageAvroModel extends org.apache.avro.specific.SpecificRecordBase implements org.apache.avro.specific.SpecificRecord {
+  private static final long serialVersionUID = 8096539112200825009L;
+
+
+  public static final org.apache.avro.Schema SCHEMA$ = new org.apache.avro.Schema.Parser().parse("{\"type\":\"record\",\"name\":\"MqttMessageAvroModel\",\"namespace\":\"com.h.udemy.java.uservices.kafka.mqtt.avro.model\",\"fields\":[{\"name\":\"id\",\"type\":{\"type\":\"string\",\"logicalType\":\"uuid\"}},{\"name\":\"mqttTopic\",\"type\":{\"type\":\"string\",\"avro.java.string\":\"String\"}},{\"name\":\"qos\",\"type\":\"int\"},{\"name\":\"contentType\",\"type\":[\"null\",{\"type\":\"string\",\"avro.java.string\":\"String\"}],\"default\":null},{\"name\":\"userProperties\",\"type\":{\"type\":\"map\",\"values\":{\"type\":\"string\",\"avro.java.string\":\"String\"},\"avro.java.string\":\"String\"}},{\"name\":\"payload\",\"type\":\"bytes\"},{\"name\":\"receivedAt\",\"type\":{\"type\":\"long\",\"logicalType\":\"timestamp-millis\"}}]}");
+  public static org.apache.avro.Schema getClassSchema() { return SCHEMA$; }
+
+  private static final SpecificData MODEL$ = new SpecificData();
+  static {
+    MODEL$.addLogicalTypeConversion(new org.apache.avro.data.TimeConversions.TimestampMillisConversion());
+  }
+
+  private static final BinaryMessageEncoder<MqttMessageAvroModel> ENCODER =
+      new BinaryMessageEncoder<MqttMessageAvroModel>(MODEL$, SCHEMA$);
+
+  private static final BinaryMessageDecoder<MqttMessageAvroModel> DECODER =
+      new BinaryMessageDecoder<MqttMessageAvroModel>(MODEL$, SCHEMA$);
+
+  /**
+   * Return the BinaryMessageEncoder instance used by this class.
+   * @return the message encoder used by this class
+   */
+  public static BinaryMessageEncoder<MqttMessageAvroModel> getEncoder() {
+    return ENCODER;
+  }
+
+  /**
+   * Return the BinaryMessageDecoder instance used by this class.
+   * @return the message decoder used by this class
+   */
+  public static BinaryMessageDecoder<MqttMessageAvroModel> getDecoder() {
+    return DECODER;
+  }
+
+  /**
+   * Create a new BinaryMessageDecoder instance for this class that uses the specified {@link SchemaStore}.
+   * @param resolver a {@link SchemaStore} used to find schemas by fingerprint
+   * @return a BinaryMessageDecoder instance for this class backed by the given SchemaStore
+   */
+  public static BinaryMessageDecoder<MqttMessageAvroModel> createDecoder(SchemaStore resolver) {
+    return new BinaryMessageDecoder<MqttMessageAvroModel>(MODEL$, SCHEMA$, resolver);
+  }
+
+  /**
+   * Serializes this MqttMessageAvroModel to a ByteBuffer.
+   * @return a buffer holding the serialized data for this instance
+   * @throws java.io.IOException if this instance could not be serialized
+   */
+  public java.nio.ByteBuffer toByteBuffer() throws java.io.IOException {
+    return ENCODER.encode(this);
+  }
+
+  /**
+   * Deserializes a MqttMessageAvroModel from a ByteBuffer.
+   * @param b a byte buffer holding serialized data for an instance of this class
+   * @return a MqttMessageAvroModel instance decoded from the given buffer
+   * @throws java.io.IOException if the given bytes could not be deserialized into an instance of this class
+   */
+  public static MqttMessageAvroModel fromByteBuffer(
+      java.nio.ByteBuffer b) throws java.io.IOException {
+    return DECODER.decode(b);
+  }
+
+  private java.lang.String id;
+  private java.lang.String mqttTopic;
+  private int qos;
+  private java.lang.String contentType;
+  private java.util.Map<java.lang.String,java.lang.String> userProperties;
+  private java.nio.ByteBuffer payload;
+  private java.time.Instant receivedAt;
+
+  /**
+   * Default constructor.  Note that this does not initialize fields
+   * to their default values from the schema.  If that is desired then
+   * one should use <code>newBuilder()</code>.
+   */
+  public MqttMessageAvroModel() {}
+
+  /**
+   * All-args constructor.
+   * @param id The new value for id
+   * @param mqttTopic The new value for mqttTopic
+   * @param qos The new value for qos
+   * @param contentType The new value for contentType
+   * @param userProperties The new value for userProperties
+   * @param payload The new value for payload
+   * @param receivedAt The new value for receivedAt
+   */
+  public MqttMessageAvroModel(java.lang.String id, java.lang.String mqttTopic, java.lang.Integer qos, java.lang.String contentType, java.util.Map<java.lang.String,java.lang.String> userProperties, java.nio.ByteBuffer payload, java.time.Instant receivedAt) {
+    this.id = id;
+    this.mqttTopic = mqttTopic;
+    this.qos = qos;
+    this.contentType = contentType;
+    this.userProperties = userProperties;
+    this.payload = payload;
+    this.receivedAt = receivedAt.truncatedTo(java.time.temporal.ChronoUnit.MILLIS);
+  }
+
+  public org.apache.avro.specific.SpecificData getSpecificData() { return MODEL$; }
+  public org.apache.avro.Schema getSchema() { return SCHEMA$; }
+  // Used by DatumWriter.  Applications should not call.
+  public java.lang.Object get(int field$) {
+    switch (field$) {
+    case 0: return id;
+    case 1: return mqttTopic;
+    case 2: return qos;
+    case 3: return contentType;
+    case 4: return userProperties;
+    case 5: return payload;
+    case 6: return receivedAt;
+    default: throw new IndexOutOfBoundsException("Invalid index: " + field$);
+    }
+  }
+
+  private static final org.apache.avro.Conversion<?>[] conversions =
+      new org.apache.avro.Conversion<?>[] {
+      null,
+      null,
+      null,
+      null,
+      null,
+      null,
+      new org.apache.avro.data.TimeConversions.TimestampMillisConversion(),
+      null
+  };
+
+  @Override
+  public org.apache.avro.Conversion<?> getConversion(int field) {
+    return conversions[field];
+  }
+
+  // Used by DatumReader.  Applications should not call.
+  @SuppressWarnings(value="unchecked")
+  public void put(int field$, java.lang.Object value$) {
+    switch (field$) {
+    case 0: id = value$ != null ? value$.toString() : null; break;
+    case 1: mqttTopic = value$ != null ? value$.toString() : null; break;
+    case 2: qos = (java.lang.Integer)value$; break;
+    case 3: contentType = value$ != null ? value$.toString() : null; break;
+    case 4: userProperties = (java.util.Map<java.lang.String,java.lang.String>)value$; break;
+    case 5: payload = (java.nio.ByteBuffer)value$; break;
+    case 6: receivedAt = (java.time.Instant)value$; break;
+    default: throw new IndexOutOfBoundsException("Invalid index: " + field$);
+    }
+  }
+
+  /**
+   * Gets the value of the 'id' field.
+   * @return The value of the 'id' field.
+   */
+  public java.lang.String getId() {
+    return id;
+  }
+
+
+  /**
+   * Sets the value of the 'id' field.
+   * @param value the value to set.
+   */
+  public void setId(java.lang.String value) {
+    this.id = value;
+  }
+
+  /**
+   * Gets the value of the 'mqttTopic' field.
+   * @return The value of the 'mqttTopic' field.
+   */
+  public java.lang.String getMqttTopic() {
+    return mqttTopic;
+  }
+
+
+  /**
+   * Sets the value of the 'mqttTopic' field.
+   * @param value the value to set.
+   */
+  public void setMqttTopic(java.lang.String value) {
+    this.mqttTopic = value;
+  }
+
+  /**
+   * Gets the value of the 'qos' field.
+   * @return The value of the 'qos' field.
+   */
+  public int getQos() {
+    return qos;
+  }
+
+
+  /**
+   * Sets the value of the 'qos' field.
+   * @param value the value to set.
+   */
+  public void setQos(int value) {
+    this.qos = value;
+  }
+
+  /**
+   * Gets the value of the 'contentType' field.
+   * @return The value of the 'contentType' field.
+   */
+  public java.lang.String getContentType() {
+    return contentType;
+  }
+
+
+  /**
+   * Sets the value of the 'contentType' field.
+   * @param value the value to set.
+   */
+  public void setContentType(java.lang.String value) {
+    this.contentType = value;
+  }
+
+  /**
+   * Gets the value of the 'userProperties' field.
+   * @return The value of the 'userProperties' field.
+   */
+  public java.util.Map<java.lang.String,java.lang.String> getUserProperties() {
+    return userProperties;
+  }
+
+
+  /**
+   * Sets the value of the 'userProperties' field.
+   * @param value the value to set.
+   */
+  public void setUserProperties(java.util.Map<java.lang.String,java.lang.String> value) {
+    this.userProperties = value;
+  }
+
+  /**
+   * Gets the value of the 'payload' field.
+   * @return The value of the 'payload' field.
+   */
+  public java.nio.ByteBuffer getPayload() {
+    return payload;
+  }
+
+
+  /**
+   * Sets the value of the 'payload' field.
+   * @param value the value to set.
+   */
+  public void setPayload(java.nio.ByteBuffer value) {
+    this.payload = value;
+  }
+
+  /**
+   * Gets the value of the 'receivedAt' field.
+   * @return The value of the 'receivedAt' field.
+   */
+  public java.time.Instant getReceivedAt() {
+    return receivedAt;
+  }
+
+
+  /**
+   * Sets the value of the 'receivedAt' field.
+   * @param value the value to set.
+   */
+  public void setReceivedAt(java.time.Instant value) {
+    this.receivedAt = value.truncatedTo(java.time.temporal.ChronoUnit.MILLIS);
+  }
+
+  /**
+   * Creates a new MqttMessageAvroModel RecordBuilder.
+   * @return A new MqttMessageAvroModel RecordBuilder
+   */
+  public static com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel.Builder newBuilder() {
+    return new com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel.Builder();
+  }
+
+  /**
+   * Creates a new MqttMessageAvroModel RecordBuilder by copying an existing Builder.
+   * @param other The existing builder to copy.
+   * @return A new MqttMessageAvroModel RecordBuilder
+   */
+  public static com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel.Builder newBuilder(com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel.Builder other) {
+    if (other == null) {
+      return new com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel.Builder();
+    } else {
+      return new com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel.Builder(other);
+    }
+  }
+
+  /**
+   * Creates a new MqttMessageAvroModel RecordBuilder by copying an existing MqttMessageAvroModel instance.
+   * @param other The existing instance to copy.
+   * @return A new MqttMessageAvroModel RecordBuilder
+   */
+  public static com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel.Builder newBuilder(com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel other) {
+    if (other == null) {
+      return new com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel.Builder();
+    } else {
+      return new com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel.Builder(other);
+    }
+  }
+
+  /**
+   * RecordBuilder for MqttMessageAvroModel instances.
+   */
+  @org.apache.avro.specific.AvroGenerated
+  public static class Builder extends org.apache.avro.specific.SpecificRecordBuilderBase<MqttMessageAvroModel>
+    implements org.apache.avro.data.RecordBuilder<MqttMessageAvroModel> {
+
+    private java.lang.String id;
+    private java.lang.String mqttTopic;
+    private int qos;
+    private java.lang.String contentType;
+    private java.util.Map<java.lang.String,java.lang.String> userProperties;
+    private java.nio.ByteBuffer payload;
+    private java.time.Instant receivedAt;
+
+    /** Creates a new Builder */
+    private Builder() {
+      super(SCHEMA$, MODEL$);
+    }
+
+    /**
+     * Creates a Builder by copying an existing Builder.
+     * @param other The existing Builder to copy.
+     */
+    private Builder(com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel.Builder other) {
+      super(other);
+      if (isValidValue(fields()[0], other.id)) {
+        this.id = data().deepCopy(fields()[0].schema(), other.id);
+        fieldSetFlags()[0] = other.fieldSetFlags()[0];
+      }
+      if (isValidValue(fields()[1], other.mqttTopic)) {
+        this.mqttTopic = data().deepCopy(fields()[1].schema(), other.mqttTopic);
+        fieldSetFlags()[1] = other.fieldSetFlags()[1];
+      }
+      if (isValidValue(fields()[2], other.qos)) {
+        this.qos = data().deepCopy(fields()[2].schema(), other.qos);
+        fieldSetFlags()[2] = other.fieldSetFlags()[2];
+      }
+      if (isValidValue(fields()[3], other.contentType)) {
+        this.contentType = data().deepCopy(fields()[3].schema(), other.contentType);
+        fieldSetFlags()[3] = other.fieldSetFlags()[3];
+      }
+      if (isValidValue(fields()[4], other.userProperties)) {
+        this.userProperties = data().deepCopy(fields()[4].schema(), other.userProperties);
+        fieldSetFlags()[4] = other.fieldSetFlags()[4];
+      }
+      if (isValidValue(fields()[5], other.payload)) {
+        this.payload = data().deepCopy(fields()[5].schema(), other.payload);
+        fieldSetFlags()[5] = other.fieldSetFlags()[5];
+      }
+      if (isValidValue(fields()[6], other.receivedAt)) {
+        this.receivedAt = data().deepCopy(fields()[6].schema(), other.receivedAt);
+        fieldSetFlags()[6] = other.fieldSetFlags()[6];
+      }
+    }
+
+    /**
+     * Creates a Builder by copying an existing MqttMessageAvroModel instance
+     * @param other The existing instance to copy.
+     */
+    private Builder(com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel other) {
+      super(SCHEMA$, MODEL$);
+      if (isValidValue(fields()[0], other.id)) {
+        this.id = data().deepCopy(fields()[0].schema(), other.id);
+        fieldSetFlags()[0] = true;
+      }
+      if (isValidValue(fields()[1], other.mqttTopic)) {
+        this.mqttTopic = data().deepCopy(fields()[1].schema(), other.mqttTopic);
+        fieldSetFlags()[1] = true;
+      }
+      if (isValidValue(fields()[2], other.qos)) {
+        this.qos = data().deepCopy(fields()[2].schema(), other.qos);
+        fieldSetFlags()[2] = true;
+      }
+      if (isValidValue(fields()[3], other.contentType)) {
+        this.contentType = data().deepCopy(fields()[3].schema(), other.contentType);
+        fieldSetFlags()[3] = true;
+      }
+      if (isValidValue(fields()[4], other.userProperties)) {
+        this.userProperties = data().deepCopy(fields()[4].schema(), other.userProperties);
+        fieldSetFlags()[4] = true;
+      }
+      if (isValidValue(fields()[5], other.payload)) {
+        this.payload = data().deepCopy(fields()[5].schema(), other.payload);
+        fieldSetFlags()[5] = true;
+      }
+      if (isValidValue(fields()[6], other.receivedAt)) {
+        this.receivedAt = data().deepCopy(fields()[6].schema(), other.receivedAt);
+        fieldSetFlags()[6] = true;
+      }
+    }
+
+    /**
+      * Gets the value of the 'id' field.
+      * @return The value.
+      */
+    public java.lang.String getId() {
+      return id;
+    }
+
+
+    /**
+      * Sets the value of the 'id' field.
+      * @param value The value of 'id'.
+      * @return This builder.
+      */
+    public com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel.Builder setId(java.lang.String value) {
+      validate(fields()[0], value);
+      this.id = value;
+      fieldSetFlags()[0] = true;
+      return this;
+    }
+
+    /**
+      * Checks whether the 'id' field has been set.
+      * @return True if the 'id' field has been set, false otherwise.
+      */
+    public boolean hasId() {
+      return fieldSetFlags()[0];
+    }
+
+
+    /**
+      * Clears the value of the 'id' field.
+      * @return This builder.
+      */
+    public com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel.Builder clearId() {
+      id = null;
+      fieldSetFlags()[0] = false;
+      return this;
+    }
+
+    /**
+      * Gets the value of the 'mqttTopic' field.
+      * @return The value.
+      */
+    public java.lang.String getMqttTopic() {
+      return mqttTopic;
+    }
+
+
+    /**
+      * Sets the value of the 'mqttTopic' field.
+      * @param value The value of 'mqttTopic'.
+      * @return This builder.
+      */
+    public com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel.Builder setMqttTopic(java.lang.String value) {
+      validate(fields()[1], value);
+      this.mqttTopic = value;
+      fieldSetFlags()[1] = true;
+      return this;
+    }
+
+    /**
+      * Checks whether the 'mqttTopic' field has been set.
+      * @return True if the 'mqttTopic' field has been set, false otherwise.
+      */
+    public boolean hasMqttTopic() {
+      return fieldSetFlags()[1];
+    }
+
+
+    /**
+      * Clears the value of the 'mqttTopic' field.
+      * @return This builder.
+      */
+    public com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel.Builder clearMqttTopic() {
+      mqttTopic = null;
+      fieldSetFlags()[1] = false;
+      return this;
+    }
+
+    /**
+      * Gets the value of the 'qos' field.
+      * @return The value.
+      */
+    public int getQos() {
+      return qos;
+    }
+
+
+    /**
+      * Sets the value of the 'qos' field.
+      * @param value The value of 'qos'.
+      * @return This builder.
+      */
+    public com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel.Builder setQos(int value) {
+      validate(fields()[2], value);
+      this.qos = value;
+      fieldSetFlags()[2] = true;
+      return this;
+    }
+
+    /**
+      * Checks whether the 'qos' field has been set.
+      * @return True if the 'qos' field has been set, false otherwise.
+      */
+    public boolean hasQos() {
+      return fieldSetFlags()[2];
+    }
+
+
+    /**
+      * Clears the value of the 'qos' field.
+      * @return This builder.
+      */
+    public com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel.Builder clearQos() {
+      fieldSetFlags()[2] = false;
+      return this;
+    }
+
+    /**
+      * Gets the value of the 'contentType' field.
+      * @return The value.
+      */
+    public java.lang.String getContentType() {
+      return contentType;
+    }
+
+
+    /**
+      * Sets the value of the 'contentType' field.
+      * @param value The value of 'contentType'.
+      * @return This builder.
+      */
+    public com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel.Builder setContentType(java.lang.String value) {
+      validate(fields()[3], value);
+      this.contentType = value;
+      fieldSetFlags()[3] = true;
+      return this;
+    }
+
+    /**
+      * Checks whether the 'contentType' field has been set.
+      * @return True if the 'contentType' field has been set, false otherwise.
+      */
+    public boolean hasContentType() {
+      return fieldSetFlags()[3];
+    }
+
+
+    /**
+      * Clears the value of the 'contentType' field.
+      * @return This builder.
+      */
+    public com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel.Builder clearContentType() {
+      contentType = null;
+      fieldSetFlags()[3] = false;
+      return this;
+    }
+
+    /**
+      * Gets the value of the 'userProperties' field.
+      * @return The value.
+      */
+    public java.util.Map<java.lang.String,java.lang.String> getUserProperties() {
+      return userProperties;
+    }
+
+
+    /**
+      * Sets the value of the 'userProperties' field.
+      * @param value The value of 'userProperties'.
+      * @return This builder.
+      */
+    public com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel.Builder setUserProperties(java.util.Map<java.lang.String,java.lang.String> value) {
+      validate(fields()[4], value);
+      this.userProperties = value;
+      fieldSetFlags()[4] = true;
+      return this;
+    }
+
+    /**
+      * Checks whether the 'userProperties' field has been set.
+      * @return True if the 'userProperties' field has been set, false otherwise.
+      */
+    public boolean hasUserProperties() {
+      return fieldSetFlags()[4];
+    }
+
+
+    /**
+      * Clears the value of the 'userProperties' field.
+      * @return This builder.
+      */
+    public com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel.Builder clearUserProperties() {
+      userProperties = null;
+      fieldSetFlags()[4] = false;
+      return this;
+    }
+
+    /**
+      * Gets the value of the 'payload' field.
+      * @return The value.
+      */
+    public java.nio.ByteBuffer getPayload() {
+      return payload;
+    }
+
+
+    /**
+      * Sets the value of the 'payload' field.
+      * @param value The value of 'payload'.
+      * @return This builder.
+      */
+    public com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel.Builder setPayload(java.nio.ByteBuffer value) {
+      validate(fields()[5], value);
+      this.payload = value;
+      fieldSetFlags()[5] = true;
+      return this;
+    }
+
+    /**
+      * Checks whether the 'payload' field has been set.
+      * @return True if the 'payload' field has been set, false otherwise.
+      */
+    public boolean hasPayload() {
+      return fieldSetFlags()[5];
+    }
+
+
+    /**
+      * Clears the value of the 'payload' field.
+      * @return This builder.
+      */
+    public com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel.Builder clearPayload() {
+      payload = null;
+      fieldSetFlags()[5] = false;
+      return this;
+    }
+
+    /**
+      * Gets the value of the 'receivedAt' field.
+      * @return The value.
+      */
+    public java.time.Instant getReceivedAt() {
+      return receivedAt;
+    }
+
+
+    /**
+      * Sets the value of the 'receivedAt' field.
+      * @param value The value of 'receivedAt'.
+      * @return This builder.
+      */
+    public com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel.Builder setReceivedAt(java.time.Instant value) {
+      validate(fields()[6], value);
+      this.receivedAt = value.truncatedTo(java.time.temporal.ChronoUnit.MILLIS);
+      fieldSetFlags()[6] = true;
+      return this;
+    }
+
+    /**
+      * Checks whether the 'receivedAt' field has been set.
+      * @return True if the 'receivedAt' field has been set, false otherwise.
+      */
+    public boolean hasReceivedAt() {
+      return fieldSetFlags()[6];
+    }
+
+
+    /**
+      * Clears the value of the 'receivedAt' field.
+      * @return This builder.
+      */
+    public com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel.Builder clearReceivedAt() {
+      fieldSetFlags()[6] = false;
+      return this;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public MqttMessageAvroModel build() {
+      try {
+        MqttMessageAvroModel record = new MqttMessageAvroModel();
+        record.id = fieldSetFlags()[0] ? this.id : (java.lang.String) defaultValue(fields()[0]);
+        record.mqttTopic = fieldSetFlags()[1] ? this.mqttTopic : (java.lang.String) defaultValue(fields()[1]);
+        record.qos = fieldSetFlags()[2] ? this.qos : (java.lang.Integer) defaultValue(fields()[2]);
+        record.contentType = fieldSetFlags()[3] ? this.contentType : (java.lang.String) defaultValue(fields()[3]);
+        record.userProperties = fieldSetFlags()[4] ? this.userProperties : (java.util.Map<java.lang.String,java.lang.String>) defaultValue(fields()[4]);
+        record.payload = fieldSetFlags()[5] ? this.payload : (java.nio.ByteBuffer) defaultValue(fields()[5]);
+        record.receivedAt = fieldSetFlags()[6] ? this.receivedAt : (java.time.Instant) defaultValue(fields()[6]);
+        return record;
+      } catch (org.apache.avro.AvroMissingFieldException e) {
+        throw e;
+      } catch (java.lang.Exception e) {
+        throw new org.apache.avro.AvroRuntimeException(e);
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static final org.apache.avro.io.DatumWriter<MqttMessageAvroModel>
+    WRITER$ = (org.apache.avro.io.DatumWriter<MqttMessageAvroModel>)MODEL$.createDatumWriter(SCHEMA$);
+
+  @Override public void writeExternal(java.io.ObjectOutput out)
+    throws java.io.IOException {
+    WRITER$.write(this, SpecificData.getEncoder(out));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static final org.apache.avro.io.DatumReader<MqttMessageAvroModel>
+    READER$ = (org.apache.avro.io.DatumReader<MqttMessageAvroModel>)MODEL$.createDatumReader(SCHEMA$);
+
+  @Override public void readExternal(java.io.ObjectInput in)
+    throws java.io.IOException {
+    READER$.read(this, SpecificData.getDecoder(in));
+  }
+
+}
+
+
+
+
+
+
+
+
+
+
@@ -0,0 +1,67 @@
+package com.h.udemy.java.uservices.mqtt.kafka.bridge;
+
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.h.udemy.java.uservices.mqtt.kafka.bridge.config.MqttKafkaBridgeConfigData;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+
+// Derives the Kafka record key of a bridged message, so all messages of one device land in one partition
+@Slf4j
+class KafkaKeyExtractor {
+
+    private final ObjectMapper objectMapper;
+    private final JsonPointer payloadField;
+    private final int topicSegment;
+
+    KafkaKeyExtractor(ObjectMapper objectMapper, MqttKafkaBridgeConfigData.Route route) {
+        this.objectMapper = objectMapper;
+        String field = route.getKeyPayloadField();
+        this.payloadField = field == null || field.isBlank() ? null
+                : JsonPointer.compile(field.startsWith("/") ? field : "/" + field);
+        this.topicSegment = route.getKeyTopicSegment() != null ? route.getKeyTopicSegment() : -1;
+    }
+
+    String extract(String topic, byte[] payload) {
+        if (payloadField != null) {
+            String key = fromPayload(topic, payload);
+            if (key != null) {
+                return key;
+            }
+        }
+        if (topicSegment >= 0) {
+            String key = segment(topic, topicSegment);
+            if (key != null) {
+                return key;
+            }
+        }
+        return topic;
+    }
+
+    private String fromPayload(String topic, byte[] payload) {
+        try {
+            JsonNode value = objectMapper.readTree(payload).at(payloadField);
+            if (value.isMissingNode() || value.isNull()) {
+                return null;
+            }
+            return value.isValueNode() ? value.asText() : value.toString();
+        } catch (IOException e) {
+            log.debug("Payload on topic '{}' is not JSON, falling back to the topic for the Kafka key", topic);
+            return null;
+        }
+    }
+
+    private static String segment(String topic, int index) {
+        int start = 0;
+        for (int i = 0; i < index; i++) {
+            start = topic.indexOf('/', start) + 1;
+            if (start == 0) {
+                return null;
+            }
+        }
+        int end = topic.indexOf('/', start);
+        return topic.substring(start, end < 0 ? topic.length() : end);
+    }
+}
@@ -0,0 +1,195 @@
+package com.h.udemy.java.uservices.mqtt.kafka.bridge;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
+import com.h.udemy.java.uservices.infrastructure.mqtt.service.MqttService;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttAcknowledgement;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttSubscriber;
+import com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel;
+import com.h.udemy.java.uservices.kafka.producer.exception.KafkaProducerException;
+import com.h.udemy.java.uservices.kafka.producer.service.KafkaProducer;
+import com.h.udemy.java.uservices.mqtt.kafka.bridge.config.MqttKafkaBridgeConfigData;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Forwards MQTT messages matching the configured topic filters to Kafka as {@link MqttMessageAvroModel} records.
+ * <p>
+ * Messages are collected into batches (by size, or after {@code linger-ms}) and handed to the Kafka producer
+ * together on the bridge's own thread, so a producer blocked on metadata or a full buffer never holds up MQTT
+ * dispatch or Paho's callback thread. Each MQTT message is acknowledged to the broker only when Kafka has
+ * acknowledged its record, so with {@code mqtt.manual-acks} enabled and a persistent MQTT session the hand-off
+ * is at-least-once. A record Kafka rejects is sent again every {@code retry-ms} until Kafka accepts it; while
+ * it is unacknowledged the broker stops sending once receive-maximum messages are outstanding. A crash
+ * leaves it unacknowledged, so the broker redelivers it after reconnecting.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "mqtt-kafka-bridge", name = "enabled", havingValue = "true")
+public class MqttKafkaBridge {
+
+    private final MqttService mqttService;
+    private final KafkaProducer<String, MqttMessageAvroModel> kafkaProducer;
+    private final MqttKafkaBridgeConfigData configData;
+    private final ApiMqttProperties mqttProperties;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("mqtt-kafka-bridge").daemon(true).factory());
+
+    private final Object batchLock = new Object();
+    private List<BridgedRecord> batch;
+
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    public MqttKafkaBridge(MqttService mqttService,
+                           KafkaProducer<String, MqttMessageAvroModel> kafkaProducer,
+                           MqttKafkaBridgeConfigData configData,
+                           ApiMqttProperties mqttProperties) {
+        this.mqttService = mqttService;
+        this.kafkaProducer = kafkaProducer;
+        this.configData = configData;
+        this.mqttProperties = mqttProperties;
+        this.batch = new ArrayList<>(configData.getBatchSize());
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!mqttProperties.isManualAcks() || mqttProperties.isCleanSession()) {
+            log.warn("MQTT-to-Kafka bridge is not at-least-once: messages are acknowledged before Kafka accepts "
+                    + "them or lost on reconnect; enable mqtt.manual-acks and set mqtt.clean-session to false");
+        }
+        for (MqttKafkaBridgeConfigData.Route route : configData.getRoutes()) {
+            KafkaKeyExtractor keys = new KafkaKeyExtractor(objectMapper, route);
+            mqttService.subscribeAcknowledged(route.getMqttTopicFilter(),
+                    (topic, message, acknowledgement) -> accept(route, keys, topic, message, acknowledgement),
+                    route.getQos());
+            log.info("Bridging MQTT '{}' to Kafka topic '{}'", route.getMqttTopicFilter(), route.getKafkaTopic());
+        }
+        long lingerMs = Math.max(1, configData.getLingerMs());
+        flusher.scheduleWithFixedDelay(this::flush, lingerMs, lingerMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        flusher.shutdown();
+        flush();
+    }
+
+    public long getForwardedCount() {
+        return forwarded.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    void accept(MqttKafkaBridgeConfigData.Route route, KafkaKeyExtractor keys, String topic,
+                MqttSubscriber.MqttV5Message message, MqttAcknowledgement acknowledgement) {
+        BridgedRecord record = new BridgedRecord(route.getKafkaTopic(), keys.extract(topic, message.getPayload()),
+                toAvroModel(topic, message), acknowledgement);
+        List<BridgedRecord> full = null;
+        synchronized (batchLock) {
+            batch.add(record);
+            if (batch.size() >= configData.getBatchSize()) {
+                full = batch;
+                batch = new ArrayList<>(configData.getBatchSize());
+            }
+        }
+        if (full != null) {
+            List<BridgedRecord> records = full;
+            try {
+                flusher.execute(() -> send(records));
+            } catch (RejectedExecutionException e) {
+                log.warn("MQTT-to-Kafka bridge is stopped, {} message(s) left unacknowledged", records.size());
+            }
+        }
+    }
+
+    void flush() {
+        List<BridgedRecord> pending;
+        synchronized (batchLock) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            pending = batch;
+            batch = new ArrayList<>(configData.getBatchSize());
+        }
+        send(pending);
+    }
+
+    private void send(List<BridgedRecord> records) {
+        for (BridgedRecord record : records) {
+            send(record);
+        }
+    }
+
+    private void send(BridgedRecord record) {
+        try {
+            kafkaProducer.send(record.kafkaTopic(), record.key(), record.value(), callback(record));
+        } catch (KafkaProducerException e) {
+            retry(record, e);
+        }
+    }
+
+    // The message stays unacknowledged until Kafka accepts it, so it is retried rather than given up
+    private void retry(BridgedRecord record, Throwable cause) {
+        failed.increment();
+        log.error("Failed to bridge MQTT message from '{}' to Kafka topic '{}', retrying in {} ms: {}",
+                record.value().getMqttTopic(), record.kafkaTopic(), configData.getRetryMs(), cause.getMessage());
+        try {
+            flusher.schedule(() -> send(record), configData.getRetryMs(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.warn("MQTT-to-Kafka bridge is stopped, message from '{}' left unacknowledged",
+                    record.value().getMqttTopic());
+        }
+    }
+
+    private ListenableFutureCallback<SendResult<String, MqttMessageAvroModel>> callback(BridgedRecord record) {
+        return new ListenableFutureCallback<>() {
+
+            @Override
+            public void onFailure(Throwable ex) {
+                retry(record, ex);
+            }
+
+            @Override
+            public void onSuccess(SendResult<String, MqttMessageAvroModel> result) {
+                forwarded.increment();
+                record.acknowledgement().acknowledge();
+            }
+        };
+    }
+
+    private static MqttMessageAvroModel toAvroModel(String topic, MqttSubscriber.MqttV5Message message) {
+        return MqttMessageAvroModel.newBuilder()
+                .setId(UUID.randomUUID().toString())
+                .setMqttTopic(topic)
+                .setQos(message.getQos())
+                .setContentType(message.getContentType())
+                .setUserProperties(message.getUserProperties())
+                .setPayload(ByteBuffer.wrap(message.getPayload()))
+                .setReceivedAt(Instant.now())
+                .build();
+    }
+
+    private record BridgedRecord(String kafkaTopic, String key, MqttMessageAvroModel value,
+                                 MqttAcknowledgement acknowledgement) {
+    }
+}
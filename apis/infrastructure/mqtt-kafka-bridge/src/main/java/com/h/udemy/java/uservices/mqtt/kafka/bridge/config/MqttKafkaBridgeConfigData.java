@@ -0,0 +1,32 @@
+package com.h.udemy.java.uservices.mqtt.kafka.bridge.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "mqtt-kafka-bridge")
+public class MqttKafkaBridgeConfigData {
+    private boolean enabled = false;
+    // Records handed to the Kafka producer together; a partial batch is flushed after lingerMs
+    private int batchSize = 500;
+    private long lingerMs = 20;
+    // Delay before a record Kafka rejected is sent again
+    private long retryMs = 1_000;
+    private List<Route> routes = new ArrayList<>();
+
+    @Data
+    public static class Route {
+        private String mqttTopicFilter;
+        private String kafkaTopic;
+        private int qos = 1;
+        // Kafka key: a JSON field of the payload (e.g. "deviceId" or "/device/id"), else a topic level
+        // (0-based, e.g. 1 for "devices/{id}/telemetry"), else the whole MQTT topic
+        private String keyPayloadField;
+        private Integer keyTopicSegment;
+    }
+}
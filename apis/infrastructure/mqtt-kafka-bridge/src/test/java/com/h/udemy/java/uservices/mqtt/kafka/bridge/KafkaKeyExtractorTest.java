@@ -0,0 +1,49 @@
+package com.h.udemy.java.uservices.mqtt.kafka.bridge;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.h.udemy.java.uservices.mqtt.kafka.bridge.config.MqttKafkaBridgeConfigData;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class KafkaKeyExtractorTest {
+
+    private static final String TOPIC = "devices/sensor-7/telemetry";
+
+    @Test
+    void payload_field_is_preferred() {
+        KafkaKeyExtractor keys = extractor("deviceId", 1);
+
+        assertEquals("dev-42", keys.extract(TOPIC, bytes("{\"deviceId\":\"dev-42\",\"t\":21.5}")));
+    }
+
+    @Test
+    void json_pointer_reaches_nested_fields() {
+        KafkaKeyExtractor keys = extractor("/device/id", null);
+
+        assertEquals("7", keys.extract(TOPIC, bytes("{\"device\":{\"id\":7}}")));
+    }
+
+    @Test
+    void falls_back_to_topic_segment_then_topic() {
+        KafkaKeyExtractor keys = extractor("deviceId", 1);
+
+        assertEquals("sensor-7", keys.extract(TOPIC, bytes("not json")));
+        assertEquals("sensor-7", keys.extract(TOPIC, bytes("{\"other\":1}")));
+        assertEquals(TOPIC, extractor(null, 5).extract(TOPIC, bytes("{}")));
+        assertEquals(TOPIC, extractor(null, null).extract(TOPIC, bytes("{}")));
+    }
+
+    private static KafkaKeyExtractor extractor(String payloadField, Integer topicSegment) {
+        MqttKafkaBridgeConfigData.Route route = new MqttKafkaBridgeConfigData.Route();
+        route.setKeyPayloadField(payloadField);
+        route.setKeyTopicSegment(topicSegment);
+        return new KafkaKeyExtractor(new ObjectMapper(), route);
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
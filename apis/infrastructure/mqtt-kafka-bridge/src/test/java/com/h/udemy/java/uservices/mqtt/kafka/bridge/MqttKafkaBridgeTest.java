@@ -0,0 +1,107 @@
+package com.h.udemy.java.uservices.mqtt.kafka.bridge;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
+import com.h.udemy.java.uservices.infrastructure.mqtt.service.MqttService;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttAcknowledgement;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttSubscriber;
+import com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel;
+import com.h.udemy.java.uservices.kafka.producer.service.KafkaProducer;
+import com.h.udemy.java.uservices.mqtt.kafka.bridge.config.MqttKafkaBridgeConfigData;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+class MqttKafkaBridgeTest {
+
+    private KafkaProducer<String, MqttMessageAvroModel> kafkaProducer;
+    private MqttKafkaBridgeConfigData.Route route;
+    private KafkaKeyExtractor keys;
+    private MqttKafkaBridge bridge;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        kafkaProducer = mock(KafkaProducer.class);
+        route = new MqttKafkaBridgeConfigData.Route();
+        route.setMqttTopicFilter("devices/+/telemetry");
+        route.setKafkaTopic("telemetry");
+        route.setKeyTopicSegment(1);
+        keys = new KafkaKeyExtractor(new ObjectMapper(), route);
+
+        MqttKafkaBridgeConfigData configData = new MqttKafkaBridgeConfigData();
+        configData.setBatchSize(2);
+        configData.setRetryMs(10);
+        bridge = new MqttKafkaBridge(mock(MqttService.class), kafkaProducer, configData, new ApiMqttProperties());
+    }
+
+    @Test
+    void full_batch_is_sent_and_partial_batch_waits_for_flush() {
+        bridge.accept(route, keys, "devices/a/telemetry", message("1"), mock(MqttAcknowledgement.class));
+        verifyNoInteractions(kafkaProducer);
+
+        bridge.accept(route, keys, "devices/b/telemetry", message("2"), mock(MqttAcknowledgement.class));
+        // Sent on the bridge's thread, not the caller's
+        verify(kafkaProducer, timeout(1_000)).send(eq("telemetry"), eq("a"), any(), any());
+        verify(kafkaProducer, timeout(1_000)).send(eq("telemetry"), eq("b"), any(), any());
+
+        bridge.accept(route, keys, "devices/c/telemetry", message("3"), mock(MqttAcknowledgement.class));
+        bridge.flush();
+        verify(kafkaProducer, timeout(1_000).times(3)).send(eq("telemetry"), any(), any(), any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void message_is_acknowledged_only_after_kafka_accepts_it() {
+        MqttAcknowledgement accepted = mock(MqttAcknowledgement.class);
+        MqttAcknowledgement rejected = mock(MqttAcknowledgement.class);
+        bridge.accept(route, keys, "devices/a/telemetry", message("1"), accepted);
+        bridge.accept(route, keys, "devices/b/telemetry", message("2"), rejected);
+
+        ArgumentCaptor<MqttMessageAvroModel> values = ArgumentCaptor.forClass(MqttMessageAvroModel.class);
+        ArgumentCaptor<ListenableFutureCallback<SendResult<String, MqttMessageAvroModel>>> callbacks =
+                ArgumentCaptor.forClass(ListenableFutureCallback.class);
+        verify(kafkaProducer, timeout(1_000).times(2)).send(eq("telemetry"), any(), values.capture(),
+                callbacks.capture());
+
+        assertEquals("devices/a/telemetry", values.getAllValues().get(0).getMqttTopic());
+        assertEquals("1", StandardCharsets.UTF_8.decode(values.getAllValues().get(0).getPayload()).toString());
+        verify(accepted, never()).acknowledge();
+
+        List<ListenableFutureCallback<SendResult<String, MqttMessageAvroModel>>> sent = callbacks.getAllValues();
+        sent.get(0).onSuccess(null);
+        sent.get(1).onFailure(new IllegalStateException("broker down"));
+
+        verify(accepted).acknowledge();
+        verify(rejected, never()).acknowledge();
+        assertEquals(1, bridge.getForwardedCount());
+        assertEquals(1, bridge.getFailedCount());
+
+        // The rejected record is sent again and acknowledged once Kafka takes it
+        verify(kafkaProducer, timeout(1_000).times(2)).send(eq("telemetry"), eq("b"), any(), callbacks.capture());
+        callbacks.getValue().onSuccess(null);
+        verify(rejected).acknowledge();
+        assertEquals(2, bridge.getForwardedCount());
+    }
+
+    private static MqttSubscriber.MqttV5Message message(String payload) {
+        MqttMessage message = new MqttMessage(payload.getBytes(StandardCharsets.UTF_8));
+        message.setQos(1);
+        return new MqttSubscriber.MqttV5Message(message);
+    }
+}
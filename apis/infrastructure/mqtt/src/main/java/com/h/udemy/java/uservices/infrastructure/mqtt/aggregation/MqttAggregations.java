@@ -0,0 +1,31 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.aggregation;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
+import com.h.udemy.java.uservices.infrastructure.mqtt.service.MqttService;
+
+import java.util.List;
+
+// The aggregation stages configured under mqtt.aggregations, started together
+public class MqttAggregations implements AutoCloseable {
+
+    private final List<WindowedAggregator> aggregators;
+
+    public MqttAggregations(MqttService mqttService, List<ApiMqttProperties.Aggregation> aggregations) {
+        this.aggregators = aggregations.stream()
+                .map(aggregation -> new WindowedAggregator(mqttService, aggregation))
+                .toList();
+    }
+
+    public void start() {
+        aggregators.forEach(WindowedAggregator::start);
+    }
+
+    public List<WindowedAggregator> getAggregators() {
+        return aggregators;
+    }
+
+    @Override
+    public void close() {
+        aggregators.forEach(WindowedAggregator::close);
+    }
+}
@@ -0,0 +1,14 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.aggregation;
+
+import java.util.Map;
+
+/**
+ * Aggregate of the samples of one key over one window, published to the sink topic.
+ *
+ * @param windowStart epoch millis, inclusive
+ * @param windowEnd   epoch millis, exclusive
+ * @param percentiles by name, e.g. "p99" (nearest rank)
+ */
+public record WindowSummary(String key, long windowStart, long windowEnd, long count, double min, double max,
+                            double mean, Map<String, Double> percentiles) {
+}
@@ -0,0 +1,340 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.aggregation;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.core.JsonToken;
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
+import com.h.udemy.java.uservices.infrastructure.mqtt.service.MqttService;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttAcknowledgement;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttSubscriber;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregates numeric samples from MQTT into one summary per key and window instead of forwarding every sample.
+ * <p>
+ * Windows are aligned to the epoch in processing time. A sliding window of {@code windowMillis} advancing by
+ * {@code slideMillis} is kept as a ring of {@code windowMillis / slideMillis} panes per key (one when
+ * tumbling), plus the pane filling up; each pane holds its samples in a primitive array with running
+ * count/min/max/sum, so a sample is stored without boxing. When a pane closes, the window ending there is
+ * summarised from its panes and the samples are sorted once for exact percentiles.
+ */
+@Slf4j
+public class WindowedAggregator implements AutoCloseable {
+
+    private static final String KEY_PLACEHOLDER = "{key}";
+
+    private final MqttService mqttService;
+    private final String topics;
+    // The root when unset, so a plain number payload is read by the same parser
+    private final JsonPointer valuePointer;
+    private final JsonPointer keyPointer;
+    private final long slideMillis;
+    private final int panesPerWindow;
+    private final double[] percentiles;
+    private final String[] percentileNames;
+    private final String sinkTopic;
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final Map<String, KeyWindows> keys = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService ticker;
+    // Reused by the ticker thread to sort a window's samples
+    private double[] scratch = new double[1024];
+
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder windows = new LongAdder();
+
+    public WindowedAggregator(MqttService mqttService, ApiMqttProperties.Aggregation config) {
+        long windowMillis = config.getWindowMillis();
+        long slide = config.getSlideMillis() > 0 ? config.getSlideMillis() : windowMillis;
+        if (windowMillis <= 0 || windowMillis % slide != 0) {
+            throw new IllegalArgumentException("Aggregation window of " + windowMillis
+                    + " ms must be a positive multiple of its slide of " + slide + " ms");
+        }
+        this.mqttService = mqttService;
+        this.topics = config.getTopics();
+        String valueField = blankToNull(config.getValueField());
+        String keyField = blankToNull(config.getKeyField());
+        this.valuePointer = valueField == null ? JsonPointer.empty() : JsonPointer.compile(valueField);
+        this.keyPointer = keyField == null ? null : JsonPointer.compile(keyField);
+        this.slideMillis = slide;
+        this.panesPerWindow = (int) (windowMillis / slide);
+        this.percentiles = config.getPercentiles().stream().mapToDouble(Double::doubleValue).toArray();
+        this.percentileNames = new String[percentiles.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            double p = percentiles[i];
+            percentileNames[i] = "p" + (p == Math.rint(p) ? String.valueOf((long) p) : String.valueOf(p));
+        }
+        this.sinkTopic = config.getSinkTopic();
+        this.ticker = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("mqtt-aggregation").daemon(true).factory());
+    }
+
+    public void start() {
+        mqttService.subscribeAcknowledged(topics, this::onMessage);
+        long now = System.currentTimeMillis();
+        long firstClose = (now / slideMillis + 1) * slideMillis;
+        ticker.scheduleAtFixedRate(() -> {
+            try {
+                closeWindow(System.currentTimeMillis() / slideMillis * slideMillis);
+            } catch (Exception e) {
+                log.error("MQTT aggregation of '{}' failed: {}", topics, e.getMessage(), e);
+            }
+        }, firstClose - now, slideMillis, TimeUnit.MILLISECONDS);
+        log.info("Aggregating '{}' over {} ms windows every {} ms into '{}'", topics,
+                slideMillis * panesPerWindow, slideMillis, sinkTopic);
+    }
+
+    public void add(String key, double value, long timestampMillis) {
+        // A key retired by the ticker in the meantime is replaced by a fresh one
+        while (!keys.computeIfAbsent(key, KeyWindows::new).add(value, timestampMillis / slideMillis)) {
+            Thread.onSpinWait();
+        }
+        samples.increment();
+    }
+
+    // Samples taken into a window
+    public long getSampleCount() {
+        return samples.sum();
+    }
+
+    // Messages without a usable value or key
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getWindowCount() {
+        return windows.sum();
+    }
+
+    @Override
+    public void close() {
+        ticker.shutdownNow();
+    }
+
+    // Emits the window of every key that ends at windowEnd (a slide boundary) and drops keys gone quiet
+    void closeWindow(long windowEnd) {
+        long endPane = windowEnd / slideMillis;
+        for (KeyWindows key : keys.values()) {
+            WindowSummary summary = key.summarise(endPane);
+            if (summary != null) {
+                windows.increment();
+                mqttService.publishAsync(sinkTopic.replace(KEY_PLACEHOLDER, key.key), summary)
+                        .exceptionally(e -> {
+                            log.warn("Failed to publish aggregate of '{}': {}", key.key, e.getMessage());
+                            return null;
+                        });
+            } else {
+                key.retireIfIdle(endPane);
+            }
+        }
+    }
+
+    private void onMessage(String topic, MqttSubscriber.MqttV5Message message, MqttAcknowledgement acknowledgement) {
+        try (JsonParser parser = jsonFactory.createParser(message.getPayload())) {
+            long now = System.currentTimeMillis();
+            Sample sample = new Sample(keyPointer == null ? 1 : 2);
+            if (parser.nextToken() != null) {
+                read(parser, valuePointer, keyPointer, sample);
+            }
+            if (sample.pending > 0 || !sample.valid) {
+                rejected.increment();
+                return;
+            }
+            add(sample.key == null ? topic : sample.key, sample.value, now);
+        } catch (IOException e) {
+            rejected.increment();
+            log.debug("Ignoring sample on '{}' without a numeric value: {}", topic, e.getMessage());
+        } finally {
+            acknowledgement.acknowledge();
+        }
+    }
+
+    // Streams the document from the current token, descending only into the members the pointers lead through, and
+    // stops as soon as both are resolved; value and key are the pointers left relative to the current token, or null
+    // when it is off their path
+    private static void read(JsonParser parser, JsonPointer value, JsonPointer key, Sample sample) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (value != null && value.matches()) {
+            sample.valid &= token.isNumeric();
+            if (sample.valid) {
+                sample.value = parser.getDoubleValue();
+            }
+            sample.pending--;
+            value = null;
+        }
+        if (key != null && key.matches()) {
+            sample.valid &= token.isScalarValue();
+            if (sample.valid) {
+                sample.key = parser.getText();
+            }
+            sample.pending--;
+            key = null;
+        }
+        if (sample.pending == 0 || !sample.valid) {
+            sample.pending = 0;
+            return;
+        }
+        if (value == null && key == null) {
+            parser.skipChildren();
+        } else if (token == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                parser.nextToken();
+                read(parser, member(value, name), member(key, name), sample);
+                if (sample.pending == 0) {
+                    return;
+                }
+            }
+        } else if (token == JsonToken.START_ARRAY) {
+            for (int index = 0; parser.nextToken() != JsonToken.END_ARRAY; index++) {
+                read(parser, element(value, index), element(key, index), sample);
+                if (sample.pending == 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static JsonPointer member(JsonPointer pointer, String name) {
+        return pointer != null && name.equals(pointer.getMatchingProperty()) ? pointer.tail() : null;
+    }
+
+    private static JsonPointer element(JsonPointer pointer, int index) {
+        return pointer != null && pointer.getMatchingIndex() == index ? pointer.tail() : null;
+    }
+
+    private static String blankToNull(String value) {
+        return value == null || value.isBlank() ? null : value;
+    }
+
+    private static final class Sample {
+        // Pointers not resolved yet
+        private int pending;
+        private boolean valid = true;
+        private double value;
+        private String key;
+
+        private Sample(int pending) {
+            this.pending = pending;
+        }
+    }
+
+    private final class KeyWindows {
+        private final String key;
+        // One pane more than a window, so samples of the next pane don't overwrite one not emitted yet
+        private final Pane[] panes = new Pane[panesPerWindow + 1];
+        // Set once removed from keys; adds then go to the key's next instance
+        private boolean retired;
+
+        private KeyWindows(String key) {
+            this.key = key;
+            for (int i = 0; i < panes.length; i++) {
+                panes[i] = new Pane();
+            }
+        }
+
+        // False if the key was retired and the sample not taken
+        synchronized boolean add(double value, long paneNumber) {
+            if (retired) {
+                return false;
+            }
+            Pane pane = panes[(int) Math.floorMod(paneNumber, (long) panes.length)];
+            if (pane.number != paneNumber) {
+                pane.reset(paneNumber);
+            }
+            pane.add(value);
+            return true;
+        }
+
+        // The window of panes [endPane - panesPerWindow, endPane), or null when it has no samples
+        synchronized WindowSummary summarise(long endPane) {
+            long count = 0;
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            double sum = 0;
+            for (Pane pane : panes) {
+                if (pane.inWindow(endPane) && pane.count > 0) {
+                    count += pane.count;
+                    min = Math.min(min, pane.min);
+                    max = Math.max(max, pane.max);
+                    sum += pane.sum;
+                }
+            }
+            if (count == 0) {
+                return null;
+            }
+
+            if (scratch.length < count) {
+                scratch = new double[(int) Math.max(count, scratch.length * 2L)];
+            }
+            int size = 0;
+            for (Pane pane : panes) {
+                if (pane.inWindow(endPane)) {
+                    System.arraycopy(pane.values, 0, scratch, size, pane.count);
+                    size += pane.count;
+                }
+            }
+            Arrays.sort(scratch, 0, size);
+            Map<String, Double> ranks = new LinkedHashMap<>();
+            for (int i = 0; i < percentiles.length; i++) {
+                int rank = (int) Math.ceil(percentiles[i] / 100.0 * size);
+                ranks.put(percentileNames[i], scratch[Math.min(size - 1, Math.max(0, rank - 1))]);
+            }
+            return new WindowSummary(key, (endPane - panesPerWindow) * slideMillis, endPane * slideMillis,
+                    count, min, max, sum / count, ranks);
+        }
+
+        // Removes the key once it has no pane in or after the window ending at endPane; under the lock, so
+        // no sample can be added to it after the check
+        synchronized void retireIfIdle(long endPane) {
+            for (Pane pane : panes) {
+                if (pane.number >= endPane - panesPerWindow) {
+                    return;
+                }
+            }
+            retired = true;
+            keys.remove(key, this);
+        }
+
+        private final class Pane {
+            private long number = Long.MIN_VALUE;
+            private double[] values = new double[16];
+            private int count;
+            private double min;
+            private double max;
+            private double sum;
+
+            private void reset(long paneNumber) {
+                number = paneNumber;
+                count = 0;
+                sum = 0;
+            }
+
+            private void add(double value) {
+                if (count == values.length) {
+                    values = Arrays.copyOf(values, count * 2);
+                }
+                values[count] = value;
+                min = count == 0 ? value : Math.min(min, value);
+                max = count == 0 ? value : Math.max(max, value);
+                sum += value;
+                count++;
+            }
+
+            private boolean inWindow(long endPane) {
+                return number >= endPane - panesPerWindow && number < endPane;
+            }
+        }
+    }
+}
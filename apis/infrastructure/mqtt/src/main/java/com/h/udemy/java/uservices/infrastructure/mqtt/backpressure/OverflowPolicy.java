@@ -0,0 +1,13 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.backpressure;
+
+// What a full bounded MQTT buffer does with one more message
+public enum OverflowPolicy {
+    // The producer waits for room (publishers up to the configured block timeout)
+    BLOCK,
+    // The oldest buffered message is discarded to make room
+    DROP_OLDEST,
+    // The new message is discarded
+    DROP_NEWEST,
+    // The producer gets an exception immediately
+    FAIL_FAST
+}
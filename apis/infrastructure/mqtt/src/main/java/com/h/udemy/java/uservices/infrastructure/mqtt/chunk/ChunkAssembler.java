@@ -0,0 +1,263 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.chunk;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.chunk.exception.MqttChunkException;
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
+import com.h.udemy.java.uservices.infrastructure.mqtt.service.MqttService;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttAcknowledgement;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttSubscriber;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+/**
+ * Reassembles transfers published by {@link ChunkedPublisher} and streams their content to a
+ * {@link ChunkedTransferListener}.
+ * <p>
+ * Chunks are written as soon as they are next in sequence, so memory per transfer is bounded by
+ * {@code maxBufferedChunks} chunks that arrived ahead of a missing one, and at most {@code maxTransfers}
+ * transfers are assembled at once. A transfer fails when a gap outlasts the buffer, when no chunk arrives
+ * for {@code timeoutMillis}, when the sender aborts it, or when its size or CRC-32C does not match.
+ * Redelivered chunks are ignored.
+ */
+@Slf4j
+public class ChunkAssembler implements AutoCloseable {
+
+    // Finished transfer ids remembered so that late redeliveries do not start them again
+    private static final int FINISHED_CAPACITY = 1_024;
+
+    private final MqttService mqttService;
+    private final int maxBufferedChunks;
+    private final int maxTransfers;
+    private final long timeoutMillis;
+    private final int qos;
+    private final Map<UUID, Transfer> transfers = new ConcurrentHashMap<>();
+    private final Map<UUID, Boolean> finished = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, Boolean> eldest) {
+            return size() > FINISHED_CAPACITY;
+        }
+    };
+    private final ScheduledExecutorService sweeper;
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder redelivered = new LongAdder();
+
+    public ChunkAssembler(MqttService mqttService, ApiMqttProperties.Chunking config) {
+        this.mqttService = mqttService;
+        this.maxBufferedChunks = config.getMaxBufferedChunks();
+        this.maxTransfers = config.getMaxTransfers();
+        this.timeoutMillis = config.getTimeoutMillis();
+        this.qos = config.getQos();
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("mqtt-chunk-timeouts").daemon(true).factory());
+        long sweepMillis = Math.max(10, timeoutMillis / 4);
+        sweeper.scheduleWithFixedDelay(this::expire, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Other messages on the topic filter are ignored
+    public void subscribe(String topicFilter, ChunkedTransferListener listener) {
+        mqttService.subscribeAcknowledged(topicFilter,
+                (topic, message, acknowledgement) -> onChunk(topic, message, acknowledgement, listener), qos);
+        log.info("Reassembling chunked transfers from '{}'", topicFilter);
+    }
+
+    public int getActiveTransferCount() {
+        return transfers.size();
+    }
+
+    public long getCompletedCount() {
+        return completed.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    // Chunks received again, e.g. QoS 1 redeliveries, and ignored
+    public long getRedeliveredChunkCount() {
+        return redelivered.sum();
+    }
+
+    @Override
+    public void close() {
+        sweeper.shutdownNow();
+        transfers.values().forEach(transfer -> transfer.fail(new MqttChunkException("Chunk assembler closed")));
+    }
+
+    private void onChunk(String topic, MqttSubscriber.MqttV5Message message, MqttAcknowledgement acknowledgement,
+                         ChunkedTransferListener listener) {
+        try {
+            if (!MqttChunk.isChunk(message.getContentType())) {
+                return;
+            }
+            MqttChunk chunk = MqttChunk.decode(message.getPayload());
+            Transfer transfer = transferFor(topic, chunk.getTransferId(), listener);
+            if (transfer != null) {
+                transfer.accept(chunk);
+            }
+        } catch (MqttChunkException e) {
+            log.warn("Discarding chunk on topic '{}': {}", topic, e.getMessage());
+        } finally {
+            acknowledgement.acknowledge();
+        }
+    }
+
+    private Transfer transferFor(String topic, UUID transferId, ChunkedTransferListener listener) {
+        Transfer transfer = transfers.get(transferId);
+        if (transfer != null) {
+            return transfer;
+        }
+        synchronized (finished) {
+            if (finished.containsKey(transferId)) {
+                redelivered.increment();
+                return null;
+            }
+        }
+        if (transfers.size() >= maxTransfers) {
+            log.warn("Discarding chunk of transfer {} on '{}': {} transfers are already in progress",
+                    transferId, topic, maxTransfers);
+            return null;
+        }
+        return transfers.computeIfAbsent(transferId, id -> new Transfer(topic, id, listener));
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (Transfer transfer : transfers.values()) {
+            if (now - transfer.lastChunkAt > timeoutMillis) {
+                transfer.timeOut();
+            }
+        }
+    }
+
+    private void finish(Transfer transfer) {
+        transfers.remove(transfer.id, transfer);
+        synchronized (finished) {
+            finished.put(transfer.id, Boolean.TRUE);
+        }
+    }
+
+    private final class Transfer {
+        private final String topic;
+        private final UUID id;
+        private final ChunkedTransferListener listener;
+        private final TreeMap<Integer, MqttChunk> ahead = new TreeMap<>();
+        private final CRC32C checksum = new CRC32C();
+        private volatile long lastChunkAt = System.currentTimeMillis();
+        // Guarded by the transfer's monitor
+        private OutputStream out;
+        private int next;
+        private long written;
+        private MqttChunk last;
+        private boolean done;
+
+        private Transfer(String topic, UUID id, ChunkedTransferListener listener) {
+            this.topic = topic;
+            this.id = id;
+            this.listener = listener;
+        }
+
+        synchronized void accept(MqttChunk chunk) {
+            if (done) {
+                return;
+            }
+            lastChunkAt = System.currentTimeMillis();
+            if (chunk.isAborted()) {
+                fail(new MqttChunkException("Transfer " + id + " was aborted by the sender"));
+                return;
+            }
+            int sequence = chunk.getSequence();
+            if (sequence < next || ahead.containsKey(sequence) || (last != null && sequence > last.getSequence())) {
+                redelivered.increment();
+                return;
+            }
+            if (chunk.isLast()) {
+                last = chunk;
+            }
+            if (sequence > next) {
+                if (ahead.size() >= maxBufferedChunks) {
+                    fail(new MqttChunkException("Transfer " + id + " is missing chunk " + next + " with "
+                            + ahead.size() + " later chunks waiting"));
+                } else {
+                    ahead.put(sequence, chunk);
+                }
+                return;
+            }
+            try {
+                write(chunk);
+                MqttChunk following;
+                while ((following = ahead.remove(next)) != null) {
+                    write(following);
+                }
+                if (last != null && next > last.getSequence()) {
+                    complete();
+                }
+            } catch (IOException e) {
+                fail(new MqttChunkException("Failed to write transfer " + id, e));
+            }
+        }
+
+        synchronized void timeOut() {
+            if (done || System.currentTimeMillis() - lastChunkAt <= timeoutMillis) {
+                return;
+            }
+            String of = last != null ? " of " + (last.getSequence() + 1) : "";
+            fail(new MqttChunkException("Transfer " + id + " timed out waiting for chunk " + next + of + " ("
+                    + ahead.size() + " later chunks received)"));
+        }
+
+        synchronized void fail(MqttChunkException cause) {
+            if (done) {
+                return;
+            }
+            done = true;
+            ahead.clear();
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    cause.addSuppressed(e);
+                }
+            }
+            finish(this);
+            failed.increment();
+            listener.failed(topic, id, cause);
+        }
+
+        private void write(MqttChunk chunk) throws IOException {
+            if (out == null) {
+                out = listener.open(topic, id);
+            }
+            chunk.writeTo(out);
+            chunk.updateChecksum(checksum);
+            written += chunk.getLength();
+            next++;
+        }
+
+        private void complete() throws IOException {
+            if (written != last.getContentSize() || (int) checksum.getValue() != last.getChecksum()) {
+                fail(new MqttChunkException("Transfer " + id + " is corrupt: " + written + " bytes received, "
+                        + last.getContentSize() + " sent"));
+                return;
+            }
+            out.close();
+            done = true;
+            finish(this);
+            completed.increment();
+            log.debug("Received transfer {} on '{}': {} bytes in {} chunks", id, topic, written, next);
+            listener.completed(topic, id, written);
+        }
+    }
+}
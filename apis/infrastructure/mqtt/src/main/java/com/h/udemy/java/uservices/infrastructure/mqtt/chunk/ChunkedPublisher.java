@@ -0,0 +1,121 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.chunk;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.chunk.exception.MqttChunkException;
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
+import com.h.udemy.java.uservices.infrastructure.mqtt.service.MqttService;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32C;
+
+/**
+ * Publishes content of any size as a sequence of {@link MqttChunk} messages on one topic, read from a stream
+ * as it goes: at most {@code maxInFlightChunks} chunks are held in memory, awaiting the broker's
+ * acknowledgement, however large the content is. {@link ChunkAssembler} puts the content back together.
+ */
+@Slf4j
+public class ChunkedPublisher {
+
+    private final MqttService mqttService;
+    private final int chunkSize;
+    private final int maxInFlightChunks;
+    private final int qos;
+
+    public ChunkedPublisher(MqttService mqttService, ApiMqttProperties.Chunking config) {
+        this.mqttService = mqttService;
+        this.chunkSize = config.getChunkSize();
+        this.maxInFlightChunks = Math.max(1, config.getMaxInFlightChunks());
+        this.qos = config.getQos();
+    }
+
+    public UUID publish(String topic, InputStream content) {
+        return publish(topic, Channels.newChannel(content));
+    }
+
+    /**
+     * Reads the channel to its end and publishes it; returns once every chunk is acknowledged.
+     * The channel must be in blocking mode and is not closed.
+     *
+     * @return the transfer id the receiving side reports the content under
+     * @throws MqttChunkException if the channel cannot be read or a chunk cannot be published
+     */
+    public UUID publish(String topic, ReadableByteChannel content) {
+        UUID transferId = UUID.randomUUID();
+        Semaphore window = new Semaphore(maxInFlightChunks);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CRC32C checksum = new CRC32C();
+        long size = 0;
+        int sequence = 0;
+        try {
+            boolean last = false;
+            while (!last) {
+                byte[] message = new byte[MqttChunk.HEADER_SIZE + chunkSize];
+                ByteBuffer data = ByteBuffer.wrap(message, MqttChunk.HEADER_SIZE, chunkSize);
+                try {
+                    last = fill(content, data);
+                } catch (IOException e) {
+                    abort(topic, transferId, sequence);
+                    throw new MqttChunkException("Failed to read the content of transfer " + transferId, e);
+                }
+                int length = data.position() - MqttChunk.HEADER_SIZE;
+                checksum.update(message, MqttChunk.HEADER_SIZE, length);
+                size += length;
+                if (last) {
+                    message = Arrays.copyOf(message, MqttChunk.HEADER_SIZE + length);
+                }
+                MqttChunk.writeHeader(message, transferId, sequence, last, size, (int) checksum.getValue());
+
+                window.acquire();
+                if (failure.get() != null) {
+                    window.release();
+                    break;
+                }
+                mqttService.publishBytesAsync(topic, message, qos, false, MqttChunk.CONTENT_TYPE)
+                        .whenComplete((ignored, e) -> {
+                            if (e != null) {
+                                failure.compareAndSet(null, e);
+                            }
+                            window.release();
+                        });
+                sequence++;
+            }
+            // Every permit back means every chunk is acknowledged
+            window.acquire(maxInFlightChunks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MqttChunkException("Interrupted publishing transfer " + transferId, e);
+        }
+        if (failure.get() != null) {
+            throw new MqttChunkException("Failed to publish chunk of transfer " + transferId, failure.get());
+        }
+        log.debug("Published transfer {} to '{}': {} bytes in {} chunks", transferId, topic, size, sequence);
+        return transferId;
+    }
+
+    // True once the channel is exhausted; the last chunk may be empty
+    private static boolean fill(ReadableByteChannel content, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            if (content.read(data) < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Lets the receiving side give up on the transfer now rather than after its timeout
+    private void abort(String topic, UUID transferId, int sequence) {
+        mqttService.publishBytesAsync(topic, MqttChunk.abort(transferId, sequence), qos, false,
+                MqttChunk.CONTENT_TYPE).exceptionally(e -> {
+            log.warn("Failed to abort transfer {}: {}", transferId, e.getMessage());
+            return null;
+        });
+    }
+}
@@ -0,0 +1,21 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.chunk;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Receives the content of chunked transfers from {@link ChunkAssembler}. Each transfer gets its own stream,
+ * opened with its first chunk; the assembler closes it before {@code completed} or {@code failed}.
+ * Calls for one transfer are never concurrent.
+ */
+public interface ChunkedTransferListener {
+
+    OutputStream open(String topic, UUID transferId) throws IOException;
+
+    // The content is complete and its size and checksum match what the sender published
+    void completed(String topic, UUID transferId, long size);
+
+    // Whatever was written to the stream is incomplete or corrupt
+    void failed(String topic, UUID transferId, Throwable cause);
+}
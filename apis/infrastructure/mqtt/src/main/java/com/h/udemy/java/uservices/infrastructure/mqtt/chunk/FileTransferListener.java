@@ -0,0 +1,62 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.chunk;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+/**
+ * Writes each transfer to {@code <directory>/<transferId>.part} and renames it to {@code <transferId>} once
+ * complete, so a file under its final name is always whole. Failed transfers are deleted.
+ */
+@Slf4j
+public class FileTransferListener implements ChunkedTransferListener {
+
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    private final Path directory;
+    // Receives the topic and the completed file
+    private final BiConsumer<String, Path> onFile;
+
+    public FileTransferListener(Path directory, BiConsumer<String, Path> onFile) {
+        this.directory = directory;
+        this.onFile = onFile;
+    }
+
+    @Override
+    public OutputStream open(String topic, UUID transferId) throws IOException {
+        Files.createDirectories(directory);
+        return Files.newOutputStream(partial(transferId));
+    }
+
+    @Override
+    public void completed(String topic, UUID transferId, long size) {
+        Path file = directory.resolve(transferId.toString());
+        try {
+            Files.move(partial(transferId), file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            failed(topic, transferId, e);
+            return;
+        }
+        onFile.accept(topic, file);
+    }
+
+    @Override
+    public void failed(String topic, UUID transferId, Throwable cause) {
+        log.warn("Discarding transfer {} from '{}': {}", transferId, topic, cause.getMessage());
+        try {
+            Files.deleteIfExists(partial(transferId));
+        } catch (IOException e) {
+            log.warn("Failed to delete partial transfer {}: {}", transferId, e.getMessage());
+        }
+    }
+
+    private Path partial(UUID transferId) {
+        return directory.resolve(transferId + PARTIAL_SUFFIX);
+    }
+}
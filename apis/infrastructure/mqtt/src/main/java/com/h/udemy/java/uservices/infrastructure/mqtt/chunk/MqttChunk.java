@@ -0,0 +1,132 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.chunk;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.chunk.exception.MqttChunkException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.zip.Checksum;
+
+/**
+ * One piece of a content too large for a single MQTT message, published with content type
+ * {@link #CONTENT_TYPE}. Every chunk of a transfer but the last carries the same amount of data.
+ * Layout, big-endian:
+ * <pre>
+ * byte     version (1)
+ * byte     flags: 1 = last chunk, 2 = transfer aborted by the sender
+ * long     transfer id, most significant bits
+ * long     transfer id, least significant bits
+ * int      sequence number, from 0
+ * long     content size in bytes (last chunk only, otherwise 0)
+ * int      CRC-32C of the content (last chunk only, otherwise 0)
+ * then the chunk's data
+ * </pre>
+ */
+public final class MqttChunk {
+
+    public static final String CONTENT_TYPE = "application/vnd.mqtt-chunk";
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 1 + 1 + 2 * Long.BYTES + Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+    private static final int FLAG_LAST = 1;
+    private static final int FLAG_ABORTED = 2;
+
+    private final UUID transferId;
+    private final int sequence;
+    private final int flags;
+    private final long contentSize;
+    private final int checksum;
+    // The received message; the data follows the header
+    private final byte[] message;
+
+    private MqttChunk(UUID transferId, int sequence, int flags, long contentSize, int checksum, byte[] message) {
+        this.transferId = transferId;
+        this.sequence = sequence;
+        this.flags = flags;
+        this.contentSize = contentSize;
+        this.checksum = checksum;
+        this.message = message;
+    }
+
+    public static boolean isChunk(String contentType) {
+        return CONTENT_TYPE.equals(contentType);
+    }
+
+    // Writes the header in front of data already placed at HEADER_SIZE
+    static void writeHeader(byte[] message, UUID transferId, int sequence, boolean last, long contentSize,
+                            int checksum) {
+        ByteBuffer.wrap(message, 0, HEADER_SIZE)
+                .put(VERSION)
+                .put((byte) (last ? FLAG_LAST : 0))
+                .putLong(transferId.getMostSignificantBits())
+                .putLong(transferId.getLeastSignificantBits())
+                .putInt(sequence)
+                .putLong(last ? contentSize : 0)
+                .putInt(last ? checksum : 0);
+    }
+
+    static byte[] abort(UUID transferId, int sequence) {
+        byte[] message = new byte[HEADER_SIZE];
+        writeHeader(message, transferId, sequence, false, 0, 0);
+        message[1] = FLAG_ABORTED;
+        return message;
+    }
+
+    // The chunk keeps the array rather than copying its data
+    public static MqttChunk decode(byte[] message) {
+        if (message.length < HEADER_SIZE) {
+            throw new MqttChunkException("Truncated MQTT chunk: " + message.length + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new MqttChunkException("Unsupported MQTT chunk version " + version);
+        }
+        int flags = buffer.get();
+        UUID transferId = new UUID(buffer.getLong(), buffer.getLong());
+        int sequence = buffer.getInt();
+        long contentSize = buffer.getLong();
+        int checksum = buffer.getInt();
+        if (sequence < 0 || contentSize < 0) {
+            throw new MqttChunkException("Corrupt MQTT chunk " + sequence + " of transfer " + transferId);
+        }
+        return new MqttChunk(transferId, sequence, flags, contentSize, checksum, message);
+    }
+
+    public UUID getTransferId() {
+        return transferId;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public boolean isLast() {
+        return (flags & FLAG_LAST) != 0;
+    }
+
+    public boolean isAborted() {
+        return (flags & FLAG_ABORTED) != 0;
+    }
+
+    public long getContentSize() {
+        return contentSize;
+    }
+
+    public int getChecksum() {
+        return checksum;
+    }
+
+    public int getLength() {
+        return message.length - HEADER_SIZE;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(message, HEADER_SIZE, getLength());
+    }
+
+    public void updateChecksum(Checksum content) {
+        content.update(message, HEADER_SIZE, getLength());
+    }
+}
@@ -0,0 +1,12 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.chunk.exception;
+
+public class MqttChunkException extends RuntimeException {
+
+    public MqttChunkException(String message) {
+        super(message);
+    }
+
+    public MqttChunkException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,18 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.client;
+
+/**
+ * Paho delivers a connection's messages and completes its publishes and subscriptions on one thread, named
+ * {@code "MQTT Call: <client id>"}, which also runs whatever those completions trigger. Nothing on that thread
+ * may wait for the broker: the acknowledgements that would end the wait queue up behind it.
+ */
+public final class MqttCallbackThread {
+
+    private static final String NAME_PREFIX = "MQTT Call: ";
+
+    private MqttCallbackThread() {
+    }
+
+    public static boolean isCurrent() {
+        return Thread.currentThread().getName().startsWith(NAME_PREFIX);
+    }
+}
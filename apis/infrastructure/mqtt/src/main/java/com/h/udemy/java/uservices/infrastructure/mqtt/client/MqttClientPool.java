@@ -0,0 +1,98 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.client;
+
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fixed set of broker connections, each with its own TCP socket and Paho network thread.
+ * <p>
+ * Topics and topic filters are pinned to one connection by hash, so publishes on a topic keep
+ * their order and a subscription is always served (and unsubscribed) by the same connection.
+ */
+@Slf4j
+public class MqttClientPool implements AutoCloseable {
+
+    private final MqttAsyncClient[] clients;
+    private final MqttProperties[] connAckProperties;
+
+    public MqttClientPool(List<MqttAsyncClient> clients) {
+        if (clients.isEmpty()) {
+            throw new IllegalArgumentException("MQTT client pool needs at least one client");
+        }
+        this.clients = clients.toArray(new MqttAsyncClient[0]);
+        this.connAckProperties = new MqttProperties[this.clients.length];
+    }
+
+    public static MqttClientPool of(MqttAsyncClient client) {
+        return new MqttClientPool(List.of(client));
+    }
+
+    // Client id of one pooled connection; a pool of one keeps the configured id unchanged
+    public static String clientId(String baseClientId, int shard, int size) {
+        return size == 1 ? baseClientId : baseClientId + "-" + shard;
+    }
+
+    public int size() {
+        return clients.length;
+    }
+
+    public MqttAsyncClient client(int shard) {
+        return clients[shard];
+    }
+
+    public MqttAsyncClient primary() {
+        return clients[0];
+    }
+
+    public List<MqttAsyncClient> clients() {
+        return Arrays.asList(clients);
+    }
+
+    public int shardFor(String topicOrFilter) {
+        if (clients.length == 1) {
+            return 0;
+        }
+        int h = topicOrFilter.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), clients.length);
+    }
+
+    public MqttAsyncClient forTopic(String topicOrFilter) {
+        return clients[shardFor(topicOrFilter)];
+    }
+
+    public MqttProperties getConnAckProperties(int shard) {
+        return connAckProperties[shard];
+    }
+
+    public void setConnAckProperties(int shard, MqttProperties properties) {
+        connAckProperties[shard] = properties;
+    }
+
+    public boolean isConnected() {
+        for (MqttAsyncClient client : clients) {
+            if (!client.isConnected()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        for (MqttAsyncClient client : clients) {
+            try {
+                if (client.isConnected()) {
+                    client.disconnect().waitForCompletion();
+                }
+                client.close();
+            } catch (MqttException e) {
+                log.warn("Failed to close MQTT client '{}': {}", client.getClientId(), e.getMessage());
+            }
+        }
+    }
+}
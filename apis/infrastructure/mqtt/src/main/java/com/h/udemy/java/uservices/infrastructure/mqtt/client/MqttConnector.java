@@ -0,0 +1,159 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.client;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connects the pool's clients in the background and reconnects them when a connection is lost, so that
+ * nothing waits on the broker while the application starts.
+ * <p>
+ * Failed attempts are retried with exponential backoff and full jitter: the n-th retry waits a random time
+ * below {@code min(maxDelayMillis, initialDelayMillis * 2^n)}, which keeps a fleet of clients from
+ * reconnecting in lockstep after a broker restart. Listeners hear of every (re)connect and loss.
+ */
+@Slf4j
+public class MqttConnector implements AutoCloseable {
+
+    public interface ConnectionListener {
+
+        // The CONNACK's limits apply to this connection from now on
+        void connected(int shard, MqttProperties connAckProperties, boolean sessionPresent);
+
+        void disconnected(int shard);
+    }
+
+    private final MqttClientPool clientPool;
+    private final MqttConnectionOptions options;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final List<ConnectionListener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("mqtt-connector").daemon(true).factory());
+    // Set while a connection attempt of the shard is scheduled or running
+    private final AtomicBoolean[] connecting;
+    private volatile boolean closed;
+
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+
+    public MqttConnector(MqttClientPool clientPool, MqttConnectionOptions options,
+                         ApiMqttProperties.Reconnect config) {
+        this.clientPool = clientPool;
+        this.options = options;
+        this.initialDelayMillis = Math.max(1, config.getInitialDelayMillis());
+        this.maxDelayMillis = Math.max(initialDelayMillis, config.getMaxDelayMillis());
+        this.connecting = new AtomicBoolean[clientPool.size()];
+        for (int shard = 0; shard < connecting.length; shard++) {
+            connecting[shard] = new AtomicBoolean();
+        }
+    }
+
+    public void addListener(ConnectionListener listener) {
+        listeners.add(listener);
+    }
+
+    // Returns at once; connections come up as the broker accepts them
+    public void start() {
+        for (int shard = 0; shard < clientPool.size(); shard++) {
+            schedule(shard, 0, 0);
+        }
+    }
+
+    // Called when an established connection drops; Paho's own automatic reconnect must be off
+    public void connectionLost(int shard) {
+        if (closed) {
+            return;
+        }
+        listeners.forEach(listener -> listener.disconnected(shard));
+        reconnects.increment();
+        schedule(shard, 0, delayMillis(0));
+    }
+
+    public long getConnectAttemptCount() {
+        return attempts.sum();
+    }
+
+    public long getReconnectCount() {
+        return reconnects.sum();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        scheduler.shutdownNow();
+    }
+
+    private void schedule(int shard, int failures, long delayMillis) {
+        if (closed || !connecting[shard].compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            scheduler.schedule(() -> connect(shard, failures), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            // Rejected once closed
+            connecting[shard].set(false);
+        }
+    }
+
+    private void connect(int shard, int failures) {
+        MqttAsyncClient client = clientPool.client(shard);
+        if (closed) {
+            connecting[shard].set(false);
+            return;
+        }
+        attempts.increment();
+        try {
+            client.connect(options, null, new MqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    connecting[shard].set(false);
+                    MqttProperties connAck = asyncActionToken.getResponseProperties();
+                    clientPool.setConnAckProperties(shard, connAck);
+                    log.info("MQTT v5 client '{}' connected (session present: {})", client.getClientId(),
+                            asyncActionToken.getSessionPresent());
+                    listeners.forEach(listener ->
+                            listener.connected(shard, connAck, asyncActionToken.getSessionPresent()));
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    retry(shard, client, failures, exception);
+                }
+            });
+        } catch (MqttException | RuntimeException e) {
+            retry(shard, client, failures, e);
+        }
+    }
+
+    private void retry(int shard, MqttAsyncClient client, int failures, Throwable cause) {
+        connecting[shard].set(false);
+        long delay = delayMillis(failures + 1);
+        log.warn("MQTT v5 client '{}' failed to connect to {} ({}); retrying in {} ms", client.getClientId(),
+                client.getServerURI(), cause.getMessage(), delay);
+        schedule(shard, failures + 1, delay);
+    }
+
+    // Full jitter: uniform in [0, min(max, initial * 2^failures))
+    long delayMillis(int failures) {
+        long ceiling = initialDelayMillis << Math.min(failures, 30);
+        if (ceiling <= 0 || ceiling > maxDelayMillis) {
+            ceiling = maxDelayMillis;
+        }
+        return ThreadLocalRandom.current().nextLong(ceiling);
+    }
+}
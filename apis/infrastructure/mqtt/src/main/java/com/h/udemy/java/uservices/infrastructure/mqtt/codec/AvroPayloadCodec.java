@@ -0,0 +1,69 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.codec;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.codec.exception.MqttCodecException;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificData;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.avro.specific.SpecificRecord;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Avro binary encoding of generated {@link SpecificRecord} classes, such as the kafka-model schemas.
+ * The payload carries no schema: both sides must use the same record class.
+ */
+public class AvroPayloadCodec implements MqttPayloadCodec {
+
+    public static final String AVRO = "application/avro";
+
+    private final Map<Class<?>, DatumWriter<Object>> writers = new ConcurrentHashMap<>();
+    private final Map<Class<?>, DatumReader<?>> readers = new ConcurrentHashMap<>();
+
+    @Override
+    public String contentType() {
+        return AVRO;
+    }
+
+    @Override
+    public void encode(Object value, PayloadBuffer buffer) throws IOException {
+        if (!(value instanceof SpecificRecord record)) {
+            throw new MqttCodecException("Avro payloads must be generated Avro records, got "
+                    + (value == null ? "null" : value.getClass().getName()));
+        }
+        // Direct encoder: no intermediate buffer, bytes go straight into the payload buffer
+        BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(buffer, null);
+        writers.computeIfAbsent(record.getClass(), type -> writer(record)).write(record, encoder);
+        encoder.flush();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T decode(byte[] payload, Class<T> type) throws IOException {
+        DatumReader<T> reader = (DatumReader<T>) readers.computeIfAbsent(type, AvroPayloadCodec::reader);
+        BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(payload, null);
+        return reader.read(null, decoder);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static DatumWriter<Object> writer(SpecificRecord record) {
+        // The record class's own model carries its logical type conversions (decimal, timestamps, uuid)
+        return (DatumWriter<Object>) (DatumWriter<?>) new SpecificDatumWriter<>(record.getSchema(),
+                SpecificData.getForClass(record.getClass()));
+    }
+
+    private static DatumReader<?> reader(Class<?> type) {
+        if (!SpecificRecord.class.isAssignableFrom(type)) {
+            throw new MqttCodecException("Avro payloads decode to generated Avro records, not " + type.getName());
+        }
+        SpecificData model = SpecificData.getForClass(type);
+        return new SpecificDatumReader<>(model.getSchema(type), model.getSchema(type), model);
+    }
+}
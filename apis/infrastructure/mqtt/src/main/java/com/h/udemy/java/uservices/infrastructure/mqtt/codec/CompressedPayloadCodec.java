@@ -0,0 +1,38 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.codec;
+
+import java.io.IOException;
+
+// Another codec's encoding, compressed; the content type gets the compression as a suffix ("application/cbor+zstd")
+public class CompressedPayloadCodec implements MqttPayloadCodec {
+
+    private final MqttPayloadCodec codec;
+    private final PayloadCompression compression;
+    private final String contentType;
+
+    public CompressedPayloadCodec(MqttPayloadCodec codec, PayloadCompression compression) {
+        this.codec = codec;
+        this.compression = compression;
+        this.contentType = codec.contentType() + "+" + compression.name();
+    }
+
+    @Override
+    public String contentType() {
+        return contentType;
+    }
+
+    @Override
+    public void encode(Object value, PayloadBuffer buffer) throws IOException {
+        PayloadBuffer uncompressed = PayloadBuffer.acquire();
+        try {
+            codec.encode(value, uncompressed);
+            compression.compress(uncompressed.array(), uncompressed.size(), buffer);
+        } finally {
+            uncompressed.release();
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] payload, Class<T> type) throws IOException {
+        return codec.decode(compression.decompress(payload), type);
+    }
+}
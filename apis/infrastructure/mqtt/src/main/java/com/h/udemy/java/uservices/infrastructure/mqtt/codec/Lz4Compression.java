@@ -0,0 +1,64 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.codec;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// A 4-byte big-endian uncompressed length followed by one LZ4 block; cheaper on CPU than zstd, compresses less.
+// The length comes from the sender, so it is checked against a cap before anything is allocated
+public class Lz4Compression implements PayloadCompression {
+
+    public static final String NAME = "lz4";
+    private static final int LENGTH_BYTES = Integer.BYTES;
+
+    private final LZ4Compressor compressor;
+    private final LZ4SafeDecompressor decompressor;
+    private final int maxDecompressedBytes;
+
+    public Lz4Compression(int maxDecompressedBytes) {
+        LZ4Factory factory = LZ4Factory.fastestInstance();
+        this.compressor = factory.fastCompressor();
+        this.decompressor = factory.safeDecompressor();
+        this.maxDecompressedBytes = maxDecompressedBytes;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public void compress(byte[] source, int length, PayloadBuffer target) {
+        int start = target.size();
+        target.ensureCapacity(start + LENGTH_BYTES + compressor.maxCompressedLength(length));
+        ByteBuffer.wrap(target.array(), start, LENGTH_BYTES).putInt(length);
+        int written = compressor.compress(source, 0, length, target.array(), start + LENGTH_BYTES);
+        target.setSize(start + LENGTH_BYTES + written);
+    }
+
+    @Override
+    public byte[] decompress(byte[] payload) throws IOException {
+        if (payload.length < LENGTH_BYTES) {
+            throw new IOException("LZ4 payload too short");
+        }
+        int length = ByteBuffer.wrap(payload).getInt();
+        if (length < 0 || length > maxDecompressedBytes) {
+            throw new IOException("LZ4 payload length " + length + " is outside 0.." + maxDecompressedBytes);
+        }
+        byte[] decompressed = new byte[length];
+        try {
+            int written = decompressor.decompress(payload, LENGTH_BYTES, payload.length - LENGTH_BYTES,
+                    decompressed, 0, length);
+            if (written != length) {
+                throw new IOException("LZ4 payload decompressed to " + written + " bytes, expected " + length);
+            }
+        } catch (LZ4Exception e) {
+            throw new IOException("Malformed LZ4 payload", e);
+        }
+        return decompressed;
+    }
+}
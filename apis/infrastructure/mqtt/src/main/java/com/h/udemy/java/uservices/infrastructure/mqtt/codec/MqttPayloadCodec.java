@@ -0,0 +1,19 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.codec;
+
+import java.io.IOException;
+
+/**
+ * Encodes message objects to MQTT payloads and back, for one MQTT v5 content type.
+ * <p>
+ * Publishers put {@link #contentType()} on the messages they encode, and subscribers pick the codec
+ * by the content type of each message they receive; see {@link MqttPayloadCodecs}.
+ */
+public interface MqttPayloadCodec {
+
+    String contentType();
+
+    // Appends the encoded value to the buffer
+    void encode(Object value, PayloadBuffer buffer) throws IOException;
+
+    <T> T decode(byte[] payload, Class<T> type) throws IOException;
+}
@@ -0,0 +1,128 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.codec;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.codec.exception.MqttCodecException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.util.ClassUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The payload codecs known to a client, by MQTT v5 content type.
+ * <p>
+ * Publishers encode with the default codec unless a message names another content type; subscribers
+ * decode each message with the codec of its content type, falling back to the default for messages
+ * without one (or with an unknown one), so devices that send plain JSON keep working.
+ */
+@Slf4j
+public class MqttPayloadCodecs {
+
+    public static final int DEFAULT_ZSTD_LEVEL = 3;
+    public static final int DEFAULT_MAX_DECOMPRESSED_BYTES = 16 * 1024 * 1024;
+
+    private final Map<String, MqttPayloadCodec> codecs;
+    private final MqttPayloadCodec defaultCodec;
+
+    public MqttPayloadCodecs(Collection<? extends MqttPayloadCodec> codecs, String defaultContentType) {
+        Map<String, MqttPayloadCodec> byContentType = new LinkedHashMap<>();
+        codecs.forEach(codec -> byContentType.put(normalize(codec.contentType()), codec));
+        this.codecs = Collections.unmodifiableMap(byContentType);
+        this.defaultCodec = byContentType.get(normalize(defaultContentType));
+        if (defaultCodec == null) {
+            throw new IllegalArgumentException("No MQTT payload codec for default content type '"
+                    + defaultContentType + "', available: " + byContentType.keySet());
+        }
+    }
+
+    public static MqttPayloadCodecs json() {
+        return defaults(JacksonPayloadCodec.JSON, DEFAULT_ZSTD_LEVEL);
+    }
+
+    public static MqttPayloadCodecs defaults(String defaultContentType, int zstdLevel) {
+        return defaults(defaultContentType, zstdLevel, DEFAULT_MAX_DECOMPRESSED_BYTES);
+    }
+
+    /**
+     * JSON and CBOR, plus Avro when it is on the classpath; each also wrapped with zstd and LZ4 when
+     * those libraries are on the classpath (they are optional dependencies). Compressed payloads that would
+     * decompress to more than {@code maxDecompressedBytes} are rejected.
+     */
+    public static MqttPayloadCodecs defaults(String defaultContentType, int zstdLevel, int maxDecompressedBytes) {
+        ClassLoader classLoader = MqttPayloadCodecs.class.getClassLoader();
+        List<MqttPayloadCodec> formats = new ArrayList<>(List.of(JacksonPayloadCodec.json(), JacksonPayloadCodec.cbor()));
+        if (ClassUtils.isPresent("org.apache.avro.specific.SpecificRecord", classLoader)) {
+            formats.add(new AvroPayloadCodec());
+        }
+        List<PayloadCompression> compressions = new ArrayList<>();
+        if (ClassUtils.isPresent("com.github.luben.zstd.Zstd", classLoader)) {
+            compressions.add(new ZstdCompression(zstdLevel, maxDecompressedBytes));
+        }
+        if (ClassUtils.isPresent("net.jpountz.lz4.LZ4Factory", classLoader)) {
+            compressions.add(new Lz4Compression(maxDecompressedBytes));
+        }
+
+        List<MqttPayloadCodec> codecs = new ArrayList<>(formats);
+        for (MqttPayloadCodec format : formats) {
+            for (PayloadCompression compression : compressions) {
+                codecs.add(new CompressedPayloadCodec(format, compression));
+            }
+        }
+        return new MqttPayloadCodecs(codecs, defaultContentType);
+    }
+
+    public MqttPayloadCodec getDefault() {
+        return defaultCodec;
+    }
+
+    // The codec registered for the content type, or null
+    public MqttPayloadCodec get(String contentType) {
+        return contentType == null ? null : codecs.get(normalize(contentType));
+    }
+
+    public Collection<MqttPayloadCodec> getAll() {
+        return codecs.values();
+    }
+
+    public byte[] encode(Object value, MqttPayloadCodec codec) {
+        PayloadBuffer buffer = PayloadBuffer.acquire();
+        try {
+            codec.encode(value, buffer);
+            return buffer.toByteArray();
+        } catch (IOException e) {
+            throw new MqttCodecException("Failed to encode " + value.getClass().getSimpleName()
+                    + " as " + codec.contentType(), e);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    public <T> T decode(byte[] payload, String contentType, Class<T> type) {
+        MqttPayloadCodec codec = get(contentType);
+        if (codec == null) {
+            if (contentType != null) {
+                log.debug("No MQTT payload codec for content type '{}', decoding as {}", contentType,
+                        defaultCodec.contentType());
+            }
+            codec = defaultCodec;
+        }
+        try {
+            return codec.decode(payload, type);
+        } catch (IOException e) {
+            throw new MqttCodecException("Failed to decode " + codec.contentType() + " payload as "
+                    + type.getSimpleName(), e);
+        }
+    }
+
+    // Content types are case-insensitive and may carry parameters ("application/json; charset=utf-8")
+    private static String normalize(String contentType) {
+        int parameters = contentType.indexOf(';');
+        String type = parameters < 0 ? contentType : contentType.substring(0, parameters);
+        return type.trim().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,94 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.codec;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer that codecs encode into, recycled per thread so encoding a message does not
+ * allocate and grow a fresh stream each time. Paho keeps the payload array until the message is
+ * acknowledged, so the encoded bytes leave the buffer as one exact-size copy.
+ */
+public final class PayloadBuffer extends OutputStream {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    // Larger buffers are not kept for reuse, so one huge message does not pin its memory per thread
+    private static final int MAX_RETAINED_CAPACITY = 1 << 20;
+
+    private static final ThreadLocal<PayloadBuffer[]> POOL =
+            ThreadLocal.withInitial(() -> new PayloadBuffer[]{new PayloadBuffer(), new PayloadBuffer()});
+
+    private byte[] bytes;
+    private int size;
+    private boolean inUse;
+
+    public PayloadBuffer() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public PayloadBuffer(int capacity) {
+        this.bytes = new byte[capacity];
+    }
+
+    /**
+     * An empty buffer of this thread's pool (two per thread, enough for an encoder wrapping another);
+     * return it with {@link #release()}. Falls back to a new buffer when both are taken.
+     */
+    public static PayloadBuffer acquire() {
+        for (PayloadBuffer buffer : POOL.get()) {
+            if (!buffer.inUse) {
+                buffer.inUse = true;
+                buffer.size = 0;
+                return buffer;
+            }
+        }
+        return new PayloadBuffer();
+    }
+
+    public void release() {
+        inUse = false;
+        if (bytes.length > MAX_RETAINED_CAPACITY) {
+            bytes = new byte[INITIAL_CAPACITY];
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(size + 1);
+        bytes[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(size + len);
+        System.arraycopy(b, off, bytes, size, len);
+        size += len;
+    }
+
+    // Makes room for direct writes into array() from position size()
+    public void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length << 1));
+        }
+    }
+
+    public byte[] array() {
+        return bytes;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // After writing directly into array()
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+}
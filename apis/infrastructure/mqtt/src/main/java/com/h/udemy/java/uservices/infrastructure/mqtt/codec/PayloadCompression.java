@@ -0,0 +1,14 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.codec;
+
+import java.io.IOException;
+
+// Block compression applied on top of a codec's encoding; see CompressedPayloadCodec
+public interface PayloadCompression {
+
+    // Suffix added to the content type, e.g. "zstd" for "application/cbor+zstd"
+    String name();
+
+    void compress(byte[] source, int length, PayloadBuffer target) throws IOException;
+
+    byte[] decompress(byte[] payload) throws IOException;
+}
@@ -0,0 +1,53 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.codec;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdException;
+
+import java.io.IOException;
+
+// Standard zstd frames (content size included), decodable by any zstd implementation on the device side.
+// Frames without a content size, or with one above the cap, are rejected before anything is allocated
+public class ZstdCompression implements PayloadCompression {
+
+    public static final String NAME = "zstd";
+
+    private final int level;
+    private final int maxDecompressedBytes;
+
+    public ZstdCompression(int level, int maxDecompressedBytes) {
+        this.level = level;
+        this.maxDecompressedBytes = maxDecompressedBytes;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public void compress(byte[] source, int length, PayloadBuffer target) throws IOException {
+        int bound = (int) Zstd.compressBound(length);
+        target.ensureCapacity(target.size() + bound);
+        long written = Zstd.compressByteArray(target.array(), target.size(), bound, source, 0, length, level);
+        if (Zstd.isError(written)) {
+            throw new IOException("zstd compression failed: " + Zstd.getErrorName(written));
+        }
+        target.setSize(target.size() + (int) written);
+    }
+
+    @Override
+    public byte[] decompress(byte[] payload) throws IOException {
+        long size = Zstd.getFrameContentSize(payload);
+        if (size < 0) {
+            throw new IOException("zstd payload has no content size");
+        }
+        if (size > maxDecompressedBytes) {
+            throw new IOException("zstd payload content size " + size + " exceeds " + maxDecompressedBytes);
+        }
+        try {
+            return Zstd.decompress(payload, (int) size);
+        } catch (ZstdException e) {
+            throw new IOException("Malformed zstd payload", e);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.codec.exception;
+
+public class MqttCodecException extends RuntimeException {
+
+    public MqttCodecException(String message) {
+        super(message);
+    }
+
+    public MqttCodecException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -1,9 +1,23 @@
 package com.h.udemy.java.uservices.infrastructure.mqtt.config;
 
+import com.h.udemy.java.uservices.infrastructure.mqtt.backpressure.OverflowPolicy;
+import com.h.udemy.java.uservices.infrastructure.mqtt.codec.JacksonPayloadCodec;
+import com.h.udemy.java.uservices.infrastructure.mqtt.codec.MqttPayloadCodecs;
+import com.h.udemy.java.uservices.infrastructure.mqtt.persistence.MappedLogPersistence;
+import com.h.udemy.java.uservices.infrastructure.mqtt.persistence.PersistenceType;
+import com.h.udemy.java.uservices.infrastructure.mqtt.ratelimit.RateLimitPolicy;
+import com.h.udemy.java.uservices.infrastructure.mqtt.sink.JdbcSinkMode;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.dispatch.DispatchMode;
+import com.h.udemy.java.uservices.infrastructure.mqtt.telemetry.TelemetryLog;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 @Data
 @Component
 @ConfigurationProperties(prefix = "mqtt")
@@ -18,8 +32,29 @@ public class ApiMqttProperties {
     private boolean cleanSession = true;
     private int qos = 1;
     private boolean retained = false;
+    // Number of broker connections; topics are spread across them by hash
+    private int connections = 1;
+    // Ack QoS 1/2 messages only once acknowledging handlers confirm them (at-least-once hand-off)
+    private boolean manualAcks = false;
     
     private MqttV5 mqttV5 = new MqttV5();
+    private Reconnect reconnect = new Reconnect();
+    private Outbound outbound = new Outbound();
+    private Dispatch dispatch = new Dispatch();
+    private Persistence persistence = new Persistence();
+    private SharedSubscriptions sharedSubscriptions = new SharedSubscriptions();
+    private Rpc rpc = new Rpc();
+    private Codec codec = new Codec();
+    private Batching batching = new Batching();
+    private Conflation conflation = new Conflation();
+    private Shadow shadow = new Shadow();
+    private List<Aggregation> aggregations = new ArrayList<>();
+    private Telemetry telemetry = new Telemetry();
+    private JdbcSink jdbcSink = new JdbcSink();
+    private Dedup dedup = new Dedup();
+    private Presence presence = new Presence();
+    private RateLimits rateLimits = new RateLimits();
+    private Chunking chunking = new Chunking();
     
     @Data
     public static class MqttV5 {
@@ -29,6 +64,179 @@ public class ApiMqttProperties {
         private int topicAliasMaximum = 0; // No aliases
         private int willDelayInterval = 0;
     }
+
+    @Data
+    public static class Reconnect {
+        private long initialDelayMillis = 500; // Upper bound of the first retry's random delay
+        private long maxDelayMillis = 30_000; // The bound doubles per failed attempt up to this
+        private int subscribeBatchSize = 500; // Topic filters per SUBSCRIBE packet when resubscribing
+    }
+
+    @Data
+    public static class Outbound {
+        private int bufferCapacity = 10_000; // Per connection, beyond the in-flight window
+        // BLOCK never waits on Paho's callback thread; there a full buffer fails the publish at once
+        private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+        private long blockTimeoutMillis = 5_000; // 0 = wait indefinitely
+        private List<Lane> lanes = new ArrayList<>(); // Priority lanes; other topics use the default lane
+    }
+
+    @Data
+    public static class Lane {
+        private String name;
+        private List<String> topics = new ArrayList<>(); // Topic filters; the first lane matching a topic wins
+        private int weight = 1; // Share of freed in-flight slots while several lanes have messages waiting
+        private int bufferCapacity = 10_000; // Per connection, beyond the in-flight window
+        private int maxInFlight = 0; // Per connection; 0 = the whole window
+    }
+
+    @Data
+    public static class Dispatch {
+        private DispatchMode mode = DispatchMode.INLINE;
+        private int stripes = Runtime.getRuntime().availableProcessors();
+        private int queueCapacity = 10_000; // Across all stripes; unused in INLINE mode
+        private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+        // BLOCK holds Paho's callback thread, which also completes publishes; bounded so that a handler
+        // waiting on its own publish cannot deadlock the connection. 0 = wait indefinitely
+        private long blockTimeoutMillis = 5_000;
+    }
+
+    @Data
+    public static class Persistence {
+        private PersistenceType type = PersistenceType.FILE;
+        private String directory; // Defaults to the working directory
+        private int segmentSize = MappedLogPersistence.DEFAULT_SEGMENT_SIZE;
+        private double compactionThreshold = MappedLogPersistence.DEFAULT_COMPACTION_THRESHOLD;
+    }
+
+    @Data
+    public static class SharedSubscriptions {
+        private String group; // Default share group, usually the service name
+        private Map<String, String> groups = new LinkedHashMap<>(); // Topic filter -> group, overrides the default
+    }
+
+    @Data
+    public static class Rpc {
+        private String responseTopicPrefix = "responses"; // Followed by the client id
+        private long timeoutMillis = 5_000;
+        private long tickMillis = 10; // Timeout resolution
+        private int wheelSize = 512; // Buckets; one turn of the wheel covers wheelSize * tickMillis
+    }
+
+    @Data
+    public static class Codec {
+        // Encoding of published objects, e.g. application/cbor or application/cbor+zstd; see MqttPayloadCodecs
+        private String contentType = JacksonPayloadCodec.JSON;
+        private int zstdLevel = MqttPayloadCodecs.DEFAULT_ZSTD_LEVEL;
+        // Compressed payloads come from devices; larger decompressed sizes are rejected before allocating
+        private int maxDecompressedBytes = MqttPayloadCodecs.DEFAULT_MAX_DECOMPRESSED_BYTES;
+    }
+
+    @Data
+    public static class Batching {
+        private boolean enabled = false; // Pack small messages per topic into envelopes; subscribers unpack them
+        // Topic filters to batch; only topics whose subscribers all unpack envelopes, so never device-facing ones
+        private List<String> topics = new ArrayList<>();
+        private long lingerMillis = 5; // How long a batch waits for more messages
+        private int batchSize = 16_384; // Envelope size in bytes that sends a batch right away
+    }
+
+    @Data
+    public static class Conflation {
+        private List<String> topics = new ArrayList<>(); // Topic filters published last-value-only
+        private long intervalMillis = 0; // 0 = send the latest as soon as the previous one is acknowledged
+    }
+
+    @Data
+    public static class Shadow {
+        private boolean enabled = false;
+        private String topicPrefix = "shadows"; // <prefix>/<deviceId>/reported, desired and delta
+        private int qos = 1;
+    }
+
+    @Data
+    public static class Aggregation {
+        private String topics; // Topic filter of the raw samples
+        private String valueField; // JSON pointer to the sample value, e.g. /temperature; unset = plain number payload
+        private String keyField; // JSON pointer to the grouping key; unset = one aggregate per topic
+        private long windowMillis = 60_000;
+        private long slideMillis = 0; // 0 = tumbling; otherwise must divide windowMillis
+        private List<Double> percentiles = new ArrayList<>(List.of(50.0, 90.0, 99.0));
+        private String sinkTopic = "aggregates/{key}"; // {key} is replaced by the topic or key
+    }
     
-}
 
+    @Data
+    public static class Telemetry {
+        private boolean enabled = false; // Append received messages to a local memory-mapped log
+        private List<String> topics = new ArrayList<>(List.of("#")); // Topic filters to record
+        private int qos = 1;
+        private String directory = "telemetry";
+        private int segmentSize = TelemetryLog.DEFAULT_SEGMENT_SIZE;
+        private int indexInterval = TelemetryLog.DEFAULT_INDEX_INTERVAL; // Bytes between sparse time index entries
+        private long retentionMillis = 7 * 24 * 60 * 60 * 1000L; // 0 = keep everything
+    }
+
+    @Data
+    public static class JdbcSink {
+        private boolean enabled = false; // Needs a DataSource bean
+        private List<String> topics = new ArrayList<>(); // Topic filters to store
+        private int qos = 1;
+        private String table = "mqtt_messages"; // Columns topic, received_at, payload
+        private JdbcSinkMode mode = JdbcSinkMode.INSERT;
+        private int batchSize = 500; // Keep at or below mqtt.mqtt-v5.receive-maximum
+        private long lingerMillis = 100; // How long a batch waits for more messages
+        private long retryMillis = 1_000; // Delay before a failed batch is written again
+        private int maxBuffered = 10_000; // Without manual acks, messages beyond this are dropped while writes fail
+    }
+
+    @Data
+    public static class Dedup {
+        private boolean enabled = false; // Drop received messages whose id was seen before
+        private List<String> topics = new ArrayList<>(); // Topic filters to deduplicate; empty = all
+        private String userProperty = "message-id"; // User property holding the message id
+        private String payloadField; // JSON pointer to the id, used when the user property is absent
+        private long windowMillis = 600_000; // How long an id is remembered
+        private int expectedMessages = 1_000_000; // Ids per half window the Bloom filter is sized for
+        private double falsePositiveRate = 0.001;
+        private int exactCapacity = 10_000; // Most recent ids also kept exactly
+    }
+
+    @Data
+    public static class Presence {
+        private boolean enabled = false;
+        private String heartbeatTopic = "devices/+/heartbeat";
+        private String lwtTopic = "devices/+/lwt"; // Topic of the devices' last-will messages; empty = none
+        private int clientIdLevel = 1; // Topic level (0-based) holding the client id
+        private long timeoutMillis = 90_000; // Offline after this long without a heartbeat
+        private String eventTopic = "presence/{clientId}"; // Retained online/offline events
+        private int qos = 1;
+        private long tickMillis = 1_000; // Timeout resolution
+        private int wheelSize = 512; // Buckets; one turn of the wheel covers wheelSize * tickMillis
+    }
+
+    @Data
+    public static class RateLimits {
+        private long maxDelayMillis = 1_000; // DELAY policy: messages that would wait longer are dropped
+        private List<RateLimit> publish = new ArrayList<>();
+        private List<RateLimit> consume = new ArrayList<>();
+    }
+
+    @Data
+    public static class RateLimit {
+        private String topics; // Topic filter; matching topics share one bucket
+        private double messagesPerSecond;
+        private int burst = 1; // Messages that may go at once after a quiet period
+        private RateLimitPolicy policy = RateLimitPolicy.DELAY;
+    }
+
+    @Data
+    public static class Chunking {
+        private int chunkSize = 64 * 1024; // Content bytes per chunk; keep below the broker's maximum packet size
+        private int maxInFlightChunks = 16; // Per transfer, awaiting the broker's acknowledgement
+        private int maxBufferedChunks = 16; // Per transfer, received ahead of a missing chunk
+        private int maxTransfers = 16; // Reassembled at once
+        private long timeoutMillis = 60_000; // A transfer fails after this long without a chunk
+        private int qos = 1;
+    }
+}
@@ -1,18 +1,45 @@
 package com.h.udemy.java.uservices.infrastructure.mqtt.config;
 
+import com.h.udemy.java.uservices.infrastructure.mqtt.aggregation.MqttAggregations;
+import com.h.udemy.java.uservices.infrastructure.mqtt.chunk.ChunkAssembler;
+import com.h.udemy.java.uservices.infrastructure.mqtt.chunk.ChunkedPublisher;
+import com.h.udemy.java.uservices.infrastructure.mqtt.client.MqttClientPool;
+import com.h.udemy.java.uservices.infrastructure.mqtt.client.MqttConnector;
+import com.h.udemy.java.uservices.infrastructure.mqtt.codec.MqttPayloadCodec;
+import com.h.udemy.java.uservices.infrastructure.mqtt.codec.MqttPayloadCodecs;
+import com.h.udemy.java.uservices.infrastructure.mqtt.persistence.MappedLogPersistence;
+import com.h.udemy.java.uservices.infrastructure.mqtt.presence.PresenceRegistry;
 import com.h.udemy.java.uservices.infrastructure.mqtt.publisher.MqttPublisher;
+import com.h.udemy.java.uservices.infrastructure.mqtt.rpc.MqttRpcClient;
+import com.h.udemy.java.uservices.infrastructure.mqtt.shadow.DeviceShadowService;
+import com.h.udemy.java.uservices.infrastructure.mqtt.shadow.DeviceShadowStore;
+import com.h.udemy.java.uservices.infrastructure.mqtt.sink.JdbcMessageSink;
 import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttSubscriber;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.dispatch.TopicOrderedExecutor;
 import com.h.udemy.java.uservices.infrastructure.mqtt.service.MqttService;
+import com.h.udemy.java.uservices.infrastructure.mqtt.telemetry.TelemetryLog;
+import com.h.udemy.java.uservices.infrastructure.mqtt.telemetry.TelemetryRecorder;
+import com.h.udemy.java.uservices.infrastructure.mqtt.timer.HashedWheelTimer;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.eclipse.paho.mqttv5.client.IMqttToken;
 import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttClientPersistence;
 import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.client.persist.MqttDefaultFilePersistence;
 import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.DependsOn;
 
+import javax.sql.DataSource;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 @Configuration
@@ -21,16 +48,77 @@ public class MqttConfiguration {
 
     private final ApiMqttProperties props;
 
+    // Clients are created unconnected; mqttConnector connects them in the background
     @Bean
-    public MqttAsyncClient mqttClient() throws MqttException {
-        log.info("Creating MQTT v5 client for broker: {}", props.getBrokerUrl());
+    public MqttClientPool mqttClientPool() throws MqttException {
+        int size = Math.max(1, props.getConnections());
+        log.info("Creating {} MQTT v5 client connection(s) for broker: {}", size, props.getBrokerUrl());
 
-        MqttAsyncClient client = new MqttAsyncClient(props.getBrokerUrl(), props.getClientId());
+        List<MqttAsyncClient> clients = new ArrayList<>(size);
+        for (int shard = 0; shard < size; shard++) {
+            MqttAsyncClient client = new MqttAsyncClient(props.getBrokerUrl(),
+                    MqttClientPool.clientId(props.getClientId(), shard, size), persistence());
+            client.setManualAcks(props.isManualAcks());
+            clients.add(client);
+        }
+        return new MqttClientPool(clients);
+    }
+
+    // Startup does not wait for the broker: publishes queue and subscriptions are deferred until connected
+    @Bean
+    public MqttConnector mqttConnector(MqttClientPool mqttClientPool, MqttPublisher mqttPublisher,
+                                       MqttSubscriber mqttSubscriber) {
+        MqttConnector connector = new MqttConnector(mqttClientPool, connectionOptions(), props.getReconnect());
+        connector.addListener(new MqttConnector.ConnectionListener() {
+            @Override
+            public void connected(int shard, MqttProperties connAckProperties, boolean sessionPresent) {
+                mqttPublisher.onConnected(shard, connAckProperties);
+                mqttSubscriber.onConnected(shard, sessionPresent);
+            }
+
+            @Override
+            public void disconnected(int shard) {
+                mqttPublisher.onDisconnected(shard);
+                mqttSubscriber.onDisconnected(shard);
+            }
+        });
+        mqttSubscriber.setConnectionLostHandler(connector::connectionLost);
+        connector.start();
+        return connector;
+    }
+
+    // Primary pooled connection, kept as a bean for code that needs a plain client; the pool closes it
+    @Bean(destroyMethod = "")
+    public MqttAsyncClient mqttClient(MqttClientPool mqttClientPool) {
+        return mqttClientPool.primary();
+    }
+
+    // Stores QoS 1/2 messages in flight and those queued while disconnected
+    private MqttClientPersistence persistence() {
+        ApiMqttProperties.Persistence persistence = props.getPersistence();
+        String directory = persistence.getDirectory() != null
+                ? persistence.getDirectory()
+                : System.getProperty("user.dir");
+        return switch (persistence.getType()) {
+            case MEMORY -> new MemoryPersistence();
+            case FILE -> new MqttDefaultFilePersistence(directory);
+            case MAPPED -> new MappedLogPersistence(Path.of(directory),
+                    persistence.getSegmentSize(), persistence.getCompactionThreshold());
+        };
+    }
+
+    private MqttConnectionOptions connectionOptions() {
         MqttConnectionOptions options = new MqttConnectionOptions();
 
         options.setCleanStart(props.isCleanSession());
         options.setConnectionTimeout(props.getConnectionTimeout());
         options.setKeepAliveInterval(props.getKeepAliveInterval());
+
+        // Number of topic aliases the broker may use towards this client; outgoing aliases are
+        // bounded by the broker's own limit in its CONNACK and handled inside Paho
+        if (props.getMqttV5().getTopicAliasMaximum() > 0) {
+            options.setTopicAliasMaximum(props.getMqttV5().getTopicAliasMaximum());
+        }
         
         // Authentication: Username/Password (for TLS) or mTLS certificates
         if (props.getUsername() != null && !props.getUsername().isEmpty()) {
@@ -47,29 +135,122 @@ public class MqttConfiguration {
             log.info("Using SSL/TLS connection to: {}", props.getBrokerUrl());
         }
 
-        // Connect the client
-        IMqttToken connectToken = client.connect(options);
-        connectToken.waitForCompletion();
-        
-        log.info("MQTT v5 client connected successfully");
-        
-        return client;
+        // Reconnects are driven by MqttConnector, with jittered backoff
+        options.setAutomaticReconnect(false);
+        return options;
+    }
+
+    @Bean
+    public MqttPayloadCodecs mqttPayloadCodecs() {
+        MqttPayloadCodecs codecs = MqttPayloadCodecs.defaults(props.getCodec().getContentType(),
+                props.getCodec().getZstdLevel(), props.getCodec().getMaxDecompressedBytes());
+        log.info("MQTT payload codecs: {} (default {})", codecs.getAll().stream()
+                .map(MqttPayloadCodec::contentType).toList(), codecs.getDefault().contentType());
+        return codecs;
     }
 
     @Bean
-    public MqttPublisher mqttPublisher(MqttAsyncClient mqttClient) {
-        return new MqttPublisher(mqttClient, props);
+    public MqttPublisher mqttPublisher(MqttClientPool mqttClientPool, MqttPayloadCodecs mqttPayloadCodecs) {
+        MqttPublisher publisher = new MqttPublisher(mqttClientPool, props, mqttPayloadCodecs);
+        for (int shard = 0; shard < mqttClientPool.size(); shard++) {
+            publisher.onDisconnected(shard);
+        }
+        return publisher;
+    }
+
+    @Bean
+    public TopicOrderedExecutor mqttDispatchExecutor() {
+        log.info("MQTT message dispatch mode: {} ({} stripes)", props.getDispatch().getMode(),
+                props.getDispatch().getStripes());
+        ApiMqttProperties.Dispatch dispatch = props.getDispatch();
+        return new TopicOrderedExecutor(dispatch.getMode(), dispatch.getStripes(),
+                dispatch.getQueueCapacity(), dispatch.getOverflowPolicy(), dispatch.getBlockTimeoutMillis());
     }
 
     @Bean
-    public MqttSubscriber mqttSubscriber(MqttAsyncClient mqttClient) {
-        MqttSubscriber subscriber = new MqttSubscriber(mqttClient, props);
+    public MqttSubscriber mqttSubscriber(MqttClientPool mqttClientPool, TopicOrderedExecutor mqttDispatchExecutor,
+                                         MqttPayloadCodecs mqttPayloadCodecs) {
+        MqttSubscriber subscriber = new MqttSubscriber(mqttClientPool, props, mqttDispatchExecutor, mqttPayloadCodecs);
         subscriber.setMessageCallback();
+        for (int shard = 0; shard < mqttClientPool.size(); shard++) {
+            subscriber.onDisconnected(shard);
+        }
         return subscriber;
     }
 
+    // Request/response facade; its response topic is unique to this client
     @Bean
+    @DependsOn("mqttConnector")
+    public MqttRpcClient mqttRpcClient(MqttPublisher mqttPublisher, MqttSubscriber mqttSubscriber) {
+        ApiMqttProperties.Rpc rpc = props.getRpc();
+        return new MqttRpcClient(mqttPublisher, mqttSubscriber,
+                rpc.getResponseTopicPrefix() + "/" + props.getClientId(), rpc);
+    }
+
+    // Everything built on the service comes after the connector, so a blocking publish cannot wait on a
+    // connection that has not started
+    @Bean
+    @DependsOn("mqttConnector")
     public MqttService mqttService(MqttPublisher mqttPublisher, MqttSubscriber mqttSubscriber) {
-        return new MqttService(mqttPublisher, mqttSubscriber);
+        return new MqttService(mqttPublisher, mqttSubscriber, props);
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "mqtt.shadow", name = "enabled", havingValue = "true")
+    public DeviceShadowService deviceShadowService(MqttService mqttService) {
+        ApiMqttProperties.Shadow shadow = props.getShadow();
+        DeviceShadowService service = new DeviceShadowService(mqttService, new DeviceShadowStore(),
+                shadow.getTopicPrefix(), shadow.getQos());
+        service.start();
+        return service;
+    }
+
+    @Bean
+    public MqttAggregations mqttAggregations(MqttService mqttService) {
+        MqttAggregations aggregations = new MqttAggregations(mqttService, props.getAggregations());
+        aggregations.start();
+        return aggregations;
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "mqtt.telemetry", name = "enabled", havingValue = "true")
+    public TelemetryRecorder telemetryRecorder(MqttService mqttService) {
+        ApiMqttProperties.Telemetry telemetry = props.getTelemetry();
+        TelemetryLog telemetryLog = new TelemetryLog(Path.of(telemetry.getDirectory()), telemetry.getSegmentSize(),
+                telemetry.getIndexInterval(), telemetry.getRetentionMillis());
+        TelemetryRecorder recorder = new TelemetryRecorder(mqttService, telemetryLog, telemetry.getTopics(),
+                telemetry.getQos());
+        recorder.start();
+        return recorder;
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "mqtt.jdbc-sink", name = "enabled", havingValue = "true")
+    public JdbcMessageSink jdbcMessageSink(MqttService mqttService, DataSource dataSource) {
+        JdbcMessageSink sink = new JdbcMessageSink(mqttService, dataSource, props.getJdbcSink(),
+                props.isManualAcks());
+        sink.start();
+        return sink;
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "mqtt.presence", name = "enabled", havingValue = "true")
+    public PresenceRegistry presenceRegistry(MqttService mqttService) {
+        ApiMqttProperties.Presence presence = props.getPresence();
+        HashedWheelTimer timer = new HashedWheelTimer("mqtt-presence-timeouts", presence.getTickMillis(),
+                TimeUnit.MILLISECONDS, presence.getWheelSize());
+        PresenceRegistry registry = new PresenceRegistry(mqttService, timer, presence);
+        registry.start();
+        return registry;
+    }
+
+    @Bean
+    public ChunkedPublisher chunkedPublisher(MqttService mqttService) {
+        return new ChunkedPublisher(mqttService, props.getChunking());
+    }
+
+    @Bean
+    public ChunkAssembler chunkAssembler(MqttService mqttService) {
+        return new ChunkAssembler(mqttService, props.getChunking());
     }
 }
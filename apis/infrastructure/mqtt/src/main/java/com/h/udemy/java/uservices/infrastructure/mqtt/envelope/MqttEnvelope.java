@@ -0,0 +1,113 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.envelope;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.envelope.exception.MqttEnvelopeException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Several messages for one topic packed into a single MQTT payload, so a burst of small publishes
+ * costs one PUBLISH/PUBACK exchange instead of one each.
+ * <p>
+ * An envelope is published with content type {@link #CONTENT_TYPE}; the content type of the
+ * messages inside travels in the envelope header. Layout, big-endian:
+ * <pre>
+ * byte     version (1)
+ * short    content type length, then its UTF-8 bytes (0 = none)
+ * int      message count
+ * per message: int length, then the payload
+ * </pre>
+ */
+public final class MqttEnvelope {
+
+    public static final String CONTENT_TYPE = "application/vnd.mqtt-envelope";
+    public static final byte VERSION = 1;
+    // Per-message framing cost, the length prefix
+    public static final int MESSAGE_OVERHEAD = Integer.BYTES;
+
+    private final String contentType;
+    private final List<byte[]> payloads;
+
+    public MqttEnvelope(String contentType, List<byte[]> payloads) {
+        this.contentType = contentType;
+        this.payloads = payloads;
+    }
+
+    public static boolean isEnvelope(String contentType) {
+        return CONTENT_TYPE.equals(contentType);
+    }
+
+    // Envelope size for the header of a content type, before any message
+    public static int headerSize(String contentType) {
+        return 1 + Short.BYTES + contentTypeBytes(contentType).length + Integer.BYTES;
+    }
+
+    public static MqttEnvelope decode(byte[] envelope) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(envelope);
+            byte version = buffer.get();
+            if (version != VERSION) {
+                throw new MqttEnvelopeException("Unsupported MQTT envelope version " + version);
+            }
+            byte[] contentType = new byte[checkedLength(buffer, Short.toUnsignedInt(buffer.getShort()))];
+            buffer.get(contentType);
+            int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / MESSAGE_OVERHEAD) {
+                throw new MqttEnvelopeException("Corrupt MQTT envelope: " + count + " messages");
+            }
+            List<byte[]> payloads = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                // Lengths come from the sender: checked against what is left before allocating
+                byte[] payload = new byte[checkedLength(buffer, buffer.getInt())];
+                buffer.get(payload);
+                payloads.add(payload);
+            }
+            return new MqttEnvelope(contentType.length == 0 ? null : new String(contentType, StandardCharsets.UTF_8),
+                    payloads);
+        } catch (BufferUnderflowException e) {
+            throw new MqttEnvelopeException("Truncated MQTT envelope", e);
+        }
+    }
+
+    private static int checkedLength(ByteBuffer buffer, int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new MqttEnvelopeException("Corrupt MQTT envelope: length " + length + " with "
+                    + buffer.remaining() + " bytes left");
+        }
+        return length;
+    }
+
+    public byte[] encode() {
+        byte[] contentTypeBytes = contentTypeBytes(contentType);
+        int size = headerSize(contentType);
+        for (byte[] payload : payloads) {
+            size += MESSAGE_OVERHEAD + payload.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(VERSION);
+        buffer.putShort((short) contentTypeBytes.length);
+        buffer.put(contentTypeBytes);
+        buffer.putInt(payloads.size());
+        for (byte[] payload : payloads) {
+            buffer.putInt(payload.length);
+            buffer.put(payload);
+        }
+        return buffer.array();
+    }
+
+    // Content type of the messages inside, null if they have none
+    public String getContentType() {
+        return contentType;
+    }
+
+    public List<byte[]> getPayloads() {
+        return payloads;
+    }
+
+    private static byte[] contentTypeBytes(String contentType) {
+        return contentType == null ? new byte[0] : contentType.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,12 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.envelope.exception;
+
+public class MqttEnvelopeException extends RuntimeException {
+
+    public MqttEnvelopeException(String message) {
+        super(message);
+    }
+
+    public MqttEnvelopeException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,442 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.paho.mqttv5.client.MqttClientPersistence;
+import org.eclipse.paho.mqttv5.common.MqttPersistable;
+import org.eclipse.paho.mqttv5.common.MqttPersistenceException;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Paho client persistence backed by an append-only log of memory-mapped segment files.
+ * <p>
+ * {@code put} and {@code remove} append a record to the mapped head segment, so persisting a QoS 1/2
+ * message is a memory copy instead of a file create, write and close. Records are in the page cache as
+ * soon as they are written and survive a process crash; they are forced to disk when a segment fills
+ * and on {@link #close()}. An in-memory index points each key at its latest record and is rebuilt by
+ * scanning the segments on {@link #open(String)}. Records are checksummed, so a torn write at the tail
+ * is detected and ignored on recovery.
+ * <p>
+ * Only the oldest segment is ever cleaned: once most of it is dead, its live records are copied to the
+ * head and the file is deleted. Cleaning in log order guarantees a removed key can never reappear
+ * because its tombstone was discarded before the record it cancels.
+ */
+@Slf4j
+public class MappedLogPersistence implements MqttClientPersistence {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String LOCK_FILE = ".lck";
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    // Record layout: int bodyLength, int crc32c(body), body = type, short keyLength, key, [int headerLength, header, payload]
+    private static final int RECORD_PREFIX = 8;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final double compactionThreshold;
+
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final Map<String, Entry> index = new HashMap<>();
+    private final CRC32C checksum = new CRC32C();
+    private Path clientDirectory;
+    private FileChannel lockChannel;
+    private FileLock lock;
+    private Segment head;
+    private long nextSegmentId;
+
+    public MappedLogPersistence(Path directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * @param compactionThreshold the oldest segment is cleaned once its live fraction drops below this
+     */
+    public MappedLogPersistence(Path directory, int segmentSize, double compactionThreshold) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    @Override
+    public synchronized void open(String persistenceName) throws MqttPersistenceException {
+        clientDirectory = directory.resolve(sanitize(persistenceName));
+        try {
+            Files.createDirectories(clientDirectory);
+            lockChannel = FileChannel.open(clientDirectory.resolve(LOCK_FILE),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+        if (lock == null) {
+            closeQuietly(lockChannel);
+            throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+        }
+
+        try {
+            for (Path file : segmentFiles()) {
+                recover(file);
+            }
+            if (segments.isEmpty()) {
+                roll(0);
+            } else {
+                head = segments.peekLast();
+            }
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+        log.info("Opened MQTT persistence at {}: {} message(s) in {} segment(s)",
+                clientDirectory, index.size(), segments.size());
+    }
+
+    @Override
+    public synchronized void close() throws MqttPersistenceException {
+        checkOpen();
+        head.buffer.force();
+        segments.clear();
+        index.clear();
+        head = null;
+        try {
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public synchronized void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+        checkOpen();
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] header = persistable.getHeaderBytes();
+        int headerLength = header != null ? persistable.getHeaderLength() : 0;
+        byte[] payload = persistable.getPayloadBytes();
+        int payloadLength = payload != null ? persistable.getPayloadLength() : 0;
+
+        int bodyLength = 1 + 2 + keyBytes.length + 4 + headerLength + payloadLength;
+        int offset = reserve(RECORD_PREFIX + bodyLength);
+        MappedByteBuffer buffer = head.buffer;
+        int position = offset + RECORD_PREFIX;
+        buffer.put(position, PUT);
+        buffer.putShort(position + 1, (short) keyBytes.length);
+        buffer.put(position + 3, keyBytes);
+        position += 3 + keyBytes.length;
+        buffer.putInt(position, headerLength);
+        if (headerLength > 0) {
+            buffer.put(position + 4, header, persistable.getHeaderOffset(), headerLength);
+        }
+        if (payloadLength > 0) {
+            buffer.put(position + 4 + headerLength, payload, persistable.getPayloadOffset(), payloadLength);
+        }
+        commit(offset, bodyLength);
+
+        Entry entry = new Entry(head, offset, RECORD_PREFIX + bodyLength);
+        head.live(entry.length);
+        kill(index.put(key, entry));
+        compact();
+    }
+
+    @Override
+    public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+        checkOpen();
+        Entry entry = index.get(key);
+        if (entry == null) {
+            return null;
+        }
+        MappedByteBuffer buffer = entry.segment.buffer;
+        int position = entry.offset + RECORD_PREFIX;
+        int keyLength = Short.toUnsignedInt(buffer.getShort(position + 1));
+        position += 3 + keyLength;
+        byte[] header = new byte[buffer.getInt(position)];
+        buffer.get(position + 4, header);
+        position += 4 + header.length;
+        byte[] payload = new byte[entry.offset + entry.length - position];
+        buffer.get(position, payload);
+        return new StoredMessage(header, payload);
+    }
+
+    @Override
+    public synchronized void remove(String key) throws MqttPersistenceException {
+        checkOpen();
+        Entry removed = index.remove(key);
+        if (removed == null) {
+            return;
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = 1 + 2 + keyBytes.length;
+        int offset = reserve(RECORD_PREFIX + bodyLength);
+        head.buffer.put(offset + RECORD_PREFIX, REMOVE);
+        head.buffer.putShort(offset + RECORD_PREFIX + 1, (short) keyBytes.length);
+        head.buffer.put(offset + RECORD_PREFIX + 3, keyBytes);
+        commit(offset, bodyLength);
+
+        kill(removed);
+        compact();
+    }
+
+    @Override
+    public synchronized Enumeration<String> keys() throws MqttPersistenceException {
+        checkOpen();
+        return Collections.enumeration(new ArrayList<>(index.keySet()));
+    }
+
+    @Override
+    public synchronized void clear() throws MqttPersistenceException {
+        checkOpen();
+        index.clear();
+        try {
+            while (!segments.isEmpty()) {
+                Files.deleteIfExists(segments.pollFirst().path);
+            }
+            roll(0);
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+        checkOpen();
+        return index.containsKey(key);
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    private void checkOpen() throws MqttPersistenceException {
+        if (head == null) {
+            throw new MqttPersistenceException();
+        }
+    }
+
+    // Returns the head offset where a record of the given size can be written, rolling to a new segment if needed
+    private int reserve(int recordLength) throws MqttPersistenceException {
+        if (head.buffer.capacity() - head.position < recordLength) {
+            try {
+                head.buffer.force();
+                roll(recordLength);
+            } catch (IOException e) {
+                throw new MqttPersistenceException(e);
+            }
+        }
+        int offset = head.position;
+        head.position += recordLength;
+        return offset;
+    }
+
+    private void commit(int offset, int bodyLength) {
+        checksum.reset();
+        checksum.update(head.buffer.slice(offset + RECORD_PREFIX, bodyLength));
+        head.buffer.putInt(offset + 4, (int) checksum.getValue());
+        // The length goes in last; a zero length marks the end of the log
+        head.buffer.putInt(offset, bodyLength);
+    }
+
+    private void kill(Entry entry) {
+        if (entry != null) {
+            entry.segment.dead(entry.length);
+        }
+    }
+
+    private void compact() throws MqttPersistenceException {
+        Segment oldest;
+        while ((oldest = segments.peekFirst()) != head
+                && oldest.liveBytes < compactionThreshold * oldest.position) {
+            relocateLiveRecords(oldest);
+            segments.pollFirst();
+            try {
+                Files.deleteIfExists(oldest.path);
+            } catch (IOException e) {
+                throw new MqttPersistenceException(e);
+            }
+            // The mapping itself is released when the buffer is garbage collected
+            log.debug("Compacted MQTT persistence segment {}", oldest.path.getFileName());
+        }
+    }
+
+    private void relocateLiveRecords(Segment segment) throws MqttPersistenceException {
+        if (segment.liveRecords == 0) {
+            return;
+        }
+        for (Map.Entry<String, Entry> mapping : index.entrySet()) {
+            Entry entry = mapping.getValue();
+            if (entry.segment != segment) {
+                continue;
+            }
+            int offset = reserve(entry.length);
+            head.buffer.put(offset + RECORD_PREFIX, segment.buffer,
+                    entry.offset + RECORD_PREFIX, entry.length - RECORD_PREFIX);
+            head.buffer.putInt(offset + 4, segment.buffer.getInt(entry.offset + 4));
+            head.buffer.putInt(offset, entry.length - RECORD_PREFIX);
+
+            Entry moved = new Entry(head, offset, entry.length);
+            head.live(moved.length);
+            segment.dead(entry.length);
+            mapping.setValue(moved);
+        }
+    }
+
+    private void roll(int minimumSize) throws IOException {
+        int size = Math.max(segmentSize, minimumSize);
+        Path path = clientDirectory.resolve(String.format("%020d%s", nextSegmentId++, SEGMENT_SUFFIX));
+        head = new Segment(path, map(path, size));
+        segments.addLast(head);
+    }
+
+    private void recover(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        Segment segment = new Segment(file, map(file, (int) Files.size(file)));
+        nextSegmentId = Math.max(nextSegmentId, id + 1);
+        segments.addLast(segment);
+
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (offset + RECORD_PREFIX <= buffer.capacity()) {
+            int bodyLength = buffer.getInt(offset);
+            if (bodyLength <= 0 || offset + RECORD_PREFIX + bodyLength > buffer.capacity()) {
+                break;
+            }
+            checksum.reset();
+            checksum.update(buffer.slice(offset + RECORD_PREFIX, bodyLength));
+            if ((int) checksum.getValue() != buffer.getInt(offset + 4)) {
+                log.warn("Ignoring torn MQTT persistence record at {} offset {}", name, offset);
+                break;
+            }
+            int position = offset + RECORD_PREFIX;
+            byte type = buffer.get(position);
+            byte[] keyBytes = new byte[Short.toUnsignedInt(buffer.getShort(position + 1))];
+            buffer.get(position + 3, keyBytes);
+            String key = new String(keyBytes, StandardCharsets.UTF_8);
+
+            int length = RECORD_PREFIX + bodyLength;
+            if (type == PUT) {
+                Entry entry = new Entry(segment, offset, length);
+                segment.live(length);
+                kill(index.put(key, entry));
+            } else {
+                kill(index.remove(key));
+            }
+            offset += length;
+        }
+        segment.position = offset;
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(clientDirectory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        // The mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    // Same rule as Paho's file persistence: only letters, digits and '-' in the directory name
+    private static String sanitize(String persistenceName) {
+        StringBuilder name = new StringBuilder(persistenceName.length());
+        for (int i = 0; i < persistenceName.length(); i++) {
+            char c = persistenceName.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '-') {
+                name.append(c);
+            }
+        }
+        return name.toString();
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("Failed to close MQTT persistence lock file: {}", e.getMessage());
+        }
+    }
+
+    private record Entry(Segment segment, int offset, int length) {
+    }
+
+    private static final class Segment {
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private int position;
+        private long liveBytes;
+        private int liveRecords;
+
+        private Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        private void live(int length) {
+            liveBytes += length;
+            liveRecords++;
+        }
+
+        private void dead(int length) {
+            liveBytes -= length;
+            liveRecords--;
+        }
+    }
+
+    private record StoredMessage(byte[] header, byte[] payload) implements MqttPersistable {
+
+        @Override
+        public byte[] getHeaderBytes() {
+            return header;
+        }
+
+        @Override
+        public int getHeaderLength() {
+            return header.length;
+        }
+
+        @Override
+        public int getHeaderOffset() {
+            return 0;
+        }
+
+        @Override
+        public byte[] getPayloadBytes() {
+            return payload;
+        }
+
+        @Override
+        public int getPayloadLength() {
+            return payload.length;
+        }
+
+        @Override
+        public int getPayloadOffset() {
+            return 0;
+        }
+    }
+}
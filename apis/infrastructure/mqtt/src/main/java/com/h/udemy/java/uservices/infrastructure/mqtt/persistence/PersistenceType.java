@@ -0,0 +1,10 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.persistence;
+
+public enum PersistenceType {
+    // Paho MemoryPersistence; in-flight messages are lost on restart
+    MEMORY,
+    // Paho MqttDefaultFilePersistence, one file per message (original behaviour)
+    FILE,
+    // MappedLogPersistence, an append-only log of memory-mapped segments
+    MAPPED
+}
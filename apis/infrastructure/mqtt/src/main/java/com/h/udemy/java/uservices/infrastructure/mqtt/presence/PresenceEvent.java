@@ -0,0 +1,14 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.presence;
+
+/**
+ * Published, retained, when a device comes online or goes offline.
+ *
+ * @param lastSeen epoch millis of the device's last heartbeat
+ * @param reason   {@code heartbeat}, {@code timeout} or {@code lwt}
+ */
+public record PresenceEvent(String clientId, boolean online, long lastSeen, long timestamp, String reason) {
+
+    public static final String HEARTBEAT = "heartbeat";
+    public static final String TIMEOUT = "timeout";
+    public static final String LWT = "lwt";
+}
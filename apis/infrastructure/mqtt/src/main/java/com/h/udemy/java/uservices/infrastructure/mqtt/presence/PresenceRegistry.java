@@ -0,0 +1,272 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.presence;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
+import com.h.udemy.java.uservices.infrastructure.mqtt.service.MqttService;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttAcknowledgement;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttSubscriber;
+import com.h.udemy.java.uservices.infrastructure.mqtt.timer.HashedWheelTimer;
+import com.h.udemy.java.uservices.infrastructure.mqtt.topic.TopicFilterTrie;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks which devices are online from their heartbeats and last-will (LWT) messages, and publishes a
+ * retained {@link PresenceEvent} on every online/offline transition.
+ * <p>
+ * A heartbeat from an online device is one map lookup and one volatile write: its timeout is not
+ * rescheduled. Each device has a single timeout on a {@link HashedWheelTimer}; when it fires, a device
+ * heard from in the meantime gets a new timeout for the time it has left, and any other device goes
+ * offline. Offline detection therefore costs O(1) per device and timeout period, with no scans over all
+ * devices, and is late by at most one timer tick. An LWT takes a device offline right away.
+ * <p>
+ * A transition queues its event on the device while holding the device's monitor, and one thread at a
+ * time publishes a device's queued events after releasing it. The retained events of a device are
+ * therefore published in the order of its transitions, so the last one always matches its state, while
+ * a publish that waits for buffer room or a rate limit never holds up the device's heartbeats.
+ */
+@Slf4j
+public class PresenceRegistry implements AutoCloseable {
+
+    private static final String CLIENT_ID_PLACEHOLDER = "{clientId}";
+
+    private final MqttService mqttService;
+    private final HashedWheelTimer timer;
+    private final String heartbeatTopic;
+    private final String lwtTopic;
+    private final int clientIdLevel;
+    private final long timeoutMillis;
+    private final String eventTopic;
+    private final int qos;
+    private final Map<String, Device> devices = new ConcurrentHashMap<>();
+    private final AtomicInteger online = new AtomicInteger();
+
+    public PresenceRegistry(MqttService mqttService, HashedWheelTimer timer, ApiMqttProperties.Presence config) {
+        this.mqttService = mqttService;
+        this.timer = timer;
+        this.heartbeatTopic = config.getHeartbeatTopic();
+        this.lwtTopic = config.getLwtTopic();
+        this.clientIdLevel = config.getClientIdLevel();
+        this.timeoutMillis = config.getTimeoutMillis();
+        this.eventTopic = config.getEventTopic();
+        this.qos = config.getQos();
+    }
+
+    public void start() {
+        mqttService.subscribeAcknowledged(heartbeatTopic, this::onHeartbeat, qos);
+        if (lwtTopic != null && !lwtTopic.isBlank()) {
+            mqttService.subscribeAcknowledged(lwtTopic, this::onLastWill, qos);
+        }
+        log.info("Tracking presence from '{}' with a {} ms timeout", heartbeatTopic, timeoutMillis);
+    }
+
+    public void heartbeat(String clientId) {
+        long now = System.currentTimeMillis();
+        Device device = devices.computeIfAbsent(clientId, Device::new);
+        device.lastSeen = now;
+        if (!device.online) {
+            comeOnline(device, now);
+        }
+    }
+
+    public void lastWill(String clientId) {
+        Device device = devices.get(clientId);
+        if (device == null) {
+            return;
+        }
+        synchronized (device) {
+            if (!device.online) {
+                return;
+            }
+            device.online = false;
+            device.timeout.cancel();
+            goneOffline(device, PresenceEvent.LWT);
+        }
+        drain(device);
+    }
+
+    public boolean isOnline(String clientId) {
+        Device device = devices.get(clientId);
+        return device != null && device.online;
+    }
+
+    // Epoch millis of the last heartbeat, or 0 for devices never heard from
+    public long getLastSeen(String clientId) {
+        Device device = devices.get(clientId);
+        return device != null ? device.lastSeen : 0;
+    }
+
+    public int getOnlineCount() {
+        return online.get();
+    }
+
+    public int getTrackedCount() {
+        return devices.size();
+    }
+
+    // Stops tracking a device, e.g. one that was decommissioned; no event is published
+    public void remove(String clientId) {
+        Device device = devices.remove(clientId);
+        if (device != null) {
+            synchronized (device) {
+                if (device.online) {
+                    device.online = false;
+                    device.timeout.cancel();
+                    online.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        timer.close();
+    }
+
+    private void onHeartbeat(String topic, MqttSubscriber.MqttV5Message message, MqttAcknowledgement acknowledgement) {
+        try {
+            String clientId = level(topic, clientIdLevel);
+            if (clientId != null) {
+                heartbeat(clientId);
+            }
+        } finally {
+            acknowledgement.acknowledge();
+        }
+    }
+
+    private void onLastWill(String topic, MqttSubscriber.MqttV5Message message, MqttAcknowledgement acknowledgement) {
+        try {
+            String clientId = level(topic, clientIdLevel);
+            // An empty retained message only clears the broker's copy of an earlier will
+            if (clientId != null && message.getPayload().length > 0) {
+                lastWill(clientId);
+            }
+        } finally {
+            acknowledgement.acknowledge();
+        }
+    }
+
+    private void comeOnline(Device device, long now) {
+        synchronized (device) {
+            if (device.online) {
+                return;
+            }
+            device.online = true;
+            device.timeout = timer.schedule(() -> expire(device), timeoutMillis, TimeUnit.MILLISECONDS);
+            online.incrementAndGet();
+            queue(device, true, now, PresenceEvent.HEARTBEAT);
+        }
+        drain(device);
+    }
+
+    // Runs on the timer thread
+    private void expire(Device device) {
+        if (offlineAfterTimeout(device)) {
+            drain(device);
+        }
+    }
+
+    private boolean offlineAfterTimeout(Device device) {
+        synchronized (device) {
+            if (!device.online || devices.get(device.clientId) != device) {
+                return false;
+            }
+            long lastSeen = device.lastSeen;
+            long remaining = lastSeen + timeoutMillis - System.currentTimeMillis();
+            if (remaining <= 0) {
+                device.online = false;
+                // A heartbeat that saw the device online may have landed since lastSeen was read
+                if (device.lastSeen == lastSeen) {
+                    remaining = -1;
+                } else {
+                    device.online = true;
+                    remaining = timeoutMillis;
+                }
+            }
+            if (remaining > 0) {
+                device.timeout = timer.schedule(() -> expire(device), remaining, TimeUnit.MILLISECONDS);
+                return false;
+            }
+            goneOffline(device, PresenceEvent.TIMEOUT);
+            return true;
+        }
+    }
+
+    // Called under the device's monitor
+    private void goneOffline(Device device, String reason) {
+        online.decrementAndGet();
+        queue(device, false, System.currentTimeMillis(), reason);
+    }
+
+    // Called under the device's monitor
+    private void queue(Device device, boolean isOnline, long now, String reason) {
+        log.debug("Device '{}' is {} ({})", device.clientId, isOnline ? "online" : "offline", reason);
+        device.events.addLast(new PresenceEvent(device.clientId, isOnline, device.lastSeen, now, reason));
+    }
+
+    // Publishes the device's queued events in order, outside its monitor; returns at once if another thread is
+    // already publishing them, which then also publishes the events queued meanwhile
+    private void drain(Device device) {
+        synchronized (device) {
+            if (device.draining) {
+                return;
+            }
+            device.draining = true;
+        }
+        while (true) {
+            PresenceEvent event;
+            synchronized (device) {
+                event = device.events.pollFirst();
+                if (event == null) {
+                    device.draining = false;
+                    return;
+                }
+            }
+            publish(event);
+        }
+    }
+
+    private void publish(PresenceEvent event) {
+        try {
+            mqttService.publishAsync(eventTopic.replace(CLIENT_ID_PLACEHOLDER, event.clientId()), event, qos, true)
+                    .exceptionally(e -> {
+                        log.warn("Failed to publish presence of '{}': {}", event.clientId(), e.getMessage());
+                        return null;
+                    });
+        } catch (RuntimeException e) {
+            // FAIL_FAST rejects a full outbound buffer synchronously
+            log.warn("Failed to publish presence of '{}': {}", event.clientId(), e.getMessage());
+        }
+    }
+
+    // The level-th level of a topic (0-based), or null if the topic is shorter
+    private static String level(String topic, int level) {
+        int start = 0;
+        for (int i = 0; i < level; i++) {
+            start = topic.indexOf(TopicFilterTrie.LEVEL_SEPARATOR, start) + 1;
+            if (start == 0) {
+                return null;
+            }
+        }
+        int end = topic.indexOf(TopicFilterTrie.LEVEL_SEPARATOR, start);
+        return topic.substring(start, end < 0 ? topic.length() : end);
+    }
+
+    private static final class Device {
+        private final String clientId;
+        private volatile long lastSeen;
+        private volatile boolean online;
+        // Guarded by the device's monitor
+        private HashedWheelTimer.Timeout timeout;
+        private final ArrayDeque<PresenceEvent> events = new ArrayDeque<>();
+        private boolean draining;
+
+        private Device(String clientId) {
+            this.clientId = clientId;
+        }
+    }
+}
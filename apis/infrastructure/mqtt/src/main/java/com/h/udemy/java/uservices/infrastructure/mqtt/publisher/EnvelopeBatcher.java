@@ -0,0 +1,196 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.publisher;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.envelope.MqttEnvelope;
+import com.h.udemy.java.uservices.infrastructure.mqtt.topic.TopicFilterTrie;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Packs messages for topics matching the filters into MqttEnvelopes, one topic per envelope: a batch goes out when it
+// reaches batchSize bytes or lingerMillis after its first message, like Kafka's batch.size and linger.ms. A batch is
+// sent while holding its topic's lock, so messages on a topic keep their order. A batch of one is sent as the plain
+// message. A topic's entry is removed once its batch is sent, so topics published once do not stay in the map.
+class EnvelopeBatcher implements AutoCloseable {
+
+    private final TopicFilterTrie<Boolean> filters = new TopicFilterTrie<>();
+    private final int batchSize;
+    private final long lingerNanos;
+    private final OutboundSender sender;
+    // Sending may block on a full outbound buffer, so lingering batches get their own thread rather than a timer's
+    private final ScheduledExecutorService lingerScheduler;
+    private final Map<String, TopicBatch> topics = new ConcurrentHashMap<>();
+
+    private final LongAdder envelopes = new LongAdder();
+    private final LongAdder batchedMessages = new LongAdder();
+
+    EnvelopeBatcher(Collection<String> topicFilters, int batchSize, long lingerMillis, OutboundSender sender) {
+        topicFilters.forEach(filter -> filters.computeIfAbsent(filter, () -> Boolean.TRUE));
+        this.batchSize = batchSize;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.sender = sender;
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+                Thread.ofPlatform().name("mqtt-batch-linger").daemon(true).factory());
+        scheduler.setRemoveOnCancelPolicy(true);
+        this.lingerScheduler = Executors.unconfigurableScheduledExecutorService(scheduler);
+    }
+
+    boolean batches(String topic) {
+        return filters.matches(topic);
+    }
+
+    CompletableFuture<Void> add(String topic, byte[] payload, int qos, String contentType) {
+        // A topic whose batch was sent in the meantime is replaced by a fresh one
+        while (true) {
+            CompletableFuture<Void> future =
+                    topics.computeIfAbsent(topic, TopicBatch::new).add(payload, qos, contentType);
+            if (future != null) {
+                return future;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    // Sends the topic's open batch, if any; call before publishing on the topic outside the batcher
+    void flush(String topic) {
+        TopicBatch batch = topics.get(topic);
+        if (batch != null) {
+            batch.flush();
+        }
+    }
+
+    void flushAll() {
+        topics.values().forEach(TopicBatch::flush);
+    }
+
+    long envelopeCount() {
+        return envelopes.sum();
+    }
+
+    // Messages that went out inside an envelope
+    long batchedMessageCount() {
+        return batchedMessages.sum();
+    }
+
+    @Override
+    public void close() {
+        lingerScheduler.shutdown();
+        flushAll();
+    }
+
+    private final class TopicBatch {
+        private final String topic;
+        private final List<byte[]> payloads = new ArrayList<>();
+        private final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        private int qos;
+        private String contentType;
+        private int size;
+        // Identifies the open batch, so a linger task that fires late does not cut the next batch short
+        private long generation;
+        // Set once removed from topics; adds then go to the topic's next batch
+        private boolean retired;
+
+        private TopicBatch(String topic) {
+            this.topic = topic;
+        }
+
+        // Null if the batch was retired and the message not taken
+        synchronized CompletableFuture<Void> add(byte[] payload, int qos, String contentType) {
+            if (retired) {
+                return null;
+            }
+            int messageSize = MqttEnvelope.MESSAGE_OVERHEAD + payload.length;
+            if (!payloads.isEmpty() && (this.qos != qos || !Objects.equals(this.contentType, contentType)
+                    || size + messageSize > batchSize)) {
+                flush();
+            }
+            if (payloads.isEmpty()) {
+                this.qos = qos;
+                this.contentType = contentType;
+                this.size = MqttEnvelope.headerSize(contentType);
+                if (!lingerScheduler.isShutdown()) {
+                    long batch = generation;
+                    lingerScheduler.schedule(() -> flush(batch), lingerNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            payloads.add(payload);
+            futures.add(future);
+            size += messageSize;
+            // Once closed nothing lingers
+            if (size >= batchSize || lingerScheduler.isShutdown()) {
+                flush();
+                retire();
+            }
+            return future;
+        }
+
+        synchronized void flush(long batch) {
+            if (batch == generation) {
+                flush();
+            }
+            retire();
+        }
+
+        synchronized void flush() {
+            if (payloads.isEmpty()) {
+                return;
+            }
+            generation++;
+            List<CompletableFuture<Void>> waiting = List.copyOf(futures);
+            MqttMessage message = payloads.size() == 1 ? message(payloads.get(0), contentType)
+                    : message(new MqttEnvelope(contentType, List.copyOf(payloads)).encode(), MqttEnvelope.CONTENT_TYPE);
+            if (waiting.size() > 1) {
+                envelopes.increment();
+                batchedMessages.add(waiting.size());
+            }
+            payloads.clear();
+            futures.clear();
+
+            CompletableFuture<Void> sent;
+            try {
+                sent = sender.send(topic, message);
+            } catch (RuntimeException e) {
+                sent = CompletableFuture.failedFuture(e);
+            }
+            sent.whenComplete((result, failure) -> waiting.forEach(future -> {
+                if (failure == null) {
+                    future.complete(null);
+                } else {
+                    future.completeExceptionally(failure);
+                }
+            }));
+        }
+
+        // Under the lock, so no message can be added after the batch was sent; the next batch is only sent after
+        // this one, which keeps the topic's order
+        private void retire() {
+            if (payloads.isEmpty()) {
+                retired = true;
+                topics.remove(topic, this);
+            }
+        }
+
+        private MqttMessage message(byte[] payload, String contentType) {
+            MqttMessage message = new MqttMessage(payload);
+            message.setQos(qos);
+            MqttProperties properties = new MqttProperties();
+            if (contentType != null) {
+                properties.setContentType(contentType);
+            }
+            message.setProperties(properties);
+            return message;
+        }
+    }
+}
@@ -1,26 +1,106 @@
 package com.h.udemy.java.uservices.infrastructure.mqtt.publisher;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.h.udemy.java.uservices.infrastructure.mqtt.client.MqttCallbackThread;
+import com.h.udemy.java.uservices.infrastructure.mqtt.client.MqttClientPool;
+import com.h.udemy.java.uservices.infrastructure.mqtt.codec.MqttPayloadCodec;
+import com.h.udemy.java.uservices.infrastructure.mqtt.codec.MqttPayloadCodecs;
+import com.h.udemy.java.uservices.infrastructure.mqtt.codec.exception.MqttCodecException;
 import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
-import lombok.RequiredArgsConstructor;
+import com.h.udemy.java.uservices.infrastructure.mqtt.publisher.exception.MqttPublishException;
+import com.h.udemy.java.uservices.infrastructure.mqtt.publisher.exception.MqttRateLimitException;
+import com.h.udemy.java.uservices.infrastructure.mqtt.ratelimit.TopicRateLimiter;
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
 import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
 import org.eclipse.paho.mqttv5.common.MqttException;
 import org.eclipse.paho.mqttv5.common.MqttMessage;
 import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.eclipse.paho.mqttv5.common.packet.UserProperty;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @Slf4j
 @Component
-@RequiredArgsConstructor
 public class MqttPublisher {
 
-    private final MqttAsyncClient mqttClient;
+    private final MqttClientPool clientPool;
     private final ApiMqttProperties mqttProperties;
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final MqttPayloadCodecs codecs;
+
+    // One entry per pooled connection; the broker grants limits per connection
+    private final Connection[] connections;
+    // Null unless mqtt.batching is enabled and lists topics
+    private final EnvelopeBatcher batcher;
+    // Null unless mqtt.conflation lists topics
+    private final TopicConflater conflater;
+    // Limits from mqtt.rate-limits.publish; also changeable at runtime
+    private final TopicRateLimiter rateLimiter;
+
+    public MqttPublisher(MqttAsyncClient mqttClient, ApiMqttProperties mqttProperties) {
+        this(MqttClientPool.of(mqttClient), mqttProperties);
+    }
+
+    public MqttPublisher(MqttClientPool clientPool, ApiMqttProperties mqttProperties) {
+        this(clientPool, mqttProperties, MqttPayloadCodecs.json());
+    }
+
+    public MqttPublisher(MqttClientPool clientPool, ApiMqttProperties mqttProperties, MqttPayloadCodecs codecs) {
+        this.clientPool = clientPool;
+        this.codecs = codecs;
+        this.mqttProperties = mqttProperties;
+        this.connections = new Connection[clientPool.size()];
+        ApiMqttProperties.Outbound outbound = mqttProperties.getOutbound();
+        for (int shard = 0; shard < connections.length; shard++) {
+            connections[shard] = new Connection(clientPool.client(shard), new OutboundBuffer(configuredWindow(),
+                    outbound.getBufferCapacity(), outbound.getOverflowPolicy(), outbound.getBlockTimeoutMillis(),
+                    outbound.getLanes()));
+        }
+        ApiMqttProperties.Batching batching = mqttProperties.getBatching();
+        this.batcher = batching.isEnabled() && !batching.getTopics().isEmpty()
+                ? new EnvelopeBatcher(batching.getTopics(), batching.getBatchSize(), batching.getLingerMillis(),
+                        this::enqueue)
+                : null;
+        ApiMqttProperties.Conflation conflation = mqttProperties.getConflation();
+        this.conflater = !conflation.getTopics().isEmpty()
+                ? new TopicConflater(conflation.getTopics(), conflation.getIntervalMillis(), this::send)
+                : null;
+        ApiMqttProperties.RateLimits rateLimits = mqttProperties.getRateLimits();
+        this.rateLimiter = new TopicRateLimiter(rateLimits.getPublish(), rateLimits.getMaxDelayMillis());
+    }
+
+    public void onConnected(MqttProperties connAckProperties) {
+        onConnected(0, connAckProperties);
+    }
+
+    // Applies the limits the broker granted in a connection's CONNACK; call on every (re)connect
+    public void onConnected(int shard, MqttProperties connAckProperties) {
+        Connection connection = connections[shard];
+        Integer aliasMaximum = connAckProperties != null ? connAckProperties.getTopicAliasMaximum() : null;
+        connection.topicAliases.reset(aliasMaximum != null ? aliasMaximum : 0);
+
+        // Paho caps in-flight publishes at the broker's Receive Maximum, so the window must not exceed it
+        Integer brokerReceiveMaximum = connAckProperties != null ? connAckProperties.getReceiveMaximum() : null;
+        int window = brokerReceiveMaximum != null && brokerReceiveMaximum > 0
+                ? Math.min(configuredWindow(), brokerReceiveMaximum)
+                : configuredWindow();
+        connection.outbound.resize(window).forEach(message -> transmit(connection, message));
+
+        log.info("MQTT publisher limits for '{}': in-flight window {}, broker topic alias maximum {}",
+                connection.client.getClientId(), window, connection.topicAliases.getAliasMaximum());
+    }
+
+    // New publishes wait in the outbound buffer, under its overflow policy, until onConnected reopens the window
+    public void onDisconnected(int shard) {
+        connections[shard].outbound.resize(0);
+    }
 
     public void publish(String topic, Object message) {
         publish(topic, message, mqttProperties.getQos(), mqttProperties.isRetained());
@@ -30,34 +110,9 @@ public class MqttPublisher {
         publish(topic, message, qos, retained, null, null);
     }
 
-    public void publish(String topic, Object message, int qos, boolean retained, 
+    public void publish(String topic, Object message, int qos, boolean retained,
                        Map<String, String> userProperties, String contentType) {
-        try {
-            String jsonMessage = objectMapper.writeValueAsString(message);
-            MqttMessage mqttMessage = new MqttMessage(jsonMessage.getBytes());
-            mqttMessage.setQos(qos);
-            mqttMessage.setRetained(retained);
-            
-            // MQTT v5 properties
-            MqttProperties messageProperties = new MqttProperties();
-            if (userProperties != null && !userProperties.isEmpty()) {
-                // Note: User properties require UserProperty objects in Paho
-                // For now, we'll skip this feature
-                // messageProperties.setUserProperties(convertToUserPropertyList(userProperties));
-            }
-            if (contentType != null && !contentType.isEmpty()) {
-                messageProperties.setContentType(contentType);
-            }
-            mqttMessage.setProperties(messageProperties);
-
-            IMqttToken token = mqttClient.publish(topic, mqttMessage);
-            token.waitForCompletion();
-            
-            log.info("Published message to topic '{}': {}", topic, jsonMessage);
-        } catch (Exception e) {
-            log.error("Failed to publish message to topic '{}': {}", topic, e.getMessage(), e);
-            throw new RuntimeException("Failed to publish MQTT v5 message", e);
-        }
+        await(publishAsync(topic, message, qos, retained, userProperties, contentType));
     }
 
     public void publish(String topic, String message) {
@@ -68,60 +123,397 @@ public class MqttPublisher {
         publish(topic, message, qos, retained, null, null);
     }
 
-    public void publish(String topic, String message, int qos, boolean retained, 
+    public void publish(String topic, String message, int qos, boolean retained,
                        Map<String, String> userProperties, String contentType) {
+        await(publishAsync(topic, message, qos, retained, userProperties, contentType));
+    }
+
+    public CompletableFuture<Void> publishAsync(String topic, Object message) {
+        return publishAsync(topic, message, mqttProperties.getQos(), mqttProperties.isRetained());
+    }
+
+    public CompletableFuture<Void> publishAsync(String topic, Object message, int qos, boolean retained) {
+        return publishAsync(topic, message, qos, retained, null, null);
+    }
+
+    // Encodes with the codec of the content type, or the default codec (and its content type) when null
+    public CompletableFuture<Void> publishAsync(String topic, Object message, int qos, boolean retained,
+                                                Map<String, String> userProperties, String contentType) {
+        MqttPayloadCodec codec = contentType == null ? codecs.getDefault() : codecs.get(contentType);
+        if (codec == null) {
+            return CompletableFuture.failedFuture(
+                    new MqttPublishException("No MQTT payload codec for content type '" + contentType + "'"));
+        }
         try {
-            MqttMessage mqttMessage = new MqttMessage(message.getBytes());
-            mqttMessage.setQos(qos);
-            mqttMessage.setRetained(retained);
-            
-            // MQTT v5 properties
-            MqttProperties messageProperties = new MqttProperties();
-            if (userProperties != null && !userProperties.isEmpty()) {
-                // Note: User properties require UserProperty objects in Paho
-                // For now, we'll skip this feature
-                // messageProperties.setUserProperties(convertToUserPropertyList(userProperties));
-            }
-            if (contentType != null && !contentType.isEmpty()) {
-                messageProperties.setContentType(contentType);
-            }
-            mqttMessage.setProperties(messageProperties);
+            return publishPayload(topic, codecs.encode(message, codec), qos, retained, userProperties,
+                    codec.contentType());
+        } catch (MqttCodecException e) {
+            log.error("Failed to serialize message for topic '{}': {}", topic, e.getMessage(), e);
+            return CompletableFuture.failedFuture(new MqttPublishException("Failed to publish MQTT v5 message", e));
+        }
+    }
 
-            IMqttToken token = mqttClient.publish(topic, mqttMessage);
-            token.waitForCompletion();
-            
-            log.info("Published message to topic '{}': {}", topic, message);
-        } catch (MqttException e) {
-            log.error("Failed to publish message to topic '{}': {}", topic, e.getMessage(), e);
-            throw new RuntimeException("Failed to publish MQTT v5 message", e);
+    public CompletableFuture<Void> publishAsync(String topic, String message) {
+        return publishAsync(topic, message, mqttProperties.getQos(), mqttProperties.isRetained());
+    }
+
+    public CompletableFuture<Void> publishAsync(String topic, String message, int qos, boolean retained) {
+        return publishAsync(topic, message, qos, retained, null, null);
+    }
+
+    public CompletableFuture<Void> publishAsync(String topic, String message, int qos, boolean retained,
+                                                Map<String, String> userProperties, String contentType) {
+        return publishPayload(topic, message.getBytes(StandardCharsets.UTF_8), qos, retained, userProperties, contentType);
+    }
+
+    // Publishes the payload as it is, without a codec; the array must not be modified until the future completes
+    public CompletableFuture<Void> publishBytesAsync(String topic, byte[] payload, int qos, boolean retained,
+                                                     String contentType) {
+        return publishPayload(topic, payload, qos, retained, null, contentType);
+    }
+
+    public CompletableFuture<Void> publishAll(String topic, Collection<?> messages) {
+        return publishAll(topic, messages, mqttProperties.getQos(), mqttProperties.isRetained());
+    }
+
+    public CompletableFuture<Void> publishAll(String topic, Collection<?> messages, int qos, boolean retained) {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[messages.size()];
+        int i = 0;
+        for (Object message : messages) {
+            futures[i++] = message instanceof String text
+                    ? publishAsync(topic, text, qos, retained)
+                    : publishAsync(topic, message, qos, retained);
         }
+        return CompletableFuture.allOf(futures);
     }
 
-    public void publishWithResponse(String topic, Object message, String responseTopic, 
+    public void publishWithResponse(String topic, Object message, String responseTopic,
                                   byte[] correlationData) {
+        await(publishWithResponseAsync(topic, message, responseTopic, correlationData));
+    }
+
+    // A null response topic publishes a reply: only the correlation data is set
+    public CompletableFuture<Void> publishWithResponseAsync(String topic, Object message, String responseTopic,
+                                                            byte[] correlationData) {
+        CompletableFuture<Void> limited = rateLimit(topic);
+        if (limited != null) {
+            return limited;
+        }
         try {
-            String jsonMessage = objectMapper.writeValueAsString(message);
-            MqttMessage mqttMessage = new MqttMessage(jsonMessage.getBytes());
+            MqttPayloadCodec codec = codecs.getDefault();
+            MqttMessage mqttMessage = new MqttMessage(codecs.encode(message, codec));
             mqttMessage.setQos(mqttProperties.getQos());
             mqttMessage.setRetained(mqttProperties.isRetained());
-            
+
             // MQTT v5 response properties
             MqttProperties messageProperties = new MqttProperties();
-            messageProperties.setResponseTopic(responseTopic);
+            if (responseTopic != null) {
+                messageProperties.setResponseTopic(responseTopic);
+            }
             messageProperties.setCorrelationData(correlationData);
+            messageProperties.setContentType(codec.contentType());
             mqttMessage.setProperties(messageProperties);
 
-            IMqttToken token = mqttClient.publish(topic, mqttMessage);
-            token.waitForCompletion();
-            
-            log.info("Published message with response to topic '{}': {}", topic, jsonMessage);
-        } catch (Exception e) {
+            return send(topic, mqttMessage);
+        } catch (MqttCodecException e) {
             log.error("Failed to publish message with response to topic '{}': {}", topic, e.getMessage(), e);
-            throw new RuntimeException("Failed to publish MQTT v5 message with response", e);
+            return CompletableFuture.failedFuture(
+                    new MqttPublishException("Failed to publish MQTT v5 message with response", e));
+        }
+    }
+
+    // Sends every batch still lingering
+    public void flush() {
+        if (batcher != null) {
+            batcher.flushAll();
+        }
+    }
+
+    public void close() {
+        if (conflater != null) {
+            conflater.close();
+        }
+        if (batcher != null) {
+            batcher.close();
         }
     }
 
     public boolean isConnected() {
-        return mqttClient.isConnected();
+        return clientPool.isConnected();
+    }
+
+    public int getAvailableInFlightPermits() {
+        int permits = 0;
+        for (Connection connection : connections) {
+            permits += connection.outbound.availableSlots();
+        }
+        return permits;
+    }
+
+    public int getTopicAliasMaximum() {
+        int aliases = 0;
+        for (Connection connection : connections) {
+            aliases += connection.topicAliases.getAliasMaximum();
+        }
+        return aliases;
+    }
+
+    public int getAliasedTopicCount() {
+        int aliased = 0;
+        for (Connection connection : connections) {
+            aliased += connection.topicAliases.getAliasedTopicCount();
+        }
+        return aliased;
+    }
+
+    public long getUnaliasedPublishCount() {
+        long unaliased = 0;
+        for (Connection connection : connections) {
+            unaliased += connection.topicAliases.getUnaliasedPublishCount();
+        }
+        return unaliased;
+    }
+
+    // Messages waiting for an in-flight slot, summed over connections
+    public int getOutboundQueueDepth() {
+        int depth = 0;
+        for (Connection connection : connections) {
+            depth += connection.outbound.depth();
+        }
+        return depth;
+    }
+
+    public int getMaxOutboundQueueDepth() {
+        int depth = 0;
+        for (Connection connection : connections) {
+            depth = Math.max(depth, connection.outbound.maxDepth());
+        }
+        return depth;
+    }
+
+    public long getDroppedPublishCount() {
+        long dropped = 0;
+        for (Connection connection : connections) {
+            dropped += connection.outbound.droppedCount();
+        }
+        return dropped;
+    }
+
+    public long getRejectedPublishCount() {
+        long rejected = 0;
+        for (Connection connection : connections) {
+            rejected += connection.outbound.rejectedCount();
+        }
+        return rejected;
+    }
+
+    // Average time a queued message waited for an in-flight slot
+    public long getAverageOutboundWaitNanos() {
+        long count = 0;
+        long waited = 0;
+        for (Connection connection : connections) {
+            count += connection.outbound.waitedCount();
+            waited += connection.outbound.totalQueueWaitNanos();
+        }
+        return count == 0 ? 0 : waited / count;
+    }
+
+    // Total time publishing threads spent blocked on a full buffer
+    public long getPublishBlockedNanos() {
+        long blocked = 0;
+        for (Connection connection : connections) {
+            blocked += connection.outbound.totalBlockedNanos();
+        }
+        return blocked;
+    }
+
+    // Priority lanes in configuration order, the default lane last
+    public List<String> getPublishLanes() {
+        return connections[0].outbound.laneNames();
+    }
+
+    public int getOutboundQueueDepth(String lane) {
+        int index = laneIndex(lane);
+        int depth = 0;
+        for (Connection connection : connections) {
+            depth += connection.outbound.depth(index);
+        }
+        return depth;
+    }
+
+    // Time from publishAsync to the broker's acknowledgement of a lane's messages, over all connections
+    public LatencyHistogram getPublishLatency(String lane) {
+        int index = laneIndex(lane);
+        LatencyHistogram latency = new LatencyHistogram();
+        for (Connection connection : connections) {
+            latency.add(connection.outbound.latency(index));
+        }
+        return latency;
+    }
+
+    // Publish limits per topic filter; setLimit and removeLimit take effect immediately
+    public TopicRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    // Envelopes sent by batching, and the messages they carried; their ratio is the average batch size
+    public long getEnvelopeCount() {
+        return batcher != null ? batcher.envelopeCount() : 0;
+    }
+
+    public long getBatchedMessageCount() {
+        return batcher != null ? batcher.batchedMessageCount() : 0;
+    }
+
+    // Publishes to conflated topics that a newer message replaced before they were sent
+    public long getConflatedPublishCount() {
+        return conflater != null ? conflater.conflatedCount() : 0;
+    }
+
+    private int laneIndex(String lane) {
+        int index = getPublishLanes().indexOf(lane);
+        if (index < 0) {
+            throw new IllegalArgumentException("No MQTT publish lane '" + lane + "'");
+        }
+        return index;
+    }
+
+    private int configuredWindow() {
+        return Math.max(1, mqttProperties.getMqttV5().getReceiveMaximum());
+    }
+
+    private CompletableFuture<Void> publishPayload(String topic, byte[] payload, int qos, boolean retained,
+                                                   Map<String, String> userProperties, String contentType) {
+        CompletableFuture<Void> limited = rateLimit(topic);
+        if (limited != null) {
+            return limited;
+        }
+        boolean conflated = conflater != null && conflater.conflates(topic);
+        // Retained messages are the topic's last value for late subscribers, so they are never enveloped
+        if (!conflated && batcher != null && batcher.batches(topic) && !retained
+                && (userProperties == null || userProperties.isEmpty())) {
+            return batcher.add(topic, payload, qos, contentType);
+        }
+        MqttMessage mqttMessage = new MqttMessage(payload);
+        mqttMessage.setQos(qos);
+        mqttMessage.setRetained(retained);
+
+        // MQTT v5 properties
+        MqttProperties messageProperties = new MqttProperties();
+        if (userProperties != null && !userProperties.isEmpty()) {
+            List<UserProperty> properties = new ArrayList<>(userProperties.size());
+            userProperties.forEach((key, value) -> properties.add(new UserProperty(key, value)));
+            messageProperties.setUserProperties(properties);
+        }
+        if (contentType != null && !contentType.isEmpty()) {
+            messageProperties.setContentType(contentType);
+        }
+        mqttMessage.setProperties(messageProperties);
+
+        return conflated ? conflater.publish(topic, mqttMessage) : send(topic, mqttMessage);
+    }
+
+    // Null if the message may be sent, otherwise the failed future of a message over its topic's limit.
+    // DELAY does not sleep Paho's callback thread, which completes publishes; there it drops instead
+    private CompletableFuture<Void> rateLimit(String topic) {
+        return switch (rateLimiter.acquire(topic, !MqttCallbackThread.isCurrent())) {
+            case ADMITTED -> null;
+            case DROPPED -> CompletableFuture.failedFuture(
+                    new MqttRateLimitException("Dropped a publish to '" + topic + "' over its rate limit"));
+            case REJECTED -> CompletableFuture.failedFuture(
+                    new MqttRateLimitException("Publish to '" + topic + "' is over its rate limit"));
+        };
+    }
+
+    private CompletableFuture<Void> send(String topic, MqttMessage mqttMessage) {
+        if (batcher != null) {
+            // Messages batched earlier on the topic go first
+            batcher.flush(topic);
+        }
+        return enqueue(topic, mqttMessage);
+    }
+
+    private CompletableFuture<Void> enqueue(String topic, MqttMessage mqttMessage) {
+        // A topic always uses the same connection, which keeps its messages in order
+        Connection connection = connections[clientPool.shardFor(topic)];
+        OutboundBuffer.Pending message = new OutboundBuffer.Pending(topic, connection.outbound.laneFor(topic),
+                mqttMessage, new CompletableFuture<>(), System.nanoTime());
+        boolean sendNow;
+        try {
+            // Throws MqttBackpressureException straight to the caller under FAIL_FAST. Under BLOCK, Paho's
+            // callback thread must not wait: the completions that free slots run on it
+            sendNow = connection.outbound.offer(message, !MqttCallbackThread.isCurrent());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            message.future().completeExceptionally(
+                    new MqttPublishException("Interrupted waiting for the MQTT outbound buffer", e));
+            return message.future();
+        }
+        if (sendNow) {
+            transmit(connection, message);
+        }
+        return message.future();
+    }
+
+    private void transmit(Connection connection, OutboundBuffer.Pending message) {
+        while (message != null) {
+            message = publishNow(connection, message);
+        }
+    }
+
+    // Returns the queued message that inherited the slot when the publish failed synchronously
+    private OutboundBuffer.Pending publishNow(Connection connection, OutboundBuffer.Pending message) {
+        String topic = message.topic();
+        connection.topicAliases.record(topic);
+        try {
+            connection.client.publish(topic, message.message(), null, new MqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    OutboundBuffer.Pending next = connection.outbound.complete(message);
+                    log.debug("Published message to topic '{}' (id {})", topic, asyncActionToken.getMessageId());
+                    message.future().complete(null);
+                    transmit(connection, next);
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    OutboundBuffer.Pending next = connection.outbound.complete(message);
+                    log.error("Failed to publish message to topic '{}': {}", topic, exception.getMessage(), exception);
+                    message.future().completeExceptionally(new MqttPublishException("Failed to publish MQTT v5 message", exception));
+                    transmit(connection, next);
+                }
+            });
+            return null;
+        } catch (MqttException | RuntimeException e) {
+            OutboundBuffer.Pending next = connection.outbound.complete(message);
+            log.error("Failed to publish message to topic '{}': {}", topic, e.getMessage(), e);
+            message.future().completeExceptionally(new MqttPublishException("Failed to publish MQTT v5 message", e));
+            return next;
+        }
+    }
+
+    private static void await(CompletableFuture<Void> future) {
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new MqttPublishException("Failed to publish MQTT v5 message", e.getCause());
+        }
+    }
+
+    private static final class Connection {
+        private final MqttAsyncClient client;
+
+        // Bounds the QoS1/2 messages awaiting PUBACK/PUBCOMP, so Paho never rejects a publish
+        // with "too many publishes in progress", and buffers or sheds the rest per the overflow policy
+        private final OutboundBuffer outbound;
+        private final TopicAliasTracker topicAliases = new TopicAliasTracker();
+
+        private Connection(MqttAsyncClient client, OutboundBuffer outbound) {
+            this.client = client;
+            this.outbound = outbound;
+        }
     }
 }
@@ -0,0 +1,335 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.publisher;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.backpressure.OverflowPolicy;
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
+import com.h.udemy.java.uservices.infrastructure.mqtt.publisher.exception.MqttBackpressureException;
+import com.h.udemy.java.uservices.infrastructure.mqtt.topic.TopicFilterTrie;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Flow control for one connection: up to `window` messages awaiting PUBACK/PUBCOMP, then messages wait in
+// their priority lane, up to the lane's capacity, after which the overflow policy applies. A finished publish
+// hands its slot straight to a waiting message, so messages of a lane never overtake each other. When several
+// lanes have messages waiting, freed slots go to them in proportion to their weights (smooth weighted
+// round-robin), and a lane with an in-flight budget never holds more slots than that, which keeps the rest of
+// the window free for the other lanes. Topics matching no lane use the default lane, the last one.
+class OutboundBuffer {
+
+    static final String DEFAULT_LANE = "default";
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Lane[] lanes;
+    private final TopicFilterTrie<Integer> laneFilters = new TopicFilterTrie<>();
+    private final OverflowPolicy policy;
+    private final long blockTimeoutNanos;
+    private int window;
+    private int inFlight;
+    private int queued;
+    private int maxDepth;
+
+    private final LongAdder waited = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder totalQueueWaitNanos = new LongAdder();
+    private final LongAdder totalBlockedNanos = new LongAdder();
+
+    record Pending(String topic, int lane, MqttMessage message, CompletableFuture<Void> future, long enqueuedAt) {
+    }
+
+    /**
+     * @param capacity           queue capacity of the default lane
+     * @param blockTimeoutMillis how long {@link OverflowPolicy#BLOCK} waits for room, 0 to wait indefinitely
+     */
+    OutboundBuffer(int window, int capacity, OverflowPolicy policy, long blockTimeoutMillis,
+                   List<ApiMqttProperties.Lane> laneConfigs) {
+        this.window = window;
+        this.policy = policy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+        this.lanes = new Lane[laneConfigs.size() + 1];
+        for (int i = 0; i < laneConfigs.size(); i++) {
+            ApiMqttProperties.Lane config = laneConfigs.get(i);
+            lanes[i] = new Lane(config.getName(), config.getWeight(), config.getBufferCapacity(),
+                    config.getMaxInFlight());
+            int index = i;
+            // A topic matching several lanes goes to the first one configured
+            config.getTopics().forEach(filter -> laneFilters.computeIfAbsent(filter, () -> index));
+        }
+        lanes[laneConfigs.size()] = new Lane(DEFAULT_LANE, 1, capacity, 0);
+    }
+
+    int laneFor(String topic) {
+        int[] lane = {lanes.length - 1};
+        laneFilters.match(topic, lane, (index, t, best) -> best[0] = Math.min(best[0], index));
+        return lane[0];
+    }
+
+    /**
+     * Admits a message: returns true if it holds an in-flight slot and must be sent now, false if it was
+     * queued (or discarded, in which case its future has been failed).
+     *
+     * @param mayWait false on threads that must not block, where {@link OverflowPolicy#BLOCK} fails the message
+     *                at once instead of waiting for room
+     * @throws MqttBackpressureException with {@link OverflowPolicy#FAIL_FAST} when the lane is full
+     */
+    boolean offer(Pending message, boolean mayWait) throws InterruptedException {
+        Lane lane = lanes[message.lane()];
+        Pending evicted = null;
+        lock.lock();
+        try {
+            if (hasFreeSlot(lane)) {
+                acquire(lane);
+                return true;
+            }
+            if (lane.pending.size() >= lane.capacity) {
+                switch (policy) {
+                    case BLOCK -> {
+                        if (!mayWait) {
+                            rejected.increment();
+                            message.future().completeExceptionally(new MqttBackpressureException(
+                                    "MQTT outbound buffer is full; not waiting on Paho's callback thread"));
+                            return false;
+                        }
+                        if (!awaitSpace(lane)) {
+                            rejected.increment();
+                            message.future().completeExceptionally(new MqttBackpressureException(
+                                    "Timed out waiting for room in the MQTT outbound buffer"));
+                            return false;
+                        }
+                        if (hasFreeSlot(lane)) {
+                            acquire(lane);
+                            return true;
+                        }
+                    }
+                    case DROP_OLDEST -> {
+                        evicted = lane.pending.pollFirst();
+                        dropped.increment();
+                        if (evicted == null) {
+                            // Capacity 0: nothing buffered to evict, so the new message goes
+                            evicted = message;
+                            return false;
+                        }
+                        queued--;
+                    }
+                    case DROP_NEWEST -> {
+                        dropped.increment();
+                        evicted = message;
+                        return false;
+                    }
+                    case FAIL_FAST -> {
+                        rejected.increment();
+                        throw new MqttBackpressureException("MQTT outbound buffer is full ("
+                                + lane.pending.size() + " queued in lane '" + lane.name + "', "
+                                + inFlight + " in flight)");
+                    }
+                }
+            }
+            lane.pending.addLast(message);
+            queued++;
+            maxDepth = Math.max(maxDepth, queued);
+            return false;
+        } finally {
+            lock.unlock();
+            if (evicted != null) {
+                evicted.future().completeExceptionally(
+                        new MqttBackpressureException("Dropped from the full MQTT outbound buffer"));
+            }
+        }
+    }
+
+    // Called when a publish finished; returns the queued message that inherits its slot, if any
+    Pending complete(Pending finished) {
+        Lane lane = lanes[finished.lane()];
+        lane.latency.record(System.nanoTime() - finished.enqueuedAt());
+        lock.lock();
+        try {
+            lane.inFlight--;
+            inFlight--;
+            Pending next = inFlight < window ? pollNext() : null;
+            if (next == null) {
+                // The slot stays free: a blocked publisher of any lane may take it
+                for (Lane waiting : lanes) {
+                    waiting.spaceAvailable.signal();
+                }
+            } else {
+                lane.spaceAvailable.signal();
+            }
+            return next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Applies a new in-flight window; returns queued messages that now fit and must be sent
+    List<Pending> resize(int newWindow) {
+        lock.lock();
+        try {
+            window = newWindow;
+            List<Pending> released = new ArrayList<>();
+            Pending next;
+            while (inFlight < window && (next = pollNext()) != null) {
+                released.add(next);
+            }
+            for (Lane lane : lanes) {
+                lane.spaceAvailable.signalAll();
+            }
+            return released;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int availableSlots() {
+        lock.lock();
+        try {
+            return Math.max(0, window - inFlight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int depth() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int maxDepth() {
+        lock.lock();
+        try {
+            return maxDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Lane names in configuration order, the default lane last
+    List<String> laneNames() {
+        List<String> names = new ArrayList<>(lanes.length);
+        for (Lane lane : lanes) {
+            names.add(lane.name);
+        }
+        return names;
+    }
+
+    int depth(int lane) {
+        lock.lock();
+        try {
+            return lanes[lane].pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Time from publishAsync to the broker's acknowledgement (or the failure) of the lane's messages
+    LatencyHistogram latency(int lane) {
+        return lanes[lane].latency;
+    }
+
+    // Messages that were sent after waiting in the queue
+    long waitedCount() {
+        return waited.sum();
+    }
+
+    long droppedCount() {
+        return dropped.sum();
+    }
+
+    long rejectedCount() {
+        return rejected.sum();
+    }
+
+    long totalQueueWaitNanos() {
+        return totalQueueWaitNanos.sum();
+    }
+
+    long totalBlockedNanos() {
+        return totalBlockedNanos.sum();
+    }
+
+    private boolean hasFreeSlot(Lane lane) {
+        return inFlight < window && lane.inFlight < lane.maxInFlight && lane.pending.isEmpty();
+    }
+
+    private void acquire(Lane lane) {
+        inFlight++;
+        lane.inFlight++;
+    }
+
+    // Takes the next message to send from the lane whose turn it is, or null if no lane may send
+    private Pending pollNext() {
+        Lane chosen = null;
+        int totalWeight = 0;
+        for (Lane lane : lanes) {
+            if (lane.pending.isEmpty() || lane.inFlight >= lane.maxInFlight) {
+                continue;
+            }
+            lane.credit += lane.weight;
+            totalWeight += lane.weight;
+            if (chosen == null || lane.credit > chosen.credit) {
+                chosen = lane;
+            }
+        }
+        if (chosen == null) {
+            return null;
+        }
+        chosen.credit -= totalWeight;
+        Pending next = chosen.pending.pollFirst();
+        queued--;
+        acquire(chosen);
+        waited.increment();
+        totalQueueWaitNanos.add(System.nanoTime() - next.enqueuedAt());
+        chosen.spaceAvailable.signal();
+        return next;
+    }
+
+    // Waits (lock held) until the message can be sent or queued; false on timeout
+    private boolean awaitSpace(Lane lane) throws InterruptedException {
+        long start = System.nanoTime();
+        long remaining = blockTimeoutNanos;
+        try {
+            while (!hasFreeSlot(lane) && lane.pending.size() >= lane.capacity) {
+                if (blockTimeoutNanos == 0) {
+                    lane.spaceAvailable.await();
+                } else if (remaining <= 0) {
+                    return false;
+                } else {
+                    remaining = lane.spaceAvailable.awaitNanos(remaining);
+                }
+            }
+            return true;
+        } finally {
+            totalBlockedNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    private final class Lane {
+        private final String name;
+        private final int weight;
+        private final int capacity;
+        private final int maxInFlight;
+        private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        private final Condition spaceAvailable = lock.newCondition();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        // Guarded by the buffer's lock
+        private int inFlight;
+        private int credit;
+
+        private Lane(String name, int weight, int capacity, int maxInFlight) {
+            this.name = name;
+            this.weight = Math.max(1, weight);
+            this.capacity = Math.max(0, capacity);
+            this.maxInFlight = maxInFlight > 0 ? maxInFlight : Integer.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.publisher;
+
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+import java.util.concurrent.CompletableFuture;
+
+// How batching and conflation hand their messages back to MqttPublisher; completes when the broker acknowledges
+@FunctionalInterface
+interface OutboundSender {
+
+    CompletableFuture<Void> send(String topic, MqttMessage message);
+}
@@ -0,0 +1,60 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.publisher;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Mirrors Paho's outgoing topic alias allocation so alias usage can be observed.
+ * <p>
+ * Paho (1.2.x) replaces topic names with aliases itself: the first topics published on a connection
+ * get aliases until the broker's CONNACK Topic Alias Maximum is reached, and the table is rebuilt on
+ * every new connection. Aliases are never evicted, so topics first seen after the table is full are
+ * always sent in full; this tracker counts those publishes and warns once per connection.
+ */
+@Slf4j
+class TopicAliasTracker {
+
+    private final Set<String> aliasedTopics = ConcurrentHashMap.newKeySet();
+    private final LongAdder unaliasedPublishes = new LongAdder();
+    private final AtomicBoolean exhaustionReported = new AtomicBoolean();
+    private volatile int aliasMaximum;
+
+    void reset(int brokerAliasMaximum) {
+        aliasMaximum = Math.max(0, brokerAliasMaximum);
+        aliasedTopics.clear();
+        unaliasedPublishes.reset();
+        exhaustionReported.set(false);
+    }
+
+    void record(String topic) {
+        int maximum = aliasMaximum;
+        if (maximum == 0 || aliasedTopics.contains(topic)) {
+            return;
+        }
+        // Approximate under concurrent first publishes, which is fine for a usage metric
+        if (aliasedTopics.size() < maximum && aliasedTopics.add(topic)) {
+            return;
+        }
+        unaliasedPublishes.increment();
+        if (exhaustionReported.compareAndSet(false, true)) {
+            log.warn("All {} MQTT topic aliases granted by the broker are in use; '{}' and later new topics "
+                    + "are sent with full names until the next connection", maximum, topic);
+        }
+    }
+
+    int getAliasMaximum() {
+        return aliasMaximum;
+    }
+
+    int getAliasedTopicCount() {
+        return aliasedTopics.size();
+    }
+
+    long getUnaliasedPublishCount() {
+        return unaliasedPublishes.sum();
+    }
+}
@@ -0,0 +1,156 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.publisher;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.topic.TopicFilterTrie;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Last-value conflation for gauge-style topics: a conflated topic has at most one message in flight and one pending,
+// and a newer publish replaces the pending one. The pending message goes out once the in-flight one is acknowledged,
+// or, with an interval, on the next flush tick, which also caps the topic at one message per interval.
+// A replaced message's future completes with the message that replaced it. A topic's state is removed once nothing
+// is pending or in flight.
+class TopicConflater implements AutoCloseable {
+
+    private final TopicFilterTrie<Boolean> filters = new TopicFilterTrie<>();
+    private final long intervalMillis;
+    private final OutboundSender sender;
+    // Pending messages are sent from here, never from Paho's callback thread, which a full outbound buffer would block
+    private final ScheduledExecutorService flusher;
+    private final Map<String, TopicState> topics = new ConcurrentHashMap<>();
+    private final LongAdder conflated = new LongAdder();
+
+    TopicConflater(Collection<String> topicFilters, long intervalMillis, OutboundSender sender) {
+        topicFilters.forEach(filter -> filters.computeIfAbsent(filter, () -> Boolean.TRUE));
+        this.intervalMillis = intervalMillis;
+        this.sender = sender;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("mqtt-conflation").daemon(true).factory());
+        if (intervalMillis > 0) {
+            flusher.scheduleAtFixedRate(() -> topics.values().forEach(TopicState::flush),
+                    intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    boolean conflates(String topic) {
+        return filters.matches(topic);
+    }
+
+    CompletableFuture<Void> publish(String topic, MqttMessage message) {
+        // A topic retired in the meantime is replaced by a fresh state
+        while (true) {
+            CompletableFuture<Void> future = topics.computeIfAbsent(topic, TopicState::new).publish(message);
+            if (future != null) {
+                return future;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    // Publishes replaced before they were sent
+    long conflatedCount() {
+        return conflated.sum();
+    }
+
+    @Override
+    public void close() {
+        flusher.shutdown();
+        topics.values().forEach(TopicState::sendPending);
+    }
+
+    private final class TopicState {
+        private final String topic;
+        private boolean inFlight;
+        private MqttMessage pending;
+        private final List<CompletableFuture<Void>> pendingFutures = new ArrayList<>();
+        // Set once removed from topics; publishes then go to the topic's next state
+        private boolean retired;
+
+        private TopicState(String topic) {
+            this.topic = topic;
+        }
+
+        // Null if the state was retired and the message not taken
+        synchronized CompletableFuture<Void> publish(MqttMessage message) {
+            if (retired) {
+                return null;
+            }
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            if (pending != null) {
+                conflated.increment();
+            }
+            pending = message;
+            pendingFutures.add(future);
+            if (!inFlight && intervalMillis == 0) {
+                sendPending();
+            }
+            return future;
+        }
+
+        synchronized void flush() {
+            if (!inFlight) {
+                sendPending();
+                retireIfIdle();
+            }
+        }
+
+        // Under the lock, so no message can be published to the state after the check; with nothing in flight the
+        // next state cannot overtake this one
+        private void retireIfIdle() {
+            if (!inFlight && pending == null) {
+                retired = true;
+                topics.remove(topic, this);
+            }
+        }
+
+        synchronized void sendPending() {
+            if (pending == null) {
+                return;
+            }
+            List<CompletableFuture<Void>> waiting = List.copyOf(pendingFutures);
+            MqttMessage message = pending;
+            pending = null;
+            pendingFutures.clear();
+            inFlight = true;
+
+            CompletableFuture<Void> sent;
+            try {
+                sent = sender.send(topic, message);
+            } catch (RuntimeException e) {
+                sent = CompletableFuture.failedFuture(e);
+            }
+            sent.whenComplete((result, failure) -> {
+                waiting.forEach(future -> {
+                    if (failure == null) {
+                        future.complete(null);
+                    } else {
+                        future.completeExceptionally(failure);
+                    }
+                });
+                onSent();
+            });
+        }
+
+        private void onSent() {
+            synchronized (this) {
+                inFlight = false;
+                retireIfIdle();
+                if (pending == null || intervalMillis > 0) {
+                    return;
+                }
+            }
+            if (!flusher.isShutdown()) {
+                flusher.execute(this::flush);
+            }
+        }
+    }
+}
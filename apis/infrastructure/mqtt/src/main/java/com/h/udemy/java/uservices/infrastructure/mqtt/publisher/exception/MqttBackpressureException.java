@@ -0,0 +1,9 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.publisher.exception;
+
+// A publish was refused or discarded because the outbound buffer of its connection was full
+public class MqttBackpressureException extends MqttPublishException {
+
+    public MqttBackpressureException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,12 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.publisher.exception;
+
+public class MqttPublishException extends RuntimeException {
+
+    public MqttPublishException(String message) {
+        super(message);
+    }
+
+    public MqttPublishException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
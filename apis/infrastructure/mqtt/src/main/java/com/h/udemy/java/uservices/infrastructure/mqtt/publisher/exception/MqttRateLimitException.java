@@ -0,0 +1,9 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.publisher.exception;
+
+// A publish was refused or discarded because its topic was over its rate limit
+public class MqttRateLimitException extends MqttPublishException {
+
+    public MqttRateLimitException(String message) {
+        super(message);
+    }
+}
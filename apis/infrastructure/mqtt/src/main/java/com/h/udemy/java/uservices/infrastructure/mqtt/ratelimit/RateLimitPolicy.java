@@ -0,0 +1,11 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.ratelimit;
+
+// What a rate-limited topic does with a message beyond its limit
+public enum RateLimitPolicy {
+    // The producer (or dispatch lane) waits for a token, up to the configured maximum delay; drops on Paho's callback thread
+    DELAY,
+    // The message is discarded
+    DROP,
+    // Publishes fail immediately and are counted as rejected; received messages are discarded
+    REJECT
+}
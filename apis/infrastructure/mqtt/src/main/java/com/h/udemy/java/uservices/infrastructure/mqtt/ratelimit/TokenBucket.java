@@ -0,0 +1,60 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.ratelimit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket holding up to {@code burst} tokens, refilled at {@code permitsPerSecond}.
+ * <p>
+ * The bucket is kept as a single timestamp, the time at which it will be full again (the generic cell
+ * rate algorithm), so taking a token is one compare-and-set with no refill bookkeeping and no lock.
+ * The rate and burst can be changed at any time; tokens already taken stay taken.
+ */
+public class TokenBucket {
+
+    private record Rate(long intervalNanos, long toleranceNanos) {
+    }
+
+    private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+    private volatile Rate rate;
+
+    public TokenBucket(double permitsPerSecond, int burst) {
+        setRate(permitsPerSecond, burst);
+    }
+
+    public void setRate(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate limit needs a positive rate and burst, got "
+                    + permitsPerSecond + "/s and " + burst);
+        }
+        long interval = Math.max(1, (long) (1_000_000_000L / permitsPerSecond));
+        rate = new Rate(interval, interval * (burst - 1));
+    }
+
+    public boolean tryAcquire() {
+        return reserve(0) == 0;
+    }
+
+    /**
+     * Takes a token if one is available within {@code maxWaitNanos}.
+     *
+     * @return how long to wait before using the token, or -1 if none was taken
+     */
+    public long reserve(long maxWaitNanos) {
+        return reserve(maxWaitNanos, System.nanoTime());
+    }
+
+    long reserve(long maxWaitNanos, long now) {
+        Rate current = rate;
+        while (true) {
+            long full = fullAt.get();
+            long base = Math.max(full, now);
+            long wait = Math.max(0, base - current.toleranceNanos() - now);
+            if (wait > maxWaitNanos) {
+                return -1;
+            }
+            if (fullAt.compareAndSet(full, base + current.intervalNanos())) {
+                return wait;
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.ratelimit;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
+import com.h.udemy.java.uservices.infrastructure.mqtt.topic.TopicFilterTrie;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token-bucket limits per topic filter; all topics matching a filter share its bucket. A topic matching
+ * several filters is limited by the one added first. Limits can be added, changed and removed at runtime,
+ * without reconnecting; a topic with no limit costs one trie lookup.
+ */
+public class TopicRateLimiter {
+
+    public enum Outcome {
+        ADMITTED,
+        DROPPED,
+        REJECTED
+    }
+
+    private final TopicFilterTrie<Limit> limits = new TopicFilterTrie<>();
+    private final AtomicInteger order = new AtomicInteger();
+    private final long maxDelayNanos;
+
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder totalDelayNanos = new LongAdder();
+
+    public TopicRateLimiter(List<ApiMqttProperties.RateLimit> configs, long maxDelayMillis) {
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        configs.forEach(config -> setLimit(config.getTopics(), config.getMessagesPerSecond(), config.getBurst(),
+                config.getPolicy()));
+    }
+
+    // Adds a limit, or changes the rate, burst and policy of an existing one and keeps its tokens
+    public void setLimit(String topicFilter, double messagesPerSecond, int burst, RateLimitPolicy policy) {
+        Limit limit = limits.computeIfAbsent(topicFilter,
+                () -> new Limit(order.getAndIncrement(), new TokenBucket(messagesPerSecond, burst)));
+        limit.bucket.setRate(messagesPerSecond, burst);
+        limit.policy = policy != null ? policy : RateLimitPolicy.DELAY;
+    }
+
+    public void removeLimit(String topicFilter) {
+        limits.remove(topicFilter);
+    }
+
+    /**
+     * Takes a token for one message on {@code topic}; with {@link RateLimitPolicy#DELAY} this waits for it.
+     * A message that would wait longer than the maximum delay, or whose thread is interrupted, is dropped.
+     */
+    public Outcome acquire(String topic) {
+        return acquire(topic, true);
+    }
+
+    // With mayWait false, DELAY drops like DROP: for threads that must not sleep, such as Paho's callback thread
+    public Outcome acquire(String topic, boolean mayWait) {
+        if (limits.isEmpty()) {
+            return Outcome.ADMITTED;
+        }
+        Limit[] first = new Limit[1];
+        limits.match(topic, first, (limit, t, match) -> {
+            if (match[0] == null || limit.order < match[0].order) {
+                match[0] = limit;
+            }
+        });
+        Limit limit = first[0];
+        if (limit == null) {
+            return Outcome.ADMITTED;
+        }
+        RateLimitPolicy policy = limit.policy;
+        long wait = limit.bucket.reserve(policy == RateLimitPolicy.DELAY && mayWait ? maxDelayNanos : 0);
+        if (wait < 0) {
+            if (policy == RateLimitPolicy.REJECT) {
+                rejected.increment();
+                return Outcome.REJECTED;
+            }
+            dropped.increment();
+            return Outcome.DROPPED;
+        }
+        if (wait > 0) {
+            delayed.increment();
+            totalDelayNanos.add(wait);
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dropped.increment();
+                return Outcome.DROPPED;
+            }
+        }
+        return Outcome.ADMITTED;
+    }
+
+    // Messages that waited for a token
+    public long getDelayedCount() {
+        return delayed.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getTotalDelayNanos() {
+        return totalDelayNanos.sum();
+    }
+
+    private static final class Limit {
+        private final int order;
+        private final TokenBucket bucket;
+        private volatile RateLimitPolicy policy;
+
+        private Limit(int order, TokenBucket bucket) {
+            this.order = order;
+            this.bucket = bucket;
+        }
+    }
+}
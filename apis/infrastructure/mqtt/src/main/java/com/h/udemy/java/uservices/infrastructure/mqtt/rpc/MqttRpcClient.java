@@ -0,0 +1,209 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.rpc;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
+import com.h.udemy.java.uservices.infrastructure.mqtt.publisher.MqttPublisher;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttSubscriber;
+import com.h.udemy.java.uservices.infrastructure.mqtt.timer.HashedWheelTimer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request/response over MQTT v5: requests carry this client's response topic and a correlation id,
+ * and the responder replies to that topic with the same correlation data.
+ * <p>
+ * One subscription to the response topic serves every request. Pending requests are held in a concurrent
+ * map keyed by correlation id, and their timeouts run on a shared {@link HashedWheelTimer} rather than a
+ * thread or scheduled task each, so thousands of requests can be outstanding at once. Requests are only
+ * published once the broker has acknowledged that subscription, so no response can arrive before it.
+ */
+@Slf4j
+public class MqttRpcClient implements AutoCloseable {
+
+    private static final int CORRELATION_ID_BYTES = Long.BYTES;
+
+    private final MqttPublisher mqttPublisher;
+    private final MqttSubscriber mqttSubscriber;
+    private final String responseTopic;
+    private final Duration defaultTimeout;
+    private final HashedWheelTimer timer;
+    // Closed with this client only if it created the timer
+    private final boolean ownsTimer;
+
+    private final ConcurrentHashMap<Long, PendingRequest> pending = new ConcurrentHashMap<>();
+    private final AtomicLong correlationIds = new AtomicLong();
+    private final Object subscribeLock = new Object();
+    // Completes once the broker has acknowledged the response topic subscription
+    private volatile CompletableFuture<Void> subscription;
+
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder unmatched = new LongAdder();
+
+    /**
+     * @param responseTopic must be unique to this client, e.g. suffixed with the client id
+     * @param timer         runs the request timeouts; left open by {@link #close()}, as it may be shared
+     */
+    public MqttRpcClient(MqttPublisher mqttPublisher, MqttSubscriber mqttSubscriber, String responseTopic,
+                         Duration defaultTimeout, HashedWheelTimer timer) {
+        this(mqttPublisher, mqttSubscriber, responseTopic, defaultTimeout, timer, false);
+    }
+
+    // Runs the timeouts on a timer of its own, closed with the client
+    public MqttRpcClient(MqttPublisher mqttPublisher, MqttSubscriber mqttSubscriber, String responseTopic,
+                         ApiMqttProperties.Rpc config) {
+        this(mqttPublisher, mqttSubscriber, responseTopic, Duration.ofMillis(config.getTimeoutMillis()),
+                new HashedWheelTimer("mqtt-rpc-timeouts", config.getTickMillis(), TimeUnit.MILLISECONDS,
+                        config.getWheelSize()), true);
+    }
+
+    private MqttRpcClient(MqttPublisher mqttPublisher, MqttSubscriber mqttSubscriber, String responseTopic,
+                          Duration defaultTimeout, HashedWheelTimer timer, boolean ownsTimer) {
+        this.mqttPublisher = mqttPublisher;
+        this.mqttSubscriber = mqttSubscriber;
+        this.responseTopic = responseTopic;
+        this.defaultTimeout = defaultTimeout;
+        this.timer = timer;
+        this.ownsTimer = ownsTimer;
+    }
+
+    public CompletableFuture<MqttSubscriber.MqttV5Message> request(String topic, Object message) {
+        return request(topic, message, defaultTimeout);
+    }
+
+    /**
+     * Publishes a request and completes with the response, or exceptionally with a {@link TimeoutException}
+     * when none arrives in time. Completion (including of dependent stages) may run on the MQTT callback or
+     * timer thread, so use the async variants of the future's methods for anything slow.
+     */
+    public CompletableFuture<MqttSubscriber.MqttV5Message> request(String topic, Object message, Duration timeout) {
+        CompletableFuture<Void> subscribed = ensureSubscribed();
+        long correlationId = correlationIds.incrementAndGet();
+        PendingRequest request = new PendingRequest(topic);
+        pending.put(correlationId, request);
+        // Whatever completes the request (response, timeout, publish failure or the caller) releases it
+        request.whenComplete((response, failure) -> {
+            pending.remove(correlationId, request);
+            HashedWheelTimer.Timeout scheduled = request.timeout;
+            if (scheduled != null) {
+                scheduled.cancel();
+            }
+        });
+        request.timeout = timer.schedule(() -> expire(request, timeout), timeout.toNanos(), TimeUnit.NANOSECONDS);
+
+        // Only the first requests wait for the subscription; later ones find it complete
+        subscribed.thenCompose(ignored -> request.isDone() ? CompletableFuture.completedFuture(null)
+                        : mqttPublisher.publishWithResponseAsync(topic, message, responseTopic,
+                        correlationData(correlationId)))
+                .whenComplete((sent, failure) -> {
+                    if (failure != null) {
+                        request.completeExceptionally(failure);
+                    }
+                });
+        return request;
+    }
+
+    // Replies to a request received by a responder, on its response topic and with its correlation data
+    public CompletableFuture<Void> reply(MqttSubscriber.MqttV5Message request, Object response) {
+        String replyTopic = request.getResponseTopic();
+        if (replyTopic == null) {
+            return CompletableFuture.failedFuture(
+                    new IllegalArgumentException("MQTT request has no response topic to reply to"));
+        }
+        return mqttPublisher.publishWithResponseAsync(replyTopic, response, null, request.getCorrelationData());
+    }
+
+    public String getResponseTopic() {
+        return responseTopic;
+    }
+
+    public int getPendingRequestCount() {
+        return pending.size();
+    }
+
+    public long getTimedOutCount() {
+        return timedOut.sum();
+    }
+
+    // Responses that matched no pending request, typically ones arriving after their timeout
+    public long getUnmatchedResponseCount() {
+        return unmatched.sum();
+    }
+
+    @Override
+    public void close() {
+        if (ownsTimer) {
+            timer.close();
+        }
+        pending.values().forEach(request -> request.completeExceptionally(
+                new IllegalStateException("MQTT RPC client closed")));
+    }
+
+    private CompletableFuture<Void> ensureSubscribed() {
+        CompletableFuture<Void> current = subscription;
+        if (current != null && !current.isCompletedExceptionally()) {
+            return current;
+        }
+        synchronized (subscribeLock) {
+            if (subscription == null) {
+                try {
+                    mqttSubscriber.subscribeV5(responseTopic, this::onResponse);
+                } catch (RuntimeException e) {
+                    // The handler is registered even so; a later request only subscribes again
+                    subscription = CompletableFuture.failedFuture(e);
+                    return subscription;
+                }
+            } else if (subscription.isCompletedExceptionally()) {
+                try {
+                    mqttSubscriber.subscribe(responseTopic);
+                } catch (RuntimeException e) {
+                    subscription = CompletableFuture.failedFuture(e);
+                    return subscription;
+                }
+            } else {
+                return subscription;
+            }
+            subscription = mqttSubscriber.subscribed(responseTopic);
+            return subscription;
+        }
+    }
+
+    private void onResponse(MqttSubscriber.MqttV5Message response) {
+        byte[] correlationData = response.getCorrelationData();
+        PendingRequest request = correlationData != null && correlationData.length == CORRELATION_ID_BYTES
+                ? pending.remove(ByteBuffer.wrap(correlationData).getLong())
+                : null;
+        if (request == null) {
+            unmatched.increment();
+            log.debug("Discarding MQTT response on '{}' that matches no pending request", responseTopic);
+            return;
+        }
+        request.complete(response);
+    }
+
+    private void expire(PendingRequest request, Duration timeout) {
+        if (request.completeExceptionally(new TimeoutException(
+                "No MQTT response to request on '" + request.topic + "' within " + timeout.toMillis() + " ms"))) {
+            timedOut.increment();
+        }
+    }
+
+    private static byte[] correlationData(long correlationId) {
+        return ByteBuffer.allocate(CORRELATION_ID_BYTES).putLong(correlationId).array();
+    }
+
+    private static final class PendingRequest extends CompletableFuture<MqttSubscriber.MqttV5Message> {
+        private final String topic;
+        private volatile HashedWheelTimer.Timeout timeout;
+
+        private PendingRequest(String topic) {
+            this.topic = topic;
+        }
+    }
+}
@@ -1,12 +1,19 @@
 package com.h.udemy.java.uservices.infrastructure.mqtt.service;
 
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
 import com.h.udemy.java.uservices.infrastructure.mqtt.publisher.MqttPublisher;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.AcknowledgingMessageHandler;
 import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttSubscriber;
+import com.h.udemy.java.uservices.infrastructure.mqtt.topic.SharedSubscription;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 @Slf4j
@@ -16,6 +23,7 @@ public class MqttService {
 
     private final MqttPublisher mqttPublisher;
     private final MqttSubscriber mqttSubscriber;
+    private final ApiMqttProperties mqttProperties;
 
     public void publish(String topic, Object message) {
         mqttPublisher.publish(topic, message);
@@ -34,6 +42,36 @@ public class MqttService {
         mqttPublisher.publish(topic, message, qos, retained, userProperties, contentType);
     }
 
+    public CompletableFuture<Void> publishAsync(String topic, Object message) {
+        return mqttPublisher.publishAsync(topic, message);
+    }
+
+    public CompletableFuture<Void> publishAsync(String topic, String message) {
+        return mqttPublisher.publishAsync(topic, message);
+    }
+
+    public CompletableFuture<Void> publishAsync(String topic, Object message, int qos, boolean retained) {
+        return mqttPublisher.publishAsync(topic, message, qos, retained);
+    }
+
+    public CompletableFuture<Void> publishAsync(String topic, Object message, int qos, boolean retained,
+                                                Map<String, String> userProperties, String contentType) {
+        return mqttPublisher.publishAsync(topic, message, qos, retained, userProperties, contentType);
+    }
+
+    public CompletableFuture<Void> publishBytesAsync(String topic, byte[] payload, int qos, boolean retained,
+                                                     String contentType) {
+        return mqttPublisher.publishBytesAsync(topic, payload, qos, retained, contentType);
+    }
+
+    public CompletableFuture<Void> publishAll(String topic, Collection<?> messages) {
+        return mqttPublisher.publishAll(topic, messages);
+    }
+
+    public CompletableFuture<Void> publishAll(String topic, Collection<?> messages, int qos, boolean retained) {
+        return mqttPublisher.publishAll(topic, messages, qos, retained);
+    }
+
     public void publishWithResponse(String topic, Object message, String responseTopic, 
                                   byte[] correlationData) {
         mqttPublisher.publishWithResponse(topic, message, responseTopic, correlationData);
@@ -55,14 +93,72 @@ public class MqttService {
         mqttSubscriber.subscribeRaw(topic, messageHandler);
     }
 
+    public void subscribeBytes(String topic, Consumer<byte[]> messageHandler) {
+        mqttSubscriber.subscribeBytes(topic, messageHandler);
+    }
+
+    public void subscribeBuffer(String topic, Consumer<ByteBuffer> messageHandler) {
+        mqttSubscriber.subscribeBuffer(topic, messageHandler);
+    }
+
     public void subscribeV5(String topic, Consumer<MqttSubscriber.MqttV5Message> messageHandler) {
         mqttSubscriber.subscribeV5(topic, messageHandler);
     }
 
+    public void subscribeAcknowledged(String topic, AcknowledgingMessageHandler messageHandler) {
+        mqttSubscriber.subscribeAcknowledged(topic, messageHandler);
+    }
+
+    public void subscribeAcknowledged(String topic, AcknowledgingMessageHandler messageHandler, int qos) {
+        mqttSubscriber.subscribeAcknowledged(topic, messageHandler, qos);
+    }
+
+    // Conflated subscriptions: a busy handler receives only the latest message of each topic
+
+    public void subscribeConflated(String topic, BiConsumer<String, MqttSubscriber.MqttV5Message> messageHandler) {
+        mqttSubscriber.subscribeConflated(topic, messageHandler);
+    }
+
+    public <T> void subscribeConflated(String topic, Class<T> messageType, Consumer<T> messageHandler) {
+        mqttSubscriber.subscribeConflated(topic, messageType, messageHandler);
+    }
+
     public void unsubscribe(String topic) {
         mqttSubscriber.unsubscribe(topic);
     }
 
+    // Shared subscriptions: each message goes to one of the instances subscribed with the same group
+
+    public void subscribeShared(String topic, Consumer<String> messageHandler) {
+        mqttSubscriber.subscribe(sharedTopic(topic), messageHandler);
+    }
+
+    public <T> void subscribeShared(String topic, Class<T> messageType, Consumer<T> messageHandler) {
+        mqttSubscriber.subscribe(sharedTopic(topic), messageType, messageHandler);
+    }
+
+    public void subscribeSharedV5(String topic, Consumer<MqttSubscriber.MqttV5Message> messageHandler) {
+        mqttSubscriber.subscribeV5(sharedTopic(topic), messageHandler);
+    }
+
+    public void subscribeSharedAcknowledged(String topic, AcknowledgingMessageHandler messageHandler) {
+        mqttSubscriber.subscribeAcknowledged(sharedTopic(topic), messageHandler);
+    }
+
+    public void unsubscribeShared(String topic) {
+        mqttSubscriber.unsubscribe(sharedTopic(topic));
+    }
+
+    // "$share/<group>/<topic>" with the group configured for the topic, else the default group
+    public String sharedTopic(String topic) {
+        ApiMqttProperties.SharedSubscriptions shared = mqttProperties.getSharedSubscriptions();
+        String group = shared.getGroups().getOrDefault(topic, shared.getGroup());
+        if (group == null || group.isBlank()) {
+            throw new IllegalStateException("No MQTT share group configured for topic: " + topic);
+        }
+        return SharedSubscription.filter(group, topic);
+    }
+
     public boolean isConnected() {
         return mqttPublisher.isConnected() && mqttSubscriber.isConnected();
     }
@@ -0,0 +1,17 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.shadow;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Snapshot of one device's shadow: the state it last reported, the state services want it in, and
+ * the difference between the two. Snapshots are copies; changing them does not change the store.
+ *
+ * @param version incremented by every update, reported or desired
+ */
+public record DeviceShadow(String deviceId, long version, ObjectNode reported, ObjectNode desired, long updatedAt) {
+
+    // Desired fields whose value the device has not reported yet
+    public ObjectNode delta() {
+        return ShadowDocuments.delta(desired, reported, desired);
+    }
+}
@@ -0,0 +1,181 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.shadow;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.h.udemy.java.uservices.infrastructure.mqtt.codec.JacksonPayloadCodec;
+import com.h.udemy.java.uservices.infrastructure.mqtt.service.MqttService;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttAcknowledgement;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttSubscriber;
+import com.h.udemy.java.uservices.infrastructure.mqtt.topic.TopicFilterTrie;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Device shadows over MQTT, on topics under a prefix:
+ * <ul>
+ *   <li>{@code <prefix>/<deviceId>/reported}: devices publish partial updates of their state</li>
+ *   <li>{@code <prefix>/<deviceId>/desired}: services publish partial updates of the wanted state
+ *   (or call {@link #updateDesired})</li>
+ *   <li>{@code <prefix>/<deviceId>/delta}: the desired fields an update touched that the device has not
+ *   reported yet, and nothing else</li>
+ * </ul>
+ * Updates are JSON merge patches: only changed fields travel, and {@code null} removes a field.
+ * <p>
+ * Updates of a device may run concurrently, e.g. its reported and desired topics under striped dispatch.
+ * Each queues its delta on the device in version order while the store holds the device, and one thread
+ * at a time publishes a device's queued deltas afterwards, so devices receive deltas in version order
+ * without a publish ever running inside the store's update.
+ */
+@Slf4j
+public class DeviceShadowService {
+
+    private static final String REPORTED = "reported";
+    private static final String DESIRED = "desired";
+    private static final String DELTA = "delta";
+
+    private final MqttService mqttService;
+    private final DeviceShadowStore store;
+    private final String topicPrefix;
+    private final int qos;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    // Devices with deltas queued or being published
+    private final Map<String, Outbox> outboxes = new ConcurrentHashMap<>();
+
+    public DeviceShadowService(MqttService mqttService, DeviceShadowStore store, String topicPrefix, int qos) {
+        this.mqttService = mqttService;
+        this.store = store;
+        this.topicPrefix = topicPrefix;
+        this.qos = qos;
+    }
+
+    public void start() {
+        mqttService.subscribeAcknowledged(topicPrefix + "/+/" + REPORTED, this::onUpdate, qos);
+        mqttService.subscribeAcknowledged(topicPrefix + "/+/" + DESIRED, this::onUpdate, qos);
+        log.info("Device shadows active under '{}/+'", topicPrefix);
+    }
+
+    // Latest known shadow without waiting for the device; null if nothing was reported or desired yet
+    public DeviceShadow getShadow(String deviceId) {
+        return store.get(deviceId);
+    }
+
+    public ObjectNode getReported(String deviceId) {
+        return store.getReported(deviceId);
+    }
+
+    public CompletableFuture<Void> updateDesired(String deviceId, ObjectNode update) {
+        CompletableFuture<Void> published = new CompletableFuture<>();
+        store.updateDesired(deviceId, update, delta -> queue(delta, published));
+        drain(deviceId);
+        return published;
+    }
+
+    public DeviceShadowStore getStore() {
+        return store;
+    }
+
+    private void onUpdate(String topic, MqttSubscriber.MqttV5Message message, MqttAcknowledgement acknowledgement) {
+        try {
+            // <prefix>/<deviceId>/<kind>
+            int kindStart = topic.lastIndexOf(TopicFilterTrie.LEVEL_SEPARATOR);
+            String deviceId = topic.substring(topicPrefix.length() + 1, kindStart);
+            JsonNode update = objectMapper.readTree(message.getPayload());
+            if (!(update instanceof ObjectNode document)) {
+                log.warn("Ignoring device shadow update on '{}' that is not a JSON object", topic);
+                return;
+            }
+            CompletableFuture<Void> published = new CompletableFuture<>();
+            if (topic.startsWith(REPORTED, kindStart + 1)) {
+                store.updateReported(deviceId, document, delta -> queue(delta, published));
+            } else {
+                store.updateDesired(deviceId, document, delta -> queue(delta, published));
+            }
+            drain(deviceId);
+        } catch (Exception e) {
+            log.error("Failed to apply device shadow update on '{}': {}", topic, e.getMessage(), e);
+        } finally {
+            acknowledgement.acknowledge();
+        }
+    }
+
+    // Runs within the store's update of the device, so deltas are queued in version order
+    private void queue(ShadowDelta delta, CompletableFuture<Void> published) {
+        if (delta.isEmpty()) {
+            published.complete(null);
+            return;
+        }
+        while (true) {
+            Outbox outbox = outboxes.computeIfAbsent(delta.deviceId(), id -> new Outbox());
+            synchronized (outbox) {
+                // A retired outbox was drained and removed; the next call creates a new one
+                if (!outbox.retired) {
+                    outbox.deltas.addLast(new QueuedDelta(delta, published));
+                    return;
+                }
+            }
+        }
+    }
+
+    // Publishes the device's queued deltas in order; returns at once if another thread is already
+    // publishing them, which then also publishes the deltas queued meanwhile
+    private void drain(String deviceId) {
+        Outbox outbox = outboxes.get(deviceId);
+        if (outbox == null) {
+            return;
+        }
+        synchronized (outbox) {
+            if (outbox.draining || outbox.retired) {
+                return;
+            }
+            outbox.draining = true;
+        }
+        while (true) {
+            QueuedDelta next;
+            synchronized (outbox) {
+                next = outbox.deltas.pollFirst();
+                if (next == null) {
+                    outbox.retired = true;
+                    outboxes.remove(deviceId, outbox);
+                    return;
+                }
+            }
+            try {
+                publishDelta(next.delta()).whenComplete((ignored, e) -> {
+                    if (e == null) {
+                        next.published().complete(null);
+                    } else {
+                        next.published().completeExceptionally(e);
+                    }
+                });
+            } catch (RuntimeException e) {
+                // FAIL_FAST rejects a full outbound buffer synchronously
+                next.published().completeExceptionally(e);
+            }
+        }
+    }
+
+    private CompletableFuture<Void> publishDelta(ShadowDelta delta) {
+        ObjectNode message = JsonNodeFactory.instance.objectNode();
+        message.put("version", delta.version());
+        message.set("state", delta.state());
+        // Devices parse JSON whatever the service-side default codec is
+        return mqttService.publishAsync(topicPrefix + "/" + delta.deviceId() + "/" + DELTA, message,
+                qos, false, null, JacksonPayloadCodec.JSON);
+    }
+
+    private record QueuedDelta(ShadowDelta delta, CompletableFuture<Void> published) {
+    }
+
+    private static final class Outbox {
+        // Guarded by the outbox's monitor
+        private final ArrayDeque<QueuedDelta> deltas = new ArrayDeque<>();
+        private boolean draining;
+        private boolean retired;
+    }
+}
@@ -0,0 +1,108 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.shadow;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.h.udemy.java.uservices.infrastructure.mqtt.shadow.exception.DeviceShadowException;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Current state of every device, merged from partial updates.
+ * <p>
+ * Each device has a reported document (what the device last said) and a desired document (what services
+ * asked for), both updated with JSON merge patches. Documents are kept CBOR-encoded, a fraction of the
+ * memory of a Jackson tree, and decoded on read; a read is one map lookup. Updates to one device are
+ * serialized, updates to different devices run in parallel.
+ */
+public class DeviceShadowStore {
+
+    private record Entry(long version, byte[] reported, byte[] desired, long updatedAt) {
+    }
+
+    private static final byte[] EMPTY_DOCUMENT = encode(new CBORMapper(), JsonNodeFactory.instance.objectNode());
+
+    private final ObjectMapper cbor = new CBORMapper();
+    private final Map<String, Entry> shadows = new ConcurrentHashMap<>();
+
+    public ShadowDelta updateReported(String deviceId, ObjectNode update) {
+        return update(deviceId, update, true, delta -> { });
+    }
+
+    public ShadowDelta updateDesired(String deviceId, ObjectNode update) {
+        return update(deviceId, update, false, delta -> { });
+    }
+
+    // inOrder sees the device's deltas in version order: it runs within the update, so it must not block
+    public ShadowDelta updateReported(String deviceId, ObjectNode update, Consumer<ShadowDelta> inOrder) {
+        return update(deviceId, update, true, inOrder);
+    }
+
+    public ShadowDelta updateDesired(String deviceId, ObjectNode update, Consumer<ShadowDelta> inOrder) {
+        return update(deviceId, update, false, inOrder);
+    }
+
+    // Null for devices never seen
+    public DeviceShadow get(String deviceId) {
+        Entry entry = shadows.get(deviceId);
+        return entry == null ? null
+                : new DeviceShadow(deviceId, entry.version(), decode(entry.reported()), decode(entry.desired()),
+                entry.updatedAt());
+    }
+
+    public ObjectNode getReported(String deviceId) {
+        Entry entry = shadows.get(deviceId);
+        return entry == null ? null : decode(entry.reported());
+    }
+
+    public boolean remove(String deviceId) {
+        return shadows.remove(deviceId) != null;
+    }
+
+    public int size() {
+        return shadows.size();
+    }
+
+    private ShadowDelta update(String deviceId, ObjectNode update, boolean reportedUpdate,
+                               Consumer<ShadowDelta> inOrder) {
+        ShadowDelta[] delta = new ShadowDelta[1];
+        shadows.compute(deviceId, (id, entry) -> {
+            byte[] reportedDocument = entry == null ? EMPTY_DOCUMENT : entry.reported();
+            byte[] desiredDocument = entry == null ? EMPTY_DOCUMENT : entry.desired();
+            ObjectNode reported = decode(reportedDocument);
+            ObjectNode desired = decode(desiredDocument);
+            if (reportedUpdate) {
+                ShadowDocuments.merge(reported, update);
+                reportedDocument = encode(cbor, reported);
+            } else {
+                ShadowDocuments.merge(desired, update);
+                desiredDocument = encode(cbor, desired);
+            }
+            long version = entry == null ? 1 : entry.version() + 1;
+            delta[0] = new ShadowDelta(id, version, ShadowDocuments.delta(desired, reported, update));
+            inOrder.accept(delta[0]);
+            return new Entry(version, reportedDocument, desiredDocument, System.currentTimeMillis());
+        });
+        return delta[0];
+    }
+
+    private ObjectNode decode(byte[] document) {
+        try {
+            return (ObjectNode) cbor.readTree(document);
+        } catch (IOException e) {
+            throw new DeviceShadowException("Corrupt device shadow document", e);
+        }
+    }
+
+    private static byte[] encode(ObjectMapper cbor, ObjectNode document) {
+        try {
+            return cbor.writeValueAsBytes(document);
+        } catch (IOException e) {
+            throw new DeviceShadowException("Failed to encode device shadow document", e);
+        }
+    }
+}
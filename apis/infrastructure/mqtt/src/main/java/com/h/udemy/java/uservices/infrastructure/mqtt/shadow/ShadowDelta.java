@@ -0,0 +1,14 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.shadow;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * What an update left for the device to change: the desired fields it touched that differ from the
+ * reported state. Published to the device as {@code {"version": ..., "state": {...}}}.
+ */
+public record ShadowDelta(String deviceId, long version, ObjectNode state) {
+
+    public boolean isEmpty() {
+        return state.isEmpty();
+    }
+}
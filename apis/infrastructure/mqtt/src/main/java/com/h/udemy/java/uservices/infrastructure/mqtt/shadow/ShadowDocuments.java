@@ -0,0 +1,56 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.shadow;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Iterator;
+import java.util.Map;
+
+// JSON merge patch (RFC 7386) and delta computation on shadow documents
+final class ShadowDocuments {
+
+    private ShadowDocuments() {
+    }
+
+    // Applies a partial update in place: fields set to null are removed, nested objects are merged
+    static void merge(ObjectNode target, ObjectNode patch) {
+        Iterator<Map.Entry<String, JsonNode>> fields = patch.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            JsonNode value = field.getValue();
+            JsonNode current = target.get(field.getKey());
+            if (value.isNull()) {
+                target.remove(field.getKey());
+            } else if (value.isObject() && current != null && current.isObject()) {
+                merge((ObjectNode) current, (ObjectNode) value);
+            } else {
+                target.set(field.getKey(), value.deepCopy());
+            }
+        }
+    }
+
+    // The desired fields among those touched by an update whose value differs from the reported one
+    static ObjectNode delta(ObjectNode desired, ObjectNode reported, ObjectNode touched) {
+        ObjectNode delta = JsonNodeFactory.instance.objectNode();
+        Iterator<Map.Entry<String, JsonNode>> fields = touched.fields();
+        while (fields.hasNext()) {
+            String name = fields.next().getKey();
+            JsonNode wanted = desired.get(name);
+            if (wanted == null) {
+                continue;
+            }
+            JsonNode actual = reported.get(name);
+            JsonNode touchedValue = touched.get(name);
+            if (wanted.isObject() && actual != null && actual.isObject() && touchedValue.isObject()) {
+                ObjectNode nested = delta((ObjectNode) wanted, (ObjectNode) actual, (ObjectNode) touchedValue);
+                if (!nested.isEmpty()) {
+                    delta.set(name, nested);
+                }
+            } else if (!wanted.equals(actual)) {
+                delta.set(name, wanted.deepCopy());
+            }
+        }
+        return delta;
+    }
+}
@@ -0,0 +1,12 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.shadow.exception;
+
+public class DeviceShadowException extends RuntimeException {
+
+    public DeviceShadowException(String message) {
+        super(message);
+    }
+
+    public DeviceShadowException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
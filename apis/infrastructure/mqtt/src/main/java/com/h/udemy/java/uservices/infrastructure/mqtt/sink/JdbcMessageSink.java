@@ -0,0 +1,238 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.sink;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
+import com.h.udemy.java.uservices.infrastructure.mqtt.service.MqttService;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttAcknowledgement;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttSubscriber;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Writes received messages to a database table in batches instead of one statement per message.
+ * <p>
+ * Messages are buffered and written in one transaction when {@code batchSize} of them are waiting or
+ * {@code lingerMillis} after the first one arrived, either as a JDBC batch insert or with PostgreSQL
+ * {@code COPY}. With {@code mqtt.manual-acks} each message is acknowledged only after the transaction
+ * that wrote it commits, so a crash or a failed write leaves it unacknowledged and the broker redelivers
+ * it. A failed batch is retried after {@code retryMillis}; while it is, the broker stops sending once
+ * receive-maximum messages are unacknowledged. Without manual acks Paho acknowledges messages on
+ * arrival, so nothing holds the broker back: at most {@code maxBuffered} messages are kept, later ones
+ * are dropped, and a crash loses what was not written. Writes run on their own thread, never on Paho's
+ * callback thread.
+ * <p>
+ * The table needs the columns {@code topic} (text), {@code received_at} (timestamptz) and
+ * {@code payload} (bytea).
+ */
+@Slf4j
+public class JdbcMessageSink implements AutoCloseable {
+
+    record Pending(String topic, long receivedAt, byte[] payload, MqttAcknowledgement acknowledgement) {
+    }
+
+    private static final Pattern TABLE_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z_][A-Za-z0-9_]*)?");
+
+    private final MqttService mqttService;
+    private final DataSource dataSource;
+    private final List<String> topics;
+    private final int qos;
+    private final String table;
+    private final JdbcSinkMode mode;
+    private final int batchSize;
+    private final long lingerMillis;
+    private final long retryMillis;
+    private final boolean manualAcks;
+    private final int maxBuffered;
+    private final String insertSql;
+    private final ScheduledExecutorService writer;
+
+    private final Object lock = new Object();
+    private List<Pending> buffer = new ArrayList<>();
+    private boolean retrying;
+    // Buffered or being written; only bounded by maxBuffered without manual acks
+    private int held;
+    private boolean overflowing;
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder failedBatches = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    public JdbcMessageSink(MqttService mqttService, DataSource dataSource, ApiMqttProperties.JdbcSink config,
+                           boolean manualAcks) {
+        if (!TABLE_NAME.matcher(config.getTable()).matches()) {
+            throw new IllegalArgumentException("Invalid JDBC sink table name: " + config.getTable());
+        }
+        this.mqttService = mqttService;
+        this.dataSource = dataSource;
+        this.topics = config.getTopics();
+        this.qos = config.getQos();
+        this.table = config.getTable();
+        this.mode = config.getMode();
+        this.batchSize = config.getBatchSize();
+        this.lingerMillis = config.getLingerMillis();
+        this.retryMillis = config.getRetryMillis();
+        this.manualAcks = manualAcks;
+        this.maxBuffered = config.getMaxBuffered();
+        this.insertSql = "INSERT INTO " + table + " (topic, received_at, payload) VALUES (?, ?, ?)";
+        this.writer = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("mqtt-jdbc-sink").daemon(true).factory());
+    }
+
+    public void start() {
+        if (!manualAcks) {
+            log.warn("JDBC sink is not at-least-once: messages are acknowledged before they are written and lost "
+                    + "on a crash, and dropped beyond {} while the database is down; enable mqtt.manual-acks",
+                    maxBuffered);
+        }
+        for (String topic : topics) {
+            mqttService.subscribeAcknowledged(topic, this::onMessage, qos);
+        }
+        log.info("Writing {} to table {} in batches of {} ({})", topics, table, batchSize, mode);
+    }
+
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    public long getBatchCount() {
+        return batches.sum();
+    }
+
+    public long getFailedBatchCount() {
+        return failedBatches.sum();
+    }
+
+    // Messages dropped because maxBuffered were waiting; only without manual acks
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    // Writes what is buffered, then stops; anything not committed by then is redelivered by the broker
+    @Override
+    public void close() {
+        writer.execute(this::flush);
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(5, TimeUnit.SECONDS)) {
+                writer.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writer.shutdownNow();
+        }
+    }
+
+    private void onMessage(String topic, MqttSubscriber.MqttV5Message message, MqttAcknowledgement acknowledgement) {
+        int size = 0;
+        boolean waiting = false;
+        boolean drop;
+        synchronized (lock) {
+            drop = !manualAcks && held >= maxBuffered;
+            if (drop && !overflowing) {
+                log.warn("JDBC sink holds {} unwritten messages, dropping new ones until {} accepts writes",
+                        held, table);
+            }
+            overflowing = drop;
+            if (!drop) {
+                held++;
+                buffer.add(new Pending(topic, System.currentTimeMillis(), message.getPayload(), acknowledgement));
+                size = buffer.size();
+                waiting = retrying;
+            }
+        }
+        if (drop) {
+            dropped.increment();
+            acknowledgement.acknowledge();
+            return;
+        }
+        if (waiting) {
+            return;
+        }
+        if (size == batchSize) {
+            writer.execute(this::flush);
+        } else if (size == 1) {
+            writer.schedule(this::flush, lingerMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Only ever runs on the writer thread; a flush that finds the buffer empty is a stale linger timer
+    private void flush() {
+        List<Pending> batch;
+        synchronized (lock) {
+            if (buffer.isEmpty()) {
+                return;
+            }
+            batch = buffer;
+            buffer = new ArrayList<>(batchSize);
+            retrying = false;
+        }
+        try {
+            write(batch);
+        } catch (SQLException | RuntimeException e) {
+            failedBatches.increment();
+            log.error("Failed to write {} MQTT message(s) to {}, retrying in {} ms: {}", batch.size(), table,
+                    retryMillis, e.getMessage(), e);
+            synchronized (lock) {
+                batch.addAll(buffer);
+                buffer = batch;
+                retrying = true;
+            }
+            if (!writer.isShutdown()) {
+                writer.schedule(this::flush, retryMillis, TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+        synchronized (lock) {
+            held -= batch.size();
+        }
+        for (Pending message : batch) {
+            message.acknowledgement().acknowledge();
+        }
+        written.add(batch.size());
+        batches.increment();
+    }
+
+    private void write(List<Pending> batch) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                if (mode == JdbcSinkMode.COPY) {
+                    PostgresCopyWriter.copy(connection, table, batch);
+                } else {
+                    insert(connection, batch);
+                }
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    private void insert(Connection connection, List<Pending> batch) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(insertSql)) {
+            for (Pending message : batch) {
+                statement.setString(1, message.topic());
+                statement.setTimestamp(2, new Timestamp(message.receivedAt()));
+                statement.setBytes(3, message.payload());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.sink;
+
+public enum JdbcSinkMode {
+    // One JDBC batch of INSERTs per flush; works with any driver
+    INSERT,
+    // PostgreSQL COPY FROM STDIN; needs the PostgreSQL driver
+    COPY
+}
@@ -0,0 +1,58 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.sink;
+
+import org.postgresql.PGConnection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.List;
+
+// Kept apart from JdbcMessageSink so the PostgreSQL driver is only loaded in COPY mode
+final class PostgresCopyWriter {
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    private PostgresCopyWriter() {
+    }
+
+    static void copy(Connection connection, String table, List<JdbcMessageSink.Pending> batch)
+            throws SQLException {
+        // COPY text format: tab-separated columns, backslash escapes, bytea as \\x<hex>
+        ByteArrayOutputStream rows = new ByteArrayOutputStream(batch.size() * 128);
+        StringBuilder row = new StringBuilder(256);
+        for (JdbcMessageSink.Pending message : batch) {
+            row.setLength(0);
+            escape(message.topic(), row);
+            row.append('\t').append(Instant.ofEpochMilli(message.receivedAt()));
+            row.append("\t\\\\x");
+            HEX.formatHex(row, message.payload());
+            row.append('\n');
+            rows.writeBytes(row.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        try {
+            connection.unwrap(PGConnection.class).getCopyAPI().copyIn(
+                    "COPY " + table + " (topic, received_at, payload) FROM STDIN",
+                    new ByteArrayInputStream(rows.toByteArray()));
+        } catch (IOException e) {
+            throw new SQLException("COPY into " + table + " failed", e);
+        }
+    }
+
+    private static void escape(String value, StringBuilder row) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> row.append("\\\\");
+                case '\t' -> row.append("\\t");
+                case '\n' -> row.append("\\n");
+                case '\r' -> row.append("\\r");
+                default -> row.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.subscriber;
+
+// Handler that decides when its message may be acknowledged to the broker, e.g. after forwarding it elsewhere
+@FunctionalInterface
+public interface AcknowledgingMessageHandler {
+
+    // A handler that throws is treated as having acknowledged, since a redelivery would fail the same way
+    void onMessage(String topic, MqttSubscriber.MqttV5Message message, MqttAcknowledgement acknowledgement);
+}
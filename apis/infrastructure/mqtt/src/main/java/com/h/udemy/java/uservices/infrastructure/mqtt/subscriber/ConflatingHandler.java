@@ -0,0 +1,100 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.subscriber;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+// Hands a slow handler only the newest message of each topic: messages arriving while the handler is busy with
+// a topic replace each other, and the one left is handled next. Runs the handler on its own executor so dispatch
+// never waits for it. With manual acks a replaced message is acknowledged when it is dropped, the handled one
+// once the handler returns. A topic's slot is removed once its drain finds nothing left.
+@Slf4j
+final class ConflatingHandler implements AcknowledgingMessageHandler {
+
+    private record Latest(MqttSubscriber.MqttV5Message message, MqttAcknowledgement acknowledgement) {
+    }
+
+    private final BiConsumer<String, MqttSubscriber.MqttV5Message> handler;
+    private final Executor executor;
+    // Per concrete topic, so a wildcard subscription keeps the latest value of every matching topic
+    private final Map<String, Slot> slots = new ConcurrentHashMap<>();
+    private final LongAdder conflated;
+
+    ConflatingHandler(BiConsumer<String, MqttSubscriber.MqttV5Message> handler, Executor executor, LongAdder conflated) {
+        this.handler = handler;
+        this.executor = executor;
+        this.conflated = conflated;
+    }
+
+    @Override
+    public void onMessage(String topic, MqttSubscriber.MqttV5Message message, MqttAcknowledgement acknowledgement) {
+        Latest next = new Latest(message, acknowledgement);
+        // A slot retired in the meantime is replaced by a fresh one
+        while (!slots.computeIfAbsent(topic, Slot::new).offer(next)) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private final class Slot {
+        private final String topic;
+        private final AtomicReference<Latest> latest = new AtomicReference<>();
+        // At most one drain per topic, so the handler sees a topic's values in order
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // Set once removed from slots; messages then go to the topic's next slot
+        private boolean retired;
+
+        private Slot(String topic) {
+            this.topic = topic;
+        }
+
+        // False if the slot was retired and the message not taken
+        private boolean offer(Latest next) {
+            Latest replaced;
+            synchronized (this) {
+                if (retired) {
+                    return false;
+                }
+                replaced = latest.getAndSet(next);
+            }
+            if (replaced != null) {
+                conflated.increment();
+                replaced.acknowledgement().acknowledge();
+            }
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+            return true;
+        }
+
+        private void drain() {
+            while (true) {
+                Latest next = latest.getAndSet(null);
+                if (next == null) {
+                    // Under the lock, so no message can be offered after the check; the next slot's drain starts
+                    // only after this one has handled its last message
+                    synchronized (this) {
+                        if (latest.get() == null) {
+                            retired = true;
+                            slots.remove(topic, this);
+                            return;
+                        }
+                    }
+                    continue;
+                }
+                try {
+                    handler.accept(topic, next.message());
+                } catch (Exception e) {
+                    log.error("Error processing conflated message for topic '{}': {}", topic, e.getMessage(), e);
+                } finally {
+                    next.acknowledgement().acknowledge();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.subscriber;
+
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One received message shared by every matching handler; each representation is built at most once
+@Slf4j
+final class InboundMessage {
+
+    private final String topic;
+    private final MqttMessage message;
+    private final int shard;
+    // Client to acknowledge through once every hold is released; null when Paho acknowledges itself
+    private final MqttAsyncClient ackClient;
+    // Dispatch holds one reference, each acknowledging handler another
+    private final AtomicInteger holds = new AtomicInteger(1);
+    // The envelope a message was unpacked from; its holds stand for the whole envelope
+    private final InboundMessage envelope;
+    private String text;
+    private MqttSubscriber.MqttV5Message v5Message;
+    // Runs once the message is acknowledged; not for messages discarded before reaching the handlers
+    private volatile Runnable onAcknowledged;
+
+    InboundMessage(String topic, MqttMessage message, int shard) {
+        this(topic, message, shard, null);
+    }
+
+    InboundMessage(String topic, MqttMessage message, int shard, MqttAsyncClient ackClient) {
+        this(topic, message, shard, ackClient, null);
+    }
+
+    private InboundMessage(String topic, MqttMessage message, int shard, MqttAsyncClient ackClient,
+                           InboundMessage envelope) {
+        this.topic = topic;
+        this.message = message;
+        this.shard = shard;
+        this.ackClient = ackClient;
+        this.envelope = envelope;
+    }
+
+    // A message unpacked from this envelope; the envelope is acknowledged once every part's handlers are done
+    InboundMessage part(MqttMessage part) {
+        return new InboundMessage(topic, part, shard, null, this);
+    }
+
+    String topic() {
+        return topic;
+    }
+
+    // Pooled connection the message arrived on
+    int shard() {
+        return shard;
+    }
+
+    MqttMessage message() {
+        return message;
+    }
+
+    byte[] payload() {
+        return message.getPayload();
+    }
+
+    ByteBuffer payloadBuffer() {
+        // Read-only view per handler so positions are independent; the payload itself is not copied
+        return ByteBuffer.wrap(message.getPayload()).asReadOnlyBuffer();
+    }
+
+    String text() {
+        if (text == null) {
+            text = v5Message != null
+                    ? v5Message.getPayloadAsString()
+                    : new String(message.getPayload(), StandardCharsets.UTF_8);
+        }
+        return text;
+    }
+
+    MqttAcknowledgement retain() {
+        if (envelope != null) {
+            return envelope.retain();
+        }
+        holds.incrementAndGet();
+        AtomicBoolean acknowledged = new AtomicBoolean();
+        return () -> {
+            if (acknowledged.compareAndSet(false, true)) {
+                release();
+            }
+        };
+    }
+
+    void whenAcknowledged(Runnable callback) {
+        onAcknowledged = callback;
+    }
+
+    void release() {
+        if (holds.decrementAndGet() != 0) {
+            return;
+        }
+        if (ackClient != null) {
+            try {
+                ackClient.messageArrivedComplete(message.getId(), message.getQos());
+            } catch (MqttException e) {
+                log.error("Failed to acknowledge message {} on topic '{}': {}", message.getId(), topic, e.getMessage(), e);
+                return;
+            }
+        }
+        Runnable callback = onAcknowledged;
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    MqttSubscriber.MqttV5Message v5() {
+        if (v5Message == null) {
+            v5Message = new MqttSubscriber.MqttV5Message(message, text);
+        }
+        return v5Message;
+    }
+}
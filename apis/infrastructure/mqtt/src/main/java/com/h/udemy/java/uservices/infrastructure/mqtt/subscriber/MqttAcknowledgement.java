@@ -0,0 +1,16 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.subscriber;
+
+/**
+ * Confirms that an acknowledging handler is done with a message.
+ * <p>
+ * With {@code mqtt.manual-acks} enabled, a QoS 1/2 message is only acknowledged to the broker once every
+ * acknowledging handler it was delivered to has called {@link #acknowledge()}. A message that is never
+ * acknowledged is redelivered by the broker after the session reconnects. Without manual acks Paho has
+ * already acknowledged the message and this is a no-op.
+ */
+@FunctionalInterface
+public interface MqttAcknowledgement {
+
+    // Idempotent; only the first call counts
+    void acknowledge();
+}
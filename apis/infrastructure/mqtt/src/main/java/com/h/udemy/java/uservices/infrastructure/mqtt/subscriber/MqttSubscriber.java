@@ -1,53 +1,168 @@
 package com.h.udemy.java.uservices.infrastructure.mqtt.subscriber;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.h.udemy.java.uservices.infrastructure.mqtt.client.MqttClientPool;
+import com.h.udemy.java.uservices.infrastructure.mqtt.codec.MqttPayloadCodecs;
 import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
-import lombok.RequiredArgsConstructor;
+import com.h.udemy.java.uservices.infrastructure.mqtt.envelope.MqttEnvelope;
+import com.h.udemy.java.uservices.infrastructure.mqtt.envelope.exception.MqttEnvelopeException;
+import com.h.udemy.java.uservices.infrastructure.mqtt.ratelimit.RateLimitPolicy;
+import com.h.udemy.java.uservices.infrastructure.mqtt.ratelimit.TopicRateLimiter;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.dedup.DuplicateFilter;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.dispatch.DispatchMode;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.dispatch.TopicOrderedExecutor;
+import com.h.udemy.java.uservices.infrastructure.mqtt.topic.SharedSubscription;
+import com.h.udemy.java.uservices.infrastructure.mqtt.topic.TopicFilterTrie;
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.paho.mqttv5.client.*;
 import org.eclipse.paho.mqttv5.common.MqttException;
 import org.eclipse.paho.mqttv5.common.MqttMessage;
 import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.eclipse.paho.mqttv5.common.packet.UserProperty;
 import org.springframework.stereotype.Component;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 @Slf4j
 @Component
-@RequiredArgsConstructor
 public class MqttSubscriber {
 
-    private final MqttAsyncClient mqttClient;
+    private final MqttClientPool clientPool;
     private final ApiMqttProperties mqttProperties;
-    private final ObjectMapper objectMapper = new ObjectMapper();
-    
-    private final ConcurrentHashMap<String, CopyOnWriteArrayList<Consumer<String>>> topicSubscribers = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<String, CopyOnWriteArrayList<Consumer<MqttMessage>>> rawTopicSubscribers = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<String, CopyOnWriteArrayList<Consumer<MqttV5Message>>> v5TopicSubscribers = new ConcurrentHashMap<>();
+    private final TopicOrderedExecutor dispatchExecutor;
+    private final MqttPayloadCodecs codecs;
+
+    // String, raw and v5 handlers share one index keyed by topic filter, so '+' and '#' subscriptions dispatch too
+    private final TopicFilterTrie<TopicHandlers> topicSubscribers = new TopicFilterTrie<>();
+    private final TopicFilterTrie.MatchVisitor<TopicHandlers, InboundMessage> dispatcher = this::dispatch;
+
+    // Conflated handlers run here rather than on dispatch, so they can lag behind without holding up other topics
+    private final ExecutorService conflationExecutor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("mqtt-conflated-", 0).factory());
+    private final LongAdder conflatedMessages = new LongAdder();
+    // Null unless mqtt.dedup.enabled
+    private final DuplicateFilter duplicateFilter;
+    // Limits from mqtt.rate-limits.consume; also changeable at runtime
+    private final TopicRateLimiter rateLimiter;
+    // Every subscription per connection, sent again in bulk whenever the connection comes up
+    private final SubscriptionRegistry[] subscriptions;
+    private final int subscribeBatchSize;
+    private volatile IntConsumer connectionLostHandler = this::onDisconnected;
+
+    public MqttSubscriber(MqttAsyncClient mqttClient, ApiMqttProperties mqttProperties,
+                          TopicOrderedExecutor dispatchExecutor) {
+        this(MqttClientPool.of(mqttClient), mqttProperties, dispatchExecutor);
+    }
+
+    public MqttSubscriber(MqttClientPool clientPool, ApiMqttProperties mqttProperties,
+                          TopicOrderedExecutor dispatchExecutor) {
+        this(clientPool, mqttProperties, dispatchExecutor, MqttPayloadCodecs.json());
+    }
+
+    public MqttSubscriber(MqttClientPool clientPool, ApiMqttProperties mqttProperties,
+                          TopicOrderedExecutor dispatchExecutor, MqttPayloadCodecs codecs) {
+        this.clientPool = clientPool;
+        this.codecs = codecs;
+        this.mqttProperties = mqttProperties;
+        this.dispatchExecutor = dispatchExecutor;
+        this.duplicateFilter = mqttProperties.getDedup().isEnabled()
+                ? new DuplicateFilter(mqttProperties.getDedup()) : null;
+        ApiMqttProperties.RateLimits rateLimits = mqttProperties.getRateLimits();
+        this.rateLimiter = new TopicRateLimiter(rateLimits.getConsume(), rateLimits.getMaxDelayMillis());
+        if (dispatchExecutor.getMode() == DispatchMode.INLINE && rateLimits.getConsume().stream()
+                .anyMatch(limit -> limit.getPolicy() == RateLimitPolicy.DELAY)) {
+            log.warn("Consume rate limits with policy DELAY drop instead under INLINE dispatch; "
+                    + "use STRIPED or VIRTUAL dispatch to delay messages");
+        }
+        this.subscriptions = new SubscriptionRegistry[clientPool.size()];
+        for (int shard = 0; shard < subscriptions.length; shard++) {
+            subscriptions[shard] = new SubscriptionRegistry();
+        }
+        this.subscribeBatchSize = Math.max(1, mqttProperties.getReconnect().getSubscribeBatchSize());
+    }
 
     public void subscribe(String topic) {
         subscribe(topic, mqttProperties.getQos());
     }
 
+    // Also accepts shared subscriptions, "$share/<group>/<filter>". While the connection is down the
+    // subscription is only recorded, and sent with the others once it is up
     public void subscribe(String topic, int qos) {
+        int shard = clientPool.shardFor(SharedSubscription.topicFilter(topic));
+        if (SharedSubscription.isShared(topic) && !sharedSubscriptionAvailable(shard)) {
+            throw new IllegalStateException("MQTT broker does not support shared subscriptions: " + topic);
+        }
+        SubscriptionRegistry registry = subscriptions[shard];
+        synchronized (registry) {
+            registry.add(topic, qos);
+            if (!registry.online) {
+                log.info("Subscription to topic '{}' deferred until connected", topic);
+                return;
+            }
+        }
         try {
-            IMqttToken token = mqttClient.subscribe(topic, qos);
+            IMqttToken token = clientPool.client(shard).subscribe(topic, qos);
             token.waitForCompletion();
+            CompletableFuture<Void> waiting;
+            synchronized (registry) {
+                waiting = registry.confirm(topic);
+            }
+            if (waiting != null) {
+                waiting.complete(null);
+            }
             log.info("Subscribed to topic: {}", topic);
         } catch (MqttException e) {
+            CompletableFuture<Void> waiting;
+            synchronized (registry) {
+                waiting = registry.remove(topic);
+            }
+            if (waiting != null) {
+                waiting.completeExceptionally(e);
+            }
             log.error("Failed to subscribe to topic '{}': {}", topic, e.getMessage(), e);
             throw new RuntimeException("Failed to subscribe to MQTT v5 topic", e);
         }
     }
 
+    /**
+     * Completes once the broker has acknowledged the subscription to {@code topic}, at once if it already
+     * has; a subscription made while disconnected completes after the next connect. Fails if there is no
+     * such subscription, or if the broker rejects it.
+     */
+    public CompletableFuture<Void> subscribed(String topic) {
+        SubscriptionRegistry registry = subscriptions[clientPool.shardFor(SharedSubscription.topicFilter(topic))];
+        synchronized (registry) {
+            if (registry.confirmed.contains(topic)) {
+                return CompletableFuture.completedFuture(null);
+            }
+            if (!registry.topics.containsKey(topic)) {
+                return CompletableFuture.failedFuture(new IllegalStateException("Not subscribed to " + topic));
+            }
+            return registry.waiting.computeIfAbsent(topic, filter -> new CompletableFuture<>());
+        }
+    }
+
     public void subscribe(String topic, Consumer<String> messageHandler) {
         subscribe(topic, messageHandler, mqttProperties.getQos());
     }
 
     public void subscribe(String topic, Consumer<String> messageHandler, int qos) {
-        topicSubscribers.computeIfAbsent(topic, k -> new CopyOnWriteArrayList<>()).add(messageHandler);
+        handlersFor(topic).addStringHandler(messageHandler);
         subscribe(topic, qos);
     }
 
@@ -56,7 +171,7 @@ public class MqttSubscriber {
     }
 
     public void subscribeRaw(String topic, Consumer<MqttMessage> messageHandler, int qos) {
-        rawTopicSubscribers.computeIfAbsent(topic, k -> new CopyOnWriteArrayList<>()).add(messageHandler);
+        handlersFor(topic).addRawHandler(messageHandler);
         subscribe(topic, qos);
     }
 
@@ -65,17 +180,85 @@ public class MqttSubscriber {
     }
 
     public void subscribeV5(String topic, Consumer<MqttV5Message> messageHandler, int qos) {
-        v5TopicSubscribers.computeIfAbsent(topic, k -> new CopyOnWriteArrayList<>()).add(messageHandler);
+        handlersFor(topic).addV5Handler(messageHandler);
+        subscribe(topic, qos);
+    }
+
+    // The payload array is shared with the other handlers of the message and must not be modified
+    public void subscribeBytes(String topic, Consumer<byte[]> messageHandler) {
+        subscribeBytes(topic, messageHandler, mqttProperties.getQos());
+    }
+
+    public void subscribeBytes(String topic, Consumer<byte[]> messageHandler, int qos) {
+        handlersFor(topic).addBytesHandler(messageHandler);
+        subscribe(topic, qos);
+    }
+
+    public void subscribeBuffer(String topic, Consumer<ByteBuffer> messageHandler) {
+        subscribeBuffer(topic, messageHandler, mqttProperties.getQos());
+    }
+
+    public void subscribeBuffer(String topic, Consumer<ByteBuffer> messageHandler, int qos) {
+        handlersFor(topic).addBufferHandler(messageHandler);
+        subscribe(topic, qos);
+    }
+
+    // With mqtt.manual-acks, QoS 1/2 messages are acknowledged only after the handler's acknowledgement
+    public void subscribeAcknowledged(String topic, AcknowledgingMessageHandler messageHandler) {
+        subscribeAcknowledged(topic, messageHandler, mqttProperties.getQos());
+    }
+
+    public void subscribeAcknowledged(String topic, AcknowledgingMessageHandler messageHandler, int qos) {
+        handlersFor(topic).addAcknowledgingHandler(messageHandler);
         subscribe(topic, qos);
     }
 
+    /**
+     * For handlers that only need the current value of a topic, such as gauges: while the handler is busy,
+     * newer messages on a topic replace older ones, and it then receives only the latest. Each concrete topic
+     * matched by the filter keeps its own latest message.
+     */
+    public void subscribeConflated(String topic, BiConsumer<String, MqttV5Message> messageHandler) {
+        subscribeConflated(topic, messageHandler, mqttProperties.getQos());
+    }
+
+    public void subscribeConflated(String topic, BiConsumer<String, MqttV5Message> messageHandler, int qos) {
+        subscribeAcknowledged(topic, new ConflatingHandler(messageHandler, conflationExecutor, conflatedMessages), qos);
+    }
+
+    // Only the messages that reach the handler are decoded
+    public <T> void subscribeConflated(String topic, Class<T> messageType, Consumer<T> messageHandler) {
+        subscribeConflated(topic, (received, message) -> {
+            T decoded;
+            try {
+                decoded = codecs.decode(message.getPayload(), message.getContentType(), messageType);
+            } catch (Exception e) {
+                log.error("Failed to deserialize message for topic '{}': {}", received, e.getMessage(), e);
+                return;
+            }
+            messageHandler.accept(decoded);
+        });
+    }
+
     public void unsubscribe(String topic) {
         try {
-            IMqttToken token = mqttClient.unsubscribe(topic);
-            token.waitForCompletion();
-            topicSubscribers.remove(topic);
-            rawTopicSubscribers.remove(topic);
-            v5TopicSubscribers.remove(topic);
+            String filter = SharedSubscription.topicFilter(topic);
+            int shard = clientPool.shardFor(filter);
+            SubscriptionRegistry registry = subscriptions[shard];
+            boolean online;
+            CompletableFuture<Void> waiting;
+            synchronized (registry) {
+                online = registry.online;
+                waiting = registry.remove(topic);
+            }
+            if (waiting != null) {
+                waiting.completeExceptionally(new IllegalStateException("Unsubscribed from " + topic));
+            }
+            if (online) {
+                IMqttToken token = clientPool.client(shard).unsubscribe(topic);
+                token.waitForCompletion();
+            }
+            topicSubscribers.remove(filter);
             log.info("Unsubscribed from topic: {}", topic);
         } catch (MqttException e) {
             log.error("Failed to unsubscribe from topic '{}': {}", topic, e.getMessage(), e);
@@ -83,107 +266,413 @@ public class MqttSubscriber {
         }
     }
 
+    // A shared subscription "$share/<group>/a/+" receives messages on "a/x", so it is indexed (and pinned to a
+    // connection) by its plain filter; a shared and a plain subscription to one filter thus share their handlers
+    private TopicHandlers handlersFor(String topic) {
+        String filter = SharedSubscription.topicFilter(topic);
+        return topicSubscribers.computeIfAbsent(filter, () -> new TopicHandlers(clientPool.shardFor(filter)));
+    }
+
+    private boolean sharedSubscriptionAvailable(int shard) {
+        // Absent from CONNACK means available
+        MqttProperties connAck = clientPool.getConnAckProperties(shard);
+        return connAck == null || !Boolean.FALSE.equals(connAck.isSharedSubscriptionAvailable());
+    }
+
     public void setMessageCallback() {
-        mqttClient.setCallback(new MqttCallback() {
-            @Override
-            public void disconnected(MqttDisconnectResponse disconnectResponse) {
-                log.warn("MQTT v5 connection lost: {}", 
-                    disconnectResponse != null ? disconnectResponse.getReasonString() : "Unknown reason");
-            }
-
-            @Override
-            public void mqttErrorOccurred(MqttException exception) {
-                log.error("MQTT v5 error occurred: {}", exception.getMessage(), exception);
-            }
-
-            @Override
-            public void messageArrived(String topic, MqttMessage message) throws Exception {
-                log.debug("Message arrived on topic '{}': {}", topic, new String(message.getPayload()));
-                
-                // Handle string message subscribers
-                topicSubscribers.getOrDefault(topic, new CopyOnWriteArrayList<>())
-                    .forEach(handler -> {
-                        try {
-                            handler.accept(new String(message.getPayload()));
-                        } catch (Exception e) {
-                            log.error("Error processing message for topic '{}': {}", topic, e.getMessage(), e);
-                        }
-                    });
-                
-                // Handle raw message subscribers
-                rawTopicSubscribers.getOrDefault(topic, new CopyOnWriteArrayList<>())
-                    .forEach(handler -> {
-                        try {
-                            handler.accept(message);
-                        } catch (Exception e) {
-                            log.error("Error processing raw message for topic '{}': {}", topic, e.getMessage(), e);
+        for (int shard = 0; shard < clientPool.size(); shard++) {
+            clientPool.client(shard).setCallback(new ConnectionCallback(shard));
+        }
+    }
+
+    // Receives the shard of each lost connection, e.g. to reconnect it; by default it is only marked offline
+    public void setConnectionLostHandler(IntConsumer connectionLostHandler) {
+        this.connectionLostHandler = connectionLostHandler;
+    }
+
+    /**
+     * Sends the connection's subscriptions in bulk, a few SUBSCRIBE packets rather than one per filter.
+     * A resumed session still holds the filters the broker confirmed before, so only newer ones are sent,
+     * and those unsubscribed in the meantime are unsubscribed now.
+     */
+    public void onConnected(int shard, boolean sessionPresent) {
+        SubscriptionRegistry registry = subscriptions[shard];
+        Map<String, Integer> pending;
+        List<String> stale;
+        synchronized (registry) {
+            registry.online = true;
+            if (!sessionPresent) {
+                registry.confirmed.clear();
+                registry.removed.clear();
+            }
+            pending = registry.pending();
+            stale = new ArrayList<>(registry.removed);
+            registry.removed.clear();
+        }
+        MqttAsyncClient client = clientPool.client(shard);
+        List<String> filters = new ArrayList<>(pending.keySet());
+        for (int from = 0; from < filters.size(); from += subscribeBatchSize) {
+            List<String> batch = filters.subList(from, Math.min(filters.size(), from + subscribeBatchSize));
+            resubscribe(shard, client, batch.toArray(new String[0]),
+                    batch.stream().mapToInt(pending::get).toArray());
+        }
+        if (!stale.isEmpty()) {
+            try {
+                client.unsubscribe(stale.toArray(new String[0]));
+            } catch (MqttException e) {
+                log.warn("Failed to unsubscribe from {} topic(s) on reconnect: {}", stale.size(), e.getMessage());
+            }
+        }
+    }
+
+    // Subscriptions made from now on are deferred to onConnected
+    public void onDisconnected(int shard) {
+        SubscriptionRegistry registry = subscriptions[shard];
+        synchronized (registry) {
+            registry.online = false;
+        }
+    }
+
+    private void resubscribe(int shard, MqttAsyncClient client, String[] filters, int[] qos) {
+        SubscriptionRegistry registry = subscriptions[shard];
+        try {
+            client.subscribe(filters, qos, null, new MqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    int[] reasonCodes = asyncActionToken.getReasonCodes();
+                    Map<CompletableFuture<Void>, Integer> outcomes = new HashMap<>();
+                    synchronized (registry) {
+                        for (int i = 0; i < filters.length; i++) {
+                            // Codes from 0x80 reject the filter; granted QoS otherwise
+                            if (reasonCodes != null && i < reasonCodes.length && reasonCodes[i] >= 0x80) {
+                                log.warn("Broker rejected subscription to topic '{}' (reason code {})",
+                                        filters[i], reasonCodes[i]);
+                                CompletableFuture<Void> waiting = registry.waiting.remove(filters[i]);
+                                if (waiting != null) {
+                                    outcomes.put(waiting, reasonCodes[i]);
+                                }
+                            } else {
+                                CompletableFuture<Void> waiting = registry.confirm(filters[i]);
+                                if (waiting != null) {
+                                    outcomes.put(waiting, 0);
+                                }
+                            }
                         }
-                    });
-                
-                // Handle MQTT v5 message subscribers
-                v5TopicSubscribers.getOrDefault(topic, new CopyOnWriteArrayList<>())
-                    .forEach(handler -> {
-                        try {
-                            MqttV5Message v5Message = new MqttV5Message(message);
-                            handler.accept(v5Message);
-                        } catch (Exception e) {
-                            log.error("Error processing MQTT v5 message for topic '{}': {}", topic, e.getMessage(), e);
+                    }
+                    // Completed outside the registry's monitor, as they may run dependent stages
+                    outcomes.forEach((waiting, reasonCode) -> {
+                        if (reasonCode == 0) {
+                            waiting.complete(null);
+                        } else {
+                            waiting.completeExceptionally(new IllegalStateException(
+                                    "Broker rejected the subscription (reason code " + reasonCode + ")"));
                         }
                     });
+                    log.info("Subscribed to {} topic(s) on '{}'", filters.length, client.getClientId());
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    // Left pending for the next connect
+                    log.warn("Failed to subscribe to {} topic(s) on '{}': {}", filters.length,
+                            client.getClientId(), exception.getMessage());
+                }
+            });
+        } catch (MqttException e) {
+            log.warn("Failed to subscribe to {} topic(s) on '{}': {}", filters.length, client.getClientId(),
+                    e.getMessage());
+        }
+    }
+
+    // Guarded by its own monitor
+    private static final class SubscriptionRegistry {
+        private final Map<String, Integer> topics = new LinkedHashMap<>();
+        // Acknowledged by the broker within the current session
+        private final Set<String> confirmed = new HashSet<>();
+        // Unsubscribed while offline from filters the session may still hold
+        private final Set<String> removed = new HashSet<>();
+        // Callers of subscribed() waiting for the broker to acknowledge a filter
+        private final Map<String, CompletableFuture<Void>> waiting = new HashMap<>();
+        // Connections handed over already connected start online
+        private boolean online = true;
+
+        void add(String topic, int qos) {
+            Integer previous = topics.put(topic, qos);
+            if (previous != null && previous != qos) {
+                confirmed.remove(topic);
             }
+            removed.remove(topic);
+        }
 
-            @Override
-            public void deliveryComplete(IMqttToken token) {
-                log.debug("Message delivery complete for message ID: {}", token.getMessageId());
+        // Returns the future to complete for callers waiting on the filter, if any
+        CompletableFuture<Void> confirm(String topic) {
+            if (!topics.containsKey(topic)) {
+                return null;
             }
+            confirmed.add(topic);
+            return waiting.remove(topic);
+        }
 
-            @Override
-            public void connectComplete(boolean reconnect, String serverURI) {
-                log.info("MQTT v5 connection complete. Reconnect: {}, Server: {}", reconnect, serverURI);
+        // Returns the future to fail for callers waiting on the filter, if any
+        CompletableFuture<Void> remove(String topic) {
+            topics.remove(topic);
+            if (confirmed.remove(topic) && !online) {
+                removed.add(topic);
             }
+            return waiting.remove(topic);
+        }
 
-            @Override
-            public void authPacketArrived(int reasonCode, MqttProperties properties) {
-                log.debug("MQTT v5 auth packet arrived. Reason code: {}", reasonCode);
+        Map<String, Integer> pending() {
+            Map<String, Integer> pending = new LinkedHashMap<>(topics);
+            pending.keySet().removeAll(confirmed);
+            return pending;
+        }
+    }
+
+    private final class ConnectionCallback implements MqttCallback {
+        private final int shard;
+
+        private ConnectionCallback(int shard) {
+            this.shard = shard;
+        }
+
+        @Override
+        public void disconnected(MqttDisconnectResponse disconnectResponse) {
+            log.warn("MQTT v5 connection lost: {}", 
+                disconnectResponse != null ? disconnectResponse.getReasonString() : "Unknown reason");
+            connectionLostHandler.accept(shard);
+        }
+
+        @Override
+        public void mqttErrorOccurred(MqttException exception) {
+            log.error("MQTT v5 error occurred: {}", exception.getMessage(), exception);
+        }
+
+        @Override
+        public void messageArrived(String topic, MqttMessage message) throws Exception {
+            // Handlers run on the dispatch executor so a slow handler does not stall Paho's callback thread
+            MqttAsyncClient ackClient = mqttProperties.isManualAcks() && message.getQos() > 0
+                    ? clientPool.client(shard) : null;
+            InboundMessage inbound = new InboundMessage(topic, message, shard, ackClient);
+            // A message the dispatch queue discards is still released, so its acknowledgement is not held forever
+            dispatchExecutor.execute(topic, () -> deliver(inbound), inbound::release);
+        }
+
+        @Override
+        public void deliveryComplete(IMqttToken token) {
+            log.debug("Message delivery complete for message ID: {}", token.getMessageId());
+        }
+
+        @Override
+        public void connectComplete(boolean reconnect, String serverURI) {
+            log.info("MQTT v5 connection complete. Reconnect: {}, Server: {}", reconnect, serverURI);
+        }
+
+        @Override
+        public void authPacketArrived(int reasonCode, MqttProperties properties) {
+            log.debug("MQTT v5 auth packet arrived. Reason code: {}", reasonCode);
+        }
+    }
+
+    private void deliver(InboundMessage inbound) {
+        try {
+            String dedupKey = duplicateFilter != null
+                    ? duplicateFilter.keyOf(inbound.topic(), inbound.message()) : null;
+            if (dedupKey != null && duplicateFilter.isDuplicate(dedupKey, inbound.message().isDuplicate())) {
+                // Released below, so the redelivery is acknowledged without running handlers again
+                log.debug("Dropping duplicate message on topic '{}'", inbound.topic());
+                return;
             }
-        });
+            // DELAY holds this topic's dispatch lane, which pushes back on the broker like a slow handler.
+            // Inline dispatch runs on Paho's callback thread, where waiting would stall every topic of the
+            // connection, so there it drops instead. An envelope counts as one message
+            if (rateLimiter.acquire(inbound.topic(), dispatchExecutor.getMode() != DispatchMode.INLINE)
+                    != TopicRateLimiter.Outcome.ADMITTED) {
+                log.debug("Dropping message on topic '{}' over its rate limit", inbound.topic());
+                return;
+            }
+            if (dedupKey != null) {
+                // Remembered only once acknowledged: a message a handler leaves unacknowledged must get through
+                // when the broker redelivers it
+                inbound.whenAcknowledged(() -> duplicateFilter.acknowledged(dedupKey));
+            }
+            MqttProperties properties = inbound.message().getProperties();
+            if (properties != null && MqttEnvelope.isEnvelope(properties.getContentType())) {
+                unpack(inbound);
+            } else {
+                match(inbound);
+            }
+        } finally {
+            // Acknowledges right away unless an acknowledging handler still holds the message
+            inbound.release();
+        }
+    }
+
+    private void match(InboundMessage inbound) {
+        if (log.isDebugEnabled()) {
+            log.debug("Message arrived on topic '{}': {}", inbound.topic(), inbound.text());
+        }
+        topicSubscribers.match(inbound.topic(), inbound, dispatcher);
+    }
+
+    // Handlers see the messages of a batching publisher's envelope one by one, as they were published
+    private void unpack(InboundMessage inbound) {
+        MqttMessage message = inbound.message();
+        MqttEnvelope envelope;
+        try {
+            envelope = MqttEnvelope.decode(message.getPayload());
+        } catch (MqttEnvelopeException e) {
+            log.error("Discarding malformed MQTT envelope on topic '{}': {}", inbound.topic(), e.getMessage(), e);
+            return;
+        }
+        for (byte[] payload : envelope.getPayloads()) {
+            MqttMessage part = new MqttMessage(payload);
+            part.setId(message.getId());
+            part.setQos(message.getQos());
+            part.setRetained(message.isRetained());
+            MqttProperties properties = new MqttProperties();
+            properties.setUserProperties(message.getProperties().getUserProperties());
+            if (envelope.getContentType() != null) {
+                properties.setContentType(envelope.getContentType());
+            }
+            part.setProperties(properties);
+            match(inbound.part(part));
+        }
+    }
+
+    private void dispatch(TopicHandlers handlers, String topic, InboundMessage inbound) {
+        // Overlapping filters on different connections each receive a copy; only the filter's own connection delivers it
+        if (handlers.shard() != inbound.shard()) {
+            return;
+        }
+
+        // Handle string message subscribers
+        for (Consumer<String> handler : handlers.stringHandlers()) {
+            try {
+                handler.accept(inbound.text());
+            } catch (Exception e) {
+                log.error("Error processing message for topic '{}': {}", topic, e.getMessage(), e);
+            }
+        }
+
+        // Handle byte[] and ByteBuffer subscribers (typed subscriptions parse from here)
+        for (Consumer<byte[]> handler : handlers.bytesHandlers()) {
+            try {
+                handler.accept(inbound.payload());
+            } catch (Exception e) {
+                log.error("Error processing message for topic '{}': {}", topic, e.getMessage(), e);
+            }
+        }
+        for (Consumer<ByteBuffer> handler : handlers.bufferHandlers()) {
+            try {
+                handler.accept(inbound.payloadBuffer());
+            } catch (Exception e) {
+                log.error("Error processing message for topic '{}': {}", topic, e.getMessage(), e);
+            }
+        }
+
+        // Handle raw message subscribers
+        for (Consumer<MqttMessage> handler : handlers.rawHandlers()) {
+            try {
+                handler.accept(inbound.message());
+            } catch (Exception e) {
+                log.error("Error processing raw message for topic '{}': {}", topic, e.getMessage(), e);
+            }
+        }
+
+        // Handle MQTT v5 message subscribers
+        for (Consumer<MqttV5Message> handler : handlers.v5Handlers()) {
+            try {
+                handler.accept(inbound.v5());
+            } catch (Exception e) {
+                log.error("Error processing MQTT v5 message for topic '{}': {}", topic, e.getMessage(), e);
+            }
+        }
+
+        // Handle acknowledging subscribers
+        for (AcknowledgingMessageHandler handler : handlers.acknowledgingHandlers()) {
+            MqttAcknowledgement acknowledgement = inbound.retain();
+            try {
+                handler.onMessage(topic, inbound.v5(), acknowledgement);
+            } catch (Exception e) {
+                log.error("Error processing MQTT v5 message for topic '{}': {}", topic, e.getMessage(), e);
+                acknowledgement.acknowledge();
+            }
+        }
     }
 
     public <T> void subscribe(String topic, Class<T> messageType, Consumer<T> messageHandler) {
         subscribe(topic, messageType, messageHandler, mqttProperties.getQos());
     }
 
+    // Decodes with the codec of each message's content type (the default codec when it has none)
     public <T> void subscribe(String topic, Class<T> messageType, Consumer<T> messageHandler, int qos) {
-        subscribe(topic, jsonMessage -> {
+        subscribeV5(topic, received -> {
+            T message;
             try {
-                T message = objectMapper.readValue(jsonMessage, messageType);
-                messageHandler.accept(message);
+                message = codecs.decode(received.getPayload(), received.getContentType(), messageType);
             } catch (Exception e) {
                 log.error("Failed to deserialize message for topic '{}': {}", topic, e.getMessage(), e);
+                return;
             }
+            messageHandler.accept(message);
         }, qos);
     }
 
     public boolean isConnected() {
-        return mqttClient.isConnected();
+        return clientPool.isConnected();
     }
 
-    // MQTT v5 message wrapper with enhanced properties
+    public TopicOrderedExecutor getDispatchExecutor() {
+        return dispatchExecutor;
+    }
+
+    // Messages replaced by a newer one before a conflated handler got to them
+    public long getConflatedMessageCount() {
+        return conflatedMessages.sum();
+    }
+
+    // Null unless mqtt.dedup.enabled
+    public DuplicateFilter getDuplicateFilter() {
+        return duplicateFilter;
+    }
+
+    // Consume limits per topic filter; setLimit and removeLimit take effect immediately
+    public TopicRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    // MQTT v5 message wrapper with enhanced properties; derived values are computed once and cached
     public static class MqttV5Message {
         private final MqttMessage message;
         private final MqttProperties properties;
+        private String payloadText;
+        private Map<String, String> userProperties;
 
         public MqttV5Message(MqttMessage message) {
+            this(message, null);
+        }
+
+        MqttV5Message(MqttMessage message, String payloadText) {
             this.message = message;
             this.properties = message.getProperties();
+            this.payloadText = payloadText;
         }
 
+        // Returns the received array itself, not a copy
         public byte[] getPayload() {
             return message.getPayload();
         }
 
+        public ByteBuffer getPayloadAsBuffer() {
+            return ByteBuffer.wrap(message.getPayload()).asReadOnlyBuffer();
+        }
+
         public String getPayloadAsString() {
-            return new String(message.getPayload());
+            if (payloadText == null) {
+                payloadText = new String(message.getPayload(), StandardCharsets.UTF_8);
+            }
+            return payloadText;
         }
 
         public int getQos() {
@@ -214,16 +703,23 @@ public class MqttSubscriber {
             return properties != null ? properties.getCorrelationData() : null;
         }
 
-        public java.util.Map<String, String> getUserProperties() {
-            // Note: Paho MqttProperties returns List<UserProperty>, not Map
-            // For now, return empty map - this would need conversion logic
-            return new java.util.HashMap<>();
+        public Map<String, String> getUserProperties() {
+            if (userProperties == null) {
+                // Paho exposes user properties as a List<UserProperty>; the first value of a repeated key wins
+                List<UserProperty> list = properties != null ? properties.getUserProperties() : null;
+                if (list == null || list.isEmpty()) {
+                    userProperties = Collections.emptyMap();
+                } else {
+                    Map<String, String> map = new LinkedHashMap<>();
+                    list.forEach(property -> map.putIfAbsent(property.getKey(), property.getValue()));
+                    userProperties = Collections.unmodifiableMap(map);
+                }
+            }
+            return userProperties;
         }
 
         public String getUserProperty(String key) {
-            // Note: Paho MqttProperties returns List<UserProperty>, not Map
-            // For now, return null - this would need conversion logic
-            return null;
+            return getUserProperties().get(key);
         }
     }
 }
@@ -0,0 +1,95 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.subscriber;
+
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+// Handlers registered for one topic filter; arrays are replaced on write so dispatch iterates without allocating
+class TopicHandlers {
+
+    @SuppressWarnings("unchecked")
+    private static final Consumer<String>[] NO_STRING_HANDLERS = new Consumer[0];
+    @SuppressWarnings("unchecked")
+    private static final Consumer<MqttMessage>[] NO_RAW_HANDLERS = new Consumer[0];
+    @SuppressWarnings("unchecked")
+    private static final Consumer<MqttSubscriber.MqttV5Message>[] NO_V5_HANDLERS = new Consumer[0];
+    @SuppressWarnings("unchecked")
+    private static final Consumer<byte[]>[] NO_BYTES_HANDLERS = new Consumer[0];
+    @SuppressWarnings("unchecked")
+    private static final Consumer<ByteBuffer>[] NO_BUFFER_HANDLERS = new Consumer[0];
+    private static final AcknowledgingMessageHandler[] NO_ACKNOWLEDGING_HANDLERS = new AcknowledgingMessageHandler[0];
+
+    // Pooled connection that holds the subscription for this filter
+    private final int shard;
+
+    private volatile Consumer<String>[] stringHandlers = NO_STRING_HANDLERS;
+    private volatile Consumer<MqttMessage>[] rawHandlers = NO_RAW_HANDLERS;
+    private volatile Consumer<MqttSubscriber.MqttV5Message>[] v5Handlers = NO_V5_HANDLERS;
+    private volatile Consumer<byte[]>[] bytesHandlers = NO_BYTES_HANDLERS;
+    private volatile Consumer<ByteBuffer>[] bufferHandlers = NO_BUFFER_HANDLERS;
+    private volatile AcknowledgingMessageHandler[] acknowledgingHandlers = NO_ACKNOWLEDGING_HANDLERS;
+
+    TopicHandlers(int shard) {
+        this.shard = shard;
+    }
+
+    int shard() {
+        return shard;
+    }
+
+    synchronized void addStringHandler(Consumer<String> handler) {
+        stringHandlers = append(stringHandlers, handler);
+    }
+
+    synchronized void addRawHandler(Consumer<MqttMessage> handler) {
+        rawHandlers = append(rawHandlers, handler);
+    }
+
+    synchronized void addV5Handler(Consumer<MqttSubscriber.MqttV5Message> handler) {
+        v5Handlers = append(v5Handlers, handler);
+    }
+
+    synchronized void addBytesHandler(Consumer<byte[]> handler) {
+        bytesHandlers = append(bytesHandlers, handler);
+    }
+
+    synchronized void addBufferHandler(Consumer<ByteBuffer> handler) {
+        bufferHandlers = append(bufferHandlers, handler);
+    }
+
+    synchronized void addAcknowledgingHandler(AcknowledgingMessageHandler handler) {
+        acknowledgingHandlers = append(acknowledgingHandlers, handler);
+    }
+
+    Consumer<String>[] stringHandlers() {
+        return stringHandlers;
+    }
+
+    Consumer<MqttMessage>[] rawHandlers() {
+        return rawHandlers;
+    }
+
+    Consumer<MqttSubscriber.MqttV5Message>[] v5Handlers() {
+        return v5Handlers;
+    }
+
+    Consumer<byte[]>[] bytesHandlers() {
+        return bytesHandlers;
+    }
+
+    Consumer<ByteBuffer>[] bufferHandlers() {
+        return bufferHandlers;
+    }
+
+    AcknowledgingMessageHandler[] acknowledgingHandlers() {
+        return acknowledgingHandlers;
+    }
+
+    private static <H> H[] append(H[] handlers, H handler) {
+        H[] copy = Arrays.copyOf(handlers, handlers.length + 1);
+        copy[handlers.length] = handler;
+        return copy;
+    }
+}
@@ -0,0 +1,170 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.dedup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
+import com.h.udemy.java.uservices.infrastructure.mqtt.topic.TopicFilterTrie;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.eclipse.paho.mqttv5.common.packet.UserProperty;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Recognises messages received before, by a message id the publisher puts in a user property or a
+ * payload field, so a redelivered QoS 1 message does not run side-effecting handlers twice.
+ * <p>
+ * An id counts as received only once its message has been {@link #acknowledged}: a message a handler
+ * left unacknowledged, so that the broker sends it again, is delivered again.
+ * <p>
+ * Ids are remembered per topic for up to {@code windowMillis} in a {@link RotatingBloomFilter}, whose
+ * memory is fixed however many messages arrive, and the most recent {@code exactCapacity} of them also in
+ * an exact LRU map. A Bloom filter hit is a duplicate when the LRU confirms it, or when the broker flagged
+ * the message as a redelivery (DUP) and the id has only aged out of the LRU. Any other hit is counted as a
+ * false positive and the message is delivered: an unconfirmed hit never drops a new message.
+ * Messages without an id are always delivered.
+ */
+public class DuplicateFilter {
+
+    private final TopicFilterTrie<Boolean> topics = new TopicFilterTrie<>();
+    private final boolean allTopics;
+    private final String userProperty;
+    private final String payloadField;
+    private final long windowMillis;
+    private final RotatingBloomFilter bloomFilter;
+    private final Map<String, Long> recent;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final LongAdder checked = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+
+    public DuplicateFilter(ApiMqttProperties.Dedup config) {
+        this(config, System.currentTimeMillis());
+    }
+
+    DuplicateFilter(ApiMqttProperties.Dedup config, long now) {
+        config.getTopics().forEach(filter -> topics.computeIfAbsent(filter, () -> Boolean.TRUE));
+        this.allTopics = config.getTopics().isEmpty();
+        this.userProperty = blankToNull(config.getUserProperty());
+        this.payloadField = blankToNull(config.getPayloadField());
+        this.windowMillis = config.getWindowMillis();
+        this.bloomFilter = new RotatingBloomFilter(windowMillis, config.getExpectedMessages(),
+                config.getFalsePositiveRate(), now);
+        int exactCapacity = config.getExactCapacity();
+        this.recent = new LinkedHashMap<>(Math.min(exactCapacity, 1 << 16) * 4 / 3 + 1) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > exactCapacity;
+            }
+        };
+    }
+
+    // The key the message's id is remembered under; null if the message is not checked
+    public String keyOf(String topic, MqttMessage message) {
+        if (!allTopics && !topics.matches(topic)) {
+            return null;
+        }
+        String id = messageId(message);
+        // MQTT topics never contain U+0000, so the key is unambiguous
+        return id == null ? null : topic + '\u0000' + id;
+    }
+
+    // True if a message with the key was acknowledged before and this one should be dropped
+    public boolean isDuplicate(String key, boolean redelivery) {
+        return isDuplicate(key, redelivery, System.currentTimeMillis());
+    }
+
+    boolean isDuplicate(String key, boolean redelivery, long now) {
+        checked.increment();
+        long hash = hash(key);
+        synchronized (this) {
+            if (bloomFilter.mightContain(hash, now)) {
+                Long seen = recent.get(key);
+                if ((seen != null && now - seen < windowMillis) || redelivery) {
+                    duplicates.increment();
+                    return true;
+                }
+                falsePositives.increment();
+            }
+        }
+        return false;
+    }
+
+    // Remembers the key once every handler is done with its message and it was acknowledged
+    public void acknowledged(String key) {
+        acknowledged(key, System.currentTimeMillis());
+    }
+
+    void acknowledged(String key, long now) {
+        long hash = hash(key);
+        synchronized (this) {
+            bloomFilter.put(hash, now);
+            recent.remove(key);
+            recent.put(key, now);
+        }
+    }
+
+    // Messages that carried an id and were looked up
+    public long getCheckedCount() {
+        return checked.sum();
+    }
+
+    // Messages dropped as duplicates
+    public long getDuplicateCount() {
+        return duplicates.sum();
+    }
+
+    // Bloom filter hits the exact map could not confirm; these messages were delivered
+    public long getFalsePositiveCount() {
+        return falsePositives.sum();
+    }
+
+    private String messageId(MqttMessage message) {
+        if (userProperty != null) {
+            MqttProperties properties = message.getProperties();
+            List<UserProperty> userProperties = properties != null ? properties.getUserProperties() : null;
+            if (userProperties != null) {
+                for (UserProperty property : userProperties) {
+                    if (userProperty.equals(property.getKey())) {
+                        return property.getValue();
+                    }
+                }
+            }
+        }
+        if (payloadField != null) {
+            try {
+                JsonNode id = objectMapper.readTree(message.getPayload()).at(payloadField);
+                if (id.isValueNode()) {
+                    return id.asText();
+                }
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    // FNV-1a over the characters, then the MurmurHash3 finalizer so both 32-bit halves are well mixed
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static String blankToNull(String value) {
+        return value == null || value.isBlank() ? null : value;
+    }
+}
@@ -0,0 +1,80 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.dedup;
+
+import java.util.Arrays;
+
+/**
+ * Bloom filter over a sliding time window, made of two generations of half a window each.
+ * <p>
+ * Keys are added to the current generation and looked up in both. When the current generation is half a
+ * window old, the older one is cleared and becomes current, so a key is remembered for between half a
+ * window and a window, in constant memory whatever the message rate.
+ */
+final class RotatingBloomFilter {
+
+    private final long generationMillis;
+    private final int hashes;
+    private final long bitCount;
+    private long[] current;
+    private long[] previous;
+    private long currentStart;
+
+    RotatingBloomFilter(long windowMillis, int expectedKeys, double falsePositiveRate, long now) {
+        // Standard sizing: m = -n ln p / (ln 2)^2 bits, k = m / n ln 2 hash functions
+        long bits = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.bitCount = Math.max(64, (bits + 63) / 64 * 64);
+        this.hashes = Math.max(1, (int) Math.round((double) bitCount / expectedKeys * Math.log(2)));
+        this.generationMillis = Math.max(1, windowMillis / 2);
+        this.current = new long[(int) (bitCount / 64)];
+        this.previous = new long[current.length];
+        this.currentStart = now;
+    }
+
+    boolean mightContain(long hash, long now) {
+        rotate(now);
+        return contains(current, hash) || contains(previous, hash);
+    }
+
+    void put(long hash, long now) {
+        rotate(now);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashes; i++) {
+            long bit = Integer.toUnsignedLong(h1 + i * h2) % bitCount;
+            current[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    // Bits of both generations
+    long sizeInBits() {
+        return 2 * bitCount;
+    }
+
+    private boolean contains(long[] bits, long hash) {
+        // Double hashing (Kirsch and Mitzenmacher): the i-th index is h1 + i * h2
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashes; i++) {
+            long bit = Integer.toUnsignedLong(h1 + i * h2) % bitCount;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rotate(long now) {
+        long age = now - currentStart;
+        if (age < generationMillis) {
+            return;
+        }
+        long[] oldest = previous;
+        Arrays.fill(oldest, 0);
+        if (age >= 2 * generationMillis) {
+            // Idle for a whole window: nothing in either generation is recent enough to keep
+            Arrays.fill(current, 0);
+        }
+        previous = current;
+        current = oldest;
+        currentStart = now;
+    }
+}
@@ -0,0 +1,10 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.dispatch;
+
+public enum DispatchMode {
+    // Handlers run on Paho's callback thread (original behaviour)
+    INLINE,
+    // Handlers run on a fixed pool of platform threads, one lane per stripe
+    STRIPED,
+    // Handlers run on virtual threads, one lane per stripe
+    VIRTUAL
+}
@@ -0,0 +1,329 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.dispatch;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.backpressure.OverflowPolicy;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs message handlers off the Paho callback thread while keeping per-topic order.
+ * <p>
+ * Each topic hashes to one lane; a lane is drained by at most one thread at a time, so messages
+ * on the same topic are handled strictly in arrival order while different lanes run in parallel.
+ * <p>
+ * The total number of queued messages is bounded by {@code capacity}. When full, {@code BLOCK} holds the
+ * Paho callback thread, which stops Paho reading from the socket and pushes back on the broker, for at most
+ * {@code blockTimeoutMillis} before the new message is discarded; {@code DROP_OLDEST} discards the oldest
+ * message of the same lane; {@code DROP_NEWEST} discards the new message; {@code FAIL_FAST} throws
+ * {@link RejectedExecutionException}, which makes Paho drop the connection without acknowledging, so QoS 1/2
+ * messages are redelivered after reconnecting. A discarded message's discard action runs instead of it,
+ * so that it can still be acknowledged.
+ * <p>
+ * While {@code BLOCK} holds the callback thread, Paho processes no acknowledgements either: a handler that
+ * waits for its own publish to complete, such as {@code MqttService.publish}, can only be released by the
+ * timeout. In {@code INLINE} mode handlers run on that thread themselves, where a publish that finds the
+ * outbound buffer full fails instead of waiting for room, so handlers that publish must expect failed futures.
+ */
+@Slf4j
+public class TopicOrderedExecutor implements AutoCloseable {
+
+    private final DispatchMode mode;
+    private final Lane[] lanes;
+    private final ExecutorService executor;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    // 0 = wait indefinitely
+    private final long blockTimeoutNanos;
+
+    // Only used by producers blocked on a full queue under BLOCK
+    private final ReentrantLock capacityLock = new ReentrantLock();
+    private final Condition capacityAvailable = capacityLock.newCondition();
+    private final AtomicInteger blockedProducers = new AtomicInteger();
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final LongAdder totalHandlerNanos = new LongAdder();
+    private final AtomicLong maxHandlerNanos = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder totalBlockedNanos = new LongAdder();
+
+    public TopicOrderedExecutor(DispatchMode mode, int stripes) {
+        this(mode, stripes, Integer.MAX_VALUE, OverflowPolicy.BLOCK);
+    }
+
+    public TopicOrderedExecutor(DispatchMode mode, int stripes, int capacity, OverflowPolicy policy) {
+        this(mode, stripes, capacity, policy, 0);
+    }
+
+    public TopicOrderedExecutor(DispatchMode mode, int stripes, int capacity, OverflowPolicy policy,
+                                long blockTimeoutMillis) {
+        this.mode = mode;
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, blockTimeoutMillis));
+        if (mode == DispatchMode.INLINE) {
+            this.lanes = new Lane[0];
+            this.executor = null;
+            return;
+        }
+        int laneCount = Math.max(1, stripes);
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane();
+        }
+        this.executor = mode == DispatchMode.VIRTUAL
+                ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("mqtt-dispatch-", 0).factory())
+                : Executors.newFixedThreadPool(Math.min(laneCount, Runtime.getRuntime().availableProcessors() * 2),
+                        platformThreads());
+    }
+
+    public void execute(String topic, Runnable task) {
+        execute(topic, task, () -> { });
+    }
+
+    // Runs discard instead of task if the overflow policy or a shutdown discards the task
+    public void execute(String topic, Runnable task, Runnable discard) {
+        if (mode == DispatchMode.INLINE) {
+            run(task, System.nanoTime());
+            return;
+        }
+        Lane lane = lanes[laneIndex(topic)];
+        // The bound is soft: concurrent producers may each pass the check, overshooting by at most their number
+        if (queueDepth.get() >= capacity && !admit(lane)) {
+            discard(discard);
+            return;
+        }
+        int depth = queueDepth.incrementAndGet();
+        if (depth > maxQueueDepth.get()) {
+            maxQueueDepth.accumulateAndGet(depth, Math::max);
+        }
+        lane.submit(new Task(task, discard, System.nanoTime()));
+    }
+
+    public DispatchMode getMode() {
+        return mode;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public long getProcessedCount() {
+        return processed.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    public long getAverageWaitNanos() {
+        long count = processed.sum();
+        return count == 0 ? 0 : totalWaitNanos.sum() / count;
+    }
+
+    public long getAverageHandlerNanos() {
+        long count = processed.sum();
+        return count == 0 ? 0 : totalHandlerNanos.sum() / count;
+    }
+
+    public long getMaxHandlerNanos() {
+        return maxHandlerNanos.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    // Total time the Paho callback thread spent blocked on a full queue
+    public long getBlockedNanos() {
+        return totalBlockedNanos.sum();
+    }
+
+    @Override
+    public void close() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                log.warn("MQTT dispatch did not drain in time, {} messages dropped", queueDepth.get());
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+
+    // Applies the overflow policy to a full queue; false if the new message must be discarded
+    private boolean admit(Lane lane) {
+        switch (policy) {
+            case BLOCK -> {
+                return awaitCapacity();
+            }
+            case DROP_OLDEST -> {
+                dropped.increment();
+                Task oldest = lane.queue.poll();
+                if (oldest == null) {
+                    // This lane has nothing queued to give up; the new message goes instead
+                    return false;
+                }
+                queueDepth.decrementAndGet();
+                discard(oldest.discard());
+                return true;
+            }
+            case DROP_NEWEST -> {
+                dropped.increment();
+                return false;
+            }
+            default -> {
+                rejected.increment();
+                throw new RejectedExecutionException("MQTT dispatch queue is full (" + queueDepth.get() + " queued)");
+            }
+        }
+    }
+
+    private boolean awaitCapacity() {
+        long start = System.nanoTime();
+        capacityLock.lock();
+        blockedProducers.incrementAndGet();
+        try {
+            long remaining = blockTimeoutNanos;
+            while (queueDepth.get() >= capacity) {
+                if (blockTimeoutNanos == 0) {
+                    capacityAvailable.await();
+                } else if (remaining <= 0) {
+                    dropped.increment();
+                    log.warn("MQTT dispatch queue stayed full for {} ms, message dropped",
+                            TimeUnit.NANOSECONDS.toMillis(blockTimeoutNanos));
+                    return false;
+                } else {
+                    remaining = capacityAvailable.awaitNanos(remaining);
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            dropped.increment();
+            return false;
+        } finally {
+            blockedProducers.decrementAndGet();
+            capacityLock.unlock();
+            totalBlockedNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    private void signalCapacity() {
+        capacityLock.lock();
+        try {
+            capacityAvailable.signalAll();
+        } finally {
+            capacityLock.unlock();
+        }
+    }
+
+    private static void discard(Runnable discard) {
+        try {
+            discard.run();
+        } catch (RuntimeException e) {
+            log.error("Failed to discard MQTT message: {}", e.getMessage(), e);
+        }
+    }
+
+    private int laneIndex(String topic) {
+        int h = topic.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), lanes.length);
+    }
+
+    private void run(Runnable task, long enqueuedAt) {
+        long start = System.nanoTime();
+        totalWaitNanos.add(start - enqueuedAt);
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            failed.increment();
+            log.error("MQTT message dispatch failed: {}", e.getMessage(), e);
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            totalHandlerNanos.add(elapsed);
+            if (elapsed > maxHandlerNanos.get()) {
+                maxHandlerNanos.accumulateAndGet(elapsed, Math::max);
+            }
+            processed.increment();
+        }
+    }
+
+    private static ThreadFactory platformThreads() {
+        return Thread.ofPlatform().name("mqtt-dispatch-", 0).daemon(true).factory();
+    }
+
+    private record Task(Runnable runnable, Runnable discard, long enqueuedAt) {
+    }
+
+    private final class Lane implements Runnable {
+        private final ConcurrentLinkedQueue<Task> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private void submit(Task task) {
+            queue.offer(task);
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    Task discarded;
+                    while ((discarded = queue.poll()) != null) {
+                        queueDepth.decrementAndGet();
+                        discard(discarded.discard());
+                    }
+                    signalCapacity();
+                    log.warn("MQTT dispatch is shut down, message dropped");
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            do {
+                Task task;
+                while ((task = queue.poll()) != null) {
+                    queueDepth.decrementAndGet();
+                    // A blocked producer registers before re-checking the depth, so this cannot miss it
+                    if (blockedProducers.get() > 0) {
+                        signalCapacity();
+                    }
+                    TopicOrderedExecutor.this.run(task.runnable(), task.enqueuedAt());
+                }
+                scheduled.set(false);
+                // A producer may have enqueued after the last poll but before the flag was cleared
+            } while (!queue.isEmpty() && scheduled.compareAndSet(false, true));
+        }
+    }
+}
@@ -0,0 +1,477 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.telemetry;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.telemetry.exception.TelemetryLogException;
+import com.h.udemy.java.uservices.infrastructure.mqtt.topic.TopicFilterTrie;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of raw MQTT messages in memory-mapped segment files, for keeping days of device data
+ * locally and reading it back by time range.
+ * <p>
+ * An append is a memory copy into the mapped head segment; the page cache writes it out sequentially.
+ * Topics are stored as small integer ids, declared by a topic record the first time a segment uses them,
+ * so every segment can be read (and deleted) on its own. Timestamps never decrease along the log, and
+ * each segment keeps a sparse index of one timestamp every {@code indexInterval} bytes: a range scan
+ * skips whole segments by their first and last timestamp, binary-searches the index of the first one
+ * and reads sequentially from there. Reads don't block appends.
+ * <p>
+ * Records are checksummed and the head segment is scanned on startup, so a torn write at the tail is
+ * detected and overwritten by the next append. A segment the log rolled away from is sealed: it is forced
+ * to disk and its index and topics are saved next to it, so startup reads that small file instead of
+ * scanning the segment. A sealed segment without a valid index file is scanned once and the file rewritten.
+ */
+@Slf4j
+public class TelemetryLog implements AutoCloseable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_INDEX_INTERVAL = 4096;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int INDEX_VERSION = 1;
+    private static final byte TOPIC = 1;
+    private static final byte MESSAGE = 2;
+    // Record layout: int bodyLength, int crc32c(body), body = type, long timestamp, int topicId, topic name or payload
+    private static final int RECORD_PREFIX = 8;
+    private static final int BODY_HEADER = 1 + 8 + 4;
+    private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int indexInterval;
+    private final long retentionMillis;
+
+    private final Map<String, Topic> topics = new HashMap<>();
+    private final Map<Integer, String> topicNames = new ConcurrentHashMap<>();
+    private final CRC32C checksum = new CRC32C();
+    // Oldest first; replaced rather than modified so readers iterate a stable snapshot
+    private volatile List<Segment> segments = List.of();
+    private Segment head;
+    private long nextSegmentId;
+    private int nextTopicId;
+    private long lastTimestamp = NO_TIMESTAMP;
+    private boolean closed;
+
+    public TelemetryLog(Path directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_INDEX_INTERVAL, 0);
+    }
+
+    /**
+     * @param retentionMillis segments whose newest record is older than this are deleted when the log rolls
+     *                        to a new segment; 0 keeps everything
+     */
+    public TelemetryLog(Path directory, int segmentSize, int indexInterval, long retentionMillis) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.indexInterval = indexInterval;
+        this.retentionMillis = retentionMillis;
+        try {
+            Files.createDirectories(directory);
+            List<Segment> recovered = new ArrayList<>();
+            List<Path> files = segmentFiles();
+            for (int i = 0; i < files.size(); i++) {
+                recovered.add(recover(files.get(i), i == files.size() - 1));
+            }
+            segments = List.copyOf(recovered);
+            if (recovered.isEmpty()) {
+                roll(0, NO_TIMESTAMP);
+            } else {
+                head = recovered.getLast();
+            }
+        } catch (IOException e) {
+            throw new TelemetryLogException("Failed to open telemetry log at " + directory, e);
+        }
+        log.info("Opened telemetry log at {}: {} topic(s) in {} segment(s)", directory, topics.size(),
+                segments.size());
+    }
+
+    public synchronized void append(String topic, long timestamp, byte[] payload) {
+        if (closed) {
+            throw new TelemetryLogException("Telemetry log at " + directory + " is closed");
+        }
+        // Out-of-order clocks are clamped so a time range stays one contiguous run of records
+        long time = Math.max(timestamp, lastTimestamp);
+        Topic id = topics.get(topic);
+        if (id == null) {
+            id = new Topic(nextTopicId++, topic.getBytes(StandardCharsets.UTF_8));
+            topics.put(topic, id);
+            topicNames.put(id.id(), topic);
+        }
+        int topicRecord = RECORD_PREFIX + BODY_HEADER + id.name().length;
+        int messageRecord = RECORD_PREFIX + BODY_HEADER + payload.length;
+        int needed = messageRecord + (head.declared.contains(id.id()) ? 0 : topicRecord);
+        if (head.buffer.capacity() - head.position < needed) {
+            try {
+                // Seals the head: forces it to disk and writes its index file
+                roll(topicRecord + messageRecord, time);
+            } catch (IOException e) {
+                throw new TelemetryLogException("Failed to roll telemetry log at " + directory, e);
+            }
+        }
+        if (head.declared.add(id.id())) {
+            write(TOPIC, time, id.id(), id.name());
+        }
+        int offset = write(MESSAGE, time, id.id(), payload);
+        head.appended(time, offset);
+        lastTimestamp = time;
+    }
+
+    /**
+     * Reads the messages appended in {@code [fromMillis, toMillis)} in log order.
+     *
+     * @param topicFilter MQTT topic filter the messages must match, or null for all of them
+     * @return the number of messages passed to {@code consumer}
+     */
+    public int read(long fromMillis, long toMillis, String topicFilter, Consumer<TelemetryRecord> consumer) {
+        TopicFilterTrie<Boolean> filter = new TopicFilterTrie<>();
+        if (topicFilter != null) {
+            filter.computeIfAbsent(topicFilter, () -> Boolean.TRUE);
+        }
+        Map<Integer, Boolean> matches = new HashMap<>();
+        int count = 0;
+        for (Segment segment : segments) {
+            if (segment.firstTimestamp == NO_TIMESTAMP || segment.lastTimestamp < fromMillis) {
+                continue;
+            }
+            if (segment.firstTimestamp >= toMillis) {
+                break;
+            }
+            MappedByteBuffer buffer = segment.buffer;
+            int end = segment.committed;
+            int offset = segment.seek(fromMillis);
+            while (offset < end) {
+                int bodyLength = buffer.getInt(offset);
+                int position = offset + RECORD_PREFIX;
+                offset = position + bodyLength;
+                long time = buffer.getLong(position + 1);
+                if (time >= toMillis) {
+                    return count;
+                }
+                if (buffer.get(position) != MESSAGE || time < fromMillis) {
+                    continue;
+                }
+                int topicId = buffer.getInt(position + 9);
+                String topic = topicNames.get(topicId);
+                if (topicFilter != null && !matches.computeIfAbsent(topicId, id -> filter.matches(topic))) {
+                    continue;
+                }
+                byte[] payload = new byte[bodyLength - BODY_HEADER];
+                buffer.get(position + BODY_HEADER, payload);
+                consumer.accept(new TelemetryRecord(topic, time, payload));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int read(long fromMillis, long toMillis, Consumer<TelemetryRecord> consumer) {
+        return read(fromMillis, toMillis, null, consumer);
+    }
+
+    // Forces the head segment to disk; appends are otherwise flushed by the OS and when a segment fills
+    public synchronized void flush() {
+        if (!closed) {
+            head.buffer.force();
+        }
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            head.buffer.force();
+            closed = true;
+        }
+    }
+
+    private int write(byte type, long time, int topicId, byte[] data) {
+        MappedByteBuffer buffer = head.buffer;
+        int offset = head.position;
+        int bodyLength = BODY_HEADER + data.length;
+        int position = offset + RECORD_PREFIX;
+        buffer.put(position, type);
+        buffer.putLong(position + 1, time);
+        buffer.putInt(position + 9, topicId);
+        buffer.put(position + BODY_HEADER, data);
+        checksum.reset();
+        checksum.update(buffer.slice(position, bodyLength));
+        buffer.putInt(offset + 4, (int) checksum.getValue());
+        buffer.putInt(offset, bodyLength);
+        head.position = position + bodyLength;
+        return offset;
+    }
+
+    private void roll(int minimumSize, long time) throws IOException {
+        int size = Math.max(segmentSize, minimumSize);
+        if (head != null) {
+            writeIndex(head);
+        }
+        Path path = directory.resolve(String.format("%020d%s", nextSegmentId++, SEGMENT_SUFFIX));
+        head = new Segment(path, map(path, size));
+
+        List<Segment> kept = new ArrayList<>(segments.size() + 1);
+        for (Segment segment : segments) {
+            if (retentionMillis > 0 && time != NO_TIMESTAMP && segment.lastTimestamp < time - retentionMillis) {
+                // Readers still holding the mapping keep reading it until it is garbage collected
+                Files.deleteIfExists(segment.path);
+                Files.deleteIfExists(indexPath(segment.path));
+                log.debug("Deleted expired telemetry log segment {}", segment.path.getFileName());
+            } else {
+                kept.add(segment);
+            }
+        }
+        kept.add(head);
+        segments = List.copyOf(kept);
+    }
+
+    private Segment recover(Path file, boolean head) throws IOException {
+        String name = file.getFileName().toString();
+        long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        Segment segment = new Segment(file, map(file, (int) Files.size(file)));
+        nextSegmentId = Math.max(nextSegmentId, id + 1);
+        if (head) {
+            scan(segment);
+        } else if (!readIndex(segment)) {
+            scan(segment);
+            writeIndex(segment);
+        }
+        return segment;
+    }
+
+    // Rebuilds the segment's topics and index from its records, up to the first one that fails its checksum
+    private void scan(Segment segment) {
+        String name = segment.path.getFileName().toString();
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (offset + RECORD_PREFIX <= buffer.capacity()) {
+            int bodyLength = buffer.getInt(offset);
+            if (bodyLength < BODY_HEADER || offset + RECORD_PREFIX + bodyLength > buffer.capacity()) {
+                break;
+            }
+            int position = offset + RECORD_PREFIX;
+            checksum.reset();
+            checksum.update(buffer.slice(position, bodyLength));
+            if ((int) checksum.getValue() != buffer.getInt(offset + 4)) {
+                log.warn("Ignoring torn telemetry log record at {} offset {}", name, offset);
+                break;
+            }
+            long time = buffer.getLong(position + 1);
+            int topicId = buffer.getInt(position + 9);
+            segment.position = position + bodyLength;
+            if (buffer.get(position) == TOPIC) {
+                byte[] topicBytes = new byte[bodyLength - BODY_HEADER];
+                buffer.get(position + BODY_HEADER, topicBytes);
+                String topic = new String(topicBytes, StandardCharsets.UTF_8);
+                topics.putIfAbsent(topic, new Topic(topicId, topicBytes));
+                topicNames.put(topicId, topic);
+                segment.declared.add(topicId);
+                nextTopicId = Math.max(nextTopicId, topicId + 1);
+            } else {
+                segment.appended(time, offset);
+                lastTimestamp = Math.max(lastTimestamp, time);
+            }
+            offset = segment.position;
+        }
+    }
+
+    // Index file: version, end, first and last timestamp, topics (id, name), index entries (time, offset), crc32c
+    private void writeIndex(Segment segment) throws IOException {
+        segment.buffer.force();
+        int size = 4 + 4 + 8 + 8 + 4 + 4 + segment.indexSize * (8 + 4) + 4;
+        List<byte[]> names = new ArrayList<>(segment.declared.size());
+        for (int topicId : segment.declared) {
+            byte[] topicName = topicNames.get(topicId).getBytes(StandardCharsets.UTF_8);
+            names.add(topicName);
+            size += 4 + 4 + topicName.length;
+        }
+        ByteBuffer index = ByteBuffer.allocate(size);
+        index.putInt(INDEX_VERSION).putInt(segment.committed)
+                .putLong(segment.firstTimestamp).putLong(segment.lastTimestamp);
+        index.putInt(segment.declared.size());
+        int i = 0;
+        for (int topicId : segment.declared) {
+            byte[] topicName = names.get(i++);
+            index.putInt(topicId).putInt(topicName.length).put(topicName);
+        }
+        index.putInt(segment.indexSize);
+        for (int entry = 0; entry < segment.indexSize; entry++) {
+            index.putLong(segment.indexTimes[entry]).putInt(segment.indexOffsets[entry]);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(index.array(), 0, index.position());
+        index.putInt((int) crc.getValue());
+
+        // Written aside and moved into place, so a crash leaves either no index or a complete one
+        Path path = indexPath(segment.path);
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temporary, index.array());
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private boolean readIndex(Segment segment) throws IOException {
+        Path path = indexPath(segment.path);
+        if (!Files.exists(path)) {
+            return false;
+        }
+        byte[] bytes = Files.readAllBytes(path);
+        try {
+            CRC32C crc = new CRC32C();
+            crc.update(bytes, 0, bytes.length - 4);
+            ByteBuffer index = ByteBuffer.wrap(bytes);
+            if ((int) crc.getValue() != index.getInt(bytes.length - 4) || index.getInt() != INDEX_VERSION) {
+                throw new IOException("checksum or version mismatch");
+            }
+            int end = index.getInt();
+            long first = index.getLong();
+            long last = index.getLong();
+            if (end < 0 || end > segment.buffer.capacity()) {
+                throw new IOException("end " + end + " is outside the segment");
+            }
+            Map<Integer, byte[]> declared = new HashMap<>();
+            for (int count = index.getInt(); count > 0; count--) {
+                int topicId = index.getInt();
+                int length = index.getInt();
+                if (length < 0 || length > index.remaining()) {
+                    throw new IOException("topic name length " + length);
+                }
+                byte[] topicName = new byte[length];
+                index.get(topicName);
+                declared.put(topicId, topicName);
+            }
+            int entries = index.getInt();
+            if (entries < 0 || entries > index.remaining() / (8 + 4)) {
+                throw new IOException(entries + " index entries");
+            }
+            long[] times = new long[Math.max(entries, 1)];
+            int[] offsets = new int[Math.max(entries, 1)];
+            for (int entry = 0; entry < entries; entry++) {
+                times[entry] = index.getLong();
+                offsets[entry] = index.getInt();
+            }
+
+            declared.forEach((topicId, topicName) -> {
+                String topic = new String(topicName, StandardCharsets.UTF_8);
+                topics.putIfAbsent(topic, new Topic(topicId, topicName));
+                topicNames.put(topicId, topic);
+                segment.declared.add(topicId);
+                nextTopicId = Math.max(nextTopicId, topicId + 1);
+            });
+            segment.indexTimes = times;
+            segment.indexOffsets = offsets;
+            segment.indexSize = entries;
+            segment.position = end;
+            segment.committed = end;
+            segment.firstTimestamp = first;
+            segment.lastTimestamp = last;
+            if (last != NO_TIMESTAMP) {
+                lastTimestamp = Math.max(lastTimestamp, last);
+            }
+            return true;
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
+            log.warn("Ignoring invalid telemetry log index {}, scanning its segment: {}", path.getFileName(),
+                    e.getMessage());
+            return false;
+        }
+    }
+
+    private static Path indexPath(Path segmentPath) {
+        String name = segmentPath.getFileName().toString();
+        return segmentPath.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        // The mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private record Topic(int id, byte[] name) {
+    }
+
+    private final class Segment {
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private final Set<Integer> declared = new HashSet<>();
+        private int position;
+        // End of the records readers may see
+        private volatile int committed;
+        private volatile long firstTimestamp = NO_TIMESTAMP;
+        private volatile long lastTimestamp = NO_TIMESTAMP;
+        private long[] indexTimes = new long[64];
+        private int[] indexOffsets = new int[64];
+        private int indexSize;
+
+        private Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        private synchronized void appended(long time, int offset) {
+            if (indexSize == 0 || offset - indexOffsets[indexSize - 1] >= indexInterval) {
+                if (indexSize == indexTimes.length) {
+                    indexTimes = Arrays.copyOf(indexTimes, indexSize * 2);
+                    indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+                }
+                indexTimes[indexSize] = time;
+                indexOffsets[indexSize++] = offset;
+            }
+            if (firstTimestamp == NO_TIMESTAMP) {
+                firstTimestamp = time;
+            }
+            lastTimestamp = time;
+            committed = position;
+        }
+
+        // Offset of the last indexed record before fromMillis, from which a scan finds every record at or after it
+        private synchronized int seek(long fromMillis) {
+            int low = 0;
+            int high = indexSize - 1;
+            int offset = 0;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (indexTimes[middle] < fromMillis) {
+                    offset = indexOffsets[middle];
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return offset;
+        }
+    }
+}
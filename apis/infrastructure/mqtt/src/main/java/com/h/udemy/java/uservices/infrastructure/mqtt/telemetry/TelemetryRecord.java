@@ -0,0 +1,9 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.telemetry;
+
+/**
+ * A message read back from the {@link TelemetryLog}.
+ *
+ * @param timestamp epoch millis at which the message was appended
+ */
+public record TelemetryRecord(String topic, long timestamp, byte[] payload) {
+}
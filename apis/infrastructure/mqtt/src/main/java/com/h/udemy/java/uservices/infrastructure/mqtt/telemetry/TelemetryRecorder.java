@@ -0,0 +1,55 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.telemetry;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.service.MqttService;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttAcknowledgement;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttSubscriber;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+
+/**
+ * Subscribes to topic filters and appends every message, as received, to a {@link TelemetryLog}.
+ * A message is acknowledged once it is in the log. One that fails to append is left unacknowledged, so
+ * with manual acks and a persistent session the broker redelivers it after reconnecting.
+ */
+@Slf4j
+public class TelemetryRecorder implements AutoCloseable {
+
+    private final MqttService mqttService;
+    private final TelemetryLog telemetryLog;
+    private final List<String> topics;
+    private final int qos;
+
+    public TelemetryRecorder(MqttService mqttService, TelemetryLog telemetryLog, List<String> topics, int qos) {
+        this.mqttService = mqttService;
+        this.telemetryLog = telemetryLog;
+        this.topics = topics;
+        this.qos = qos;
+    }
+
+    public void start() {
+        for (String topic : topics) {
+            mqttService.subscribeAcknowledged(topic, this::onMessage, qos);
+        }
+        log.info("Recording {} to the telemetry log", topics);
+    }
+
+    public TelemetryLog getTelemetryLog() {
+        return telemetryLog;
+    }
+
+    @Override
+    public void close() {
+        telemetryLog.close();
+    }
+
+    private void onMessage(String topic, MqttSubscriber.MqttV5Message message, MqttAcknowledgement acknowledgement) {
+        try {
+            telemetryLog.append(topic, System.currentTimeMillis(), message.getPayload());
+        } catch (Exception e) {
+            log.error("Failed to record message on '{}', leaving it unacknowledged: {}", topic, e.getMessage(), e);
+            return;
+        }
+        acknowledgement.acknowledge();
+    }
+}
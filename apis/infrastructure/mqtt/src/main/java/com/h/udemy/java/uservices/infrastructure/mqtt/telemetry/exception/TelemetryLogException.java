@@ -0,0 +1,12 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.telemetry.exception;
+
+public class TelemetryLogException extends RuntimeException {
+
+    public TelemetryLogException(String message) {
+        super(message);
+    }
+
+    public TelemetryLogException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,170 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.timer;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel for large numbers of short timeouts that are usually cancelled before they fire.
+ * <p>
+ * Timeouts are hashed by expiry tick into a ring of buckets, and one worker thread advances the ring
+ * every tick and fires what is due in the current bucket. Scheduling and cancelling are O(1) and lock-free,
+ * with no thread or heap entry per timeout; the price is that a timeout fires up to one tick late.
+ * Tasks run on the worker thread and must be short.
+ */
+@Slf4j
+public class HashedWheelTimer implements AutoCloseable {
+
+    private final long tickNanos;
+    private final ArrayList<Timeout>[] wheel;
+    private final int mask;
+    private final long startTime = System.nanoTime();
+    // Scheduled timeouts waiting for the worker to put them in their bucket
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Thread worker;
+    private volatile boolean running = true;
+    private long tick;
+
+    @SuppressWarnings("unchecked")
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        if (tickDuration <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("Tick duration and wheel size must be positive");
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        // Power of two, so the bucket of a tick is a mask instead of a division
+        int size = Integer.highestOneBit(wheelSize - 1) << 1;
+        this.wheel = new ArrayList[Math.max(1, size)];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        this.mask = wheel.length - 1;
+        this.worker = Thread.ofPlatform().name(name).daemon(true).start(this::run);
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (!running) {
+            throw new IllegalStateException("Timer is stopped");
+        }
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(delay));
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    // Timeouts not yet fired or discarded; cancelled ones count until the worker reaches their bucket
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    public long getTickNanos() {
+        return tickNanos;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        worker.interrupt();
+        try {
+            worker.join(TimeUnit.NANOSECONDS.toMillis(tickNanos) + 1_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            long tickEnd = startTime + (tick + 1) * tickNanos;
+            long now;
+            while ((now = System.nanoTime()) < tickEnd && running) {
+                LockSupport.parkNanos(this, tickEnd - now);
+            }
+            if (!running) {
+                return;
+            }
+            transferAdded();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.isCancelled()) {
+                pending.decrementAndGet();
+                continue;
+            }
+            // Already-due timeouts go in the current bucket and fire on this tick
+            long dueTick = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.remainingRounds = (dueTick - tick) / wheel.length;
+            wheel[(int) (dueTick & mask)].add(timeout);
+        }
+    }
+
+    private void expire(ArrayList<Timeout> bucket) {
+        int i = 0;
+        while (i < bucket.size()) {
+            Timeout timeout = bucket.get(i);
+            if (timeout.remainingRounds > 0 && !timeout.isCancelled()) {
+                timeout.remainingRounds--;
+                i++;
+                continue;
+            }
+            // Order within a bucket does not matter, so remove by swapping in the last entry
+            int last = bucket.size() - 1;
+            bucket.set(i, bucket.get(last));
+            bucket.remove(last);
+            pending.decrementAndGet();
+            timeout.expire();
+        }
+    }
+
+    public static final class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final Runnable task;
+        private final long deadline;
+        private long remainingRounds;
+        private volatile int state = PENDING;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // True if the task will not run; false if it already ran (or is running)
+        public boolean cancel() {
+            return STATE.compareAndSet(this, PENDING, CANCELLED) || state == CANCELLED;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        private void expire() {
+            if (!STATE.compareAndSet(this, PENDING, EXPIRED)) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("Timer task failed: {}", e.getMessage(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.topic;
+
+/**
+ * MQTT v5 shared subscription filters, {@code $share/<group>/<topic filter>}.
+ * <p>
+ * The broker hands each message matching a shared subscription to only one of the clients
+ * subscribed with the same group, so service instances sharing a group split the load.
+ * Messages arrive on their plain topic, so handlers are indexed by the filter without the prefix.
+ */
+public final class SharedSubscription {
+
+    public static final String SHARE_PREFIX = "$share/";
+
+    private SharedSubscription() {
+    }
+
+    public static String filter(String group, String topicFilter) {
+        if (group == null || group.isEmpty() || group.indexOf(TopicFilterTrie.LEVEL_SEPARATOR) >= 0
+                || group.contains(TopicFilterTrie.SINGLE_LEVEL_WILDCARD)
+                || group.contains(TopicFilterTrie.MULTI_LEVEL_WILDCARD)) {
+            throw new IllegalArgumentException("Invalid MQTT share group name: '" + group + "'");
+        }
+        return SHARE_PREFIX + group + TopicFilterTrie.LEVEL_SEPARATOR + topicFilter;
+    }
+
+    public static boolean isShared(String filter) {
+        return filter.startsWith(SHARE_PREFIX);
+    }
+
+    // The filter incoming topics are matched against: "$share/group/a/+" -> "a/+"
+    public static String topicFilter(String filter) {
+        return isShared(filter) ? filter.substring(groupEnd(filter) + 1) : filter;
+    }
+
+    public static String group(String filter) {
+        return isShared(filter) ? filter.substring(SHARE_PREFIX.length(), groupEnd(filter)) : null;
+    }
+
+    private static int groupEnd(String filter) {
+        int end = filter.indexOf(TopicFilterTrie.LEVEL_SEPARATOR, SHARE_PREFIX.length());
+        if (end <= SHARE_PREFIX.length() || end == filter.length() - 1) {
+            throw new IllegalArgumentException("Invalid MQTT shared subscription: '" + filter + "'");
+        }
+        return end;
+    }
+}
@@ -0,0 +1,280 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.topic;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Index of MQTT topic filters (including {@code +} and {@code #} wildcards) to values.
+ * <p>
+ * Reads are lock-free and allocation-free: a topic is walked level by level straight out of the
+ * topic string, so the cost of {@link #match} depends on the topic depth and the number of
+ * wildcard branches, not on how many filters are registered. Writes are copy-on-write and
+ * serialized, which suits the subscribe-rarely/match-constantly pattern of a subscriber.
+ */
+public class TopicFilterTrie<T> {
+
+    public static final char LEVEL_SEPARATOR = '/';
+    public static final String SINGLE_LEVEL_WILDCARD = "+";
+    public static final String MULTI_LEVEL_WILDCARD = "#";
+
+    private final Node<T> root = new Node<>(null, 0);
+    private final Object writeLock = new Object();
+
+    @FunctionalInterface
+    public interface MatchVisitor<T, A> {
+        void visit(T value, String topic, A argument);
+    }
+
+    public T get(String filter) {
+        Node<T> node = root;
+        for (String level : levels(filter)) {
+            node = node.child(level);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node.value;
+    }
+
+    public T computeIfAbsent(String filter, Supplier<T> factory) {
+        T existing = get(filter);
+        if (existing != null) {
+            return existing;
+        }
+        synchronized (writeLock) {
+            Node<T> node = root;
+            for (String level : levels(filter)) {
+                node = node.getOrCreateChild(level);
+            }
+            if (node.value == null) {
+                node.value = factory.get();
+            }
+            return node.value;
+        }
+    }
+
+    public T remove(String filter) {
+        synchronized (writeLock) {
+            String[] levels = levels(filter);
+            @SuppressWarnings("unchecked")
+            Node<T>[] path = new Node[levels.length + 1];
+            path[0] = root;
+            for (int i = 0; i < levels.length; i++) {
+                path[i + 1] = path[i].child(levels[i]);
+                if (path[i + 1] == null) {
+                    return null;
+                }
+            }
+            Node<T> node = path[levels.length];
+            T removed = node.value;
+            node.value = null;
+
+            // Prune branches that no longer lead to any filter
+            for (int i = levels.length; i > 0 && path[i].isEmpty(); i--) {
+                path[i - 1].removeChild(levels[i - 1]);
+            }
+            return removed;
+        }
+    }
+
+    public boolean isEmpty() {
+        return root.isEmpty();
+    }
+
+    /**
+     * Visits the value of every filter matching {@code topic}, each at most once.
+     *
+     * @return the number of matching filters
+     */
+    public <A> int match(String topic, A argument, MatchVisitor<T, A> visitor) {
+        // Wildcards at the first level never match topics beginning with '$' (MQTT 5, 4.7.2)
+        boolean systemTopic = !topic.isEmpty() && topic.charAt(0) == '$';
+        return match(root, topic, 0, systemTopic, argument, visitor);
+    }
+
+    public boolean matches(String topic) {
+        return match(topic, null, (value, t, argument) -> { }) > 0;
+    }
+
+    /**
+     * @param start index of the next topic level to consume, or -1 once every level has been consumed
+     */
+    private <A> int match(Node<T> node, String topic, int start, boolean systemTopic,
+                          A argument, MatchVisitor<T, A> visitor) {
+        int matched = 0;
+        boolean wildcardsAllowed = !(systemTopic && node == root);
+
+        Node<T> multiLevel = wildcardsAllowed ? node.multiLevel : null;
+        if (multiLevel != null && multiLevel.value != null) {
+            // "a/#" also matches the parent level "a"
+            visitor.visit(multiLevel.value, topic, argument);
+            matched++;
+        }
+
+        if (start < 0) {
+            if (node.value != null) {
+                visitor.visit(node.value, topic, argument);
+                matched++;
+            }
+            return matched;
+        }
+
+        int end = topic.indexOf(LEVEL_SEPARATOR, start);
+        if (end < 0) {
+            end = topic.length();
+        }
+        int next = end == topic.length() ? -1 : end + 1;
+
+        Node<T> singleLevel = wildcardsAllowed ? node.singleLevel : null;
+        if (singleLevel != null) {
+            matched += match(singleLevel, topic, next, systemTopic, argument, visitor);
+        }
+        Node<T> exact = node.child(topic, start, end);
+        if (exact != null) {
+            matched += match(exact, topic, next, systemTopic, argument, visitor);
+        }
+        return matched;
+    }
+
+    private static String[] levels(String filter) {
+        if (filter == null || filter.isEmpty()) {
+            throw new IllegalArgumentException("Topic filter must not be empty");
+        }
+        String[] levels = filter.split(String.valueOf(LEVEL_SEPARATOR), -1);
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            boolean wildcardLevel = level.equals(SINGLE_LEVEL_WILDCARD) || level.equals(MULTI_LEVEL_WILDCARD);
+            if (!wildcardLevel && (level.contains(SINGLE_LEVEL_WILDCARD) || level.contains(MULTI_LEVEL_WILDCARD))) {
+                throw new IllegalArgumentException("Wildcards must occupy a whole level: " + filter);
+            }
+            if (level.equals(MULTI_LEVEL_WILDCARD) && i != levels.length - 1) {
+                throw new IllegalArgumentException("'#' must be the last level: " + filter);
+            }
+        }
+        return levels;
+    }
+
+    private static int hash(String s, int from, int to) {
+        // Same as String.hashCode() over the region, so stored levels can use their cached hash
+        int h = 0;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        return h;
+    }
+
+    private static final class Node<T> {
+        private final String level;
+        private final int hash;
+        private volatile T value;
+        private volatile Node<T> singleLevel;
+        private volatile Node<T> multiLevel;
+
+        // Open-addressed table of literal children, replaced wholesale on every write
+        private volatile Node<T>[] children;
+        private int childCount;
+
+        private Node(String level, int hash) {
+            this.level = level;
+            this.hash = hash;
+        }
+
+        private Node<T> child(String level) {
+            if (level.equals(SINGLE_LEVEL_WILDCARD)) {
+                return singleLevel;
+            }
+            if (level.equals(MULTI_LEVEL_WILDCARD)) {
+                return multiLevel;
+            }
+            return child(level, 0, level.length());
+        }
+
+        private Node<T> child(String topic, int from, int to) {
+            Node<T>[] table = children;
+            if (table == null) {
+                return null;
+            }
+            int length = to - from;
+            int h = hash(topic, from, to);
+            int mask = table.length - 1;
+            for (int i = spread(h) & mask; ; i = (i + 1) & mask) {
+                Node<T> candidate = table[i];
+                if (candidate == null) {
+                    return null;
+                }
+                if (candidate.hash == h && candidate.level.length() == length
+                        && topic.regionMatches(from, candidate.level, 0, length)) {
+                    return candidate;
+                }
+            }
+        }
+
+        private Node<T> getOrCreateChild(String level) {
+            Node<T> existing = child(level);
+            if (existing != null) {
+                return existing;
+            }
+            Node<T> created = new Node<>(level, level.hashCode());
+            if (level.equals(SINGLE_LEVEL_WILDCARD)) {
+                singleLevel = created;
+            } else if (level.equals(MULTI_LEVEL_WILDCARD)) {
+                multiLevel = created;
+            } else {
+                Node<T>[] table = copyChildren(childCount + 1);
+                insert(table, created);
+                childCount++;
+                children = table;
+            }
+            return created;
+        }
+
+        private void removeChild(String level) {
+            if (level.equals(SINGLE_LEVEL_WILDCARD)) {
+                singleLevel = null;
+            } else if (level.equals(MULTI_LEVEL_WILDCARD)) {
+                multiLevel = null;
+            } else if (children != null) {
+                Node<T>[] table = newTable(childCount - 1);
+                for (Node<T> node : children) {
+                    if (node != null && !node.level.equals(level)) {
+                        insert(table, node);
+                    }
+                }
+                childCount--;
+                children = childCount == 0 ? null : table;
+            }
+        }
+
+        private boolean isEmpty() {
+            return value == null && singleLevel == null && multiLevel == null && childCount == 0;
+        }
+
+        private Node<T>[] copyChildren(int size) {
+            Node<T>[] table = newTable(size);
+            if (children != null) {
+                Arrays.stream(children).filter(node -> node != null).forEach(node -> insert(table, node));
+            }
+            return table;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> Node<T>[] newTable(int size) {
+            // Keep the load factor at or below 0.5 so probe sequences stay short
+            int capacity = Integer.highestOneBit(Math.max(2, size) * 2 - 1) << 1;
+            return new Node[capacity];
+        }
+
+        private static <T> void insert(Node<T>[] table, Node<T> node) {
+            int mask = table.length - 1;
+            int i = spread(node.hash) & mask;
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = node;
+        }
+
+        private static int spread(int h) {
+            return h ^ (h >>> 16);
+        }
+    }
+}
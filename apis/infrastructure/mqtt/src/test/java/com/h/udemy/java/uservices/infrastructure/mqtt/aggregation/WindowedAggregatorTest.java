@@ -0,0 +1,155 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.aggregation;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
+import com.h.udemy.java.uservices.infrastructure.mqtt.service.MqttService;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.AcknowledgingMessageHandler;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttAcknowledgement;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.SubscriptionFixture.deliver;
+import static com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.SubscriptionFixture.handlerFor;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class WindowedAggregatorTest {
+
+    private MqttService mqttService;
+    private ApiMqttProperties.Aggregation config;
+
+    @BeforeEach
+    void setUp() {
+        mqttService = mock(MqttService.class);
+        when(mqttService.publishAsync(anyString(), any(Object.class))).thenReturn(CompletableFuture.completedFuture(null));
+        config = new ApiMqttProperties.Aggregation();
+        config.setTopics("sensors/+/temperature");
+        config.setWindowMillis(1_000);
+    }
+
+    @Test
+    void tumbling_window_emits_count_min_max_mean_and_percentiles() {
+        WindowedAggregator aggregator = new WindowedAggregator(mqttService, config);
+        for (int i = 1; i <= 100; i++) {
+            aggregator.add("sensors/a/temperature", i, 5_000 + i);
+        }
+        aggregator.add("sensors/a/temperature", 1_000, 6_000); // next window
+
+        aggregator.closeWindow(6_000);
+
+        assertEquals(new WindowSummary("sensors/a/temperature", 5_000, 6_000, 100, 1, 100, 50.5,
+                Map.of("p50", 50.0, "p90", 90.0, "p99", 99.0)), published("aggregates/sensors/a/temperature"));
+        assertEquals(1, aggregator.getWindowCount());
+    }
+
+    @Test
+    void sliding_window_overlaps_the_previous_panes() {
+        config.setSlideMillis(500);
+        WindowedAggregator aggregator = new WindowedAggregator(mqttService, config);
+        aggregator.add("k", 1, 10_100);
+        aggregator.add("k", 3, 10_600);
+        aggregator.add("k", 5, 11_200);
+
+        aggregator.closeWindow(11_000);
+        assertEquals(new WindowSummary("k", 10_000, 11_000, 2, 1, 3, 2, Map.of("p50", 1.0, "p90", 3.0, "p99", 3.0)),
+                published("aggregates/k"));
+
+        aggregator.closeWindow(11_500);
+        ArgumentCaptor<Object> summaries = ArgumentCaptor.forClass(Object.class);
+        verify(mqttService, times(2)).publishAsync(eq("aggregates/k"), summaries.capture());
+        assertEquals(new WindowSummary("k", 10_500, 11_500, 2, 3, 5, 4, Map.of("p50", 3.0, "p90", 5.0, "p99", 5.0)),
+                summaries.getValue());
+
+        aggregator.closeWindow(12_000);
+        aggregator.closeWindow(12_500); // last sample has slid out
+        assertEquals(3, aggregator.getWindowCount());
+    }
+
+    @Test
+    void samples_for_a_key_retired_while_idle_go_to_a_new_window() {
+        when(mqttService.publishAsync(anyString(), any(Object.class)))
+                .thenReturn(CompletableFuture.failedFuture(new IllegalStateException("not connected")));
+        WindowedAggregator aggregator = new WindowedAggregator(mqttService, config);
+        aggregator.add("k", 1, 5_000);
+        aggregator.closeWindow(6_000);
+        aggregator.closeWindow(7_000); // idle: retired
+
+        aggregator.add("k", 2, 7_500);
+        aggregator.closeWindow(8_000);
+
+        ArgumentCaptor<Object> summaries = ArgumentCaptor.forClass(Object.class);
+        verify(mqttService, times(2)).publishAsync(eq("aggregates/k"), summaries.capture());
+        assertEquals(new WindowSummary("k", 7_000, 8_000, 1, 2, 2, 2, Map.of("p50", 2.0, "p90", 2.0, "p99", 2.0)),
+                summaries.getValue());
+        assertEquals(2, aggregator.getSampleCount());
+    }
+
+    @Test
+    void json_samples_are_grouped_by_key_field_and_acknowledged() {
+        config.setTopics("plant/#");
+        config.setValueField("/reading/value");
+        config.setKeyField("/line");
+        config.setSinkTopic("plant/aggregates/{key}");
+        config.setPercentiles(List.of(50.0));
+        config.setWindowMillis(60_000);
+        WindowedAggregator aggregator = new WindowedAggregator(mqttService, config);
+        aggregator.start();
+        aggregator.close();
+        AcknowledgingMessageHandler handler = handlerFor(mqttService, "plant/#");
+        MqttAcknowledgement acknowledgement = mock(MqttAcknowledgement.class);
+
+        deliver(handler, "plant/m1", "{\"line\":\"L1\",\"reading\":{\"value\":2.5}}", acknowledgement);
+        deliver(handler, "plant/m2", "{\"line\":\"L1\",\"reading\":{\"value\":3.5}}", acknowledgement);
+        deliver(handler, "plant/m3", "{\"line\":\"L2\",\"reading\":{\"value\":\"n/a\"}}", acknowledgement);
+        aggregator.closeWindow((System.currentTimeMillis() / 60_000 + 1) * 60_000);
+
+        WindowSummary summary = (WindowSummary) published("plant/aggregates/L1");
+        assertEquals(2, summary.count());
+        assertEquals(3.0, summary.mean());
+        assertEquals(Map.of("p50", 2.5), summary.percentiles());
+        assertEquals(2, aggregator.getSampleCount());
+        assertEquals(1, aggregator.getRejectedCount());
+        verify(acknowledgement, times(3)).acknowledge();
+    }
+
+    @Test
+    void json_pointers_reach_into_arrays_and_parsing_stops_once_both_are_resolved() {
+        config.setTopics("plant/#");
+        config.setValueField("/readings/1/value");
+        config.setKeyField("/line");
+        config.setSinkTopic("plant/aggregates/{key}");
+        config.setWindowMillis(60_000);
+        WindowedAggregator aggregator = new WindowedAggregator(mqttService, config);
+        aggregator.start();
+        aggregator.close();
+        AcknowledgingMessageHandler handler = handlerFor(mqttService, "plant/#");
+        MqttAcknowledgement acknowledgement = mock(MqttAcknowledgement.class);
+
+        // The rest of the document is never read, so its truncation goes unnoticed
+        deliver(handler, "plant/m1", "{\"line\":7,\"readings\":[{\"value\":1.0},{\"value\":4.5}],\"notes\":",
+                acknowledgement);
+        deliver(handler, "plant/m2", "{\"line\":7,\"readings\":[{\"value\":1.0}]}", acknowledgement);
+        aggregator.closeWindow((System.currentTimeMillis() / 60_000 + 1) * 60_000);
+
+        WindowSummary summary = (WindowSummary) published("plant/aggregates/7");
+        assertEquals(1, summary.count());
+        assertEquals(4.5, summary.mean());
+        assertEquals(1, aggregator.getRejectedCount());
+    }
+
+    private Object published(String topic) {
+        ArgumentCaptor<Object> summary = ArgumentCaptor.forClass(Object.class);
+        verify(mqttService).publishAsync(eq(topic), summary.capture());
+        return summary.getValue();
+    }
+}
@@ -0,0 +1,69 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.broker;
+
+import com.hivemq.embedded.EmbeddedHiveMQ;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// In-process MQTT v5 broker (HiveMQ CE) on a free local port, for tests that need a real broker
+public class EmbeddedBroker implements AutoCloseable {
+
+    private final Path directory;
+    private final int port;
+    private final EmbeddedHiveMQ hiveMQ;
+
+    public EmbeddedBroker() throws Exception {
+        this(freePort());
+    }
+
+    // A broker on a known port, e.g. one started after its clients or in place of a stopped one
+    public EmbeddedBroker(int port) throws Exception {
+        this.directory = Files.createTempDirectory("embedded-mqtt-broker");
+        this.port = port;
+        Path conf = Files.createDirectories(directory.resolve("conf"));
+        Files.writeString(conf.resolve("config.xml"), """
+                <?xml version="1.0"?>
+                <hivemq>
+                    <listeners>
+                        <tcp-listener>
+                            <port>%d</port>
+                            <bind-address>127.0.0.1</bind-address>
+                        </tcp-listener>
+                    </listeners>
+                    <persistence>
+                        <mode>in-memory</mode>
+                    </persistence>
+                    <anonymous-usage-statistics>
+                        <enabled>false</enabled>
+                    </anonymous-usage-statistics>
+                </hivemq>
+                """.formatted(port));
+        this.hiveMQ = EmbeddedHiveMQ.builder()
+                .withConfigurationFolder(conf)
+                .withDataFolder(Files.createDirectories(directory.resolve("data")))
+                .withExtensionsFolder(Files.createDirectories(directory.resolve("extensions")))
+                .withoutLoggingBootstrap()
+                .build();
+        hiveMQ.start().join();
+    }
+
+    public String url() {
+        return "tcp://127.0.0.1:" + port;
+    }
+
+    @Override
+    public void close() throws Exception {
+        hiveMQ.close();
+        try (var paths = Files.walk(directory)) {
+            paths.sorted((a, b) -> b.getNameCount() - a.getNameCount()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    public static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.broker;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.client.MqttClientPool;
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
+import com.h.udemy.java.uservices.infrastructure.mqtt.publisher.LatencyHistogram;
+import com.h.udemy.java.uservices.infrastructure.mqtt.publisher.MqttPublisher;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttSubscriber;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.dispatch.DispatchMode;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.dispatch.TopicOrderedExecutor;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * End-to-end throughput and latency of {@link MqttPublisher} to {@link MqttSubscriber} through an
+ * {@link EmbeddedBroker}, so configurations can be compared, and regressions caught, without a real broker.
+ * Each message carries its publish time, and the subscriber records the time to delivery in a
+ * {@link LatencyHistogram}.
+ * <p>
+ * Not a unit test; run {@code main} with optional arguments
+ * {@code messages payloadBytes qos topics clients outstanding}. Every argument but {@code messages} may be a
+ * comma-separated list, and every combination is measured, e.g. {@code 100000 64,1024 0,1,2 16 1,4 100,1000}.
+ * {@code clients} is the number of connections on each side, with one publishing thread per connection.
+ * {@code outstanding} bounds the messages published but not yet received: without a bound, publishers
+ * outrun the subscriber until the broker drops what overflows its queue, and latency measures queueing.
+ */
+public class MqttLoadBenchmark {
+
+    private static final int TIMESTAMP_BYTES = Long.BYTES;
+    // Paho logs every QoS 2 handshake at INFO; held so that its level is not lost with the logger
+    private static final Logger PAHO_LOGGER = Logger.getLogger("org.eclipse.paho");
+    // A run ends once every message arrived or none has for this long
+    private static final long QUIET_MILLIS = 1_000;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int[] payloadSizes = list(args, 1, "256");
+        int[] qosLevels = list(args, 2, "0,1");
+        int[] topicCounts = list(args, 3, "16");
+        int[] clientCounts = list(args, 4, "1");
+        int[] outstandingLimits = list(args, 5, "1000");
+        PAHO_LOGGER.setLevel(Level.WARNING);
+
+        try (EmbeddedBroker broker = new EmbeddedBroker()) {
+            System.out.printf("%d messages per run, latencies in microseconds%n", messages);
+            System.out.printf("%3s %7s %6s %7s %11s %12s %8s %8s %8s %8s %8s %8s %7s%n", "qos", "bytes", "topics",
+                    "clients", "outstanding", "msg/s", "MB/s", "p50", "p90", "p99", "p99.9", "max", "lost");
+            int run = 0;
+            for (int qos : qosLevels) {
+                for (int payloadBytes : payloadSizes) {
+                    for (int topics : topicCounts) {
+                        for (int clients : clientCounts) {
+                            for (int outstanding : outstandingLimits) {
+                                new MqttLoadBenchmark(broker, "load/" + run++, qos, payloadBytes, topics, clients,
+                                        outstanding).run(messages);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private final int qos;
+    private final int payloadBytes;
+    private final int clients;
+    private final int outstanding;
+    private final String[] topics;
+    private final MqttClientPool publisherPool;
+    private final MqttClientPool subscriberPool;
+    private final MqttPublisher publisher;
+    private final TopicOrderedExecutor dispatchExecutor = new TopicOrderedExecutor(DispatchMode.INLINE, 1);
+
+    // Reset for every measured pass
+    private volatile LatencyHistogram latencies = new LatencyHistogram();
+    private volatile CountDownLatch remaining = new CountDownLatch(0);
+    private volatile Semaphore inFlight = new Semaphore(0);
+    private final LongAdder received = new LongAdder();
+    private final LongAccumulator lastReceivedAt = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+    private MqttLoadBenchmark(EmbeddedBroker broker, String prefix, int qos, int payloadBytes, int topicCount,
+                              int clients, int outstanding) throws MqttException {
+        this.qos = qos;
+        this.payloadBytes = Math.max(TIMESTAMP_BYTES, payloadBytes);
+        this.clients = clients;
+        this.outstanding = outstanding;
+        this.topics = new String[topicCount];
+        for (int i = 0; i < topicCount; i++) {
+            topics[i] = prefix + "/" + i;
+        }
+
+        ApiMqttProperties props = new ApiMqttProperties();
+        props.setConnections(clients);
+        props.setQos(qos);
+        subscriberPool = connect(broker, prefix.replace('/', '-') + "-sub", clients);
+        MqttSubscriber subscriber = new MqttSubscriber(subscriberPool, props, dispatchExecutor);
+        subscriber.setMessageCallback();
+        for (String topic : topics) {
+            subscriber.subscribeBuffer(topic, this::onMessage, qos);
+        }
+
+        publisherPool = connect(broker, prefix.replace('/', '-') + "-pub", clients);
+        publisher = new MqttPublisher(publisherPool, props);
+        for (int shard = 0; shard < clients; shard++) {
+            publisher.onConnected(shard, publisherPool.getConnAckProperties(shard));
+        }
+    }
+
+    private void run(int messages) throws Exception {
+        try {
+            // Warm up, then measure with fresh counters
+            measure(Math.min(messages, 20_000));
+            Result result = measure(messages);
+            LatencyHistogram histogram = result.latencies();
+            System.out.printf("%3d %7d %6d %7d %11d %,12.0f %8.1f %8.0f %8.0f %8.0f %8.0f %8.0f %7d%n", qos,
+                    payloadBytes, topics.length, clients, outstanding, result.received() * 1e9 / result.nanos(),
+                    (double) result.received() * payloadBytes * 1e3 / result.nanos(),
+                    micros(histogram.getPercentileNanos(50)), micros(histogram.getPercentileNanos(90)),
+                    micros(histogram.getPercentileNanos(99)), micros(histogram.getPercentileNanos(99.9)),
+                    micros(histogram.getMaxNanos()), messages - result.received());
+        } finally {
+            publisher.close();
+            publisherPool.close();
+            subscriberPool.close();
+        }
+    }
+
+    private Result measure(int messages) throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        latencies = histogram;
+        received.reset();
+        lastReceivedAt.reset();
+        remaining = new CountDownLatch(messages);
+        inFlight = new Semaphore(outstanding);
+
+        long start = System.nanoTime();
+        List<Thread> publishers = new ArrayList<>(clients);
+        for (int p = 0; p < clients; p++) {
+            int first = p;
+            publishers.add(Thread.ofPlatform().name("mqtt-load-publisher-" + p).start(() -> {
+                try {
+                    publish(first, messages);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        for (Thread thread : publishers) {
+            thread.join();
+        }
+        // Messages the broker drops never arrive, whatever their QoS, once a subscriber's queue overflows
+        // its limit; they are reported as lost, and the run is timed to the last delivery
+        long arrived = -1;
+        while (!remaining.await(QUIET_MILLIS, TimeUnit.MILLISECONDS) && received.sum() != arrived) {
+            arrived = received.sum();
+        }
+        long end = received.sum() == 0 ? System.nanoTime() : lastReceivedAt.get();
+        return new Result(end - start, received.sum(), histogram);
+    }
+
+    // Publisher p sends messages p, p + clients, p + 2 * clients, ... spread over the topics
+    private void publish(int first, int messages) throws InterruptedException {
+        Semaphore permits = inFlight;
+        for (int i = first; i < messages; i += clients) {
+            // A lost message never returns its permit; carry on without one rather than stall
+            permits.tryAcquire(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+            byte[] payload = new byte[payloadBytes];
+            ByteBuffer.wrap(payload).putLong(System.nanoTime());
+            // Blocks on the outbound buffer once the in-flight window and buffer are full
+            publisher.publishBytesAsync(topics[i % topics.length], payload, qos, false, null);
+        }
+    }
+
+    private void onMessage(ByteBuffer payload) {
+        long now = System.nanoTime();
+        latencies.record(now - payload.getLong(0));
+        lastReceivedAt.accumulate(now);
+        received.increment();
+        remaining.countDown();
+        inFlight.release();
+    }
+
+    private static MqttClientPool connect(EmbeddedBroker broker, String clientId, int size) throws MqttException {
+        List<MqttAsyncClient> clients = new ArrayList<>(size);
+        List<IMqttToken> connects = new ArrayList<>(size);
+        MqttConnectionOptions options = new MqttConnectionOptions();
+        options.setCleanStart(true);
+        for (int shard = 0; shard < size; shard++) {
+            MqttAsyncClient client = new MqttAsyncClient(broker.url(), MqttClientPool.clientId(clientId, shard, size),
+                    new MemoryPersistence());
+            connects.add(client.connect(options));
+            clients.add(client);
+        }
+        MqttClientPool pool = new MqttClientPool(clients);
+        for (int shard = 0; shard < size; shard++) {
+            connects.get(shard).waitForCompletion(10_000);
+            pool.setConnAckProperties(shard, connects.get(shard).getResponseProperties());
+        }
+        return pool;
+    }
+
+    private static int[] list(String[] args, int index, String defaults) {
+        String value = args.length > index ? args[index] : defaults;
+        return Arrays.stream(value.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1e3;
+    }
+
+    private record Result(long nanos, long received, LatencyHistogram latencies) {
+    }
+}
@@ -0,0 +1,148 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.chunk;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
+import com.h.udemy.java.uservices.infrastructure.mqtt.service.MqttService;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.AcknowledgingMessageHandler;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttAcknowledgement;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.SubscriptionFixture.deliver;
+import static com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.SubscriptionFixture.handlerFor;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ChunkedTransferTest {
+
+    private static final String TOPIC = "firmware/pump";
+
+    private final List<byte[]> published = Collections.synchronizedList(new ArrayList<>());
+    private MqttService mqttService;
+    private ApiMqttProperties.Chunking config;
+    private ChunkAssembler assembler;
+
+    @BeforeEach
+    void setUp() {
+        mqttService = mock(MqttService.class);
+        when(mqttService.publishBytesAsync(anyString(), any(byte[].class), anyInt(), anyBoolean(), anyString()))
+                .thenAnswer(invocation -> {
+                    published.add(invocation.getArgument(1));
+                    return CompletableFuture.completedFuture(null);
+                });
+        config = new ApiMqttProperties.Chunking();
+        config.setChunkSize(1_000);
+        config.setMaxBufferedChunks(2);
+        config.setTimeoutMillis(100);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (assembler != null) {
+            assembler.close();
+        }
+    }
+
+    @Test
+    void content_is_reassembled_into_a_file_despite_reordering_and_redelivery(@TempDir Path directory) throws Exception {
+        byte[] content = new byte[10_500];
+        new Random(7).nextBytes(content);
+        UUID transferId = new ChunkedPublisher(mqttService, config).publish(TOPIC, new ByteArrayInputStream(content));
+        assertEquals(11, published.size());
+
+        List<Path> files = new ArrayList<>();
+        AcknowledgingMessageHandler handler = subscribe(new FileTransferListener(directory, (topic, file) -> files.add(file)));
+        List<byte[]> delivered = new ArrayList<>(published);
+        Collections.swap(delivered, 2, 4);
+        delivered.add(5, published.get(1));
+        MqttAcknowledgement acknowledgement = mock(MqttAcknowledgement.class);
+        for (byte[] chunk : delivered) {
+            deliver(handler, TOPIC, chunk, MqttChunk.CONTENT_TYPE, acknowledgement);
+        }
+
+        assertEquals(List.of(directory.resolve(transferId.toString())), files);
+        assertArrayEquals(content, Files.readAllBytes(files.get(0)));
+        assertFalse(Files.exists(directory.resolve(transferId + ".part")));
+        assertEquals(1, assembler.getRedeliveredChunkCount());
+        assertEquals(0, assembler.getActiveTransferCount());
+        verify(acknowledgement, times(delivered.size())).acknowledge();
+    }
+
+    @Test
+    void missing_chunk_fails_the_transfer_once_the_buffer_is_full_or_it_times_out() throws Exception {
+        new ChunkedPublisher(mqttService, config).publish(TOPIC, new ByteArrayInputStream(new byte[5_000]));
+        new ChunkedPublisher(mqttService, config).publish(TOPIC, new ByteArrayInputStream(new byte[5_000]));
+        ChunkedTransferListener listener = mock(ChunkedTransferListener.class);
+        when(listener.open(anyString(), any(UUID.class))).thenAnswer(invocation -> new ByteArrayOutputStream());
+        AcknowledgingMessageHandler handler = subscribe(listener);
+
+        // First transfer: chunk 0 never arrives and three later chunks overflow the buffer of two
+        for (int i = 1; i <= 3; i++) {
+            deliver(handler, TOPIC, published.get(i), MqttChunk.CONTENT_TYPE, mock(MqttAcknowledgement.class));
+        }
+        ArgumentCaptor<Throwable> cause = ArgumentCaptor.forClass(Throwable.class);
+        verify(listener).failed(eq(TOPIC), any(UUID.class), cause.capture());
+        assertTrue(cause.getValue().getMessage().contains("missing chunk 0"));
+
+        // Second transfer: chunks 1, 3 and 4 never arrive and the sender goes quiet
+        for (int sequence : new int[] {0, 2, 5}) {
+            deliver(handler, TOPIC, published.get(6 + sequence), MqttChunk.CONTENT_TYPE,
+                    mock(MqttAcknowledgement.class));
+        }
+        verify(listener, timeout(2_000).times(2)).failed(eq(TOPIC), any(UUID.class), cause.capture());
+        assertTrue(cause.getValue().getMessage().contains("timed out waiting for chunk 1 of 6"));
+        verify(listener, never()).completed(anyString(), any(UUID.class), anyLong());
+        assertEquals(2, assembler.getFailedCount());
+    }
+
+    @Test
+    void corrupted_content_is_reported_as_failed() throws Exception {
+        new ChunkedPublisher(mqttService, config).publish(TOPIC, new ByteArrayInputStream(new byte[2_500]));
+        ChunkedTransferListener listener = mock(ChunkedTransferListener.class);
+        when(listener.open(anyString(), any(UUID.class))).thenReturn(new ByteArrayOutputStream());
+        AcknowledgingMessageHandler handler = subscribe(listener);
+
+        published.get(1)[MqttChunk.HEADER_SIZE + 10] ^= 1;
+        for (byte[] chunk : published) {
+            deliver(handler, TOPIC, chunk, MqttChunk.CONTENT_TYPE, mock(MqttAcknowledgement.class));
+        }
+
+        ArgumentCaptor<Throwable> cause = ArgumentCaptor.forClass(Throwable.class);
+        verify(listener).failed(eq(TOPIC), any(UUID.class), cause.capture());
+        assertTrue(cause.getValue().getMessage().contains("corrupt"));
+        verify(listener).open(eq(TOPIC), any(UUID.class));
+    }
+
+    private AcknowledgingMessageHandler subscribe(ChunkedTransferListener listener) {
+        assembler = new ChunkAssembler(mqttService, config);
+        assembler.subscribe("firmware/+", listener);
+        return handlerFor(mqttService, "firmware/+", 1);
+    }
+}
@@ -0,0 +1,112 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.client;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.broker.EmbeddedBroker;
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttSubscriber;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.dispatch.DispatchMode;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.dispatch.TopicOrderedExecutor;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MqttConnectorTest {
+
+    private final int port;
+    private EmbeddedBroker broker;
+    private MqttConnector connector;
+    private MqttClientPool pool;
+
+    MqttConnectorTest() throws Exception {
+        port = EmbeddedBroker.freePort();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        connector.close();
+        pool.close();
+        if (broker != null) {
+            broker.close();
+        }
+    }
+
+    @Test
+    void startup_does_not_wait_for_the_broker_and_subscriptions_follow_the_connection() throws Exception {
+        pool = MqttClientPool.of(new MqttAsyncClient(url(), "connector-test", new MemoryPersistence()));
+        MqttSubscriber subscriber = new MqttSubscriber(pool, new ApiMqttProperties(),
+                new TopicOrderedExecutor(DispatchMode.INLINE, 1));
+        subscriber.setMessageCallback();
+        subscriber.onDisconnected(0);
+        ApiMqttProperties.Reconnect reconnect = new ApiMqttProperties.Reconnect();
+        reconnect.setInitialDelayMillis(50);
+        reconnect.setMaxDelayMillis(200);
+        connector = new MqttConnector(pool, new MqttConnectionOptions(), reconnect);
+        connector.addListener(new MqttConnector.ConnectionListener() {
+            @Override
+            public void connected(int shard, MqttProperties connAckProperties, boolean sessionPresent) {
+                subscriber.onConnected(shard, sessionPresent);
+            }
+
+            @Override
+            public void disconnected(int shard) {
+                subscriber.onDisconnected(shard);
+            }
+        });
+        subscriber.setConnectionLostHandler(connector::connectionLost);
+
+        // No broker yet: both calls return at once
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        connector.start();
+        subscriber.subscribe("sensors/+/temperature", received::add);
+        subscriber.subscribe("alarms/#", received::add);
+        Thread.sleep(300);
+        assertTrue(connector.getConnectAttemptCount() > 1, "connection attempts were not retried");
+
+        broker = new EmbeddedBroker(port);
+        assertEquals("21.5", publishUntilReceived("sensors/room-1/temperature", "21.5", received));
+        assertEquals("smoke", publishUntilReceived("alarms/room-1", "smoke", received));
+
+        // A restarted broker has no session, so the connector reconnects and subscribes again
+        broker.close();
+        broker = new EmbeddedBroker(port);
+        assertEquals("22.0", publishUntilReceived("sensors/room-1/temperature", "22.0", received));
+        assertEquals(1, connector.getReconnectCount());
+    }
+
+    // Publishes until the subscription is in place, then returns the first message received
+    private String publishUntilReceived(String topic, String payload, BlockingQueue<String> received)
+            throws Exception {
+        MqttAsyncClient publisher = new MqttAsyncClient(url(), "connector-test-publisher", new MemoryPersistence());
+        publisher.connect().waitForCompletion(5_000);
+        try {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (System.nanoTime() < deadline) {
+                publisher.publish(topic, payload.getBytes(StandardCharsets.UTF_8), 1, false).waitForCompletion();
+                String message = received.poll(100, TimeUnit.MILLISECONDS);
+                if (message != null) {
+                    Thread.sleep(100);
+                    received.clear();
+                    return message;
+                }
+            }
+            return null;
+        } finally {
+            publisher.disconnect().waitForCompletion();
+            publisher.close();
+        }
+    }
+
+    private String url() {
+        return "tcp://127.0.0.1:" + port;
+    }
+}
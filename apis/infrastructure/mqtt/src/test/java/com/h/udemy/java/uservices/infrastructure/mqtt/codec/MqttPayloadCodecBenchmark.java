@@ -0,0 +1,92 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.codec;
+
+import com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Payload size and encode/decode throughput of every registered codec, for the same telemetry
+ * message: a POJO for the Jackson codecs and the equivalent kafka-model Avro record for Avro.
+ * <p>
+ * Not a unit test; run {@code main} with optional arguments {@code iterations sampleCount}, where
+ * {@code sampleCount} is the number of readings per message.
+ */
+public class MqttPayloadCodecBenchmark {
+
+    public record Sample(String name, double value, String unit) {
+    }
+
+    public record Telemetry(String id, String mqttTopic, int qos, String contentType,
+                            Map<String, String> userProperties, Sample[] samples, long receivedAt) {
+    }
+
+    private static long sink;
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int sampleCount = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+        Telemetry telemetry = telemetry(sampleCount);
+        // Avro has no generated class for the samples, so they travel as the JSON-encoded payload field
+        byte[] samples = MqttPayloadCodecs.json().encode(telemetry.samples(), JacksonPayloadCodec.json());
+        MqttMessageAvroModel record = MqttMessageAvroModel.newBuilder()
+                .setId(telemetry.id())
+                .setMqttTopic(telemetry.mqttTopic())
+                .setQos(telemetry.qos())
+                .setContentType(telemetry.contentType())
+                .setUserProperties(telemetry.userProperties())
+                .setPayload(ByteBuffer.wrap(samples))
+                .setReceivedAt(Instant.ofEpochMilli(telemetry.receivedAt()))
+                .build();
+
+        MqttPayloadCodecs codecs = MqttPayloadCodecs.defaults(JacksonPayloadCodec.JSON, MqttPayloadCodecs.DEFAULT_ZSTD_LEVEL);
+        System.out.printf("%d iterations, %d samples per message%n", iterations, sampleCount);
+        System.out.printf("%-22s %7s %14s %14s%n", "content type", "bytes", "encode msg/s", "decode msg/s");
+        for (MqttPayloadCodec codec : codecs.getAll()) {
+            boolean avro = codec.contentType().startsWith(AvroPayloadCodec.AVRO);
+            run(codecs, codec, avro ? record : telemetry, avro ? MqttMessageAvroModel.class : Telemetry.class, iterations);
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    private static void run(MqttPayloadCodecs codecs, MqttPayloadCodec codec, Object value, Class<?> type,
+                            int iterations) {
+        // Warm up both directions, then measure
+        byte[] payload = codecs.encode(value, codec);
+        for (int i = 0; i < Math.min(iterations, 50_000); i++) {
+            sink += codecs.encode(value, codec).length;
+            sink += codecs.decode(payload, codec.contentType(), type).hashCode();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += codecs.encode(value, codec).length;
+        }
+        long encodeNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += codecs.decode(payload, codec.contentType(), type).hashCode();
+        }
+        long decodeNanos = System.nanoTime() - start;
+
+        System.out.printf("%-22s %7d %,14.0f %,14.0f%n", codec.contentType(), payload.length,
+                iterations * 1e9 / encodeNanos, iterations * 1e9 / decodeNanos);
+    }
+
+    private static Telemetry telemetry(int sampleCount) {
+        Sample[] samples = new Sample[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            samples[i] = new Sample("sensor-" + i, 20 + i * 0.25, i % 2 == 0 ? "celsius" : "percent");
+        }
+        return new Telemetry(UUID.randomUUID().toString(), "devices/device-42/telemetry", 1, JacksonPayloadCodec.JSON,
+                Map.of("firmware", "1.4.2", "site", "plant-3"), samples,
+                Instant.now().truncatedTo(ChronoUnit.MILLIS).toEpochMilli());
+    }
+}
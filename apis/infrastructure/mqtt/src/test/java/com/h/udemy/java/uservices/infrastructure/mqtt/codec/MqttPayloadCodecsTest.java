@@ -0,0 +1,121 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.codec;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.codec.exception.MqttCodecException;
+import com.h.udemy.java.uservices.kafka.mqtt.avro.model.MqttMessageAvroModel;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MqttPayloadCodecsTest {
+
+    record Reading(String deviceId, double temperature, long timestamp) {
+    }
+
+    private static final Reading READING = new Reading("device-42", 21.5, 1_700_000_000_000L);
+
+    private final MqttPayloadCodecs codecs = MqttPayloadCodecs.defaults(JacksonPayloadCodec.JSON, 3);
+
+    @Test
+    void objects_round_trip_through_every_jackson_codec() {
+        for (String contentType : new String[]{"application/json", "application/cbor",
+                "application/json+zstd", "application/cbor+zstd", "application/json+lz4", "application/cbor+lz4"}) {
+            MqttPayloadCodec codec = codecs.get(contentType);
+            assertNotNull(codec, contentType);
+
+            byte[] payload = codecs.encode(READING, codec);
+
+            assertEquals(READING, codecs.decode(payload, contentType, Reading.class), contentType);
+        }
+    }
+
+    @Test
+    void avro_records_round_trip_with_logical_types() {
+        MqttMessageAvroModel record = MqttMessageAvroModel.newBuilder()
+                .setId(UUID.randomUUID().toString())
+                .setMqttTopic("devices/device-42/telemetry")
+                .setQos(1)
+                .setContentType(null)
+                .setUserProperties(Map.of("source", "gateway-1"))
+                .setPayload(ByteBuffer.wrap(new byte[]{1, 2, 3}))
+                .setReceivedAt(Instant.now().truncatedTo(ChronoUnit.MILLIS))
+                .build();
+
+        for (String contentType : new String[]{"application/avro", "application/avro+zstd"}) {
+            byte[] payload = codecs.encode(record, codecs.get(contentType));
+
+            assertEquals(record, codecs.decode(payload, contentType, MqttMessageAvroModel.class), contentType);
+        }
+    }
+
+    @Test
+    void cbor_is_smaller_than_json_and_compression_is_visible_in_the_content_type() {
+        byte[] json = codecs.encode(READING, codecs.get("application/json"));
+        byte[] cbor = codecs.encode(READING, codecs.get("application/cbor"));
+
+        assertTrue(cbor.length < json.length, cbor.length + " >= " + json.length);
+        assertEquals("application/cbor+zstd", codecs.get("application/cbor+zstd").contentType());
+    }
+
+    @Test
+    void messages_without_a_known_content_type_decode_with_the_default_codec() {
+        byte[] json = "{\"deviceId\":\"device-42\",\"temperature\":21.5,\"timestamp\":1700000000000}"
+                .getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(READING, codecs.decode(json, null, Reading.class));
+        assertEquals(READING, codecs.decode(json, "text/plain", Reading.class));
+        assertEquals(READING, codecs.decode(json, "Application/JSON; charset=utf-8", Reading.class));
+        assertNull(codecs.get("text/plain"));
+        assertSame(codecs.getDefault(), codecs.get("application/json"));
+    }
+
+    @Test
+    void unknown_default_content_type_and_undecodable_payloads_are_rejected() {
+        assertThrows(IllegalArgumentException.class, () -> MqttPayloadCodecs.defaults("application/xml", 3));
+
+        byte[] garbage = {0x7f, 0x00, 0x13};
+        assertThrows(MqttCodecException.class, () -> codecs.decode(garbage, "application/json+zstd", Reading.class));
+    }
+
+    @Test
+    void compressed_payloads_over_the_size_cap_are_rejected() {
+        MqttPayloadCodecs capped = MqttPayloadCodecs.defaults(JacksonPayloadCodec.JSON, 3, 64);
+        Reading reading = new Reading("t".repeat(100), 21.5, 1_700_000_000_000L);
+        for (String contentType : new String[]{"application/json+zstd", "application/json+lz4"}) {
+            byte[] payload = codecs.encode(reading, codecs.get(contentType));
+            assertThrows(MqttCodecException.class, () -> capped.decode(payload, contentType, Reading.class));
+        }
+
+        // An LZ4 header claiming 2 GiB is refused without allocating it
+        byte[] forged = {0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x00};
+        assertThrows(MqttCodecException.class, () -> codecs.decode(forged, "application/json+lz4", Reading.class));
+    }
+
+    @Test
+    void pooled_buffers_are_reused_on_the_same_thread() {
+        PayloadBuffer first = PayloadBuffer.acquire();
+        first.write(new byte[100], 0, 100);
+        first.release();
+
+        PayloadBuffer second = PayloadBuffer.acquire();
+        try {
+            assertSame(first, second);
+            assertEquals(0, second.size());
+            assertArrayEquals(new byte[0], second.toByteArray());
+        } finally {
+            second.release();
+        }
+    }
+}
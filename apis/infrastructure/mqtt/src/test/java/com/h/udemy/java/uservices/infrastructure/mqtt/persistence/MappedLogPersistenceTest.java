@@ -0,0 +1,164 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.persistence;
+
+import org.eclipse.paho.mqttv5.common.MqttPersistable;
+import org.eclipse.paho.mqttv5.common.MqttPersistenceException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MappedLogPersistenceTest {
+
+    private static final String CLIENT = "client-1";
+
+    @TempDir
+    Path directory;
+
+    private MappedLogPersistence persistence;
+
+    @AfterEach
+    void tearDown() throws MqttPersistenceException {
+        if (persistence != null) {
+            persistence.close();
+        }
+    }
+
+    @Test
+    void put_get_remove() throws MqttPersistenceException {
+        persistence = open(4096);
+
+        persistence.put("s-1", message("header", "payload"));
+
+        assertTrue(persistence.containsKey("s-1"));
+        MqttPersistable stored = persistence.get("s-1");
+        assertArrayEquals(bytes("header"), stored.getHeaderBytes());
+        assertArrayEquals(bytes("payload"), stored.getPayloadBytes());
+
+        persistence.remove("s-1");
+        assertFalse(persistence.containsKey("s-1"));
+        assertNull(persistence.get("s-1"));
+    }
+
+    @Test
+    void messages_survive_reopen() throws MqttPersistenceException {
+        persistence = open(4096);
+        persistence.put("s-1", message("h1", "first"));
+        persistence.put("s-2", message("h2", "second"));
+        persistence.put("s-1", message("h1", "replaced"));
+        persistence.remove("s-2");
+        persistence.close();
+
+        persistence = open(4096);
+
+        assertEquals(List.of("s-1"), Collections.list(persistence.keys()));
+        assertArrayEquals(bytes("replaced"), persistence.get("s-1").getPayloadBytes());
+    }
+
+    @Test
+    void torn_tail_record_is_ignored() throws Exception {
+        persistence = open(4096);
+        persistence.put("s-1", message("h1", "kept"));
+        persistence.put("s-2", message("h2", "torn"));
+        persistence.close();
+        persistence = null;
+
+        // Corrupt the last byte of the second record's payload, as if the write never completed
+        Path segment = segments().get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            int secondRecordEnd = 2 * (8 + 1 + 2 + 3 + 4 + 2 + 4);
+            channel.write(ByteBuffer.wrap(new byte[]{'X'}), secondRecordEnd - 1);
+        }
+
+        persistence = open(4096);
+        assertEquals(List.of("s-1"), Collections.list(persistence.keys()));
+    }
+
+    @Test
+    void drained_segments_are_deleted() throws Exception {
+        persistence = open(256);
+        for (int i = 0; i < 50; i++) {
+            persistence.put("s-" + i, message("header", "payload-" + i));
+        }
+        assertTrue(persistence.getSegmentCount() > 1);
+
+        persistence.put("sb-keep", message("header", "offline"));
+        for (int i = 0; i < 50; i++) {
+            persistence.remove("s-" + i);
+        }
+
+        assertEquals(1, persistence.getSegmentCount());
+        assertEquals(1, segments().size());
+        assertArrayEquals(bytes("offline"), persistence.get("sb-keep").getPayloadBytes());
+    }
+
+    @Test
+    void second_open_of_the_same_client_is_rejected() throws MqttPersistenceException {
+        persistence = open(4096);
+
+        MappedLogPersistence other = new MappedLogPersistence(directory, 4096, 0.5);
+        assertThrows(MqttPersistenceException.class, () -> other.open(CLIENT));
+    }
+
+    private MappedLogPersistence open(int segmentSize) throws MqttPersistenceException {
+        MappedLogPersistence opened = new MappedLogPersistence(directory, segmentSize, 0.5);
+        opened.open(CLIENT);
+        return opened;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory.resolve("client-1"))) {
+            return files.filter(file -> file.toString().endsWith(".seg")).sorted().toList();
+        }
+    }
+
+    private static MqttPersistable message(String header, String payload) {
+        byte[] headerBytes = bytes(header);
+        byte[] payloadBytes = bytes(payload);
+        return new MqttPersistable() {
+            public byte[] getHeaderBytes() {
+                return headerBytes;
+            }
+
+            public int getHeaderLength() {
+                return headerBytes.length;
+            }
+
+            public int getHeaderOffset() {
+                return 0;
+            }
+
+            public byte[] getPayloadBytes() {
+                return payloadBytes;
+            }
+
+            public int getPayloadLength() {
+                return payloadBytes.length;
+            }
+
+            public int getPayloadOffset() {
+                return 0;
+            }
+        };
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
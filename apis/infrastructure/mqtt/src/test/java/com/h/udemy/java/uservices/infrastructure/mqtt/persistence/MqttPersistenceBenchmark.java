@@ -0,0 +1,76 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.persistence;
+
+import org.eclipse.paho.mqttv5.client.MqttClientPersistence;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.client.persist.MqttDefaultFilePersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttPersistableWireMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttPublish;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Compares Paho's memory and file persistence with {@link MappedLogPersistence} on the QoS 1 publish
+ * path: every message is stored before it is sent and removed when its PUBACK arrives, with a window
+ * of messages in flight.
+ * <p>
+ * Not a unit test; run {@code main} with optional arguments {@code messages payloadBytes inFlight}.
+ */
+public class MqttPersistenceBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int payloadBytes = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int inFlight = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        MqttPublish publish = new MqttPublish("devices/device-42/telemetry", new MqttMessage(new byte[payloadBytes]), null);
+        Path directory = Files.createTempDirectory("mqtt-persistence-benchmark");
+        try {
+            System.out.printf("%d messages, %d byte payload, %d in flight%n", messages, payloadBytes, inFlight);
+            run("memory", directory, dir -> new MemoryPersistence(), publish, messages, inFlight);
+            run("file", directory, dir -> new MqttDefaultFilePersistence(dir.toString()), publish, messages, inFlight);
+            run("mapped", directory, MappedLogPersistence::new, publish, messages, inFlight);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static void run(String name, Path directory, Function<Path, MqttClientPersistence> factory,
+                            MqttPersistableWireMessage message, int messages, int inFlight) throws Exception {
+        // Warm up, then measure on a fresh store
+        measure(factory.apply(directory.resolve(name + "-warmup")), message, Math.min(messages, 20_000), inFlight);
+        long nanos = measure(factory.apply(directory.resolve(name)), message, messages, inFlight);
+        System.out.printf("%-7s %,12.0f msg/s  %8.2f us/msg%n",
+                name, messages * 1e9 / nanos, nanos / 1e3 / messages);
+    }
+
+    private static long measure(MqttClientPersistence persistence, MqttPersistableWireMessage message,
+                                int messages, int inFlight) throws MqttException {
+        persistence.open("benchmark-client");
+        long start = System.nanoTime();
+        for (int id = 0; id < messages; id++) {
+            persistence.put("s-" + id, message);
+            if (id >= inFlight) {
+                persistence.remove("s-" + (id - inFlight));
+            }
+        }
+        for (int id = Math.max(0, messages - inFlight); id < messages; id++) {
+            persistence.remove("s-" + id);
+        }
+        long elapsed = System.nanoTime() - start;
+        persistence.close();
+        return elapsed;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
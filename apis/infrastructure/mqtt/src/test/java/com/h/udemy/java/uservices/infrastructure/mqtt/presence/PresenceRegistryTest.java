@@ -0,0 +1,148 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.presence;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
+import com.h.udemy.java.uservices.infrastructure.mqtt.service.MqttService;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.AcknowledgingMessageHandler;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttAcknowledgement;
+import com.h.udemy.java.uservices.infrastructure.mqtt.timer.HashedWheelTimer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.SubscriptionFixture.deliver;
+import static com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.SubscriptionFixture.handlerFor;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PresenceRegistryTest {
+
+    private MqttService mqttService;
+    private PresenceRegistry registry;
+    private AcknowledgingMessageHandler heartbeats;
+    private AcknowledgingMessageHandler lastWills;
+
+    @BeforeEach
+    void setUp() {
+        mqttService = mock(MqttService.class);
+        when(mqttService.publishAsync(anyString(), any(), anyInt(), anyBoolean()))
+                .thenReturn(CompletableFuture.completedFuture(null));
+        ApiMqttProperties.Presence config = new ApiMqttProperties.Presence();
+        config.setTimeoutMillis(200);
+        registry = new PresenceRegistry(mqttService, new HashedWheelTimer("presence-test", 10, TimeUnit.MILLISECONDS, 64),
+                config);
+        registry.start();
+
+        heartbeats = handlerFor(mqttService, "devices/+/heartbeat", 1);
+        lastWills = handlerFor(mqttService, "devices/+/lwt", 1);
+    }
+
+    @AfterEach
+    void tearDown() {
+        registry.close();
+    }
+
+    @Test
+    void silent_device_goes_offline_after_the_timeout() {
+        MqttAcknowledgement acknowledgement = mock(MqttAcknowledgement.class);
+        deliver(heartbeats, "devices/pump-7/heartbeat", "1", acknowledgement);
+
+        assertTrue(registry.isOnline("pump-7"));
+        verify(acknowledgement).acknowledge();
+        PresenceEvent online = published(1).getValue();
+        assertTrue(online.online());
+        assertEquals(PresenceEvent.HEARTBEAT, online.reason());
+
+        verify(mqttService, timeout(2_000).times(2)).publishAsync(eq("presence/pump-7"), any(), eq(1), eq(true));
+        PresenceEvent offline = published(2).getValue();
+        assertFalse(offline.online());
+        assertEquals(PresenceEvent.TIMEOUT, offline.reason());
+        assertFalse(registry.isOnline("pump-7"));
+        assertEquals(0, registry.getOnlineCount());
+    }
+
+    @Test
+    void heartbeats_within_the_timeout_keep_a_device_online_without_events() throws InterruptedException {
+        for (int i = 0; i < 8; i++) {
+            registry.heartbeat("pump-7");
+            Thread.sleep(50);
+        }
+
+        assertTrue(registry.isOnline("pump-7"));
+        verify(mqttService, times(1)).publishAsync(eq("presence/pump-7"), any(), eq(1), eq(true));
+        // Goes offline once the heartbeats stop
+        verify(mqttService, timeout(2_000).times(2)).publishAsync(eq("presence/pump-7"), any(), eq(1), eq(true));
+    }
+
+    @Test
+    void last_will_takes_a_device_offline_right_away() {
+        registry.heartbeat("pump-7");
+        registry.heartbeat("pump-8");
+
+        deliver(lastWills, "devices/pump-7/lwt", "gone", mock(MqttAcknowledgement.class));
+
+        assertFalse(registry.isOnline("pump-7"));
+        assertTrue(registry.isOnline("pump-8"));
+        assertEquals(1, registry.getOnlineCount());
+        PresenceEvent offline = published(2).getAllValues().get(1);
+        assertEquals(PresenceEvent.LWT, offline.reason());
+        // The cancelled timeout publishes nothing more for pump-7
+        verify(mqttService, after(400).times(2)).publishAsync(eq("presence/pump-7"), any(), eq(1), eq(true));
+    }
+
+    @Test
+    void heartbeat_racing_a_slow_offline_publish_is_not_held_up_and_is_published_after_it()
+            throws InterruptedException {
+        List<Boolean> events = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch expiring = new CountDownLatch(1);
+        CountDownLatch bufferRoom = new CountDownLatch(1);
+        CountDownLatch published = new CountDownLatch(3);
+        when(mqttService.publishAsync(eq("presence/pump-7"), any(), eq(1), eq(true))).thenAnswer(invocation -> {
+            PresenceEvent event = invocation.getArgument(1);
+            if (!event.online()) {
+                // The timer thread waits for outbound buffer room while a heartbeat arrives
+                expiring.countDown();
+                bufferRoom.await(2, TimeUnit.SECONDS);
+            }
+            events.add(event.online());
+            published.countDown();
+            return CompletableFuture.completedFuture(null);
+        });
+
+        registry.heartbeat("pump-7");
+        assertTrue(expiring.await(2, TimeUnit.SECONDS));
+        // Returns while the offline event is still being published
+        registry.heartbeat("pump-7");
+        assertTrue(registry.isOnline("pump-7"));
+        assertEquals(List.of(true), events);
+
+        bufferRoom.countDown();
+        assertTrue(published.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of(true, false, true), events);
+    }
+
+    private ArgumentCaptor<PresenceEvent> published(int times) {
+        ArgumentCaptor<PresenceEvent> events = ArgumentCaptor.forClass(PresenceEvent.class);
+        verify(mqttService, times(times)).publishAsync(eq("presence/pump-7"), events.capture(), eq(1), eq(true));
+        return events;
+    }
+}
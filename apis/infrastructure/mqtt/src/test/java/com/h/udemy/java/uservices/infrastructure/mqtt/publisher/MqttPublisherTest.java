@@ -0,0 +1,448 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.publisher;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.backpressure.OverflowPolicy;
+import com.h.udemy.java.uservices.infrastructure.mqtt.client.MqttClientPool;
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
+import com.h.udemy.java.uservices.infrastructure.mqtt.envelope.MqttEnvelope;
+import com.h.udemy.java.uservices.infrastructure.mqtt.envelope.exception.MqttEnvelopeException;
+import com.h.udemy.java.uservices.infrastructure.mqtt.publisher.exception.MqttBackpressureException;
+import com.h.udemy.java.uservices.infrastructure.mqtt.publisher.exception.MqttPublishException;
+import com.h.udemy.java.uservices.infrastructure.mqtt.publisher.exception.MqttRateLimitException;
+import com.h.udemy.java.uservices.infrastructure.mqtt.ratelimit.RateLimitPolicy;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttClientException;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.eclipse.paho.mqttv5.common.packet.UserProperty;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class MqttPublisherTest {
+
+    private static final String TOPIC = "sensors/temperature";
+
+    private final List<MqttActionListener> listeners = new ArrayList<>();
+    private MqttAsyncClient client;
+    private ApiMqttProperties props;
+
+    @BeforeEach
+    void setUp() throws MqttException {
+        client = mock(MqttAsyncClient.class);
+        props = new ApiMqttProperties();
+        props.getMqttV5().setReceiveMaximum(2);
+
+        when(client.publish(anyString(), any(MqttMessage.class), isNull(), any(MqttActionListener.class)))
+                .thenAnswer(invocation -> {
+                    listeners.add(invocation.getArgument(3));
+                    return mock(IMqttToken.class);
+                });
+    }
+
+    @Test
+    void publishAsync_completes_on_ack_and_releases_window() {
+        MqttPublisher publisher = new MqttPublisher(client, props);
+
+        CompletableFuture<Void> future = publisher.publishAsync(TOPIC, "21.5");
+
+        assertFalse(future.isDone());
+        assertEquals(1, publisher.getAvailableInFlightPermits());
+
+        listeners.get(0).onSuccess(mock(IMqttToken.class));
+
+        assertTrue(future.isDone());
+        assertEquals(2, publisher.getAvailableInFlightPermits());
+    }
+
+    @Test
+    void publishAll_completes_when_every_message_is_acked() {
+        MqttPublisher publisher = new MqttPublisher(client, props);
+
+        CompletableFuture<Void> all = publisher.publishAll(TOPIC, List.of("a", "b"));
+
+        assertEquals(0, publisher.getAvailableInFlightPermits());
+        listeners.get(0).onSuccess(mock(IMqttToken.class));
+        assertFalse(all.isDone());
+        listeners.get(1).onSuccess(mock(IMqttToken.class));
+        assertTrue(all.isDone());
+    }
+
+    @Test
+    void publish_blocking_rethrows_failure() throws MqttException {
+        when(client.publish(anyString(), any(MqttMessage.class), isNull(), any(MqttActionListener.class)))
+                .thenThrow(new MqttException(MqttClientException.REASON_CODE_CLIENT_NOT_CONNECTED));
+        MqttPublisher publisher = new MqttPublisher(client, props);
+
+        assertThrows(MqttPublishException.class, () -> publisher.publish(TOPIC, "21.5"));
+        assertEquals(2, publisher.getAvailableInFlightPermits());
+    }
+
+    @Test
+    void user_properties_are_sent_with_the_message() throws MqttException {
+        MqttPublisher publisher = new MqttPublisher(client, props);
+
+        publisher.publishAsync(TOPIC, "21.5", 1, false, Map.of("message-id", "reading-7"), null);
+
+        ArgumentCaptor<MqttMessage> sent = ArgumentCaptor.forClass(MqttMessage.class);
+        verify(client).publish(eq(TOPIC), sent.capture(), isNull(), any(MqttActionListener.class));
+        List<UserProperty> userProperties = sent.getValue().getProperties().getUserProperties();
+        assertEquals(1, userProperties.size());
+        assertEquals("message-id", userProperties.get(0).getKey());
+        assertEquals("reading-7", userProperties.get(0).getValue());
+    }
+
+    @Test
+    void onConnected_clamps_window_to_broker_receive_maximum() {
+        props.getMqttV5().setReceiveMaximum(100);
+        MqttPublisher publisher = new MqttPublisher(client, props);
+        MqttProperties connAck = new MqttProperties();
+        connAck.setReceiveMaximum(10);
+
+        publisher.onConnected(connAck);
+
+        assertEquals(10, publisher.getAvailableInFlightPermits());
+    }
+
+    @Test
+    void topics_beyond_broker_alias_maximum_are_counted() {
+        MqttPublisher publisher = new MqttPublisher(client, props);
+        MqttProperties connAck = new MqttProperties();
+        connAck.setTopicAliasMaximum(1);
+        publisher.onConnected(connAck);
+
+        publisher.publishAsync("devices/1/telemetry", "a");
+        listeners.get(0).onSuccess(mock(IMqttToken.class));
+        publisher.publishAsync("devices/2/telemetry", "b");
+        listeners.get(1).onSuccess(mock(IMqttToken.class));
+        publisher.publishAsync("devices/1/telemetry", "c");
+
+        assertEquals(1, publisher.getAliasedTopicCount());
+        assertEquals(1, publisher.getUnaliasedPublishCount());
+    }
+
+    @Test
+    void pooled_publishes_stay_on_the_topic_connection() throws MqttException {
+        MqttAsyncClient other = mock(MqttAsyncClient.class);
+        when(other.publish(anyString(), any(MqttMessage.class), isNull(), any(MqttActionListener.class)))
+                .thenReturn(mock(IMqttToken.class));
+        MqttClientPool pool = new MqttClientPool(List.of(client, other));
+        MqttPublisher publisher = new MqttPublisher(pool, props);
+        MqttAsyncClient owner = pool.forTopic(TOPIC);
+        MqttAsyncClient idle = owner == client ? other : client;
+
+        publisher.publishAsync(TOPIC, "a");
+        publisher.publishAsync(TOPIC, "b");
+
+        verify(owner, times(2)).publish(eq(TOPIC), any(MqttMessage.class), isNull(), any(MqttActionListener.class));
+        verify(idle, never()).publish(anyString(), any(MqttMessage.class), isNull(), any(MqttActionListener.class));
+        // Each connection has its own window of two
+        assertEquals(2, publisher.getAvailableInFlightPermits());
+    }
+
+    @Test
+    void messages_beyond_the_window_are_queued_and_sent_in_order() throws MqttException {
+        props.getMqttV5().setReceiveMaximum(1);
+        MqttPublisher publisher = new MqttPublisher(client, props);
+
+        CompletableFuture<Void> first = publisher.publishAsync(TOPIC, "1");
+        CompletableFuture<Void> second = publisher.publishAsync(TOPIC, "2");
+        CompletableFuture<Void> third = publisher.publishAsync(TOPIC, "3");
+
+        assertEquals(1, listeners.size());
+        assertEquals(2, publisher.getOutboundQueueDepth());
+
+        listeners.get(0).onSuccess(mock(IMqttToken.class));
+        listeners.get(1).onSuccess(mock(IMqttToken.class));
+        listeners.get(2).onSuccess(mock(IMqttToken.class));
+
+        assertTrue(first.isDone() && second.isDone() && third.isDone());
+        assertEquals(0, publisher.getOutboundQueueDepth());
+        InOrder order = inOrder(client);
+        for (String payload : List.of("1", "2", "3")) {
+            order.verify(client).publish(eq(TOPIC), argThat(message -> payload.equals(new String(message.getPayload()))),
+                    isNull(), any(MqttActionListener.class));
+        }
+    }
+
+    @Test
+    void full_buffer_drops_newest_message() {
+        props.getMqttV5().setReceiveMaximum(1);
+        props.getOutbound().setBufferCapacity(1);
+        props.getOutbound().setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+        MqttPublisher publisher = new MqttPublisher(client, props);
+
+        publisher.publishAsync(TOPIC, "sent");
+        publisher.publishAsync(TOPIC, "queued");
+        CompletableFuture<Void> dropped = publisher.publishAsync(TOPIC, "dropped");
+
+        CompletionException failure = assertThrows(CompletionException.class, dropped::join);
+        assertTrue(failure.getCause() instanceof MqttBackpressureException);
+        assertEquals(1, publisher.getDroppedPublishCount());
+        assertThrows(MqttBackpressureException.class, () -> publisher.publish(TOPIC, "blocking caller"));
+    }
+
+    @Test
+    void full_buffer_fails_fast_in_the_caller() {
+        props.getMqttV5().setReceiveMaximum(1);
+        props.getOutbound().setBufferCapacity(0);
+        props.getOutbound().setOverflowPolicy(OverflowPolicy.FAIL_FAST);
+        MqttPublisher publisher = new MqttPublisher(client, props);
+
+        publisher.publishAsync(TOPIC, "sent");
+
+        assertThrows(MqttBackpressureException.class, () -> publisher.publishAsync(TOPIC, "rejected"));
+        assertEquals(1, publisher.getRejectedPublishCount());
+    }
+
+    @Test
+    void full_buffer_blocks_until_timeout() {
+        props.getMqttV5().setReceiveMaximum(1);
+        props.getOutbound().setBufferCapacity(0);
+        props.getOutbound().setBlockTimeoutMillis(50);
+        MqttPublisher publisher = new MqttPublisher(client, props);
+
+        publisher.publishAsync(TOPIC, "sent");
+
+        assertThrows(MqttBackpressureException.class, () -> publisher.publish(TOPIC, "waits"));
+        assertTrue(publisher.getPublishBlockedNanos() >= 50_000_000L);
+    }
+
+    @Test
+    void full_buffer_fails_at_once_on_the_paho_callback_thread() throws Exception {
+        props.getMqttV5().setReceiveMaximum(1);
+        props.getOutbound().setBufferCapacity(0);
+        props.getOutbound().setBlockTimeoutMillis(0);
+        MqttPublisher publisher = new MqttPublisher(client, props);
+        publisher.publishAsync(TOPIC, "sent");
+
+        CompletableFuture<CompletableFuture<Void>> published = new CompletableFuture<>();
+        Thread.ofPlatform().name("MQTT Call: publisher-test")
+                .start(() -> published.complete(publisher.publishAsync(TOPIC, "from a handler")));
+
+        CompletableFuture<Void> future = published.get(5, TimeUnit.SECONDS);
+        CompletionException failure = assertThrows(CompletionException.class, future::join);
+        assertTrue(failure.getCause() instanceof MqttBackpressureException);
+        assertEquals(1, publisher.getRejectedPublishCount());
+    }
+
+    @Test
+    void batching_packs_a_burst_on_one_topic_into_one_envelope() throws MqttException {
+        props.getBatching().setEnabled(true);
+        props.getBatching().setTopics(List.of("sensors/#"));
+        props.getBatching().setLingerMillis(60_000);
+        props.getBatching().setBatchSize(MqttEnvelope.headerSize(null) + 3 * (MqttEnvelope.MESSAGE_OVERHEAD + 2));
+        MqttPublisher publisher = new MqttPublisher(client, props);
+
+        CompletableFuture<Void> first = publisher.publishAsync(TOPIC, "p1");
+        CompletableFuture<Void> second = publisher.publishAsync(TOPIC, "p2");
+        assertTrue(listeners.isEmpty());
+        // The third message fills the batch
+        CompletableFuture<Void> third = publisher.publishAsync(TOPIC, "p3");
+
+        ArgumentCaptor<MqttMessage> sent = ArgumentCaptor.forClass(MqttMessage.class);
+        verify(client).publish(eq(TOPIC), sent.capture(), isNull(), any(MqttActionListener.class));
+        assertEquals(MqttEnvelope.CONTENT_TYPE, sent.getValue().getProperties().getContentType());
+        assertEquals(List.of("p1", "p2", "p3"), MqttEnvelope.decode(sent.getValue().getPayload()).getPayloads()
+                .stream().map(String::new).toList());
+
+        assertFalse(first.isDone());
+        listeners.get(0).onSuccess(mock(IMqttToken.class));
+        assertTrue(first.isDone() && second.isDone() && third.isDone());
+        assertEquals(1, publisher.getEnvelopeCount());
+        assertEquals(3, publisher.getBatchedMessageCount());
+    }
+
+    @Test
+    void envelope_with_a_forged_length_is_rejected_before_allocating() {
+        byte[] envelope = new MqttEnvelope(null, List.of("p1".getBytes())).encode();
+        // The message length claims 2 GiB
+        envelope[envelope.length - 6] = 0x7f;
+        assertThrows(MqttEnvelopeException.class, () -> MqttEnvelope.decode(envelope));
+    }
+
+    @Test
+    void batching_sends_after_linger_and_keeps_unbatched_messages_in_order() throws Exception {
+        props.getBatching().setEnabled(true);
+        props.getBatching().setTopics(List.of("sensors/#", "devices/+/status"));
+        props.getBatching().setLingerMillis(20);
+        props.getMqttV5().setReceiveMaximum(10);
+        MqttPublisher publisher = new MqttPublisher(client, props);
+
+        CompletableFuture<Void> lone = publisher.publishAsync("devices/1/status", "online");
+        // Topics outside the batching filters go out at once
+        publisher.publishAsync("shadows/pump-7/delta", "{}");
+        verify(client).publish(eq("shadows/pump-7/delta"), any(MqttMessage.class), isNull(),
+                any(MqttActionListener.class));
+        publisher.publishAsync(TOPIC, "a");
+        publisher.publishAsync(TOPIC, "b");
+        // Retained messages bypass batching, after the batch already open on their topic
+        publisher.publishAsync(TOPIC, "last", 1, true);
+
+        InOrder order = inOrder(client);
+        order.verify(client).publish(eq(TOPIC), argThat(message -> MqttEnvelope.CONTENT_TYPE.equals(
+                message.getProperties().getContentType())), isNull(), any(MqttActionListener.class));
+        order.verify(client).publish(eq(TOPIC), argThat(MqttMessage::isRetained), isNull(), any(MqttActionListener.class));
+
+        // A batch of one lingers, then goes out as the plain message
+        verify(client, timeout(1_000)).publish(eq("devices/1/status"),
+                argThat(message -> "online".equals(new String(message.getPayload()))), isNull(), any(MqttActionListener.class));
+        assertFalse(lone.isDone());
+        publisher.close();
+    }
+
+    @Test
+    void conflated_topic_sends_only_the_latest_pending_value() throws Exception {
+        props.getConflation().setTopics(List.of("gauges/#"));
+        MqttPublisher publisher = new MqttPublisher(client, props);
+
+        CompletableFuture<Void> first = publisher.publishAsync("gauges/pressure", "1.0");
+        CompletableFuture<Void> replaced = publisher.publishAsync("gauges/pressure", "1.1");
+        CompletableFuture<Void> latest = publisher.publishAsync("gauges/pressure", "1.2");
+        // Other topics are unaffected
+        publisher.publishAsync(TOPIC, "21.5");
+        assertEquals(2, listeners.size());
+        assertEquals(1, publisher.getConflatedPublishCount());
+
+        listeners.get(0).onSuccess(mock(IMqttToken.class));
+        assertTrue(first.isDone());
+        verify(client, timeout(1_000)).publish(eq("gauges/pressure"),
+                argThat(message -> "1.2".equals(new String(message.getPayload()))), isNull(), any(MqttActionListener.class));
+        verify(client, never()).publish(eq("gauges/pressure"),
+                argThat(message -> "1.1".equals(new String(message.getPayload()))), isNull(), any(MqttActionListener.class));
+
+        assertFalse(replaced.isDone());
+        listeners.get(2).onSuccess(mock(IMqttToken.class));
+        assertTrue(replaced.isDone() && latest.isDone());
+
+        // The idle topic's state was dropped; the next value starts afresh and goes out at once
+        publisher.publishAsync("gauges/pressure", "1.3");
+        verify(client).publish(eq("gauges/pressure"),
+                argThat(message -> "1.3".equals(new String(message.getPayload()))), isNull(), any(MqttActionListener.class));
+        publisher.close();
+    }
+
+    @Test
+    void priority_lane_keeps_free_slots_while_telemetry_is_backed_up() {
+        props.getOutbound().setLanes(List.of(lane("alarms", "alarms/#", 4, 0), lane("telemetry", "telemetry/#", 1, 1)));
+        MqttPublisher publisher = new MqttPublisher(client, props);
+
+        for (int i = 0; i < 5; i++) {
+            publisher.publishAsync("telemetry/pump-" + i, "21.5");
+        }
+        CompletableFuture<Void> alarm = publisher.publishAsync("alarms/pump-1", "overheat");
+
+        // Telemetry holds one slot of the window of two, so the alarm is sent without queueing
+        assertEquals(2, listeners.size());
+        assertEquals(4, publisher.getOutboundQueueDepth("telemetry"));
+        assertEquals(0, publisher.getOutboundQueueDepth("alarms"));
+        listeners.get(1).onSuccess(mock(IMqttToken.class));
+        assertTrue(alarm.isDone());
+        assertEquals(1, publisher.getPublishLatency("alarms").getCount());
+        assertEquals(0, publisher.getPublishLatency("telemetry").getCount());
+        assertEquals(List.of("alarms", "telemetry", "default"), publisher.getPublishLanes());
+    }
+
+    @Test
+    void freed_slots_are_shared_between_backed_up_lanes_by_weight() throws MqttException {
+        props.getMqttV5().setReceiveMaximum(1);
+        props.getOutbound().setLanes(List.of(lane("alarms", "alarms/#", 3, 0)));
+        MqttPublisher publisher = new MqttPublisher(client, props);
+
+        publisher.publishAsync(TOPIC, "first");
+        for (int i = 0; i < 4; i++) {
+            publisher.publishAsync(TOPIC, "telemetry");
+            publisher.publishAsync("alarms/pump", "alarm");
+        }
+        for (int i = 0; i < 4; i++) {
+            listeners.get(i).onSuccess(mock(IMqttToken.class));
+        }
+
+        ArgumentCaptor<String> topics = ArgumentCaptor.forClass(String.class);
+        verify(client, times(5)).publish(topics.capture(), any(MqttMessage.class), isNull(), any(MqttActionListener.class));
+        assertEquals(List.of(TOPIC, "alarms/pump", "alarms/pump", TOPIC, "alarms/pump"), topics.getAllValues());
+        assertEquals(4, publisher.getOutboundQueueDepth());
+    }
+
+    @Test
+    void publishes_over_the_topic_rate_limit_are_dropped_or_rejected() {
+        ApiMqttProperties.RateLimit limit = new ApiMqttProperties.RateLimit();
+        limit.setTopics("telemetry/#");
+        limit.setMessagesPerSecond(0.001);
+        limit.setPolicy(RateLimitPolicy.DROP);
+        props.getRateLimits().setPublish(List.of(limit));
+        MqttPublisher publisher = new MqttPublisher(client, props);
+
+        assertFalse(publisher.publishAsync("telemetry/pump", "1").isCompletedExceptionally());
+        CompletableFuture<Void> dropped = publisher.publishAsync("telemetry/pump", "2");
+        CompletionException failure = assertThrows(CompletionException.class, dropped::join);
+        assertTrue(failure.getCause() instanceof MqttRateLimitException);
+        assertEquals(1, listeners.size());
+
+        // Switched to REJECT without recreating the publisher
+        publisher.getRateLimiter().setLimit("telemetry/#", 0.001, 1, RateLimitPolicy.REJECT);
+        CompletableFuture<Void> rejected = publisher.publishAsync("telemetry/pump", "3");
+        failure = assertThrows(CompletionException.class, rejected::join);
+        assertTrue(failure.getCause() instanceof MqttRateLimitException);
+        assertEquals(1, publisher.getRateLimiter().getRejectedCount());
+        publisher.publishAsync(TOPIC, "21.5");
+        assertEquals(2, listeners.size());
+    }
+
+    @Test
+    void publish_delay_drops_instead_of_holding_the_paho_callback_thread() throws Exception {
+        ApiMqttProperties.RateLimit limit = new ApiMqttProperties.RateLimit();
+        limit.setTopics("telemetry/#");
+        limit.setMessagesPerSecond(5);
+        limit.setPolicy(RateLimitPolicy.DELAY);
+        props.getRateLimits().setPublish(List.of(limit));
+        props.getRateLimits().setMaxDelayMillis(1_000);
+        MqttPublisher publisher = new MqttPublisher(client, props);
+        publisher.publishAsync("telemetry/pump", "1");
+
+        CompletableFuture<CompletableFuture<Void>> published = new CompletableFuture<>();
+        Thread.ofPlatform().name("MQTT Call: publisher-test")
+                .start(() -> published.complete(publisher.publishAsync("telemetry/pump", "2")));
+
+        CompletableFuture<Void> future = published.get(5, TimeUnit.SECONDS);
+        CompletionException failure = assertThrows(CompletionException.class, future::join);
+        assertTrue(failure.getCause() instanceof MqttRateLimitException);
+        assertEquals(0, publisher.getRateLimiter().getDelayedCount());
+    }
+
+    private static ApiMqttProperties.Lane lane(String name, String topics, int weight, int maxInFlight) {
+        ApiMqttProperties.Lane lane = new ApiMqttProperties.Lane();
+        lane.setName(name);
+        lane.setTopics(List.of(topics));
+        lane.setWeight(weight);
+        lane.setMaxInFlight(maxInFlight);
+        return lane;
+    }
+}
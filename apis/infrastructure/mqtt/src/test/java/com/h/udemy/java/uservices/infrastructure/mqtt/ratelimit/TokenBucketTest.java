@@ -0,0 +1,61 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.ratelimit;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TokenBucketTest {
+
+    private static final long MILLIS = 1_000_000;
+
+    @Test
+    void burst_goes_at_once_then_tokens_refill_at_the_rate() {
+        // 100/s: one token every 10 ms
+        TokenBucket bucket = new TokenBucket(100, 3);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, bucket.reserve(0, 0));
+        }
+        assertEquals(-1, bucket.reserve(0, 0));
+        assertEquals(-1, bucket.reserve(0, 9 * MILLIS));
+        assertEquals(0, bucket.reserve(0, 10 * MILLIS));
+        // A delayed caller reserves the next token and learns how long to wait for it
+        assertEquals(10 * MILLIS, bucket.reserve(50 * MILLIS, 10 * MILLIS));
+        assertEquals(-1, bucket.reserve(5 * MILLIS, 10 * MILLIS));
+    }
+
+    @Test
+    void rate_change_applies_to_the_next_token() {
+        TokenBucket bucket = new TokenBucket(1, 1);
+        assertEquals(0, bucket.reserve(0, 0));
+        assertEquals(-1, bucket.reserve(0, 500 * MILLIS));
+
+        bucket.setRate(1_000, 1);
+        // The token taken at 1/s is paid for until 1 s; tokens after it come every millisecond
+        assertEquals(0, bucket.reserve(0, 1_000 * MILLIS));
+        assertEquals(-1, bucket.reserve(0, 1_000 * MILLIS));
+        assertEquals(0, bucket.reserve(0, 1_001 * MILLIS));
+    }
+
+    @Test
+    void topic_limiter_applies_the_first_matching_limit_and_can_be_changed_at_runtime() {
+        TopicRateLimiter limiter = new TopicRateLimiter(List.of(), 0);
+        limiter.setLimit("alarms/#", 0.001, 1, RateLimitPolicy.REJECT);
+        limiter.setLimit("+/pump", 0.001, 2, RateLimitPolicy.DROP);
+
+        assertEquals(TopicRateLimiter.Outcome.ADMITTED, limiter.acquire("alarms/pump"));
+        assertEquals(TopicRateLimiter.Outcome.REJECTED, limiter.acquire("alarms/pump"));
+        assertEquals(TopicRateLimiter.Outcome.ADMITTED, limiter.acquire("sensors/pump"));
+        assertEquals(TopicRateLimiter.Outcome.ADMITTED, limiter.acquire("sensors/pump"));
+        assertEquals(TopicRateLimiter.Outcome.DROPPED, limiter.acquire("sensors/pump"));
+        assertEquals(TopicRateLimiter.Outcome.ADMITTED, limiter.acquire("sensors/fan"));
+
+        limiter.removeLimit("alarms/#");
+        // Now limited by the second filter, whose tokens are used up
+        assertEquals(TopicRateLimiter.Outcome.DROPPED, limiter.acquire("alarms/pump"));
+        assertEquals(1, limiter.getRejectedCount());
+        assertEquals(2, limiter.getDroppedCount());
+    }
+}
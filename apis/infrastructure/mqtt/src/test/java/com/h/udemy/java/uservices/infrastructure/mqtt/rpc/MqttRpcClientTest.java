@@ -0,0 +1,206 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.rpc;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
+import com.h.udemy.java.uservices.infrastructure.mqtt.publisher.MqttPublisher;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttSubscriber;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.dispatch.DispatchMode;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.dispatch.TopicOrderedExecutor;
+import com.h.udemy.java.uservices.infrastructure.mqtt.timer.HashedWheelTimer;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttClientException;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class MqttRpcClientTest {
+
+    private static final String RESPONSE_TOPIC = "responses/order-service-1";
+
+    private MqttAsyncClient client;
+    private MqttCallback callback;
+    private MqttPublisher publisher;
+    private MqttRpcClient rpcClient;
+    private HashedWheelTimer timer;
+    private MqttSubscriber subscriber;
+    // Requests as the responder sees them: correlation data of each publish
+    private final List<byte[]> requests = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    void setUp() throws MqttException {
+        client = mock(MqttAsyncClient.class);
+        when(client.subscribe(anyString(), anyInt())).thenReturn(mock(IMqttToken.class));
+        subscriber = new MqttSubscriber(client, new ApiMqttProperties(),
+                new TopicOrderedExecutor(DispatchMode.INLINE, 1));
+        subscriber.setMessageCallback();
+        ArgumentCaptor<MqttCallback> captor = ArgumentCaptor.forClass(MqttCallback.class);
+        verify(client).setCallback(captor.capture());
+        callback = captor.getValue();
+
+        publisher = mock(MqttPublisher.class);
+        when(publisher.publishWithResponseAsync(anyString(), any(), eq(RESPONSE_TOPIC), any()))
+                .thenAnswer(invocation -> {
+                    requests.add(invocation.getArgument(3));
+                    return CompletableFuture.completedFuture(null);
+                });
+        timer = new HashedWheelTimer("rpc-test-timer", 5, TimeUnit.MILLISECONDS, 64);
+        rpcClient = new MqttRpcClient(publisher, subscriber, RESPONSE_TOPIC, Duration.ofSeconds(5), timer);
+    }
+
+    @AfterEach
+    void tearDown() {
+        rpcClient.close();
+        timer.close();
+    }
+
+    @Test
+    void one_response_subscription_serves_concurrent_requests() throws Exception {
+        int count = 5_000;
+        List<CompletableFuture<MqttSubscriber.MqttV5Message>> responses = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            responses.add(rpcClient.request("orders/get", "order-" + i));
+        }
+        assertEquals(count, rpcClient.getPendingRequestCount());
+
+        // Replies arrive in reverse order, from several threads
+        ExecutorService responders = Executors.newFixedThreadPool(4);
+        for (int i = count - 1; i >= 0; i--) {
+            byte[] correlationData = requests.get(i);
+            String payload = "reply-" + i;
+            responders.execute(() -> respond(correlationData, payload));
+        }
+        responders.shutdown();
+        assertTrue(responders.awaitTermination(10, TimeUnit.SECONDS));
+
+        for (int i = 0; i < count; i++) {
+            assertEquals("reply-" + i, responses.get(i).get(1, TimeUnit.SECONDS).getPayloadAsString());
+        }
+        verify(client, times(1)).subscribe(RESPONSE_TOPIC, 1);
+        assertEquals(0, rpcClient.getPendingRequestCount());
+    }
+
+    @Test
+    void unanswered_request_times_out_and_late_reply_is_discarded() throws Exception {
+        CompletableFuture<MqttSubscriber.MqttV5Message> response =
+                rpcClient.request("orders/get", "order-1", Duration.ofMillis(50));
+
+        CompletionException failure = assertThrows(CompletionException.class, response::join);
+        assertInstanceOf(TimeoutException.class, failure.getCause());
+        // The timer thread updates the counters just after failing the future
+        awaitValue(1, rpcClient::getTimedOutCount);
+        awaitValue(0, rpcClient::getPendingRequestCount);
+
+        respond(requests.get(0), "too late");
+        assertEquals(1, rpcClient.getUnmatchedResponseCount());
+    }
+
+    @Test
+    void first_request_made_offline_is_published_after_the_response_topic_suback() throws Exception {
+        subscriber.onDisconnected(0);
+        CompletableFuture<MqttSubscriber.MqttV5Message> response = rpcClient.request("orders/get", "order-1");
+
+        subscriber.onConnected(0, false);
+        ArgumentCaptor<MqttActionListener> subscribed = ArgumentCaptor.forClass(MqttActionListener.class);
+        verify(client).subscribe(eq(new String[]{RESPONSE_TOPIC}), eq(new int[]{1}), isNull(), subscribed.capture());
+        assertTrue(requests.isEmpty());
+
+        IMqttToken subAck = mock(IMqttToken.class);
+        when(subAck.getReasonCodes()).thenReturn(new int[]{1});
+        subscribed.getValue().onSuccess(subAck);
+        assertEquals(1, requests.size());
+        respond(requests.get(0), "shipped");
+        assertEquals("shipped", response.get(1, TimeUnit.SECONDS).getPayloadAsString());
+    }
+
+    @Test
+    void failed_resubscription_fails_the_request_instead_of_throwing() throws Exception {
+        when(client.subscribe(anyString(), anyInt())).thenThrow(
+                new MqttException(MqttClientException.REASON_CODE_CLIENT_NOT_CONNECTED));
+
+        CompletableFuture<MqttSubscriber.MqttV5Message> first = rpcClient.request("orders/get", "order-1");
+        CompletableFuture<MqttSubscriber.MqttV5Message> retried = rpcClient.request("orders/get", "order-2");
+
+        assertThrows(CompletionException.class, first::join);
+        assertThrows(CompletionException.class, retried::join);
+        verify(client, times(2)).subscribe(RESPONSE_TOPIC, 1);
+        assertTrue(requests.isEmpty());
+    }
+
+    @Test
+    void closing_leaves_an_injected_timer_running() throws Exception {
+        rpcClient.close();
+
+        CountDownLatch fired = new CountDownLatch(1);
+        timer.schedule(fired::countDown, 1, TimeUnit.MILLISECONDS);
+        assertTrue(fired.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void reply_goes_to_the_request_response_topic_with_its_correlation_data() {
+        MqttMessage request = new MqttMessage("order-1".getBytes(StandardCharsets.UTF_8));
+        MqttProperties properties = new MqttProperties();
+        properties.setResponseTopic(RESPONSE_TOPIC);
+        properties.setCorrelationData(new byte[]{1, 2, 3});
+        request.setProperties(properties);
+        when(publisher.publishWithResponseAsync(anyString(), any(), any(), any()))
+                .thenReturn(CompletableFuture.completedFuture(null));
+
+        rpcClient.reply(new MqttSubscriber.MqttV5Message(request), "shipped").join();
+
+        verify(publisher).publishWithResponseAsync(RESPONSE_TOPIC, "shipped", null, new byte[]{1, 2, 3});
+    }
+
+    private static void awaitValue(long expected, LongSupplier actual) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (actual.getAsLong() != expected && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(expected, actual.getAsLong());
+    }
+
+    private void respond(byte[] correlationData, String payload) {
+        MqttMessage message = new MqttMessage(payload.getBytes(StandardCharsets.UTF_8));
+        MqttProperties properties = new MqttProperties();
+        properties.setCorrelationData(correlationData);
+        message.setProperties(properties);
+        try {
+            callback.messageArrived(RESPONSE_TOPIC, message);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.shadow;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.h.udemy.java.uservices.infrastructure.mqtt.codec.JacksonPayloadCodec;
+import com.h.udemy.java.uservices.infrastructure.mqtt.service.MqttService;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.AcknowledgingMessageHandler;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttAcknowledgement;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.SubscriptionFixture.deliver;
+import static com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.SubscriptionFixture.handlerFor;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class DeviceShadowServiceTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private MqttService mqttService;
+    private DeviceShadowService shadows;
+    private AcknowledgingMessageHandler reportedHandler;
+
+    @BeforeEach
+    void setUp() {
+        mqttService = mock(MqttService.class);
+        when(mqttService.publishAsync(anyString(), any(), anyInt(), anyBoolean(), any(), any()))
+                .thenReturn(CompletableFuture.completedFuture(null));
+        shadows = new DeviceShadowService(mqttService, new DeviceShadowStore(), "shadows", 1);
+        shadows.start();
+
+        reportedHandler = handlerFor(mqttService, "shadows/+/reported", 1);
+    }
+
+    @Test
+    void reports_update_the_store_and_are_acknowledged() {
+        MqttAcknowledgement acknowledgement = mock(MqttAcknowledgement.class);
+
+        report("pump-7", "{\"rpm\":1200,\"state\":\"running\"}", acknowledgement);
+
+        assertEquals(json("{\"rpm\":1200,\"state\":\"running\"}"), shadows.getReported("pump-7"));
+        verify(acknowledgement).acknowledge();
+        verify(mqttService, never()).publishAsync(anyString(), any(), anyInt(), anyBoolean(), any(), any());
+    }
+
+    @Test
+    void desired_update_publishes_only_the_changed_fields() {
+        report("pump-7", "{\"rpm\":1200,\"state\":\"running\"}", mock(MqttAcknowledgement.class));
+
+        shadows.updateDesired("pump-7", json("{\"rpm\":1500,\"state\":\"running\"}")).join();
+
+        ArgumentCaptor<Object> delta = ArgumentCaptor.forClass(Object.class);
+        verify(mqttService).publishAsync(eq("shadows/pump-7/delta"), delta.capture(), eq(1), eq(false), isNull(),
+                eq(JacksonPayloadCodec.JSON));
+        assertEquals("{\"version\":2,\"state\":{\"rpm\":1500}}", delta.getValue().toString());
+    }
+
+    @Test
+    void deltas_of_concurrent_updates_are_published_in_version_order() throws Exception {
+        List<Long> versions = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch publishing = new CountDownLatch(1);
+        CountDownLatch bufferRoom = new CountDownLatch(1);
+        when(mqttService.publishAsync(eq("shadows/pump-7/delta"), any(), eq(1), eq(false), isNull(),
+                eq(JacksonPayloadCodec.JSON))).thenAnswer(invocation -> {
+            long version = ((ObjectNode) invocation.getArgument(1)).get("version").asLong();
+            if (version == 1) {
+                // The first publish waits for outbound buffer room while another update comes in
+                publishing.countDown();
+                bufferRoom.await(2, TimeUnit.SECONDS);
+            }
+            versions.add(version);
+            return CompletableFuture.completedFuture(null);
+        });
+
+        CompletableFuture<Void> first = CompletableFuture.supplyAsync(
+                () -> shadows.updateDesired("pump-7", json("{\"rpm\":1500}"))).thenCompose(published -> published);
+        assertTrue(publishing.await(2, TimeUnit.SECONDS));
+        CompletableFuture<Void> second = shadows.updateDesired("pump-7", json("{\"state\":\"stopped\"}"));
+
+        assertFalse(second.isDone());
+        bufferRoom.countDown();
+        first.get(2, TimeUnit.SECONDS);
+        second.get(2, TimeUnit.SECONDS);
+        assertEquals(List.of(1L, 2L), versions);
+    }
+
+    private void report(String deviceId, String payload, MqttAcknowledgement acknowledgement) {
+        deliver(reportedHandler, "shadows/" + deviceId + "/reported", payload, acknowledgement);
+    }
+
+    private static ObjectNode json(String text) {
+        try {
+            return (ObjectNode) MAPPER.readTree(text);
+        } catch (Exception e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+}
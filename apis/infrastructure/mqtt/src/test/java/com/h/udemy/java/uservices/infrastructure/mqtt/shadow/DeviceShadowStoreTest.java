@@ -0,0 +1,81 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.shadow;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeviceShadowStoreTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final DeviceShadowStore store = new DeviceShadowStore();
+
+    @Test
+    void partial_reports_are_merged_and_null_removes_a_field() {
+        store.updateReported("d1", json("{\"temp\":21.5,\"fw\":\"1.0\",\"net\":{\"rssi\":-60,\"ssid\":\"plant\"}}"));
+        store.updateReported("d1", json("{\"temp\":22.0,\"fw\":null,\"net\":{\"rssi\":-65}}"));
+
+        assertEquals(json("{\"temp\":22.0,\"net\":{\"rssi\":-65,\"ssid\":\"plant\"}}"), store.getReported("d1"));
+        assertEquals(2, store.get("d1").version());
+        assertNull(store.get("unknown"));
+    }
+
+    @Test
+    void delta_holds_only_the_touched_desired_fields_that_differ() {
+        store.updateReported("d1", json("{\"led\":\"off\",\"mode\":\"eco\",\"limits\":{\"max\":80,\"min\":10}}"));
+
+        ShadowDelta delta = store.updateDesired("d1", json("{\"led\":\"on\",\"mode\":\"eco\",\"limits\":{\"max\":90}}"));
+
+        assertEquals(json("{\"led\":\"on\",\"limits\":{\"max\":90}}"), delta.state());
+        assertEquals(2, delta.version());
+
+        // The device catches up on one field; the other still differs and stays in the full delta
+        ShadowDelta afterReport = store.updateReported("d1", json("{\"led\":\"on\"}"));
+        assertTrue(afterReport.isEmpty());
+        assertEquals(json("{\"limits\":{\"max\":90}}"), store.get("d1").delta());
+    }
+
+    @Test
+    void reads_are_snapshots() {
+        store.updateReported("d1", json("{\"temp\":21.5}"));
+
+        store.getReported("d1").put("temp", 99);
+
+        assertEquals(json("{\"temp\":21.5}"), store.getReported("d1"));
+    }
+
+    @Test
+    void concurrent_updates_to_one_device_are_not_lost() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> updates = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            String field = "f" + i;
+            updates.add(executor.submit(() -> store.updateReported("d1", json("{\"" + field + "\":1}"))));
+        }
+        for (Future<?> update : updates) {
+            update.get();
+        }
+        executor.shutdown();
+
+        assertEquals(400, store.getReported("d1").size());
+        assertEquals(400, store.get("d1").version());
+    }
+
+    private static ObjectNode json(String text) {
+        try {
+            return (ObjectNode) MAPPER.readTree(text);
+        } catch (Exception e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+}
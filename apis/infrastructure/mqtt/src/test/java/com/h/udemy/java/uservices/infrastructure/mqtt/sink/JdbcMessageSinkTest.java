@@ -0,0 +1,121 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.sink;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
+import com.h.udemy.java.uservices.infrastructure.mqtt.service.MqttService;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.AcknowledgingMessageHandler;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.MqttAcknowledgement;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+import static com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.SubscriptionFixture.deliver;
+import static com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.SubscriptionFixture.handlerFor;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class JdbcMessageSinkTest {
+
+    private MqttService mqttService;
+    private DataSource dataSource;
+    private Connection connection;
+    private PreparedStatement statement;
+    private ApiMqttProperties.JdbcSink config;
+    private JdbcMessageSink sink;
+    private AcknowledgingMessageHandler handler;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        mqttService = mock(MqttService.class);
+        dataSource = mock(DataSource.class);
+        connection = mock(Connection.class);
+        statement = mock(PreparedStatement.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.getAutoCommit()).thenReturn(true);
+        when(connection.prepareStatement(anyString())).thenReturn(statement);
+
+        config = new ApiMqttProperties.JdbcSink();
+        config.setTopics(List.of("devices/#"));
+        config.setBatchSize(3);
+        config.setLingerMillis(60_000);
+        config.setRetryMillis(10);
+        sink = new JdbcMessageSink(mqttService, dataSource, config, true);
+        sink.start();
+        handler = handlerFor(mqttService, "devices/#", 1);
+    }
+
+    @AfterEach
+    void tearDown() {
+        sink.close();
+    }
+
+    @Test
+    void full_batch_is_written_in_one_transaction_and_acknowledged_after_commit() throws SQLException {
+        MqttAcknowledgement first = mock(MqttAcknowledgement.class);
+        MqttAcknowledgement last = mock(MqttAcknowledgement.class);
+
+        deliver(handler, "devices/1", "a", first);
+        deliver(handler, "devices/2", "b", mock(MqttAcknowledgement.class));
+        verify(connection, never()).commit();
+        deliver(handler, "devices/3", "c", last);
+
+        verify(last, timeout(2_000)).acknowledge();
+        InOrder inOrder = inOrder(statement, connection, first, last);
+        inOrder.verify(statement, times(3)).addBatch();
+        inOrder.verify(statement).executeBatch();
+        inOrder.verify(connection).commit();
+        inOrder.verify(first).acknowledge();
+        inOrder.verify(last).acknowledge();
+        assertEquals(3, sink.getWrittenCount());
+        assertEquals(1, sink.getBatchCount());
+    }
+
+    @Test
+    void failed_batch_is_rolled_back_and_retried_before_acknowledging() throws SQLException {
+        when(statement.executeBatch()).thenThrow(new SQLException("connection reset")).thenReturn(new int[3]);
+        MqttAcknowledgement acknowledgement = mock(MqttAcknowledgement.class);
+
+        deliver(handler, "devices/1", "a", acknowledgement);
+        deliver(handler, "devices/1", "b", acknowledgement);
+        deliver(handler, "devices/1", "c", acknowledgement);
+
+        verify(acknowledgement, timeout(2_000).times(3)).acknowledge();
+        verify(connection).rollback();
+        verify(connection).commit();
+        verify(statement, times(6)).addBatch();
+        assertEquals(1, sink.getFailedBatchCount());
+        assertEquals(3, sink.getWrittenCount());
+    }
+
+    @Test
+    void without_manual_acks_messages_beyond_max_buffered_are_dropped_while_writes_fail() throws SQLException {
+        when(statement.executeBatch()).thenThrow(new SQLException("connection reset"));
+        MqttService unacknowledgedService = mock(MqttService.class);
+        config.setMaxBuffered(5);
+        try (JdbcMessageSink unacknowledged = new JdbcMessageSink(unacknowledgedService, dataSource, config, false)) {
+            unacknowledged.start();
+            AcknowledgingMessageHandler unacknowledgedHandler = handlerFor(unacknowledgedService, "devices/#", 1);
+
+            for (int i = 0; i < 8; i++) {
+                deliver(unacknowledgedHandler, "devices/" + i, "v", mock(MqttAcknowledgement.class));
+            }
+
+            assertEquals(3, unacknowledged.getDroppedCount());
+            verify(statement, timeout(2_000).atLeast(6)).addBatch();
+            assertEquals(0, unacknowledged.getWrittenCount());
+        }
+    }
+}
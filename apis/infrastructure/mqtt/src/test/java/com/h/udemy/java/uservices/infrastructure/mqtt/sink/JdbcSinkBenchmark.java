@@ -0,0 +1,108 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.sink;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rows per second written to PostgreSQL one INSERT per message (auto-commit, as a per-message
+ * repository save does), as a JDBC batch per transaction and with COPY, the two {@link JdbcSinkMode}s.
+ * <p>
+ * Not a unit test; needs a running database. Run {@code main} with arguments
+ * {@code jdbcUrl user password [messages batchSize]}, e.g.
+ * {@code jdbc:postgresql://localhost:5432/postgres?reWriteBatchedInserts=true postgres postgres}.
+ * The table {@code mqtt_sink_benchmark} is recreated on every run.
+ */
+public class JdbcSinkBenchmark {
+
+    private static final String TABLE = "mqtt_sink_benchmark";
+
+    public static void main(String[] args) throws SQLException {
+        String url = args[0];
+        String user = args[1];
+        String password = args[2];
+        int batchSize = args.length > 4 ? Integer.parseInt(args[4]) : 500;
+        // Whole batches only
+        int messages = Math.ceilDiv(args.length > 3 ? Integer.parseInt(args[3]) : 20_000, batchSize) * batchSize;
+
+        List<JdbcMessageSink.Pending> batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            byte[] payload = ("{\"deviceId\":\"device-" + i + "\",\"temperature\":21.5,\"humidity\":40}")
+                    .getBytes(StandardCharsets.UTF_8);
+            batch.add(new JdbcMessageSink.Pending("devices/" + i + "/telemetry", System.currentTimeMillis(),
+                    payload, () -> { }));
+        }
+
+        try (Connection connection = DriverManager.getConnection(url, user, password)) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("DROP TABLE IF EXISTS " + TABLE);
+                statement.execute("CREATE TABLE " + TABLE
+                        + " (id bigserial PRIMARY KEY, topic text NOT NULL, received_at timestamptz NOT NULL,"
+                        + " payload bytea NOT NULL)");
+            }
+            System.out.printf("%d messages, batches of %d%n", messages, batchSize);
+            System.out.printf("%-20s %12s%n", "strategy", "rows/s");
+            // Per-message inserts are slow enough that a tenth of the messages gives a stable rate
+            int single = Math.max(1, messages / 10);
+            report("insert per message", single, perMessage(connection, batch, single));
+            report("batch insert", messages, batched(connection, batch, messages, false));
+            report("copy", messages, batched(connection, batch, messages, true));
+        }
+    }
+
+    private static long perMessage(Connection connection, List<JdbcMessageSink.Pending> rows, int messages)
+            throws SQLException {
+        connection.setAutoCommit(true);
+        long start = System.nanoTime();
+        try (PreparedStatement statement = connection.prepareStatement(insertSql())) {
+            for (int i = 0; i < messages; i++) {
+                bind(statement, rows.get(i % rows.size()));
+                statement.executeUpdate();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long batched(Connection connection, List<JdbcMessageSink.Pending> batch, int messages,
+                                boolean copy) throws SQLException {
+        connection.setAutoCommit(false);
+        long start = System.nanoTime();
+        for (int written = 0; written < messages; written += batch.size()) {
+            if (copy) {
+                PostgresCopyWriter.copy(connection, TABLE, batch);
+            } else {
+                try (PreparedStatement statement = connection.prepareStatement(insertSql())) {
+                    for (JdbcMessageSink.Pending row : batch) {
+                        bind(statement, row);
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            }
+            connection.commit();
+        }
+        long elapsed = System.nanoTime() - start;
+        connection.setAutoCommit(true);
+        return elapsed;
+    }
+
+    private static void bind(PreparedStatement statement, JdbcMessageSink.Pending row) throws SQLException {
+        statement.setString(1, row.topic());
+        statement.setTimestamp(2, new Timestamp(row.receivedAt()));
+        statement.setBytes(3, row.payload());
+    }
+
+    private static String insertSql() {
+        return "INSERT INTO " + TABLE + " (topic, received_at, payload) VALUES (?, ?, ?)";
+    }
+
+    private static void report(String strategy, int messages, long nanos) {
+        System.out.printf("%-20s %,12.0f%n", strategy, messages * 1e9 / nanos);
+    }
+}
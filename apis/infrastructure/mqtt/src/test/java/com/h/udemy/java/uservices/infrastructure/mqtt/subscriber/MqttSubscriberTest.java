@@ -0,0 +1,453 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.subscriber;
+
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.h.udemy.java.uservices.infrastructure.mqtt.client.MqttClientPool;
+import com.h.udemy.java.uservices.infrastructure.mqtt.backpressure.OverflowPolicy;
+import com.h.udemy.java.uservices.infrastructure.mqtt.codec.JacksonPayloadCodec;
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
+import com.h.udemy.java.uservices.infrastructure.mqtt.envelope.MqttEnvelope;
+import com.h.udemy.java.uservices.infrastructure.mqtt.ratelimit.RateLimitPolicy;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.dispatch.DispatchMode;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.dispatch.TopicOrderedExecutor;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.eclipse.paho.mqttv5.common.packet.UserProperty;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class MqttSubscriberTest {
+
+    private MqttSubscriber subscriber;
+    private MqttCallback callback;
+    private MqttAsyncClient client;
+
+    @BeforeEach
+    void setUp() throws MqttException {
+        client = mock(MqttAsyncClient.class);
+        when(client.subscribe(anyString(), anyInt())).thenReturn(mock(IMqttToken.class));
+        when(client.unsubscribe(anyString())).thenReturn(mock(IMqttToken.class));
+
+        subscriber = new MqttSubscriber(client, new ApiMqttProperties(),
+                new TopicOrderedExecutor(DispatchMode.INLINE, 1));
+        subscriber.setMessageCallback();
+
+        ArgumentCaptor<MqttCallback> captor = ArgumentCaptor.forClass(MqttCallback.class);
+        verify(client).setCallback(captor.capture());
+        callback = captor.getValue();
+    }
+
+    @Test
+    void payload_is_decoded_once_and_shared() throws Exception {
+        List<String> received = new ArrayList<>();
+        subscriber.subscribe("sensors/temperature", received::add);
+        subscriber.subscribe("sensors/+", received::add);
+
+        callback.messageArrived("sensors/temperature", message("21.5 °C"));
+
+        assertEquals(2, received.size());
+        assertEquals("21.5 °C", received.get(0));
+        assertSame(received.get(0), received.get(1));
+    }
+
+    @Test
+    void typed_subscription_parses_from_bytes() throws Exception {
+        List<Reading> readings = new ArrayList<>();
+        subscriber.subscribe("sensors/#", Reading.class, readings::add);
+
+        callback.messageArrived("sensors/humidity", message("{\"sensorId\":\"h1\",\"value\":0.4}"));
+
+        assertEquals(1, readings.size());
+        assertEquals("h1", readings.get(0).sensorId);
+    }
+
+    @Test
+    void typed_subscription_decodes_by_content_type() throws Exception {
+        List<Reading> readings = new ArrayList<>();
+        subscriber.subscribe("sensors/#", Reading.class, readings::add);
+
+        Reading reading = new Reading();
+        reading.sensorId = "h2";
+        MqttMessage message = new MqttMessage(new CBORMapper().writeValueAsBytes(reading));
+        MqttProperties properties = new MqttProperties();
+        properties.setContentType(JacksonPayloadCodec.CBOR);
+        message.setProperties(properties);
+        callback.messageArrived("sensors/humidity", message);
+
+        assertEquals(1, readings.size());
+        assertEquals("h2", readings.get(0).sensorId);
+    }
+
+    @Test
+    void buffer_handlers_get_independent_read_only_views() throws Exception {
+        List<ByteBuffer> buffers = new ArrayList<>();
+        subscriber.subscribeBuffer("a/b", buffers::add);
+        subscriber.subscribeBuffer("a/b", buffer -> {
+            buffer.get();
+            buffers.add(buffer);
+        });
+
+        callback.messageArrived("a/b", message("xyz"));
+
+        assertTrue(buffers.get(0).isReadOnly());
+        assertEquals(3, buffers.get(0).remaining());
+        assertEquals(2, buffers.get(1).remaining());
+    }
+
+    @Test
+    void v5_message_caches_text_and_user_properties() throws Exception {
+        List<MqttSubscriber.MqttV5Message> received = new ArrayList<>();
+        subscriber.subscribeV5("devices/+/status", received::add);
+
+        MqttMessage message = message("online");
+        MqttProperties properties = new MqttProperties();
+        properties.setUserProperties(List.of(new UserProperty("device", "d1"), new UserProperty("device", "d2")));
+        message.setProperties(properties);
+        callback.messageArrived("devices/d1/status", message);
+
+        MqttSubscriber.MqttV5Message v5 = received.get(0);
+        assertSame(v5.getPayloadAsString(), v5.getPayloadAsString());
+        assertEquals(Map.of("device", "d1"), v5.getUserProperties());
+        assertEquals("d1", v5.getUserProperty("device"));
+    }
+
+    @Test
+    void overlapping_filters_on_different_connections_deliver_once() throws Exception {
+        MqttAsyncClient first = mock(MqttAsyncClient.class);
+        MqttAsyncClient second = mock(MqttAsyncClient.class);
+        when(first.subscribe(anyString(), anyInt())).thenReturn(mock(IMqttToken.class));
+        when(second.subscribe(anyString(), anyInt())).thenReturn(mock(IMqttToken.class));
+        MqttClientPool pool = new MqttClientPool(List.of(first, second));
+        MqttSubscriber pooled = new MqttSubscriber(pool, new ApiMqttProperties(),
+                new TopicOrderedExecutor(DispatchMode.INLINE, 1));
+        pooled.setMessageCallback();
+
+        String wildcard = "sensors/+";
+        String exact = pool.shardFor("sensors/#") != pool.shardFor(wildcard) ? "sensors/#" : "#";
+        List<String> received = new ArrayList<>();
+        pooled.subscribe(wildcard, received::add);
+        pooled.subscribe(exact, received::add);
+
+        ArgumentCaptor<MqttCallback> captor = ArgumentCaptor.forClass(MqttCallback.class);
+        verify(first).setCallback(captor.capture());
+        verify(second).setCallback(captor.capture());
+        // The broker sends one copy per connection whose filter matches
+        for (MqttCallback connectionCallback : captor.getAllValues()) {
+            connectionCallback.messageArrived("sensors/temperature", message("21.5"));
+        }
+
+        assertEquals(List.of("21.5", "21.5"), received);
+    }
+
+    @Test
+    void shared_subscription_matches_topics_without_share_prefix() throws Exception {
+        List<String> received = new ArrayList<>();
+        subscriber.subscribe("$share/order-service/orders/+/created", received::add);
+        verify(client).subscribe("$share/order-service/orders/+/created", 1);
+
+        callback.messageArrived("orders/17/created", message("order 17"));
+        assertEquals(List.of("order 17"), received);
+
+        subscriber.unsubscribe("$share/order-service/orders/+/created");
+        verify(client).unsubscribe("$share/order-service/orders/+/created");
+        callback.messageArrived("orders/18/created", message("order 18"));
+        assertEquals(1, received.size());
+    }
+
+    @Test
+    void manual_ack_waits_for_acknowledging_handlers() throws Exception {
+        MqttAsyncClient client = mock(MqttAsyncClient.class);
+        when(client.subscribe(anyString(), anyInt())).thenReturn(mock(IMqttToken.class));
+        ApiMqttProperties props = new ApiMqttProperties();
+        props.setManualAcks(true);
+        MqttSubscriber acking = new MqttSubscriber(client, props, new TopicOrderedExecutor(DispatchMode.INLINE, 1));
+        acking.setMessageCallback();
+        ArgumentCaptor<MqttCallback> captor = ArgumentCaptor.forClass(MqttCallback.class);
+        verify(client).setCallback(captor.capture());
+
+        List<MqttAcknowledgement> pending = new ArrayList<>();
+        acking.subscribe("bridge/#", text -> { });
+        acking.subscribeAcknowledged("bridge/#", (topic, message, acknowledgement) -> pending.add(acknowledgement));
+
+        MqttMessage message = message("forward me");
+        message.setId(7);
+        message.setQos(1);
+        captor.getValue().messageArrived("bridge/device-1", message);
+
+        verify(client, never()).messageArrivedComplete(7, 1);
+        pending.get(0).acknowledge();
+        pending.get(0).acknowledge();
+        verify(client).messageArrivedComplete(7, 1);
+    }
+
+    @Test
+    void envelope_is_delivered_as_its_messages_and_acknowledged_once() throws Exception {
+        MqttAsyncClient client = mock(MqttAsyncClient.class);
+        when(client.subscribe(anyString(), anyInt())).thenReturn(mock(IMqttToken.class));
+        ApiMqttProperties props = new ApiMqttProperties();
+        props.setManualAcks(true);
+        MqttSubscriber acking = new MqttSubscriber(client, props, new TopicOrderedExecutor(DispatchMode.INLINE, 1));
+        acking.setMessageCallback();
+        ArgumentCaptor<MqttCallback> captor = ArgumentCaptor.forClass(MqttCallback.class);
+        verify(client).setCallback(captor.capture());
+
+        List<Reading> readings = new ArrayList<>();
+        List<MqttAcknowledgement> pending = new ArrayList<>();
+        acking.subscribe("sensors/#", Reading.class, readings::add);
+        acking.subscribeAcknowledged("sensors/#", (topic, message, acknowledgement) -> pending.add(acknowledgement));
+
+        MqttEnvelope envelope = new MqttEnvelope(JacksonPayloadCodec.JSON, List.of(
+                "{\"sensorId\":\"h1\",\"value\":0.4}".getBytes(StandardCharsets.UTF_8),
+                "{\"sensorId\":\"h2\",\"value\":0.5}".getBytes(StandardCharsets.UTF_8)));
+        MqttMessage message = new MqttMessage(envelope.encode());
+        message.setId(9);
+        message.setQos(1);
+        MqttProperties properties = new MqttProperties();
+        properties.setContentType(MqttEnvelope.CONTENT_TYPE);
+        message.setProperties(properties);
+        captor.getValue().messageArrived("sensors/humidity", message);
+
+        assertEquals(List.of("h1", "h2"), readings.stream().map(reading -> reading.sensorId).toList());
+        assertEquals(2, pending.size());
+        pending.get(0).acknowledge();
+        verify(client, never()).messageArrivedComplete(9, 1);
+        pending.get(1).acknowledge();
+        verify(client).messageArrivedComplete(9, 1);
+    }
+
+    @Test
+    void messages_dropped_by_a_full_dispatch_queue_are_still_acknowledged() throws Exception {
+        MqttAsyncClient client = mock(MqttAsyncClient.class);
+        when(client.subscribe(anyString(), anyInt())).thenReturn(mock(IMqttToken.class));
+        ApiMqttProperties props = new ApiMqttProperties();
+        props.setManualAcks(true);
+        TopicOrderedExecutor executor = new TopicOrderedExecutor(DispatchMode.STRIPED, 1, 1,
+                OverflowPolicy.DROP_NEWEST);
+        MqttSubscriber acking = new MqttSubscriber(client, props, executor);
+        acking.setMessageCallback();
+        ArgumentCaptor<MqttCallback> captor = ArgumentCaptor.forClass(MqttCallback.class);
+        verify(client).setCallback(captor.capture());
+
+        CountDownLatch busy = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        acking.subscribe("meters/#", text -> {
+            busy.countDown();
+            awaitQuietly(release);
+        });
+        try (executor) {
+            for (int id = 1; id <= 4; id++) {
+                MqttMessage message = message("reading " + id);
+                message.setId(id);
+                message.setQos(1);
+                captor.getValue().messageArrived("meters/m-1", message);
+                if (id == 1) {
+                    assertTrue(busy.await(1, TimeUnit.SECONDS));
+                }
+            }
+            // 1 is running and 2 queued; 3 and 4 are dropped and acknowledged at once
+            verify(client).messageArrivedComplete(3, 1);
+            verify(client).messageArrivedComplete(4, 1);
+            verify(client, never()).messageArrivedComplete(2, 1);
+            release.countDown();
+        }
+        verify(client).messageArrivedComplete(1, 1);
+        verify(client).messageArrivedComplete(2, 1);
+        assertEquals(2, executor.getDroppedCount());
+    }
+
+    @Test
+    void conflated_handler_skips_values_superseded_while_it_was_busy() throws Exception {
+        CountDownLatch busy = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> handled = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(2);
+        subscriber.subscribeConflated("gauges/+", (topic, message) -> {
+            busy.countDown();
+            awaitQuietly(release);
+            handled.add(topic + "=" + message.getPayloadAsString());
+            done.countDown();
+        });
+
+        callback.messageArrived("gauges/pressure", message("1.0"));
+        assertTrue(busy.await(1, TimeUnit.SECONDS));
+        for (String value : List.of("1.1", "1.2", "1.3")) {
+            callback.messageArrived("gauges/pressure", message(value));
+        }
+        release.countDown();
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals(List.of("gauges/pressure=1.0", "gauges/pressure=1.3"), handled);
+        assertEquals(2, subscriber.getConflatedMessageCount());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    void duplicate_is_acknowledged_without_running_handlers_again() throws Exception {
+        MqttAsyncClient client = mock(MqttAsyncClient.class);
+        when(client.subscribe(anyString(), anyInt())).thenReturn(mock(IMqttToken.class));
+        ApiMqttProperties props = new ApiMqttProperties();
+        props.setManualAcks(true);
+        props.getDedup().setEnabled(true);
+        MqttSubscriber deduplicating = new MqttSubscriber(client, props,
+                new TopicOrderedExecutor(DispatchMode.INLINE, 1));
+        deduplicating.setMessageCallback();
+        ArgumentCaptor<MqttCallback> captor = ArgumentCaptor.forClass(MqttCallback.class);
+        verify(client).setCallback(captor.capture());
+
+        List<String> received = new ArrayList<>();
+        deduplicating.subscribe("orders/#", received::add);
+        for (int id = 1; id <= 2; id++) {
+            MqttMessage message = message("charge card");
+            message.setId(id);
+            message.setQos(1);
+            MqttProperties properties = new MqttProperties();
+            properties.setUserProperties(List.of(new UserProperty("message-id", "order-42")));
+            message.setProperties(properties);
+            captor.getValue().messageArrived("orders/eu", message);
+        }
+
+        assertEquals(List.of("charge card"), received);
+        verify(client).messageArrivedComplete(1, 1);
+        verify(client).messageArrivedComplete(2, 1);
+        assertEquals(1, deduplicating.getDuplicateFilter().getDuplicateCount());
+    }
+
+    @Test
+    void redelivery_of_a_message_left_unacknowledged_reaches_the_handler_again() throws Exception {
+        MqttAsyncClient client = mock(MqttAsyncClient.class);
+        when(client.subscribe(anyString(), anyInt())).thenReturn(mock(IMqttToken.class));
+        ApiMqttProperties props = new ApiMqttProperties();
+        props.setManualAcks(true);
+        props.getDedup().setEnabled(true);
+        MqttSubscriber deduplicating = new MqttSubscriber(client, props,
+                new TopicOrderedExecutor(DispatchMode.INLINE, 1));
+        deduplicating.setMessageCallback();
+        ArgumentCaptor<MqttCallback> captor = ArgumentCaptor.forClass(MqttCallback.class);
+        verify(client).setCallback(captor.capture());
+
+        List<MqttAcknowledgement> received = new ArrayList<>();
+        deduplicating.subscribeAcknowledged("orders/#",
+                (topic, message, acknowledgement) -> received.add(acknowledgement));
+        for (int delivery = 0; delivery < 3; delivery++) {
+            MqttMessage message = message("charge card");
+            message.setId(5);
+            message.setQos(1);
+            message.setDuplicate(delivery > 0);
+            MqttProperties properties = new MqttProperties();
+            properties.setUserProperties(List.of(new UserProperty("message-id", "order-42")));
+            message.setProperties(properties);
+            captor.getValue().messageArrived("orders/eu", message);
+            if (delivery == 1) {
+                // The first delivery failed and was left unacknowledged; the redelivery succeeds
+                received.get(1).acknowledge();
+            }
+        }
+
+        assertEquals(2, received.size());
+        verify(client, times(2)).messageArrivedComplete(5, 1);
+        assertEquals(1, deduplicating.getDuplicateFilter().getDuplicateCount());
+    }
+
+    @Test
+    void messages_over_the_consume_rate_limit_are_dropped_before_the_handlers() throws Exception {
+        List<String> received = new ArrayList<>();
+        subscriber.subscribe("telemetry/#", received::add);
+        subscriber.getRateLimiter().setLimit("telemetry/#", 0.001, 2, RateLimitPolicy.DROP);
+
+        for (int i = 0; i < 4; i++) {
+            callback.messageArrived("telemetry/pump", message("reading " + i));
+        }
+
+        assertEquals(List.of("reading 0", "reading 1"), received);
+        assertEquals(2, subscriber.getRateLimiter().getDroppedCount());
+    }
+
+    @Test
+    void consume_delay_drops_instead_of_holding_the_inline_callback_thread() throws Exception {
+        List<String> received = new ArrayList<>();
+        subscriber.subscribe("telemetry/#", received::add);
+        // A token every 200 ms, within the default maximum delay
+        subscriber.getRateLimiter().setLimit("telemetry/#", 5, 1, RateLimitPolicy.DELAY);
+
+        for (int i = 0; i < 3; i++) {
+            callback.messageArrived("telemetry/pump", message("reading " + i));
+        }
+
+        assertEquals(List.of("reading 0"), received);
+        assertEquals(2, subscriber.getRateLimiter().getDroppedCount());
+        assertEquals(0, subscriber.getRateLimiter().getDelayedCount());
+    }
+
+    private static MqttMessage message(String payload) {
+        return new MqttMessage(payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static class Reading {
+        public String sensorId;
+        public double value;
+    }
+
+    @Test
+    void subscriptions_made_offline_are_sent_in_one_subscribe_on_connect() throws Exception {
+        subscriber.onDisconnected(0);
+        subscriber.subscribe("sensors/+/temperature", text -> { });
+        subscriber.subscribe("alarms/#", text -> { }, 2);
+        subscriber.subscribe("commands/device-1", text -> { });
+        verify(client, never()).subscribe(anyString(), anyInt());
+
+        subscriber.onConnected(0, false);
+        ArgumentCaptor<MqttActionListener> listener = ArgumentCaptor.forClass(MqttActionListener.class);
+        verify(client).subscribe(eq(new String[]{"sensors/+/temperature", "alarms/#", "commands/device-1"}),
+                eq(new int[]{1, 2, 1}), isNull(), listener.capture());
+        IMqttToken granted = mock(IMqttToken.class);
+        when(granted.getReasonCodes()).thenReturn(new int[]{1, 2, 0x87});
+        listener.getValue().onSuccess(granted);
+
+        // A resumed session still holds the confirmed filters; only the rejected one is sent again
+        subscriber.onDisconnected(0);
+        subscriber.onConnected(0, true);
+        verify(client).subscribe(eq(new String[]{"commands/device-1"}), eq(new int[]{1}), isNull(), any());
+
+        // A new session starts empty, so everything is sent again
+        subscriber.onDisconnected(0);
+        subscriber.onConnected(0, false);
+        verify(client, times(2)).subscribe(eq(new String[]{"sensors/+/temperature", "alarms/#", "commands/device-1"}),
+                eq(new int[]{1, 2, 1}), isNull(), any());
+        verify(client, never()).subscribe(anyString(), anyInt());
+    }
+}
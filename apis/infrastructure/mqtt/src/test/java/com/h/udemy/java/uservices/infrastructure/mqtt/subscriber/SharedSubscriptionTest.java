@@ -0,0 +1,101 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.subscriber;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.broker.EmbeddedBroker;
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
+import com.h.udemy.java.uservices.infrastructure.mqtt.publisher.MqttPublisher;
+import com.h.udemy.java.uservices.infrastructure.mqtt.service.MqttService;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.dispatch.DispatchMode;
+import com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.dispatch.TopicOrderedExecutor;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+class SharedSubscriptionTest {
+
+    private static final int INSTANCES = 3;
+    private static final int MESSAGES = 300;
+
+    private EmbeddedBroker broker;
+    private final List<MqttAsyncClient> clients = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        broker = new EmbeddedBroker();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (MqttAsyncClient client : clients) {
+            client.disconnect().waitForCompletion();
+            client.close();
+        }
+        broker.close();
+    }
+
+    @Test
+    void shared_subscription_divides_messages_across_instances() throws Exception {
+        ApiMqttProperties props = new ApiMqttProperties();
+        props.getSharedSubscriptions().setGroup("order-service");
+        // The broker round-robins QoS 0 deliveries; QoS 1 ones go to whichever member acknowledges first
+        props.setQos(0);
+
+        CountDownLatch groupReceived = new CountDownLatch(MESSAGES);
+        CountDownLatch auditReceived = new CountDownLatch(MESSAGES);
+        AtomicInteger[] received = new AtomicInteger[INSTANCES];
+        for (int i = 0; i < INSTANCES; i++) {
+            AtomicInteger count = received[i] = new AtomicInteger();
+            instance("order-service-" + i, props).subscribeShared("orders/+/created", payload -> {
+                count.incrementAndGet();
+                groupReceived.countDown();
+            });
+        }
+        // A plain subscription on the same filter still sees every message
+        instance("audit", props).subscribe("orders/+/created", payload -> auditReceived.countDown());
+
+        MqttAsyncClient publisher = connect("load-generator");
+        for (int i = 0; i < MESSAGES; i++) {
+            publisher.publish("orders/" + i + "/created", ("order-" + i).getBytes(StandardCharsets.UTF_8), 1, false)
+                    .waitForCompletion();
+        }
+
+        assertTrue(groupReceived.await(10, TimeUnit.SECONDS), "shared group did not receive every message");
+        assertTrue(auditReceived.await(10, TimeUnit.SECONDS), "plain subscriber did not receive every message");
+        int total = 0;
+        for (AtomicInteger count : received) {
+            assertTrue(count.get() >= MESSAGES / INSTANCES / 2, "load is not spread: " + count.get() + " messages");
+            total += count.get();
+        }
+        assertEquals(MESSAGES, total);
+    }
+
+    private MqttService instance(String clientId, ApiMqttProperties props) throws MqttException {
+        MqttSubscriber subscriber = new MqttSubscriber(connect(clientId), props,
+                new TopicOrderedExecutor(DispatchMode.INLINE, 1));
+        subscriber.setMessageCallback();
+        return new MqttService(mock(MqttPublisher.class), subscriber, props);
+    }
+
+    private MqttAsyncClient connect(String clientId) throws MqttException {
+        MqttAsyncClient client = new MqttAsyncClient(broker.url(), clientId, new MemoryPersistence());
+        MqttConnectionOptions options = new MqttConnectionOptions();
+        options.setCleanStart(true);
+        client.connect(options).waitForCompletion(5_000);
+        clients.add(client);
+        return client;
+    }
+}
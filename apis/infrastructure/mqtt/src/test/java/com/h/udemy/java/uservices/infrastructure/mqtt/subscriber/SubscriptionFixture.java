@@ -0,0 +1,51 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.subscriber;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.service.MqttService;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.mockito.ArgumentCaptor;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+
+/**
+ * For tests of components that subscribe through a mocked {@link MqttService}: captures the acknowledging
+ * handler a component registered, and delivers messages to it as the subscriber would.
+ */
+public final class SubscriptionFixture {
+
+    private SubscriptionFixture() {
+    }
+
+    // The handler subscribed to topicFilter with the given QoS
+    public static AcknowledgingMessageHandler handlerFor(MqttService mqttService, String topicFilter, int qos) {
+        ArgumentCaptor<AcknowledgingMessageHandler> captor = ArgumentCaptor.forClass(AcknowledgingMessageHandler.class);
+        verify(mqttService).subscribeAcknowledged(eq(topicFilter), captor.capture(), eq(qos));
+        return captor.getValue();
+    }
+
+    // The handler subscribed to topicFilter with the default QoS
+    public static AcknowledgingMessageHandler handlerFor(MqttService mqttService, String topicFilter) {
+        ArgumentCaptor<AcknowledgingMessageHandler> captor = ArgumentCaptor.forClass(AcknowledgingMessageHandler.class);
+        verify(mqttService).subscribeAcknowledged(eq(topicFilter), captor.capture());
+        return captor.getValue();
+    }
+
+    public static void deliver(AcknowledgingMessageHandler handler, String topic, String payload,
+                               MqttAcknowledgement acknowledgement) {
+        deliver(handler, topic, payload.getBytes(StandardCharsets.UTF_8), null, acknowledgement);
+    }
+
+    public static void deliver(AcknowledgingMessageHandler handler, String topic, byte[] payload, String contentType,
+                               MqttAcknowledgement acknowledgement) {
+        MqttMessage message = new MqttMessage(payload);
+        if (contentType != null) {
+            MqttProperties properties = new MqttProperties();
+            properties.setContentType(contentType);
+            message.setProperties(properties);
+        }
+        handler.onMessage(topic, new MqttSubscriber.MqttV5Message(message), acknowledgement);
+    }
+}
@@ -0,0 +1,107 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.dedup;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.config.ApiMqttProperties;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.eclipse.paho.mqttv5.common.packet.UserProperty;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DuplicateFilterTest {
+
+    @Test
+    void same_id_on_the_same_topic_is_a_duplicate_until_the_window_expires() {
+        ApiMqttProperties.Dedup config = new ApiMqttProperties.Dedup();
+        config.setWindowMillis(1_000);
+        DuplicateFilter filter = new DuplicateFilter(config, 0);
+
+        assertFalse(receive(filter, "orders/eu", withId("a"), 0));
+        assertTrue(receive(filter, "orders/eu", withId("a"), 100));
+        assertFalse(receive(filter, "orders/us", withId("a"), 100));
+        assertFalse(receive(filter, "orders/eu", withId("b"), 100));
+        assertFalse(receive(filter, "orders/eu", withId("a"), 2_500));
+        assertEquals(1, filter.getDuplicateCount());
+    }
+
+    @Test
+    void id_is_read_from_the_payload_when_there_is_no_user_property() {
+        ApiMqttProperties.Dedup config = new ApiMqttProperties.Dedup();
+        config.setPayloadField("/header/id");
+        config.setTopics(List.of("orders/#"));
+        DuplicateFilter filter = new DuplicateFilter(config, 0);
+        MqttMessage order = payload("{\"header\":{\"id\":17},\"amount\":5}");
+
+        assertFalse(receive(filter, "orders/eu", order, 0));
+        assertTrue(receive(filter, "orders/eu", order, 1));
+        assertFalse(receive(filter, "orders/eu", payload("{\"amount\":5}"), 2));
+        assertFalse(receive(filter, "orders/eu", payload("{\"amount\":5}"), 3));
+        assertFalse(receive(filter, "payments/eu", order, 4));
+        assertFalse(receive(filter, "payments/eu", order, 5));
+        assertEquals(2, filter.getCheckedCount());
+    }
+
+    @Test
+    void unconfirmed_bloom_hits_are_delivered_unless_the_broker_flagged_a_redelivery() {
+        ApiMqttProperties.Dedup config = new ApiMqttProperties.Dedup();
+        config.setExpectedMessages(64);
+        config.setFalsePositiveRate(0.01);
+        config.setExactCapacity(1);
+        DuplicateFilter filter = new DuplicateFilter(config, 0);
+
+        for (int i = 0; i < 5_000; i++) {
+            assertFalse(receive(filter, "t", withId("id-" + i), 0));
+        }
+        assertTrue(filter.getFalsePositiveCount() > 0);
+        assertEquals(0, filter.getDuplicateCount());
+
+        // id-0 is out of the exact map but still in the Bloom filter
+        MqttMessage redelivery = withId("id-0");
+        redelivery.setDuplicate(true);
+        assertTrue(receive(filter, "t", redelivery, 0));
+    }
+
+    @Test
+    void id_of_a_message_never_acknowledged_is_not_a_duplicate_when_redelivered() {
+        DuplicateFilter filter = new DuplicateFilter(new ApiMqttProperties.Dedup(), 0);
+        MqttMessage message = withId("a");
+        String key = filter.keyOf("orders/eu", message);
+
+        // A handler left the first delivery unacknowledged
+        assertFalse(filter.isDuplicate(key, false, 0));
+        assertFalse(filter.isDuplicate(key, true, 100));
+        filter.acknowledged(key, 100);
+        assertTrue(filter.isDuplicate(key, true, 200));
+        assertEquals(1, filter.getDuplicateCount());
+    }
+
+    // Checks the message and, unless it is a duplicate, acknowledges it as the subscriber would
+    private static boolean receive(DuplicateFilter filter, String topic, MqttMessage message, long now) {
+        String key = filter.keyOf(topic, message);
+        if (key == null) {
+            return false;
+        }
+        if (filter.isDuplicate(key, message.isDuplicate(), now)) {
+            return true;
+        }
+        filter.acknowledged(key, now);
+        return false;
+    }
+
+    private static MqttMessage withId(String id) {
+        MqttMessage message = payload("{}");
+        MqttProperties properties = new MqttProperties();
+        properties.setUserProperties(List.of(new UserProperty("message-id", id)));
+        message.setProperties(properties);
+        return message;
+    }
+
+    private static MqttMessage payload(String json) {
+        return new MqttMessage(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
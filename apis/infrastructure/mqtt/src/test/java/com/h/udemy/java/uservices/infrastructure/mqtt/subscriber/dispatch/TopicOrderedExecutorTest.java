@@ -0,0 +1,176 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.subscriber.dispatch;
+
+import com.h.udemy.java.uservices.infrastructure.mqtt.backpressure.OverflowPolicy;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class TopicOrderedExecutorTest {
+
+    private static final int MESSAGES = 2_000;
+
+    @ParameterizedTest
+    @EnumSource(DispatchMode.class)
+    void keeps_order_per_topic(DispatchMode mode) throws InterruptedException {
+        List<Integer> first = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> second = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(2 * MESSAGES);
+
+        TopicOrderedExecutor executor = new TopicOrderedExecutor(mode, 4);
+        try (executor) {
+            for (int i = 0; i < MESSAGES; i++) {
+                int sequence = i;
+                executor.execute("devices/1/telemetry", () -> { first.add(sequence); done.countDown(); });
+                executor.execute("devices/2/telemetry", () -> { second.add(sequence); done.countDown(); });
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+
+            for (int i = 0; i < MESSAGES; i++) {
+                assertEquals(i, first.get(i));
+                assertEquals(i, second.get(i));
+            }
+        }
+        assertEquals(2L * MESSAGES, executor.getProcessedCount());
+    }
+
+    @Test
+    void slow_topic_does_not_block_other_topics() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch fastDone = new CountDownLatch(1);
+
+        try (TopicOrderedExecutor executor = new TopicOrderedExecutor(DispatchMode.VIRTUAL, 64)) {
+            String slowTopic = "slow/topic";
+            String fastTopic = topicOnAnotherLane(slowTopic, 64);
+            executor.execute(slowTopic, () -> awaitQuietly(release));
+            executor.execute(fastTopic, fastDone::countDown);
+
+            assertTrue(fastDone.await(5, TimeUnit.SECONDS));
+            release.countDown();
+        }
+    }
+
+    @Test
+    void failing_handler_is_counted_and_lane_continues() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+
+        TopicOrderedExecutor executor = new TopicOrderedExecutor(DispatchMode.STRIPED, 2);
+        try (executor) {
+            executor.execute("a", () -> { throw new IllegalStateException("boom"); });
+            executor.execute("a", done::countDown);
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, executor.getFailedCount());
+    }
+
+    @Test
+    void full_queue_drops_oldest_message_of_the_lane() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> handled = Collections.synchronizedList(new ArrayList<>());
+
+        TopicOrderedExecutor executor = new TopicOrderedExecutor(DispatchMode.STRIPED, 1, 2, OverflowPolicy.DROP_OLDEST);
+        try (executor) {
+            executor.execute("a", () -> { started.countDown(); awaitQuietly(release); });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 4; i++) {
+                int sequence = i;
+                executor.execute("a", () -> handled.add(sequence));
+            }
+            release.countDown();
+        }
+        assertEquals(List.of(2, 3), handled);
+        assertEquals(2, executor.getDroppedCount());
+    }
+
+    @Test
+    void full_queue_fails_fast() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        try (TopicOrderedExecutor executor = new TopicOrderedExecutor(DispatchMode.STRIPED, 1, 1, OverflowPolicy.FAIL_FAST)) {
+            executor.execute("a", () -> { started.countDown(); awaitQuietly(release); });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            executor.execute("a", () -> { });
+
+            assertThrows(RejectedExecutionException.class, () -> executor.execute("a", () -> { }));
+            assertEquals(1, executor.getRejectedCount());
+            release.countDown();
+        }
+    }
+
+    @Test
+    void full_queue_blocks_producer_until_drained() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch lastDone = new CountDownLatch(1);
+
+        TopicOrderedExecutor executor = new TopicOrderedExecutor(DispatchMode.STRIPED, 1, 1, OverflowPolicy.BLOCK);
+        try (executor) {
+            executor.execute("a", () -> { started.countDown(); awaitQuietly(release); });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            executor.execute("a", () -> { });
+
+            Thread producer = Thread.ofPlatform().start(() -> executor.execute("a", lastDone::countDown));
+            producer.join(200);
+            assertTrue(producer.isAlive());
+
+            release.countDown();
+            assertTrue(lastDone.await(5, TimeUnit.SECONDS));
+        }
+        assertTrue(executor.getBlockedNanos() > 0);
+    }
+
+    @Test
+    void blocked_producer_gives_up_after_the_timeout_and_discards_the_message() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> discarded = Collections.synchronizedList(new ArrayList<>());
+
+        TopicOrderedExecutor executor = new TopicOrderedExecutor(DispatchMode.STRIPED, 1, 1, OverflowPolicy.BLOCK, 50);
+        try (executor) {
+            executor.execute("a", () -> { started.countDown(); awaitQuietly(release); });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            executor.execute("a", () -> { }, () -> discarded.add("queued"));
+
+            executor.execute("a", () -> fail("ran a discarded message"), () -> discarded.add("late"));
+            assertEquals(List.of("late"), discarded);
+            assertEquals(1, executor.getDroppedCount());
+            release.countDown();
+        }
+    }
+
+    private static String topicOnAnotherLane(String topic, int lanes) {
+        for (int i = 0; ; i++) {
+            String candidate = "fast/" + i;
+            if (lane(candidate, lanes) != lane(topic, lanes)) {
+                return candidate;
+            }
+        }
+    }
+
+    private static int lane(String topic, int lanes) {
+        int h = topic.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), lanes);
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
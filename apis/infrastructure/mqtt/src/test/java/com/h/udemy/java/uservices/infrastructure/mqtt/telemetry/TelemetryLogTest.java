@@ -0,0 +1,130 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.telemetry;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TelemetryLogTest {
+
+    @TempDir
+    Path directory;
+
+    private TelemetryLog telemetryLog;
+
+    @AfterEach
+    void tearDown() {
+        if (telemetryLog != null) {
+            telemetryLog.close();
+        }
+    }
+
+    @Test
+    void range_scan_across_segments_returns_matching_messages_in_order() {
+        telemetryLog = new TelemetryLog(directory, 1024, 128, 0);
+        for (int i = 0; i < 200; i++) {
+            telemetryLog.append("devices/" + (i % 4) + "/temp", 1_000 + i * 10L, bytes("v" + i));
+        }
+        assertTrue(telemetryLog.getSegmentCount() > 5);
+
+        List<String> all = payloads(1_500, 1_600, null);
+        assertEquals(List.of("v50", "v51", "v52", "v53", "v54", "v55", "v56", "v57", "v58", "v59"), all);
+
+        List<String> device2 = payloads(1_000, 3_000, "devices/2/+");
+        assertEquals(50, device2.size());
+        assertEquals("v2", device2.getFirst());
+        assertEquals("v198", device2.getLast());
+    }
+
+    @Test
+    void timestamps_that_go_back_are_clamped_to_keep_the_log_ordered() {
+        telemetryLog = new TelemetryLog(directory);
+        telemetryLog.append("a", 2_000, bytes("first"));
+        telemetryLog.append("a", 1_000, bytes("late clock"));
+
+        List<TelemetryRecord> records = new ArrayList<>();
+        telemetryLog.read(0, Long.MAX_VALUE, records::add);
+
+        assertEquals(List.of(2_000L, 2_000L), records.stream().map(TelemetryRecord::timestamp).toList());
+    }
+
+    @Test
+    void log_is_recovered_on_reopen_and_a_torn_tail_is_ignored() throws IOException {
+        telemetryLog = new TelemetryLog(directory, 4096, 256, 0);
+        telemetryLog.append("a/b", 1_000, bytes("one"));
+        telemetryLog.append("c/d", 1_001, bytes("two"));
+        telemetryLog.close();
+        // Corrupt the payload of the last record, after two topic records and one message of 8 + 13 + 3 bytes
+        long lastPayload = 3 * (8 + 13 + 3) + 8 + 13;
+        try (FileChannel channel = FileChannel.open(directory.resolve(String.format("%020d.log", 0)),
+                StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(bytes("X")), lastPayload);
+        }
+
+        telemetryLog = new TelemetryLog(directory, 4096, 256, 0);
+        assertEquals(List.of("one"), payloads(0, Long.MAX_VALUE, null));
+
+        telemetryLog.append("c/d", 1_002, bytes("three"));
+        assertEquals(List.of("one", "three"), payloads(0, Long.MAX_VALUE, null));
+        assertEquals(List.of("three"), payloads(0, Long.MAX_VALUE, "c/#"));
+    }
+
+    @Test
+    void sealed_segments_reopen_from_their_index_files() throws IOException {
+        telemetryLog = new TelemetryLog(directory, 1024, 128, 0);
+        for (int i = 0; i < 100; i++) {
+            telemetryLog.append("devices/" + (i % 4) + "/temp", 1_000 + i * 10L, bytes("v" + i));
+        }
+        int segments = telemetryLog.getSegmentCount();
+        List<String> expected = payloads(1_200, 1_700, "devices/1/+");
+        telemetryLog.close();
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(segments - 1, files.filter(file -> file.toString().endsWith(".idx")).count());
+        }
+        // A damaged index is ignored and its segment scanned instead
+        Files.write(directory.resolve(String.format("%020d.idx", 1)), bytes("garbage"));
+
+        telemetryLog = new TelemetryLog(directory, 1024, 128, 0);
+        assertEquals(segments, telemetryLog.getSegmentCount());
+        assertEquals(expected, payloads(1_200, 1_700, "devices/1/+"));
+        telemetryLog.append("devices/1/temp", 5_000, bytes("after reopen"));
+        assertEquals(List.of("after reopen"), payloads(5_000, 5_001, "devices/1/+"));
+    }
+
+    @Test
+    void expired_segments_are_deleted_when_the_log_rolls() {
+        telemetryLog = new TelemetryLog(directory, 256, 64, 1_000);
+        for (int i = 0; i < 50; i++) {
+            telemetryLog.append("t", i * 100L, new byte[40]);
+        }
+
+        List<TelemetryRecord> records = new ArrayList<>();
+        telemetryLog.read(0, Long.MAX_VALUE, records::add);
+        assertTrue(records.getFirst().timestamp() >= 3_000);
+        assertTrue(telemetryLog.getSegmentCount() < 10);
+    }
+
+    private List<String> payloads(long from, long to, String topicFilter) {
+        List<String> payloads = new ArrayList<>();
+        telemetryLog.read(from, to, topicFilter,
+                record -> payloads.add(new String(record.payload(), StandardCharsets.UTF_8)));
+        return payloads;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
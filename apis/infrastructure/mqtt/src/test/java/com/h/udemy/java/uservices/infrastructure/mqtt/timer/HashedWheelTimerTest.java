@@ -0,0 +1,71 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.timer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HashedWheelTimerTest {
+
+    // 8 buckets of 5 ms: one turn of the wheel is 40 ms
+    private final HashedWheelTimer timer = new HashedWheelTimer("test-timer", 5, TimeUnit.MILLISECONDS, 8);
+
+    @AfterEach
+    void tearDown() {
+        timer.close();
+    }
+
+    @Test
+    void timeout_fires_no_earlier_than_its_delay() throws Exception {
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        // Longer than a turn of the wheel, so it has to wait out a round in its bucket
+        HashedWheelTimer.Timeout timeout = timer.schedule(fired::countDown, 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    void cancelled_timeout_does_not_fire() throws Exception {
+        AtomicInteger fired = new AtomicInteger();
+        HashedWheelTimer.Timeout timeout = timer.schedule(fired::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.cancel());
+
+        CountDownLatch later = new CountDownLatch(1);
+        timer.schedule(later::countDown, 60, TimeUnit.MILLISECONDS);
+        assertTrue(later.await(2, TimeUnit.SECONDS));
+
+        assertEquals(0, fired.get());
+        assertTrue(timeout.isCancelled());
+    }
+
+    @Test
+    void many_timeouts_each_fire_once() throws Exception {
+        int count = 10_000;
+        AtomicInteger fired = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(count / 2);
+        for (int i = 0; i < count; i++) {
+            HashedWheelTimer.Timeout timeout = timer.schedule(() -> {
+                fired.incrementAndGet();
+                done.countDown();
+            }, i % 200, TimeUnit.MILLISECONDS);
+            if (i % 2 == 1) {
+                timeout.cancel();
+            }
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(count / 2, fired.get());
+        assertEquals(0, timer.getPendingCount());
+    }
+}
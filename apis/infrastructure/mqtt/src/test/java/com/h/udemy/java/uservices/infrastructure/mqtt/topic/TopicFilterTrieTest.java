@@ -0,0 +1,97 @@
+package com.h.udemy.java.uservices.infrastructure.mqtt.topic;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TopicFilterTrieTest {
+
+    private TopicFilterTrie<String> trie;
+
+    @BeforeEach
+    void setUp() {
+        trie = new TopicFilterTrie<>();
+        for (String filter : List.of("sensors/temperature", "sensors/+", "sensors/#", "#", "+/+/status",
+                "devices/+/telemetry/#", "$SYS/broker/uptime")) {
+            trie.computeIfAbsent(filter, () -> filter);
+        }
+    }
+
+    @Test
+    void match_exact_and_wildcards() {
+        assertEquals(List.of("#", "sensors/#", "sensors/+", "sensors/temperature"),
+                sorted(matches("sensors/temperature")));
+    }
+
+    @Test
+    void multi_level_wildcard_matches_parent_level() {
+        assertEquals(List.of("#", "sensors/#"), sorted(matches("sensors")));
+        assertEquals(List.of("#", "devices/+/telemetry/#"), sorted(matches("devices/d1/telemetry")));
+    }
+
+    @Test
+    void single_level_wildcard_matches_one_level_only() {
+        assertEquals(List.of("#", "+/+/status"), sorted(matches("a/b/status")));
+        assertEquals(List.of("#"), sorted(matches("a/b/c/status")));
+    }
+
+    @Test
+    void single_level_wildcard_matches_empty_level() {
+        assertEquals(List.of("#", "sensors/#", "sensors/+"), sorted(matches("sensors/")));
+    }
+
+    @Test
+    void wildcards_do_not_match_system_topics() {
+        assertEquals(List.of("$SYS/broker/uptime"), matches("$SYS/broker/uptime"));
+        assertFalse(new TopicFilterTrie<String>().matches("$SYS/x"));
+    }
+
+    @Test
+    void remove_prunes_filter() {
+        assertEquals("sensors/+", trie.remove("sensors/+"));
+        assertNull(trie.get("sensors/+"));
+        assertEquals(List.of("#", "sensors/#", "sensors/temperature"), sorted(matches("sensors/temperature")));
+        assertNull(trie.remove("unknown/filter"));
+    }
+
+    @Test
+    void many_literal_children_resolve() {
+        TopicFilterTrie<Integer> devices = new TopicFilterTrie<>();
+        for (int i = 0; i < 10_000; i++) {
+            int id = i;
+            devices.computeIfAbsent("devices/" + i + "/status", () -> id);
+        }
+        List<Integer> found = new ArrayList<>();
+        devices.match("devices/4242/status", found, (value, topic, sink) -> sink.add(value));
+
+        assertEquals(List.of(4242), found);
+        assertTrue(devices.matches("devices/9999/status"));
+        assertFalse(devices.matches("devices/10000/status"));
+    }
+
+    @Test
+    void invalid_filters_are_rejected() {
+        assertThrows(IllegalArgumentException.class, () -> trie.computeIfAbsent("a/#/b", () -> "x"));
+        assertThrows(IllegalArgumentException.class, () -> trie.computeIfAbsent("a/b+", () -> "x"));
+    }
+
+    private List<String> matches(String topic) {
+        List<String> found = new ArrayList<>();
+        trie.match(topic, found, (value, t, sink) -> sink.add(value));
+        return found;
+    }
+
+    private static List<String> sorted(List<String> values) {
+        List<String> copy = new ArrayList<>(values);
+        copy.sort(String::compareTo);
+        return copy;
+    }
+}